@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.common.SAMLObject;
+import org.opensaml.saml2.binding.decoding.HTTPPostDecoder;
+import org.opensaml.saml2.binding.decoding.HTTPRedirectDeflateDecoder;
+import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import com.vdenotaris.spring.boot.security.saml.web.bindings.HTTPPostEncoderThymeleaf;
+
+/**
+ * Encoding and decoding of the messages exchanged through the browser: the
+ * HTTP-POST form of an AuthnRequest rendered by Thymeleaf, the deflated
+ * HTTP-Redirect form of an AuthnRequest, and the parsing of a posted Response
+ * with the parser pool of the application.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BindingBenchmark {
+
+    /**
+     * Attributes of the posted assertion, each with two values.
+     */
+    @Param({"5", "50"})
+    public int attributes;
+
+    private HTTPPostEncoderThymeleaf postEncoder;
+
+    private RedirectEncoder redirectEncoder;
+
+    private RedirectDecoder redirectDecoder;
+
+    private HTTPPostDecoder postDecoder;
+
+    private SingleSignOnService endpoint;
+
+    private String deflatedRequest;
+
+    private String encodedResponse;
+
+    private int messages;
+
+    @Setup
+    public void setUp() throws Exception {
+        SAMLFixtures.bootstrap();
+        ParserPool parserPool = SAMLFixtures.parserPool();
+
+        ClassLoaderTemplateResolver templateResolver = new ClassLoaderTemplateResolver();
+        templateResolver.setTemplateMode("HTML5");
+        templateResolver.setCharacterEncoding("UTF-8");
+        TemplateEngine templateEngine = new TemplateEngine();
+        templateEngine.setTemplateResolver(templateResolver);
+        postEncoder = new HTTPPostEncoderThymeleaf(templateEngine, "templates/saml2-post-binding.html");
+        postDecoder = new HTTPPostDecoder(parserPool);
+        redirectEncoder = new RedirectEncoder();
+        redirectDecoder = new RedirectDecoder(parserPool);
+
+        endpoint = SAMLFixtures.build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        endpoint.setBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        endpoint.setLocation(SAMLFixtures.IDP + "/sso");
+
+        deflatedRequest = redirectEncoder.deflate(SAMLFixtures.authnRequest("_request0"));
+        String response = XMLHelper.nodeToString(SAMLUtil.marshallMessage(SAMLFixtures.response("_response0", attributes)));
+        encodedResponse = Base64.encodeBytes(response.getBytes(StandardCharsets.UTF_8), Base64.DONT_BREAK_LINES);
+    }
+
+    @Benchmark
+    public int postEncode() throws MessageEncodingException {
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setOutboundSAMLMessage(SAMLFixtures.authnRequest("_request" + messages++));
+        context.setPeerEntityEndpoint(endpoint);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        context.setOutboundMessageTransport(new HttpServletResponseAdapter(response, false));
+        postEncoder.encode(context);
+        return response.getContentAsByteArray().length;
+    }
+
+    @Benchmark
+    public String redirectDeflate() throws MessageEncodingException {
+        return redirectEncoder.deflate(SAMLFixtures.authnRequest("_request" + messages++));
+    }
+
+    @Benchmark
+    public XMLObject redirectInflate() throws MessageDecodingException {
+        return redirectDecoder.inflate(deflatedRequest);
+    }
+
+    @Benchmark
+    public SAMLObject postDecode() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml/SSO");
+        request.setParameter("SAMLResponse", encodedResponse);
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        postDecoder.decode(context);
+        return context.getInboundSAMLMessage();
+    }
+
+    /**
+     * Exposes the deflate and Base64 step of the HTTP-Redirect binding.
+     */
+    static final class RedirectEncoder extends HTTPRedirectDeflateEncoder {
+
+        String deflate(SAMLObject message) throws MessageEncodingException {
+            return deflateAndBase64Encode(message);
+        }
+    }
+
+    /**
+     * Exposes the Base64, inflate and parsing steps of the HTTP-Redirect binding.
+     */
+    static final class RedirectDecoder extends HTTPRedirectDeflateDecoder {
+
+        RedirectDecoder(ParserPool parserPool) {
+            super(parserPool);
+        }
+
+        XMLObject inflate(String message) throws MessageDecodingException {
+            InputStream in = decodeMessage(message);
+            return unmarshallMessage(in);
+        }
+    }
+
+}
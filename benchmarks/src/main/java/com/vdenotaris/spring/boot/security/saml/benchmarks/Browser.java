@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal browser of one virtual user: keeps its cookies, follows redirects
+ * and submits the self-posting forms of the SAML POST binding, without
+ * rendering nor running scripts.
+ */
+final class Browser {
+
+    private static final int MAX_HOPS = 10;
+
+    private static final Pattern FORM = Pattern.compile("<form[^>]*\\saction=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern INPUT = Pattern.compile("<input[^>]*>", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    private final Map<String, String> cookies = new LinkedHashMap<String, String>();
+
+    /**
+     * Loads a page, then follows redirects and SAML forms until a regular page is reached.
+     */
+    Page navigate(String url) throws IOException {
+        Page page = request(url, null);
+        for (int hop = 0; hop < MAX_HOPS; hop++) {
+            if (page.location != null) {
+                page = request(new URL(new URL(page.url), page.location).toString(), null);
+                continue;
+            }
+            Map<String, String> form = samlForm(page.body);
+            if (form == null) {
+                return page;
+            }
+            page = request(new URL(new URL(page.url), form.remove("")).toString(), form);
+        }
+        throw new IOException("Too many redirects, last URL " + page.url);
+    }
+
+    void clearCookies() {
+        cookies.clear();
+    }
+
+    private Page request(String url, Map<String, String> form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        if (!cookies.isEmpty()) {
+            StringBuilder cookie = new StringBuilder();
+            for (Map.Entry<String, String> entry : cookies.entrySet()) {
+                cookie.append(cookie.length() == 0 ? "" : "; ").append(entry.getKey()).append('=')
+                        .append(entry.getValue());
+            }
+            connection.setRequestProperty("Cookie", cookie.toString());
+        }
+        if (form != null) {
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, String> entry : form.entrySet()) {
+                body.append(body.length() == 0 ? "" : "&").append(URLEncoder.encode(entry.getKey(), "UTF-8"))
+                        .append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+                for (String value : header.getValue()) {
+                    storeCookie(value);
+                }
+            }
+        }
+        String location = status / 100 == 3 ? connection.getHeaderField("Location") : null;
+        String body;
+        try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            body = in != null ? read(in) : "";
+        }
+        return new Page(url, status, location, body);
+    }
+
+    private void storeCookie(String header) {
+        String[] parts = header.split(";");
+        int equals = parts[0].indexOf('=');
+        if (equals <= 0) {
+            return;
+        }
+        String name = parts[0].substring(0, equals).trim();
+        String value = parts[0].substring(equals + 1).trim();
+        boolean expired = false;
+        for (int i = 1; i < parts.length; i++) {
+            String attribute = parts[i].trim().toLowerCase();
+            if (attribute.equals("max-age=0") || attribute.startsWith("expires=thu, 01-jan-1970")
+                    || attribute.startsWith("expires=thu, 01 jan 1970")) {
+                expired = true;
+            }
+        }
+        if (expired || value.isEmpty()) {
+            cookies.remove(name);
+        } else {
+            cookies.put(name, value);
+        }
+    }
+
+    /**
+     * @return the fields of a form posting a SAML message, the action under the empty name; null for other pages
+     */
+    private static Map<String, String> samlForm(String body) {
+        if (!body.contains("SAMLRequest") && !body.contains("SAMLResponse") && !body.contains("SAMLart")) {
+            return null;
+        }
+        Matcher form = FORM.matcher(body);
+        if (!form.find()) {
+            return null;
+        }
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("", unescape(form.group(1)));
+        Matcher input = INPUT.matcher(body);
+        while (input.find()) {
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            Matcher attribute = ATTRIBUTE.matcher(input.group());
+            while (attribute.find()) {
+                attributes.put(attribute.group(1).toLowerCase(), unescape(attribute.group(2)));
+            }
+            if ("hidden".equals(attributes.get("type")) && attributes.containsKey("name")) {
+                fields.put(attributes.get("name"), attributes.containsKey("value") ? attributes.get("value") : "");
+            }
+        }
+        return fields;
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('&') == -1) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            int semicolon = c == '&' ? value.indexOf(';', i) : -1;
+            if (semicolon == -1) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            String entity = value.substring(i + 1, semicolon);
+            if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                sb.append((char) Integer.parseInt(entity.substring(2), 16));
+            } else if (entity.startsWith("#")) {
+                sb.append((char) Integer.parseInt(entity.substring(1)));
+            } else if (entity.equals("amp")) {
+                sb.append('&');
+            } else if (entity.equals("quot")) {
+                sb.append('"');
+            } else if (entity.equals("lt")) {
+                sb.append('<');
+            } else if (entity.equals("gt")) {
+                sb.append('>');
+            } else if (entity.equals("apos")) {
+                sb.append('\'');
+            } else {
+                sb.append(value, i, semicolon + 1);
+            }
+            i = semicolon + 1;
+        }
+        return sb.toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Response to one request.
+     */
+    static final class Page {
+
+        final String url;
+
+        final int status;
+
+        final String location;
+
+        final String body;
+
+        Page(String url, int status, String location, String body) {
+            this.url = url;
+            this.status = status;
+            this.location = location;
+            this.body = body;
+        }
+
+        /**
+         * @return path of the page, without the servlet path parameters such as {@code ;jsessionid}
+         */
+        String getPath() throws IOException {
+            String path = new URL(url).getPath();
+            int parameters = path.indexOf(';');
+            return parameters == -1 ? path : path.substring(0, parameters);
+        }
+    }
+
+}
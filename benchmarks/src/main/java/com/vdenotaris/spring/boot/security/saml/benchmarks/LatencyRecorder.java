@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of one kind of flow, recorded by a single thread and merged for
+ * the report.
+ */
+final class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+
+    private int count;
+
+    private long failures;
+
+    private String firstFailure;
+
+    void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    void fail(String reason) {
+        if (firstFailure == null) {
+            firstFailure = reason;
+        }
+        failures++;
+    }
+
+    static LatencyRecorder merge(Collection<LatencyRecorder> recorders) {
+        LatencyRecorder merged = new LatencyRecorder();
+        for (LatencyRecorder recorder : recorders) {
+            for (int i = 0; i < recorder.count; i++) {
+                merged.record(recorder.samples[i]);
+            }
+            merged.failures += recorder.failures;
+            if (merged.firstFailure == null) {
+                merged.firstFailure = recorder.firstFailure;
+            }
+        }
+        Arrays.sort(merged.samples, 0, merged.count);
+        return merged;
+    }
+
+    /**
+     * @param name    flow reported
+     * @param seconds duration of the measurement
+     */
+    String report(String name, double seconds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-32s %8d ok %6d failed %9.1f/s", name, count, failures, count / seconds));
+        if (count > 0) {
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += samples[i];
+            }
+            sb.append(String.format("   mean %7.2f  p50 %7.2f  p90 %7.2f  p99 %7.2f  p99.9 %7.2f  max %7.2f ms",
+                    millis(total / count), millis(percentile(50)), millis(percentile(90)),
+                    millis(percentile(99)), millis(percentile(99.9)), millis(samples[count - 1])));
+        }
+        if (firstFailure != null) {
+            sb.append(System.lineSeparator()).append("         first failure: ").append(firstFailure);
+        }
+        return sb.toString();
+    }
+
+    private long percentile(double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
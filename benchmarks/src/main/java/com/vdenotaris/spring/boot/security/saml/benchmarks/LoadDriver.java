@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs complete login and logout flows against a running SP, with the
+ * {@link MockIdP} started in-process, and reports their throughput and latency
+ * percentiles.
+ * <p>
+ * The SP must trust the mock IdP, e.g. be started with
+ * {@code --saml.idp.metadata=mock-idp-metadata.xml} (the file written by the
+ * IdP) or {@code --saml.idp.metadata=http://localhost:9090/idp/metadata}.
+ * Options, besides those of {@link MockIdP#main(String[])}:
+ * {@code --users 16} concurrent virtual users, {@code --warmup 10} and
+ * {@code --duration 60} seconds, {@code --no-logout} to only log in.
+ */
+public final class LoadDriver {
+
+    private LoadDriver() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments(args);
+        String sp = arguments.get("sp", "http://localhost:8080");
+        int users = arguments.getInt("users", 16);
+        long warmup = TimeUnit.SECONDS.toNanos(arguments.getInt("warmup", 10));
+        long duration = TimeUnit.SECONDS.toNanos(arguments.getInt("duration", 60));
+        boolean logout = !arguments.has("no-logout");
+
+        try (MockIdP idp = MockIdP.create(arguments)) {
+            idp.start(arguments.getInt("idp-threads", Math.max(4, users / 2)));
+            String loginURL = sp + "/saml/login?idp=" + URLEncoder.encode(idp.getEntityId(), "UTF-8");
+            System.out.println("Mock IdP " + idp.getEntityId() + ", " + users + " users against " + sp);
+
+            long start = System.nanoTime();
+            long measureFrom = start + warmup;
+            long end = measureFrom + duration;
+            ExecutorService executor = Executors.newFixedThreadPool(users);
+            List<Future<VirtualUser>> results = new ArrayList<Future<VirtualUser>>();
+            for (int i = 0; i < users; i++) {
+                VirtualUser user = new VirtualUser(loginURL, sp + "/saml/logout", logout, measureFrom, end);
+                results.add(executor.submit(user::run, user));
+            }
+            List<LatencyRecorder> logins = new ArrayList<LatencyRecorder>();
+            List<LatencyRecorder> logouts = new ArrayList<LatencyRecorder>();
+            for (Future<VirtualUser> result : results) {
+                VirtualUser user = result.get();
+                logins.add(user.logins);
+                logouts.add(user.logouts);
+            }
+            executor.shutdown();
+
+            double seconds = duration / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.println(LatencyRecorder.merge(logins).report("login", seconds));
+            if (logout) {
+                System.out.println(LatencyRecorder.merge(logouts).report("logout", seconds));
+            }
+            System.out.println("IdP: " + idp.getAuthnRequestCount() + " AuthnRequests, "
+                    + idp.getArtifactResolveCount() + " ArtifactResolves, "
+                    + idp.getLogoutRequestCount() + " LogoutRequests, " + idp.getErrorCount() + " errors");
+        }
+    }
+
+    /**
+     * One user logging in and out in a loop, with its own cookies.
+     */
+    private static final class VirtualUser {
+
+        private final Browser browser = new Browser();
+
+        private final LatencyRecorder logins = new LatencyRecorder();
+
+        private final LatencyRecorder logouts = new LatencyRecorder();
+
+        private final String loginURL;
+
+        private final String logoutURL;
+
+        private final boolean logout;
+
+        private final long measureFrom;
+
+        private final long end;
+
+        VirtualUser(String loginURL, String logoutURL, boolean logout, long measureFrom, long end) {
+            this.loginURL = loginURL;
+            this.logoutURL = logoutURL;
+            this.logout = logout;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        void run() {
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                boolean loggedIn = flow(loginURL, "/landing", logins, now);
+                if (logout && loggedIn) {
+                    flow(logoutURL, "/", logouts, System.nanoTime());
+                }
+                if (!logout || !loggedIn) {
+                    browser.clearCookies();
+                }
+            }
+        }
+
+        /**
+         * @param expectedPath path of the page the flow should end on
+         * @return true when the flow ended on the expected page
+         */
+        private boolean flow(String url, String expectedPath, LatencyRecorder recorder, long start) {
+            boolean measured = start >= measureFrom;
+            try {
+                Browser.Page page = browser.navigate(url);
+                long elapsed = System.nanoTime() - start;
+                if (page.status == 200 && expectedPath.equals(page.getPath())) {
+                    if (measured) {
+                        recorder.record(elapsed);
+                    }
+                    return true;
+                }
+                if (measured) {
+                    recorder.fail("HTTP " + page.status + " on " + page.url);
+                }
+            } catch (IOException e) {
+                if (measured) {
+                    recorder.fail(String.valueOf(e));
+                }
+            }
+            return false;
+        }
+    }
+
+}
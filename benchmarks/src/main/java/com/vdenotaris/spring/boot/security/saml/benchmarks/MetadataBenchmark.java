@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.security.saml.util.SAMLUtil;
+
+import com.vdenotaris.spring.boot.security.saml.web.metadata.VersionedMetadataManager;
+
+/**
+ * Lookups done by the metadata manager on every message (entity, IdP role,
+ * IdP validity, extended metadata) against federations of growing size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetadataBenchmark {
+
+    /**
+     * IdPs of the federation metadata.
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int entities;
+
+    private VersionedMetadataManager manager;
+
+    private String[] entityIds;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        SAMLFixtures.bootstrap();
+        entityIds = new String[entities];
+        EntitiesDescriptor federation = SAMLFixtures.build(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        for (int i = 0; i < entities; i++) {
+            entityIds[i] = "https://idp" + i + ".example.org/idp/shibboleth";
+            federation.getEntityDescriptors().add(idp(entityIds[i]));
+        }
+        DOMMetadataProvider provider = new DOMMetadataProvider(SAMLUtil.marshallMessage(federation));
+        provider.setParserPool(SAMLFixtures.parserPool());
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, new ExtendedMetadata());
+        delegate.setMetadataTrustCheck(false);
+        delegate.initialize();
+
+        List<MetadataProvider> providers = new ArrayList<MetadataProvider>(Collections.singletonList(delegate));
+        manager = new VersionedMetadataManager(providers);
+        manager.setKeyManager(SAMLFixtures.keyManager());
+        manager.setRefreshCheckInterval(0);
+        manager.refreshMetadata();
+        Collections.shuffle(Arrays.asList(entityIds), new Random(entities));
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.destroy();
+    }
+
+    @Benchmark
+    public EntityDescriptor getEntityDescriptor() throws MetadataProviderException {
+        return manager.getEntityDescriptor(nextEntityId());
+    }
+
+    @Benchmark
+    public RoleDescriptor getRole() throws MetadataProviderException {
+        return manager.getRole(nextEntityId(), IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS);
+    }
+
+    @Benchmark
+    public boolean isIDPValid() {
+        return manager.isIDPValid(nextEntityId());
+    }
+
+    @Benchmark
+    public ExtendedMetadata getExtendedMetadata() throws MetadataProviderException {
+        return manager.getExtendedMetadata(nextEntityId());
+    }
+
+    private String nextEntityId() {
+        String entityId = entityIds[next];
+        next = next + 1 == entityIds.length ? 0 : next + 1;
+        return entityId;
+    }
+
+    private static EntityDescriptor idp(String entityId) {
+        EntityDescriptor descriptor = SAMLFixtures.build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        descriptor.setEntityID(entityId);
+        IDPSSODescriptor idp = SAMLFixtures.build(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        SingleSignOnService sso = SAMLFixtures.build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        sso.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        sso.setLocation(entityId.replace("/idp/shibboleth", "/idp/profile/SAML2/Redirect/SSO"));
+        idp.getSingleSignOnServices().add(sso);
+        descriptor.getRoleDescriptors().add(idp);
+        return descriptor;
+    }
+
+}
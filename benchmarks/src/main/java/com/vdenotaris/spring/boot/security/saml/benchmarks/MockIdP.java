@@ -0,0 +1,496 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.ArtifactResolve;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Identity provider running in-process, so that full SSO flows can be driven
+ * against the SP without a network connection or a real IdP.
+ * <p>
+ * Every AuthnRequest is answered with a successful Response carrying a
+ * signed, and optionally encrypted, assertion for the user named by the
+ * {@code user} parameter or drawn from a configurable population. Requests
+ * are accepted with the HTTP-Redirect and HTTP-POST bindings, responses are
+ * sent with HTTP-POST or HTTP-Artifact, the artifacts being resolved over
+ * SOAP. LogoutRequests are answered with a LogoutResponse over HTTP-Redirect.
+ * <p>
+ * The metadata is written to a local file the SP can load with
+ * {@code saml.idp.metadata}; an existing file is served as is.
+ */
+public class MockIdP implements Closeable {
+
+    static final String METADATA_PATH = "/metadata";
+
+    static final String SSO_PATH = "/sso";
+
+    static final String SLO_PATH = "/slo";
+
+    static final String ARTIFACT_RESOLUTION_PATH = "/artifact";
+
+    static final String DEFAULT_USER = "user@example.com";
+
+    private final String baseURL;
+
+    private final String entityId;
+
+    private final byte[] metadata;
+
+    private final MockIdPMessages messages;
+
+    private final ParserPool parserPool;
+
+    private final LruCache<String, Response> artifacts = new LruCache<String, Response>(10000);
+
+    private final AtomicLong authnRequests = new AtomicLong();
+
+    private final AtomicLong artifactResolves = new AtomicLong();
+
+    private final AtomicLong logoutRequests = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private String responseBinding = SAMLConstants.SAML2_POST_BINDING_URI;
+
+    private int attributes = 10;
+
+    private int users = 1;
+
+    private boolean encryptAssertions;
+
+    private boolean signResponses;
+
+    private String serviceProviderMetadataURL;
+
+    private volatile EntityDescriptor serviceProvider;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param baseURL      URL of the IdP endpoints, e.g. {@code http://localhost:9090/idp}
+     * @param ssoBinding   binding the SP is to use for its AuthnRequests
+     * @param metadataFile where the metadata is written, or read from when the file exists; may be null
+     */
+    public MockIdP(String baseURL, String ssoBinding, File metadataFile) throws Exception {
+        SAMLFixtures.bootstrap();
+        this.baseURL = baseURL;
+        this.parserPool = SAMLFixtures.parserPool();
+        X509Credential credential = (X509Credential) SAMLFixtures.keyManager().getDefaultCredential();
+        if (metadataFile != null && metadataFile.isFile()) {
+            metadata = Files.readAllBytes(metadataFile.toPath());
+            entityId = ((EntityDescriptor) unmarshall(metadata)).getEntityID();
+            messages = new MockIdPMessages(entityId, credential);
+        } else {
+            entityId = baseURL + METADATA_PATH;
+            messages = new MockIdPMessages(entityId, credential);
+            Element descriptor = SAMLUtil.marshallMessage(messages.metadata(baseURL, ssoBinding));
+            metadata = XMLHelper.nodeToString(descriptor).getBytes(StandardCharsets.UTF_8);
+            if (metadataFile != null) {
+                Files.write(metadataFile.toPath(), metadata);
+            }
+        }
+    }
+
+    /**
+     * Starts serving the IdP endpoints.
+     *
+     * @param threads number of threads handling the requests
+     */
+    public void start(int threads) throws IOException {
+        URI uri = URI.create(baseURL);
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(uri.getHost(), uri.getPort()), 1024);
+        server.setExecutor(executor);
+        String path = uri.getPath();
+        server.createContext(path + METADATA_PATH, handler(this::metadata));
+        server.createContext(path + SSO_PATH, handler(this::singleSignOn));
+        server.createContext(path + SLO_PATH, handler(this::singleLogout));
+        server.createContext(path + ARTIFACT_RESOLUTION_PATH, handler(this::artifactResolution));
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void metadata(HttpExchange exchange) throws IOException {
+        send(exchange, 200, "application/samlmetadata+xml", metadata);
+    }
+
+    private void singleSignOn(HttpExchange exchange) throws Exception {
+        authnRequests.incrementAndGet();
+        Map<String, String> parameters = parameters(exchange);
+        AuthnRequest request = (AuthnRequest) decode(exchange, parameters.get("SAMLRequest"));
+        String user = parameters.get("user");
+        if (user == null) {
+            user = users > 1 ? "user" + ThreadLocalRandom.current().nextInt(users) + "@example.com" : DEFAULT_USER;
+        }
+        X509Certificate encryptionCertificate = null;
+        if (encryptAssertions) {
+            encryptionCertificate = MockIdPMessages.encryptionCertificate(
+                    getServiceProvider().getSPSSODescriptor(SAMLConstants.SAML20P_NS).getKeyDescriptors());
+        }
+        Response response = messages.response(request, request.getIssuer().getValue(), user, attributes,
+                encryptionCertificate, signResponses);
+        String relayState = parameters.get("RelayState");
+        String acs = request.getAssertionConsumerServiceURL();
+
+        if (SAMLConstants.SAML2_ARTIFACT_BINDING_URI.equals(responseBinding)) {
+            String artifact = messages.newArtifact();
+            artifacts.put(artifact, response);
+            redirect(exchange, acs, "SAMLart", artifact, relayState);
+        } else {
+            String encoded = Base64.encodeBytes(marshall(response), Base64.DONT_BREAK_LINES);
+            StringBuilder html = new StringBuilder(encoded.length() + 512);
+            html.append("<!DOCTYPE html>\n<html><body onload=\"document.forms[0].submit()\">")
+                    .append("<form method=\"post\" action=\"").append(escape(acs)).append("\">")
+                    .append("<input type=\"hidden\" name=\"SAMLResponse\" value=\"").append(encoded).append("\"/>");
+            if (relayState != null) {
+                html.append("<input type=\"hidden\" name=\"RelayState\" value=\"").append(escape(relayState))
+                        .append("\"/>");
+            }
+            html.append("<noscript><input type=\"submit\" value=\"Continue\"/></noscript></form></body></html>");
+            send(exchange, 200, "text/html; charset=UTF-8", html.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void artifactResolution(HttpExchange exchange) throws Exception {
+        artifactResolves.incrementAndGet();
+        Envelope envelope = (Envelope) unmarshall(read(exchange.getRequestBody()));
+        ArtifactResolve artifactResolve = (ArtifactResolve) envelope.getBody().getUnknownXMLObjects().get(0);
+        SAMLObject message = artifacts.remove(artifactResolve.getArtifact().getArtifact());
+
+        Envelope responseEnvelope = SAMLFixtures.build(Envelope.DEFAULT_ELEMENT_NAME);
+        Body body = SAMLFixtures.build(Body.DEFAULT_ELEMENT_NAME);
+        body.getUnknownXMLObjects().add(messages.artifactResponse(artifactResolve, message));
+        responseEnvelope.setBody(body);
+        send(exchange, 200, "text/xml; charset=UTF-8", marshall(responseEnvelope));
+    }
+
+    private void singleLogout(HttpExchange exchange) throws Exception {
+        logoutRequests.incrementAndGet();
+        Map<String, String> parameters = parameters(exchange);
+        LogoutRequest request = (LogoutRequest) decode(exchange, parameters.get("SAMLRequest"));
+        String destination = null;
+        SPSSODescriptor sp = getServiceProvider().getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+        for (SingleLogoutService service : sp.getSingleLogoutServices()) {
+            if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(service.getBinding())) {
+                destination = service.getLocation();
+                break;
+            }
+        }
+        if (destination == null) {
+            throw new IllegalStateException("The SP has no HTTP-Redirect SingleLogoutService");
+        }
+        byte[] xml = marshall(messages.logoutResponse(request, destination));
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(xml.length);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            out.write(xml);
+        }
+        redirect(exchange, destination, "SAMLResponse",
+                Base64.encodeBytes(deflated.toByteArray(), Base64.DONT_BREAK_LINES), parameters.get("RelayState"));
+    }
+
+    /**
+     * Decodes a SAMLRequest sent with the HTTP-Redirect (GET) or HTTP-POST binding.
+     */
+    private XMLObject decode(HttpExchange exchange, String message) throws Exception {
+        if (message == null) {
+            throw new IllegalArgumentException("No SAMLRequest in the request");
+        }
+        byte[] decoded = Base64.decode(message);
+        if ("GET".equals(exchange.getRequestMethod())) {
+            decoded = read(new InflaterInputStream(new ByteArrayInputStream(decoded), new Inflater(true)));
+        }
+        return unmarshall(decoded);
+    }
+
+    private XMLObject unmarshall(byte[] xml) throws Exception {
+        Element element = parserPool.parse(new ByteArrayInputStream(xml)).getDocumentElement();
+        return Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+    }
+
+    private static byte[] marshall(XMLObject object) throws Exception {
+        Element element = object.getDOM() != null ? object.getDOM() : SAMLUtil.marshallMessage(object);
+        return XMLHelper.nodeToString(element).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the SP metadata, read from {@link #setServiceProviderMetadataURL(String)} on first use
+     */
+    private EntityDescriptor getServiceProvider() throws Exception {
+        EntityDescriptor descriptor = serviceProvider;
+        if (descriptor == null) {
+            if (serviceProviderMetadataURL == null) {
+                throw new IllegalStateException("SP metadata URL is not set");
+            }
+            HttpURLConnection connection = (HttpURLConnection) new URL(serviceProviderMetadataURL).openConnection();
+            try (InputStream in = connection.getInputStream()) {
+                descriptor = (EntityDescriptor) unmarshall(read(in));
+            } finally {
+                connection.disconnect();
+            }
+            serviceProvider = descriptor;
+        }
+        return descriptor;
+    }
+
+    private HttpHandler handler(Endpoint endpoint) {
+        return exchange -> {
+            try {
+                endpoint.handle(exchange);
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                send(exchange, 500, "text/plain; charset=UTF-8",
+                        String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static void redirect(HttpExchange exchange, String location, String name, String value,
+            String relayState) throws IOException {
+        StringBuilder url = new StringBuilder(location).append(location.indexOf('?') == -1 ? '?' : '&')
+                .append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+        if (relayState != null) {
+            url.append("&RelayState=").append(URLEncoder.encode(relayState, "UTF-8"));
+        }
+        exchange.getResponseHeaders().set("Location", url.toString());
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parse(exchange.getRequestURI().getRawQuery(), parameters);
+        if ("POST".equals(exchange.getRequestMethod())) {
+            parse(new String(read(exchange.getRequestBody()), StandardCharsets.UTF_8), parameters);
+        }
+        return parameters;
+    }
+
+    private static void parse(String encoded, Map<String, String> parameters) throws IOException {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public String getResponseBinding() {
+        return responseBinding;
+    }
+
+    /**
+     * @param responseBinding HTTP-POST or HTTP-Artifact binding URI
+     */
+    public void setResponseBinding(String responseBinding) {
+        this.responseBinding = responseBinding;
+    }
+
+    public int getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @param attributes number of attributes released in each assertion, each with two values
+     */
+    public void setAttributes(int attributes) {
+        this.attributes = attributes;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * @param users number of distinct users authenticated when the request doesn't name one
+     */
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    public boolean isEncryptAssertions() {
+        return encryptAssertions;
+    }
+
+    /**
+     * @param encryptAssertions whether assertions are encrypted with the key of the SP metadata
+     */
+    public void setEncryptAssertions(boolean encryptAssertions) {
+        this.encryptAssertions = encryptAssertions;
+    }
+
+    public boolean isSignResponses() {
+        return signResponses;
+    }
+
+    /**
+     * @param signResponses whether Responses are signed in addition to their assertion
+     */
+    public void setSignResponses(boolean signResponses) {
+        this.signResponses = signResponses;
+    }
+
+    /**
+     * @param serviceProviderMetadataURL metadata of the SP, read for its encryption key and logout endpoint
+     */
+    public void setServiceProviderMetadataURL(String serviceProviderMetadataURL) {
+        this.serviceProviderMetadataURL = serviceProviderMetadataURL;
+        this.serviceProvider = null;
+    }
+
+    public long getAuthnRequestCount() {
+        return authnRequests.get();
+    }
+
+    public long getArtifactResolveCount() {
+        return artifactResolves.get();
+    }
+
+    public long getLogoutRequestCount() {
+        return logoutRequests.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * Runs the IdP alone, e.g. to try it with a browser:
+     * {@code --url http://localhost:9090/idp --metadata mock-idp.xml --sp http://localhost:8080
+     * --binding post|artifact --attributes 10 --population 1000 --encrypt --sign-responses}.
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments(args);
+        MockIdP idp = create(arguments);
+        idp.start(arguments.getInt("idp-threads", 8));
+        System.out.println("Mock IdP " + idp.getEntityId() + " started");
+    }
+
+    static MockIdP create(Arguments arguments) throws Exception {
+        String metadataFile = arguments.get("metadata", "mock-idp-metadata.xml");
+        MockIdP idp = new MockIdP(arguments.get("url", "http://localhost:9090/idp"),
+                "post".equals(arguments.get("request-binding", "redirect"))
+                        ? SAMLConstants.SAML2_POST_BINDING_URI : SAMLConstants.SAML2_REDIRECT_BINDING_URI,
+                new File(metadataFile));
+        idp.setResponseBinding("artifact".equals(arguments.get("binding", "post"))
+                ? SAMLConstants.SAML2_ARTIFACT_BINDING_URI : SAMLConstants.SAML2_POST_BINDING_URI);
+        idp.setAttributes(arguments.getInt("attributes", 10));
+        idp.setUsers(arguments.getInt("population", 1000));
+        idp.setEncryptAssertions(arguments.has("encrypt"));
+        idp.setSignResponses(arguments.has("sign-responses"));
+        idp.setServiceProviderMetadataURL(arguments.get("sp", "http://localhost:8080") + "/saml/metadata");
+        return idp;
+    }
+
+    @FunctionalInterface
+    private interface Endpoint {
+
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.SignableSAMLObject;
+import org.opensaml.common.binding.artifact.AbstractSAMLArtifact;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.artifact.SAML2ArtifactType0004;
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.Audience;
+import org.opensaml.saml2.core.AudienceRestriction;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.core.NameIDType;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.StatusResponseType;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml2.encryption.Encrypter;
+import org.opensaml.saml2.metadata.ArtifactResolutionService;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.encryption.EncryptionException;
+import org.opensaml.xml.encryption.EncryptionParameters;
+import org.opensaml.xml.encryption.KeyEncryptionParameters;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.keyinfo.KeyInfoGenerator;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.security.x509.X509KeyInfoGeneratorFactory;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.Base64;
+import org.springframework.security.saml.util.SAMLUtil;
+
+/**
+ * Messages of the mock IdP: its metadata, the assertions it mints (signed,
+ * optionally encrypted for the SP) and the responses to AuthnRequests,
+ * ArtifactResolves and LogoutRequests.
+ */
+final class MockIdPMessages {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String entityId;
+
+    private final X509Credential credential;
+
+    private final byte[] sourceId;
+
+    /**
+     * @param entityId   entity ID of the IdP
+     * @param credential key signing the IdP messages, published in its metadata
+     */
+    MockIdPMessages(String entityId, X509Credential credential) {
+        this.entityId = entityId;
+        this.credential = credential;
+        this.sourceId = sha1(entityId);
+    }
+
+    /**
+     * @param baseURL    URL under which the IdP endpoints are published
+     * @param ssoBinding binding listed first for the SSO service, which the SP uses for its requests
+     */
+    EntityDescriptor metadata(String baseURL, String ssoBinding) throws SecurityException {
+        EntityDescriptor descriptor = SAMLFixtures.build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        descriptor.setEntityID(entityId);
+        IDPSSODescriptor idp = SAMLFixtures.build(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        idp.setWantAuthnRequestsSigned(false);
+
+        X509KeyInfoGeneratorFactory keyInfoGeneratorFactory = new X509KeyInfoGeneratorFactory();
+        keyInfoGeneratorFactory.setEmitEntityCertificate(true);
+        KeyInfoGenerator keyInfoGenerator = keyInfoGeneratorFactory.newInstance();
+        for (UsageType use : new UsageType[] {UsageType.SIGNING, UsageType.ENCRYPTION}) {
+            KeyDescriptor keyDescriptor = SAMLFixtures.build(KeyDescriptor.DEFAULT_ELEMENT_NAME);
+            keyDescriptor.setUse(use);
+            keyDescriptor.setKeyInfo(keyInfoGenerator.generate(credential));
+            idp.getKeyDescriptors().add(keyDescriptor);
+        }
+
+        ArtifactResolutionService artifactResolutionService =
+                SAMLFixtures.build(ArtifactResolutionService.DEFAULT_ELEMENT_NAME);
+        artifactResolutionService.setBinding(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+        artifactResolutionService.setLocation(baseURL + MockIdP.ARTIFACT_RESOLUTION_PATH);
+        artifactResolutionService.setIndex(0);
+        artifactResolutionService.setIsDefault(true);
+        idp.getArtifactResolutionServices().add(artifactResolutionService);
+
+        SingleLogoutService singleLogoutService = SAMLFixtures.build(SingleLogoutService.DEFAULT_ELEMENT_NAME);
+        singleLogoutService.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        singleLogoutService.setLocation(baseURL + MockIdP.SLO_PATH);
+        idp.getSingleLogoutServices().add(singleLogoutService);
+
+        NameIDFormat nameIDFormat = SAMLFixtures.build(NameIDFormat.DEFAULT_ELEMENT_NAME);
+        nameIDFormat.setFormat(NameIDType.EMAIL);
+        idp.getNameIDFormats().add(nameIDFormat);
+
+        String otherBinding = SAMLConstants.SAML2_POST_BINDING_URI.equals(ssoBinding)
+                ? SAMLConstants.SAML2_REDIRECT_BINDING_URI : SAMLConstants.SAML2_POST_BINDING_URI;
+        for (String binding : new String[] {ssoBinding, otherBinding}) {
+            SingleSignOnService singleSignOnService = SAMLFixtures.build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+            singleSignOnService.setBinding(binding);
+            singleSignOnService.setLocation(baseURL + MockIdP.SSO_PATH);
+            idp.getSingleSignOnServices().add(singleSignOnService);
+        }
+
+        descriptor.getRoleDescriptors().add(idp);
+        return descriptor;
+    }
+
+    /**
+     * Successful Response to an AuthnRequest, with a signed assertion.
+     *
+     * @param request              request answered
+     * @param spEntityId           audience of the assertion
+     * @param user                 NameID of the authenticated user
+     * @param attributes           number of attributes released
+     * @param encryptionCertificate certificate of the SP when the assertion is to be encrypted, null otherwise
+     * @param signResponse         whether the Response is signed too
+     */
+    Response response(AuthnRequest request, String spEntityId, String user, int attributes,
+            X509Certificate encryptionCertificate, boolean signResponse)
+            throws SecurityException, MessageEncodingException, SignatureException, EncryptionException {
+        DateTime now = new DateTime();
+        String acs = request.getAssertionConsumerServiceURL();
+
+        Assertion assertion = SAMLFixtures.build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(newId());
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(now);
+        assertion.setIssuer(SAMLFixtures.issuer(entityId));
+
+        Subject subject = SAMLFixtures.build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(SAMLFixtures.nameID(user));
+        SubjectConfirmation confirmation = SAMLFixtures.build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        SubjectConfirmationData confirmationData = SAMLFixtures.build(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        confirmationData.setInResponseTo(request.getID());
+        confirmationData.setRecipient(acs);
+        confirmationData.setNotOnOrAfter(now.plusMinutes(5));
+        confirmation.setSubjectConfirmationData(confirmationData);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        Conditions conditions = SAMLFixtures.build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now.minusMinutes(1));
+        conditions.setNotOnOrAfter(now.plusMinutes(5));
+        AudienceRestriction audienceRestriction = SAMLFixtures.build(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        Audience audience = SAMLFixtures.build(Audience.DEFAULT_ELEMENT_NAME);
+        audience.setAudienceURI(spEntityId);
+        audienceRestriction.getAudiences().add(audience);
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        assertion.setConditions(conditions);
+
+        AuthnStatement authnStatement = SAMLFixtures.build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(now);
+        authnStatement.setSessionIndex(newId());
+        AuthnContext authnContext = SAMLFixtures.build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        AuthnContextClassRef classRef = SAMLFixtures.build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setAuthnContextClassRef(AuthnContext.PPT_AUTHN_CTX);
+        authnContext.setAuthnContextClassRef(classRef);
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        List<Attribute> released = SAMLFixtures.attributes(attributes);
+        released.set(0, SAMLFixtures.attribute("mail", user));
+        AttributeStatement attributeStatement = SAMLFixtures.build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        attributeStatement.getAttributes().addAll(released);
+        assertion.getAttributeStatements().add(attributeStatement);
+        sign(assertion);
+
+        Response response = status(SAMLFixtures.<Response>build(Response.DEFAULT_ELEMENT_NAME),
+                request, acs, StatusCode.SUCCESS_URI);
+        if (encryptionCertificate != null) {
+            response.getEncryptedAssertions().add(encrypt(assertion, encryptionCertificate));
+        } else {
+            response.getAssertions().add(assertion);
+        }
+        if (signResponse) {
+            sign(response);
+        }
+        return response;
+    }
+
+    LogoutResponse logoutResponse(LogoutRequest request, String destination) {
+        return status(SAMLFixtures.<LogoutResponse>build(LogoutResponse.DEFAULT_ELEMENT_NAME),
+                request, destination, StatusCode.SUCCESS_URI);
+    }
+
+    /**
+     * @param message message referenced by the artifact, null when the artifact is unknown
+     */
+    ArtifactResponse artifactResponse(RequestAbstractType artifactResolve, SAMLObject message) {
+        ArtifactResponse response = status(SAMLFixtures.<ArtifactResponse>build(ArtifactResponse.DEFAULT_ELEMENT_NAME),
+                artifactResolve, null, StatusCode.SUCCESS_URI);
+        response.setMessage(message);
+        return response;
+    }
+
+    /**
+     * @return a new Base64 encoded type 0x0004 artifact pointing to the artifact resolution service of index 0
+     */
+    String newArtifact() {
+        byte[] messageHandle = new byte[20];
+        RANDOM.nextBytes(messageHandle);
+        AbstractSAMLArtifact artifact = new SAML2ArtifactType0004(new byte[] {0, 0}, sourceId, messageHandle);
+        return Base64.encodeBytes(artifact.getArtifactBytes(), Base64.DONT_BREAK_LINES);
+    }
+
+    private <T extends StatusResponseType> T status(T response, RequestAbstractType request,
+            String destination, String statusCode) {
+        response.setID(newId());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(new DateTime());
+        response.setInResponseTo(request.getID());
+        response.setDestination(destination);
+        response.setIssuer(SAMLFixtures.issuer(entityId));
+        Status status = SAMLFixtures.build(Status.DEFAULT_ELEMENT_NAME);
+        StatusCode code = SAMLFixtures.build(StatusCode.DEFAULT_ELEMENT_NAME);
+        code.setValue(statusCode);
+        status.setStatusCode(code);
+        response.setStatus(status);
+        return response;
+    }
+
+    private void sign(SignableSAMLObject object)
+            throws SecurityException, MessageEncodingException, SignatureException {
+        Signature signature = SAMLFixtures.build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        SecurityHelper.prepareSignatureParams(signature, credential, Configuration.getGlobalSecurityConfiguration(), null);
+        object.setSignature(signature);
+        SAMLUtil.marshallMessage(object);
+        Signer.signObject(signature);
+    }
+
+    private static EncryptedAssertion encrypt(Assertion assertion, X509Certificate certificate)
+            throws EncryptionException {
+        EncryptionParameters encryptionParameters = new EncryptionParameters();
+        encryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128);
+        BasicX509Credential keyEncryptionCredential = new BasicX509Credential();
+        keyEncryptionCredential.setEntityCertificate(certificate);
+        KeyEncryptionParameters keyEncryptionParameters = new KeyEncryptionParameters();
+        keyEncryptionParameters.setEncryptionCredential(keyEncryptionCredential);
+        keyEncryptionParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+        Encrypter encrypter = new Encrypter(encryptionParameters, keyEncryptionParameters);
+        encrypter.setKeyPlacement(Encrypter.KeyPlacement.PEER);
+        return encrypter.encrypt(assertion);
+    }
+
+    /**
+     * @return the certificate of the first encryption (or unspecified use) key of a role
+     */
+    static X509Certificate encryptionCertificate(List<KeyDescriptor> keyDescriptors) {
+        for (KeyDescriptor keyDescriptor : keyDescriptors) {
+            if (keyDescriptor.getUse() == UsageType.SIGNING || keyDescriptor.getKeyInfo() == null) {
+                continue;
+            }
+            try {
+                List<X509Certificate> certificates = KeyInfoHelper.getCertificates(keyDescriptor.getKeyInfo());
+                if (!certificates.isEmpty()) {
+                    return certificates.get(0);
+                }
+            } catch (CertificateException e) {
+                throw new IllegalArgumentException("Invalid certificate in SP metadata", e);
+            }
+        }
+        return null;
+    }
+
+    static String newId() {
+        return "_" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private static byte[] sha1(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.saml.SAMLAuthenticationProvider;
+import org.springframework.security.saml.SAMLAuthenticationToken;
+import org.springframework.security.saml.context.SAMLContextProvider;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLProcessor;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.springframework.security.saml.websso.WebSSOProfileConsumerImpl;
+import org.w3c.dom.Element;
+
+import com.vdenotaris.spring.boot.security.saml.web.Application;
+import com.vdenotaris.spring.boot.security.saml.web.capture.CaptureReader;
+import com.vdenotaris.spring.boot.security.saml.web.capture.CapturedMessage;
+import com.vdenotaris.spring.boot.security.saml.web.capture.CapturedMessage.Direction;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.OneShotMetadataGeneratorFilter;
+
+/**
+ * Feeds the inbound messages of a capture file, written by the application
+ * with {@code --saml.capture.file}, back into the decoding, validation and
+ * authentication beans of the application, and reports the time spent in
+ * each stage next to the decoding time recorded in production.
+ * <p>
+ * The application is started in-process with the properties given as system
+ * properties, which must point to the same SP keys and IdP metadata as the
+ * captured environment. The clock of the validity checks is set back to the
+ * capture time of each message, so that expired assertions are still
+ * accepted: Spring SAML reads the system clock, which can't be overridden, so
+ * the allowed skew of the Web SSO consumer is extended by the age of the
+ * message instead. Checks against a past instant are thereby exact, those
+ * rejecting instants in the future are relaxed by the same amount. Responses
+ * are matched with the AuthnRequests recorded in the same
+ * capture; those whose request wasn't recorded are validated without the
+ * InResponseTo check. Artifact messages can't be resolved again and are
+ * skipped; logout messages are only decoded. Each message is replayed once,
+ * the replay cache of the application rejecting a second copy.
+ * <p>
+ * Options: {@code --capture file}, {@code --pacing full|recorded} to replay as
+ * fast as possible or at the recorded arrival times, {@code --speed 1} factor
+ * applied to the recorded pacing, {@code --metadata} IdP
+ * metadata of the replaying application and {@code --system-clock} to keep
+ * the validity checks on the current time.
+ */
+public final class Replay {
+
+    private static final String WEBSSO_PROFILE = org.springframework.security.saml.SAMLConstants.SAML2_WEBSSO_PROFILE_URI;
+
+    private final SAMLContextProvider contextProvider;
+
+    private final SAMLProcessor processor;
+
+    private final SAMLAuthenticationProvider authenticationProvider;
+
+    private final ParserPool parserPool;
+
+    private final WebSSOProfileConsumerImpl consumer;
+
+    private final int responseSkew;
+
+    private boolean shiftClock = true;
+
+    private final Map<String, String> sentRequests = new HashMap<String, String>();
+
+    private final List<CapturedMessage> inbound = new ArrayList<CapturedMessage>();
+
+    private final Map<String, LatencyRecorder> recorders = new TreeMap<String, LatencyRecorder>();
+
+    private int skipped;
+
+    private int unmatched;
+
+    private Replay(ConfigurableApplicationContext context, List<CapturedMessage> messages) {
+        this.contextProvider = context.getBean(SAMLContextProvider.class);
+        this.processor = context.getBean(SAMLProcessor.class);
+        this.authenticationProvider = context.getBean(SAMLAuthenticationProvider.class);
+        this.parserPool = context.getBean(ParserPool.class);
+        this.consumer = context.getBean("webSSOprofileConsumer", WebSSOProfileConsumerImpl.class);
+        this.responseSkew = consumer.getResponseSkew();
+        for (CapturedMessage message : messages) {
+            if (message.getDirection() == Direction.INBOUND) {
+                inbound.add(message);
+            } else if (message.getMessageId() != null && message.getBody() != null) {
+                sentRequests.put(message.getMessageId(), message.getBody());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments(args);
+        String capture = arguments.get("capture", null);
+        if (capture == null) {
+            throw new IllegalArgumentException("--capture file is required");
+        }
+        boolean paced = "recorded".equals(arguments.get("pacing", "full"));
+        double speed = Double.parseDouble(arguments.get("speed", "1"));
+
+        List<CapturedMessage> messages = read(new File(capture));
+        List<String> properties = new ArrayList<String>();
+        properties.add("--server.port=0");
+        properties.add("--logging.level.org.springframework.security.saml=WARN");
+        properties.add("--logging.level.org.opensaml=WARN");
+        if (arguments.has("metadata")) {
+            properties.add("--saml.idp.metadata=" + arguments.get("metadata", null));
+        }
+        // Empty values are rejected on the command line, the capture is disabled as a default property;
+        // the replay stores the requests itself, so no request cookie key is needed
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .properties("saml.capture.file=", "saml.requests.storage=memory")
+                .run(properties.toArray(new String[properties.size()]))) {
+            Replay replay = new Replay(context, messages);
+            replay.generateHostedSP(context.getBean(OneShotMetadataGeneratorFilter.class));
+            replay.shiftClock = !arguments.has("system-clock");
+            System.out.println("Replaying " + replay.inbound.size() + " inbound messages of " + capture
+                    + (paced ? " at " + speed + "x the recorded pacing" : " at full speed"));
+            long start = System.nanoTime();
+            replay.run(paced, speed);
+            replay.report((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private static List<CapturedMessage> read(File file) throws IOException {
+        List<CapturedMessage> messages = new ArrayList<CapturedMessage>();
+        try (CaptureReader reader = new CaptureReader(file)) {
+            CapturedMessage message;
+            while ((message = reader.read()) != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /*
+     * No request reaches the application, so the hosted SP is generated here,
+     * with the entity base URL of the captured requests.
+     */
+    private void generateHostedSP(Filter metadataGeneratorFilter) throws IOException, ServletException {
+        if (!inbound.isEmpty()) {
+            metadataGeneratorFilter.doFilter(request(inbound.get(0)), new MockHttpServletResponse(),
+                    new MockFilterChain());
+        }
+    }
+
+    private void run(boolean paced, double speed) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long firstOffset = inbound.isEmpty() ? 0 : inbound.get(0).getOffsetNanos();
+        for (CapturedMessage message : inbound) {
+            if (paced) {
+                long wait = start + (long) ((message.getOffsetNanos() - firstOffset) / speed) - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            replay(message);
+        }
+    }
+
+    private void replay(CapturedMessage message) throws IOException {
+        String type = message.getMessageType() != null ? message.getMessageType() : "Undecodable";
+        if (SAMLConstants.SAML2_ARTIFACT_BINDING_URI.equals(message.getBinding())) {
+            skipped++;
+            return;
+        }
+        recorder(type + " recorded decode").record(message.getDurationNanos());
+
+        if (shiftClock) {
+            long age = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - message.getTimestamp());
+            consumer.setResponseSkew(responseSkew + (int) Math.min(age + 1, Integer.MAX_VALUE - responseSkew));
+        }
+        LatencyRecorder decode = recorder(type + " decode");
+        long start = System.nanoTime();
+        SAMLMessageContext context;
+        try {
+            context = contextProvider.getLocalEntity(request(message), new MockHttpServletResponse());
+            processor.retrieveMessage(context);
+        } catch (Exception e) {
+            decode.fail(String.valueOf(e));
+            return;
+        }
+        long decoded = System.nanoTime();
+        decode.record(decoded - start);
+        if (!(context.getInboundSAMLMessage() instanceof Response)) {
+            return;
+        }
+
+        LatencyRecorder authenticate = recorder(type + " authenticate");
+        try {
+            context.setCommunicationProfileId(WEBSSO_PROFILE);
+            context.setLocalEntityEndpoint(SAMLUtil.getEndpoint(context.getLocalEntityRoleMetadata().getEndpoints(),
+                    context.getInboundSAMLBinding(), context.getInboundMessageTransport()));
+            context.setMessageStorage(storage(((Response) context.getInboundSAMLMessage()).getInResponseTo()));
+            authenticationProvider.authenticate(new SAMLAuthenticationToken(context));
+            authenticate.record(System.nanoTime() - decoded);
+        } catch (AuthenticationException | SAMLException e) {
+            authenticate.fail(e + (e.getCause() != null ? " caused by " + e.getCause() : ""));
+        }
+    }
+
+    /*
+     * Storage holding the recorded request answered by a response, or null to skip the
+     * InResponseTo check when the request wasn't recorded.
+     */
+    private SAMLMessageStorage storage(String inResponseTo) {
+        String xml = inResponseTo != null ? sentRequests.get(inResponseTo) : null;
+        if (xml == null) {
+            if (inResponseTo != null) {
+                unmatched++;
+            }
+            return null;
+        }
+        final XMLObject request;
+        try {
+            Element element = parserPool.parse(new StringReader(xml)).getDocumentElement();
+            request = Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+        } catch (XMLParserException | UnmarshallingException e) {
+            throw new IllegalStateException("Unable to parse recorded request " + inResponseTo, e);
+        }
+        return new SAMLMessageStorage() {
+
+            @Override
+            public void storeMessage(String messageId, XMLObject message) {
+            }
+
+            @Override
+            public XMLObject retrieveMessage(String messageId) {
+                return inResponseTo.equals(messageId) ? request : null;
+            }
+        };
+    }
+
+    /*
+     * Request as received by the application, parameters and SOAP envelope included.
+     */
+    private static MockHttpServletRequest request(CapturedMessage message) throws IOException {
+        URL url = new URL(message.getRequestURL());
+        MockHttpServletRequest request = new MockHttpServletRequest(message.getMethod(), url.getPath());
+        request.setScheme(url.getProtocol());
+        request.setSecure("https".equals(url.getProtocol()));
+        request.setServerName(url.getHost());
+        request.setServerPort(url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+        request.setQueryString(message.getQueryString());
+        for (Map.Entry<String, String> parameter : message.getParameters().entrySet()) {
+            request.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        if (message.getBody() != null) {
+            request.setContentType("text/xml");
+            request.setContent(message.getBody().getBytes(StandardCharsets.UTF_8));
+        }
+        return request;
+    }
+
+    private LatencyRecorder recorder(String name) {
+        LatencyRecorder recorder = recorders.get(name);
+        if (recorder == null) {
+            recorder = new LatencyRecorder();
+            recorders.put(name, recorder);
+        }
+        return recorder;
+    }
+
+    private void report(double seconds) {
+        for (Map.Entry<String, LatencyRecorder> recorder : recorders.entrySet()) {
+            System.out.println(LatencyRecorder.merge(Collections.singleton(recorder.getValue()))
+                    .report(recorder.getKey(), seconds));
+        }
+        System.out.println(skipped + " artifact messages skipped, " + unmatched
+                + " responses replayed without their request");
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.parse.StaticBasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.schema.XSString;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.security.saml.SAMLBootstrap;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.key.KeyManager;
+
+/**
+ * Objects shared by the benchmarks, configured like their counterparts in
+ * {@code WebSecurityConfig}.
+ */
+final class SAMLFixtures {
+
+    static final String IDP = "http://idp.ssocircle.com";
+
+    static final String SP = "com:vdenotaris:spring:sp";
+
+    static final String ACS = "http://localhost:8080/saml/SSO";
+
+    private static boolean bootstrapped;
+
+    private SAMLFixtures() {
+    }
+
+    /**
+     * Registers the OpenSAML builders, marshallers and security defaults, once per JVM.
+     */
+    static synchronized void bootstrap() {
+        if (!bootstrapped) {
+            new SAMLBootstrap().postProcessBeanFactory(null);
+            bootstrapped = true;
+        }
+    }
+
+    /**
+     * Same pool as {@code parserPool()}.
+     */
+    static StaticBasicParserPool parserPool() throws XMLParserException {
+        StaticBasicParserPool parserPool = new StaticBasicParserPool();
+        parserPool.initialize();
+        return parserPool;
+    }
+
+    /**
+     * The application keys of {@code keyManager()}, without the tenant key directory.
+     */
+    static KeyManager keyManager() {
+        Map<String, String> passwords = new HashMap<String, String>();
+        passwords.put("apollo", "nalle123");
+        return new JKSKeyManager(new DefaultResourceLoader().getResource("classpath:/saml/samlKeystore.jks"),
+                "nalle123", passwords, "apollo");
+    }
+
+    static AuthnRequest authnRequest(String id) {
+        AuthnRequest request = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID(id);
+        request.setVersion(SAMLVersion.VERSION_20);
+        request.setIssueInstant(new DateTime());
+        request.setDestination(IDP + "/sso");
+        request.setAssertionConsumerServiceURL(ACS);
+        request.setProtocolBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        request.setIssuer(issuer(SP));
+        return request;
+    }
+
+    /**
+     * @param attributes number of attributes of the assertion, each with two values
+     */
+    static Response response(String id, int attributes) {
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID(id);
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(new DateTime());
+        response.setInResponseTo("_request1");
+        response.setIssuer(issuer(IDP));
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS_URI);
+        status.setStatusCode(statusCode);
+        response.setStatus(status);
+        response.getAssertions().add(assertion(id + "_assertion", attributes));
+        return response;
+    }
+
+    static Assertion assertion(String id, int attributes) {
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(id);
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(new DateTime());
+        assertion.setIssuer(issuer(IDP));
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(nameID("user@example.com"));
+        assertion.setSubject(subject);
+        AuthnStatement statement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        statement.setSessionIndex("s2abc");
+        statement.setAuthnInstant(new DateTime());
+        assertion.getAuthnStatements().add(statement);
+        AttributeStatement attributeStatement = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        attributeStatement.getAttributes().addAll(attributes(attributes));
+        assertion.getAttributeStatements().add(attributeStatement);
+        return assertion;
+    }
+
+    /**
+     * @return "mail" and "memberOf", then generic attributes up to the count
+     */
+    static List<Attribute> attributes(int count) {
+        List<Attribute> attributes = new ArrayList<Attribute>(count);
+        attributes.add(attribute("mail", "user@example.com"));
+        attributes.add(attribute("memberOf", "cn=admins,ou=groups,dc=example,dc=com",
+                "cn=app-billing,ou=groups,dc=example,dc=com"));
+        for (int i = attributes.size(); i < count; i++) {
+            attributes.add(attribute("attribute" + i, "first value " + i, "second value " + i));
+        }
+        return attributes;
+    }
+
+    static Attribute attribute(String name, String... values) {
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName(name);
+        for (String value : values) {
+            XSString xsValue = build(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            xsValue.setValue(value);
+            attribute.getAttributeValues().add(xsValue);
+        }
+        return attribute;
+    }
+
+    static NameID nameID(String value) {
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue(value);
+        nameID.setFormat(NameID.EMAIL);
+        return nameID;
+    }
+
+    static Issuer issuer(String entityId) {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(entityId);
+        return issuer;
+    }
+
+    static <T extends XMLObject> T build(QName elementName) {
+        return build(elementName, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends XMLObject> T build(QName elementName, QName typeName) {
+        XMLObjectBuilder<T> builder = (XMLObjectBuilder<T>) Configuration.getBuilderFactory()
+                .getBuilder(typeName != null ? typeName : elementName);
+        return typeName != null ? builder.buildObject(elementName, typeName) : builder.buildObject(elementName);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.validation.ValidationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml.util.SAMLUtil;
+
+/**
+ * XML signature of an assertion with the default application key, and
+ * validation of a signed assertion the way the WebSSO profile does it: profile
+ * check of the signature structure, then cryptographic verification.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureBenchmark {
+
+    /**
+     * Attributes of the signed assertion, each with two values.
+     */
+    @Param({"5", "50"})
+    public int attributes;
+
+    private Credential credential;
+
+    private SAMLSignatureProfileValidator profileValidator;
+
+    private SignatureValidator signatureValidator;
+
+    private Assertion signedAssertion;
+
+    private int assertions;
+
+    @Setup
+    public void setUp() throws Exception {
+        SAMLFixtures.bootstrap();
+        credential = SAMLFixtures.keyManager().getDefaultCredential();
+        profileValidator = new SAMLSignatureProfileValidator();
+        signatureValidator = new SignatureValidator(credential);
+        signedAssertion = sign("_assertion0");
+    }
+
+    @Benchmark
+    public Assertion sign() throws Exception {
+        return sign("_assertion" + assertions++);
+    }
+
+    @Benchmark
+    public Signature verify() throws ValidationException {
+        Signature signature = signedAssertion.getSignature();
+        profileValidator.validate(signature);
+        signatureValidator.validate(signature);
+        return signature;
+    }
+
+    private Assertion sign(String id) throws SecurityException, MessageEncodingException, SignatureException {
+        Assertion assertion = SAMLFixtures.assertion(id, attributes);
+        Signature signature = SAMLFixtures.build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        SecurityConfiguration configuration = Configuration.getGlobalSecurityConfiguration();
+        SecurityHelper.prepareSignatureParams(signature, credential, configuration, null);
+        assertion.setSignature(signature);
+        SAMLUtil.marshallMessage(assertion);
+        Signer.signObject(signature);
+        return assertion;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.saml2.core.Assertion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.vdenotaris.spring.boot.security.saml.web.account.CachingLocalAccountStore;
+import com.vdenotaris.spring.boot.security.saml.web.account.InMemoryLocalAccountStore;
+import com.vdenotaris.spring.boot.security.saml.web.authority.AuthorityMapper;
+import com.vdenotaris.spring.boot.security.saml.web.authority.AuthorityMappingRule;
+import com.vdenotaris.spring.boot.security.saml.web.core.SAMLUserDetailsServiceImpl;
+
+/**
+ * Mapping of a SAML credential to the application user: attribute decoding,
+ * authority mapping and the cached local account lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UserDetailsBenchmark {
+
+    /**
+     * Attributes of the assertion, each with two values.
+     */
+    @Param({"5", "50"})
+    public int attributes;
+
+    private SAMLUserDetailsServiceImpl userDetailsService;
+
+    private CachingLocalAccountStore localAccountStore;
+
+    private SAMLCredential credential;
+
+    @Setup
+    public void setUp() {
+        SAMLFixtures.bootstrap();
+        AuthorityMapper authorityMapper = new AuthorityMapper(Arrays.asList(
+                AuthorityMappingRule.exact("memberOf", "cn=admins,ou=groups,dc=example,dc=com", "ROLE_ADMIN"),
+                AuthorityMappingRule.prefix("memberOf", "cn=app-", "ROLE_APP"),
+                AuthorityMappingRule.regex("mail", ".*@example\\.com", "ROLE_STAFF")), "ROLE_USER");
+        localAccountStore = new CachingLocalAccountStore(new InMemoryLocalAccountStore(),
+                10000, 300, 240, TimeUnit.SECONDS);
+        userDetailsService = new SAMLUserDetailsServiceImpl();
+        ReflectionTestUtils.setField(userDetailsService, "authorityMapper", authorityMapper);
+        ReflectionTestUtils.setField(userDetailsService, "localAccountStore", localAccountStore);
+
+        Assertion assertion = SAMLFixtures.assertion("_assertion0", attributes);
+        credential = new SAMLCredential(assertion.getSubject().getNameID(), assertion, SAMLFixtures.IDP,
+                null, assertion.getAttributeStatements().get(0).getAttributes(), SAMLFixtures.SP);
+    }
+
+    @TearDown
+    public void tearDown() {
+        localAccountStore.close();
+    }
+
+    @Benchmark
+    public Object loadUserBySAML() {
+        return userDetailsService.loadUserBySAML(credential);
+    }
+
+}
@@ -0,0 +1,4 @@
+package com.vdenotaris.spring.boot.security.saml.benchmarks.generated;
+public class BindingBenchmark_jmhType extends BindingBenchmark_jmhType_B3 {
+}
+
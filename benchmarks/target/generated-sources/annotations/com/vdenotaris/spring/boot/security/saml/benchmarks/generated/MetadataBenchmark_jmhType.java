@@ -0,0 +1,4 @@
+package com.vdenotaris.spring.boot.security.saml.benchmarks.generated;
+public class MetadataBenchmark_jmhType extends MetadataBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.vdenotaris.spring.boot.security.saml.benchmarks.generated;
+public class SignatureBenchmark_jmhType extends SignatureBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.vdenotaris.spring.boot.security.saml.benchmarks.generated;
+public class UserDetailsBenchmark_jmhType extends UserDetailsBenchmark_jmhType_B3 {
+}
+
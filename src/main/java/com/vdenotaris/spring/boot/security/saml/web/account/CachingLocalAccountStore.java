@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.account;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Local account store caching the answers of a slower backend.
+ * <p>
+ * Accounts, and the absence of an account, are kept in a size-bounded LRU
+ * cache for {@code timeToLive}. Concurrent lookups of a user missing from
+ * the cache share a single backend call, so a login storm or a reconnect
+ * wave costs one round trip per user. An entry read after
+ * {@code refreshAfter} is reloaded in the background while the cached
+ * account keeps being served; only entries which are not read before they
+ * expire are loaded again on the login path. {@link #prefetch(String, Collection)}
+ * loads many users with a single bulk call, e.g. before an expected wave.
+ * <p>
+ * A failing backend is not cached: the lookup fails, and a failed refresh
+ * leaves the previous account in place until it expires.
+ */
+public class CachingLocalAccountStore implements LocalAccountStore, Closeable {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(CachingLocalAccountStore.class);
+
+    private final LocalAccountStore delegate;
+
+    private final LruCache<String, Entry> entries;
+
+    private final ConcurrentMap<String, CompletableFuture<LocalAccount>> loading =
+            new ConcurrentHashMap<String, CompletableFuture<LocalAccount>>();
+
+    private final long timeToLive;
+
+    private final long refreshAfter;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * @param delegate     backend store
+     * @param maxEntries   maximum number of users cached
+     * @param timeToLive   duration after which a cached answer is no longer used
+     * @param refreshAfter duration after which a cached answer is reloaded in the background when read,
+     *                     no refresh-ahead when not lower than {@code timeToLive}
+     */
+    public CachingLocalAccountStore(LocalAccountStore delegate, int maxEntries, long timeToLive,
+            long refreshAfter, TimeUnit unit) {
+        this(delegate, maxEntries, timeToLive, refreshAfter, unit, Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "local-account-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * @param executor runs the background refreshes, not shut down by {@link #close()}
+     */
+    public CachingLocalAccountStore(LocalAccountStore delegate, int maxEntries, long timeToLive,
+            long refreshAfter, TimeUnit unit, ExecutorService executor) {
+        this(delegate, maxEntries, timeToLive, refreshAfter, unit, executor, false);
+    }
+
+    private CachingLocalAccountStore(LocalAccountStore delegate, int maxEntries, long timeToLive,
+            long refreshAfter, TimeUnit unit, ExecutorService executor, boolean ownExecutor) {
+        this.delegate = delegate;
+        this.entries = new LruCache<String, Entry>(maxEntries);
+        this.timeToLive = unit.toMillis(timeToLive);
+        this.refreshAfter = unit.toMillis(refreshAfter);
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    @Override
+    public LocalAccount findAccount(String issuer, String nameID) {
+        String key = key(issuer, nameID);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            hits.incrementAndGet();
+            if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) {
+                refresh(key, issuer, nameID, entry);
+            }
+            return entry.account;
+        }
+        return load(key, issuer, nameID);
+    }
+
+    /**
+     * Loads with a single bulk call the users which are not cached or are due for a refresh.
+     *
+     * @return number of users loaded
+     */
+    public int prefetch(String issuer, Collection<String> nameIDs) {
+        long now = System.currentTimeMillis();
+        List<String> missing = new ArrayList<String>();
+        for (String nameID : nameIDs) {
+            Entry entry = entries.get(key(issuer, nameID));
+            if (entry == null || now >= entry.refreshAt) {
+                missing.add(nameID);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        Map<String, LocalAccount> accounts = delegate.findAccounts(issuer, missing);
+        loads.incrementAndGet();
+        long loadedAt = System.currentTimeMillis();
+        for (String nameID : missing) {
+            entries.put(key(issuer, nameID), new Entry(accounts.get(nameID), loadedAt));
+        }
+        LOG.debug("Prefetched {} local accounts of {}", missing.size(), issuer);
+        return missing.size();
+    }
+
+    /**
+     * Looks up several accounts, loading the missing ones with a single bulk call.
+     */
+    @Override
+    public Map<String, LocalAccount> findAccounts(String issuer, Collection<String> nameIDs) {
+        prefetch(issuer, nameIDs);
+        Map<String, LocalAccount> result = new HashMap<String, LocalAccount>(nameIDs.size() * 4 / 3 + 1);
+        for (String nameID : nameIDs) {
+            LocalAccount account = findAccount(issuer, nameID);
+            if (account != null) {
+                result.put(nameID, account);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops the cached account of a user, e.g. after it was changed in the backend.
+     */
+    public void invalidate(String issuer, String nameID) {
+        entries.remove(key(issuer, nameID));
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private LocalAccount load(String key, String issuer, String nameID) {
+        CompletableFuture<LocalAccount> future = new CompletableFuture<LocalAccount>();
+        CompletableFuture<LocalAccount> current = loading.putIfAbsent(key, future);
+        if (current != null) {
+            coalesced.incrementAndGet();
+            try {
+                return current.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            LocalAccount account = delegate.findAccount(issuer, nameID);
+            loads.incrementAndGet();
+            entries.put(key, new Entry(account, System.currentTimeMillis()));
+            future.complete(account);
+            return account;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private void refresh(String key, String issuer, String nameID, Entry entry) {
+        try {
+            executor.execute(() -> {
+                try {
+                    load(key, issuer, nameID);
+                    refreshes.incrementAndGet();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to refresh local account of " + nameID + ", keeping the cached one", e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of backend calls, bulk lookups counting as one
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return number of lookups which waited for the backend call of a concurrent lookup
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String key(String issuer, String nameID) {
+        return (issuer != null ? issuer : "") + '\n' + nameID;
+    }
+
+    private final class Entry {
+
+        private final LocalAccount account;
+
+        private final long expiresAt;
+
+        private final long refreshAt;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(LocalAccount account, long loadedAt) {
+            this.account = account;
+            this.expiresAt = loadedAt + timeToLive;
+            this.refreshAt = refreshAfter < timeToLive ? loadedAt + refreshAfter : Long.MAX_VALUE;
+        }
+    }
+
+}
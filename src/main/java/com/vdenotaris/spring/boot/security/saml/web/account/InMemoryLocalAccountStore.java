@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.account;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local account store kept in memory, standing in for a real backend in
+ * tests and in the sample application. Accounts are registered per NameID,
+ * for all IdPs, or per IdP and NameID.
+ */
+public class InMemoryLocalAccountStore implements LocalAccountStore {
+
+    private final ConcurrentMap<String, LocalAccount> accounts = new ConcurrentHashMap<String, LocalAccount>();
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * @param issuer entity ID of the IdP, null for all of them
+     */
+    public void addAccount(String issuer, String nameID, LocalAccount account) {
+        accounts.put(key(issuer, nameID), account);
+    }
+
+    public void removeAccount(String issuer, String nameID) {
+        accounts.remove(key(issuer, nameID));
+    }
+
+    @Override
+    public LocalAccount findAccount(String issuer, String nameID) {
+        lookups.incrementAndGet();
+        return find(issuer, nameID);
+    }
+
+    @Override
+    public Map<String, LocalAccount> findAccounts(String issuer, Collection<String> nameIDs) {
+        lookups.incrementAndGet();
+        Map<String, LocalAccount> result = new HashMap<String, LocalAccount>(nameIDs.size() * 4 / 3 + 1);
+        for (String nameID : nameIDs) {
+            LocalAccount account = find(issuer, nameID);
+            if (account != null) {
+                result.put(nameID, account);
+            }
+        }
+        return result;
+    }
+
+    private LocalAccount find(String issuer, String nameID) {
+        LocalAccount account = issuer != null ? accounts.get(key(issuer, nameID)) : null;
+        return account != null ? account : accounts.get(key(null, nameID));
+    }
+
+    /**
+     * @return number of calls made to this store, bulk lookups counting as one
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    private static String key(String issuer, String nameID) {
+        return (issuer != null ? issuer : "") + '\n' + nameID;
+    }
+
+}
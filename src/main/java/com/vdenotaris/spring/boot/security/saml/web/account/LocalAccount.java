@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.account;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Local account of a user authenticated through SAML, immutable.
+ */
+public final class LocalAccount {
+
+    private final String username;
+
+    private final boolean enabled;
+
+    private final List<String> authorities;
+
+    /**
+     * @param username    local user name, replaces the NameID as principal name
+     * @param enabled     false to refuse the login
+     * @param authorities authorities granted locally on top of the mapped ones
+     */
+    public LocalAccount(String username, boolean enabled, List<String> authorities) {
+        this.username = username;
+        this.enabled = enabled;
+        this.authorities = authorities == null || authorities.isEmpty() ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<String>(authorities));
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<String> getAuthorities() {
+        return authorities;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalAccount[" + username + (enabled ? "" : ", disabled") + ", " + authorities + "]";
+    }
+
+}
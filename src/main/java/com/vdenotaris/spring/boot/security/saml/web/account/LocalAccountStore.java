@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.account;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backend holding the local accounts of SAML users, typically a directory
+ * or a database.
+ */
+public interface LocalAccountStore {
+
+    /**
+     * @param issuer entity ID of the IdP which authenticated the user
+     * @param nameID NameID value of the user
+     * @return the account, or null when the user has no local account
+     */
+    LocalAccount findAccount(String issuer, String nameID);
+
+    /**
+     * Looks up several accounts at once, backends should answer in a single round trip.
+     *
+     * @return accounts by NameID, users without account are missing
+     */
+    default Map<String, LocalAccount> findAccounts(String issuer, Collection<String> nameIDs) {
+        Map<String, LocalAccount> accounts = new HashMap<String, LocalAccount>(nameIDs.size() * 4 / 3 + 1);
+        for (String nameID : nameIDs) {
+            LocalAccount account = findAccount(issuer, nameID);
+            if (account != null) {
+                accounts.put(nameID, account);
+            }
+        }
+        return accounts;
+    }
+
+}
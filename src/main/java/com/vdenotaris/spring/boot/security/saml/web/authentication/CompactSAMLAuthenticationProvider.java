@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLAuthenticationProvider;
+import org.springframework.security.saml.SAMLAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLMetrics;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLStage;
+
+/**
+ * SAML authentication provider returning {@link CompactSAMLAuthenticationToken}s,
+ * so that the OpenSAML objects of the response are not kept in the HTTP session.
+ * When {@link SAMLMetrics} are set, authentications and user details are timed.
+ */
+public class CompactSAMLAuthenticationProvider extends SAMLAuthenticationProvider {
+
+    private final SAMLAuthenticationCodec codec;
+
+    private SAMLMetrics metrics;
+
+    public CompactSAMLAuthenticationProvider(SAMLAuthenticationCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        if (metrics == null || !(authentication instanceof SAMLAuthenticationToken)) {
+            return compact(super.authenticate(authentication));
+        }
+        SAMLMessageContext context = ((SAMLAuthenticationToken) authentication).getCredentials();
+        long start = System.nanoTime();
+        try {
+            return compact(super.authenticate(authentication));
+        } finally {
+            metrics.record(SAMLStage.AUTHENTICATION, context.getInboundSAMLBinding(), context.getPeerEntityId(),
+                    System.nanoTime() - start);
+        }
+    }
+
+    private Authentication compact(Authentication result) {
+        if (result instanceof ExpiringUsernameAuthenticationToken) {
+            return codec.compact((ExpiringUsernameAuthenticationToken) result);
+        }
+        return result;
+    }
+
+    @Override
+    protected Object getUserDetails(SAMLCredential credential) {
+        if (metrics == null) {
+            return super.getUserDetails(credential);
+        }
+        long start = System.nanoTime();
+        try {
+            return super.getUserDetails(credential);
+        } finally {
+            metrics.record(SAMLStage.USER_DETAILS, null, credential.getRemoteEntityID(), System.nanoTime() - start);
+        }
+    }
+
+    public SAMLAuthenticationCodec getCodec() {
+        return codec;
+    }
+
+    public void setMetrics(SAMLMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import java.io.ObjectStreamException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+
+/**
+ * SAML authentication holding a {@link CompactSAMLCredential}, serialized with
+ * {@link SAMLAuthenticationCodec}.
+ * <p>
+ * Views of the authentication derived by the application, such as the
+ * principal projections injected in controllers, are built once and cached
+ * on the token. They are not serialized.
+ */
+public class CompactSAMLAuthenticationToken extends ExpiringUsernameAuthenticationToken {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ConcurrentMap<Class<?>, Object> projections = new ConcurrentHashMap<Class<?>, Object>(4);
+
+    public CompactSAMLAuthenticationToken(Date tokenExpiration, Object principal, Object credentials,
+            Collection<? extends GrantedAuthority> authorities) {
+        super(tokenExpiration, principal, credentials, authorities);
+    }
+
+    /**
+     * @param type    type of the view, which identifies it in the cache
+     * @param factory builds the view the first time it is requested
+     * @return the cached view, or null when the factory returned null
+     */
+    public <T> T getProjection(Class<T> type, Function<? super CompactSAMLAuthenticationToken, ? extends T> factory) {
+        Object projection = projections.get(type);
+        if (projection == null) {
+            projection = projections.computeIfAbsent(type, key -> factory.apply(this));
+        }
+        return type.cast(projection);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new SAMLAuthenticationCodec.SerializedAuthentication(this);
+    }
+
+}
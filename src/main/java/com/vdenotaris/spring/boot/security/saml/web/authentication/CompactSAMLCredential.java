@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.schema.XSString;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.parser.ParserPoolHolder;
+import org.w3c.dom.Element;
+
+/**
+ * SAML credential keeping only plain values: the NameID, the session indexes,
+ * the entity IDs and the {@link SAMLAttributes index} of the retained attributes.
+ * <p>
+ * The OpenSAML assertion is not kept in memory. When the authentication was
+ * compacted with {@link SAMLAuthenticationCodec#setRetainAssertion(boolean)}
+ * its XML is kept deflated and {@link #getAuthenticationAssertion()} parses it
+ * on first call. Otherwise a minimal assertion holding the issuer, the subject
+ * and one authentication statement per session index is built instead, which
+ * is all single logout needs.
+ * <p>
+ * Java serialization goes through {@link SAMLAuthenticationCodec}.
+ */
+public class CompactSAMLCredential extends SAMLCredential {
+
+    private static final long serialVersionUID = 1L;
+
+    private static Assertion placeholder;
+
+    private final String nameIdValue;
+
+    private final String nameIdFormat;
+
+    private final String nameQualifier;
+
+    private final String spNameQualifier;
+
+    private final List<String> sessionIndexes;
+
+    private final long authnInstant;
+
+    private final SAMLAttributes attributeIndex;
+
+    private final byte[] assertion;
+
+    private transient volatile Assertion rehydrated;
+
+    private transient volatile List<Attribute> attributes;
+
+    CompactSAMLCredential(String nameIdValue, String nameIdFormat, String nameQualifier, String spNameQualifier,
+            String localEntityID, String remoteEntityID, String relayState, List<String> sessionIndexes,
+            long authnInstant, SAMLAttributes attributeIndex, byte[] assertion) {
+        super(buildNameID(nameIdValue, nameIdFormat, nameQualifier, spNameQualifier), placeholder(),
+                remoteEntityID, relayState, Collections.<Attribute>emptyList(), localEntityID);
+        this.nameIdValue = nameIdValue;
+        this.nameIdFormat = nameIdFormat;
+        this.nameQualifier = nameQualifier;
+        this.spNameQualifier = spNameQualifier;
+        this.sessionIndexes = Collections.unmodifiableList(new ArrayList<String>(sessionIndexes));
+        this.authnInstant = authnInstant;
+        this.attributeIndex = attributeIndex;
+        this.assertion = assertion;
+    }
+
+    /**
+     * @return the original assertion when it was retained, a minimal equivalent otherwise
+     */
+    @Override
+    public Assertion getAuthenticationAssertion() {
+        Assertion result = rehydrated;
+        if (result == null) {
+            result = assertion != null ? parseAssertion() : buildAssertion();
+            rehydrated = result;
+        }
+        return result;
+    }
+
+    /**
+     * Unlike the default implementation, also finds attributes by friendly name.
+     */
+    @Override
+    public Attribute getAttribute(String name) {
+        for (Attribute attribute : getAttributes()) {
+            if (name.equals(attribute.getName())) {
+                return attribute;
+            }
+        }
+        for (Attribute attribute : getAttributes()) {
+            if (name.equals(attribute.getFriendlyName())) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttributeAsString(String name) {
+        return attributeIndex.getFirst(name);
+    }
+
+    @Override
+    public String[] getAttributeAsStringArray(String name) {
+        return attributeIndex.getValuesAsArray(name);
+    }
+
+    @Override
+    public List<Attribute> getAttributes() {
+        List<Attribute> result = attributes;
+        if (result == null) {
+            result = new ArrayList<Attribute>(attributeIndex.getEntryCount());
+            for (int i = 0; i < attributeIndex.getEntryCount(); i++) {
+                result.add(buildAttribute(attributeIndex.getName(i), attributeIndex.getFriendlyNameAt(i),
+                        attributeIndex.getValuesAt(i)));
+            }
+            result = Collections.unmodifiableList(result);
+            attributes = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return decoded values of the retained attributes, by name and friendly name
+     */
+    public SAMLAttributes getAttributeIndex() {
+        return attributeIndex;
+    }
+
+    /**
+     * @return names of the retained attributes, in assertion order
+     */
+    public Set<String> getAttributeNames() {
+        return new LinkedHashSet<String>(attributeIndex.getNames());
+    }
+
+    public List<String> getSessionIndexes() {
+        return sessionIndexes;
+    }
+
+    /**
+     * @return authentication instant in milliseconds, or -1 when the assertion had none
+     */
+    public long getAuthnInstant() {
+        return authnInstant;
+    }
+
+    /**
+     * @return true when the original assertion is available through {@link #getAuthenticationAssertion()}
+     */
+    public boolean isAssertionRetained() {
+        return assertion != null;
+    }
+
+    String getNameIdValue() {
+        return nameIdValue;
+    }
+
+    String getNameIdFormat() {
+        return nameIdFormat;
+    }
+
+    String getNameQualifier() {
+        return nameQualifier;
+    }
+
+    String getSpNameQualifier() {
+        return spNameQualifier;
+    }
+
+    /**
+     * @return the deflated XML of the assertion, null when it was not retained
+     */
+    public byte[] getDeflatedAssertion() {
+        return assertion;
+    }
+
+    /**
+     * @return the assertion returned by {@link #getAuthenticationAssertion()}, null until it is first called
+     */
+    public Assertion getLoadedAssertion() {
+        return rehydrated;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new SAMLAuthenticationCodec.SerializedCredential(this);
+    }
+
+    private Assertion parseAssertion() {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(assertion))) {
+            Element element = ParserPoolHolder.getPool().parse(in).getDocumentElement();
+            return (Assertion) Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+        } catch (IOException | XMLParserException | UnmarshallingException e) {
+            throw new IllegalStateException("Unable to rehydrate assertion of " + nameIdValue, e);
+        }
+    }
+
+    private Assertion buildAssertion() {
+        Assertion result = build(Assertion.DEFAULT_ELEMENT_NAME);
+        result.setVersion(SAMLVersion.VERSION_20);
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(getRemoteEntityID());
+        result.setIssuer(issuer);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(buildNameID(nameIdValue, nameIdFormat, nameQualifier, spNameQualifier));
+        result.setSubject(subject);
+        for (String sessionIndex : sessionIndexes) {
+            AuthnStatement statement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+            statement.setSessionIndex(sessionIndex);
+            if (authnInstant != -1) {
+                statement.setAuthnInstant(new DateTime(authnInstant));
+            }
+            result.getAuthnStatements().add(statement);
+        }
+        return result;
+    }
+
+    private static Attribute buildAttribute(String name, String friendlyName, String[] values) {
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName(name);
+        attribute.setFriendlyName(friendlyName);
+        for (String value : values) {
+            XSString xsValue = build(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            xsValue.setValue(value);
+            attribute.getAttributeValues().add(xsValue);
+        }
+        return attribute;
+    }
+
+    private static NameID buildNameID(String value, String format, String nameQualifier, String spNameQualifier) {
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue(value);
+        nameID.setFormat(format);
+        nameID.setNameQualifier(nameQualifier);
+        nameID.setSPNameQualifier(spNameQualifier);
+        return nameID;
+    }
+
+    /*
+     * Shared by all instances and never exposed, SAMLCredential only refuses a null assertion.
+     */
+    private static synchronized Assertion placeholder() {
+        if (placeholder == null) {
+            placeholder = build(Assertion.DEFAULT_ELEMENT_NAME);
+        }
+        return placeholder;
+    }
+
+    private static <T extends XMLObject> T build(QName elementName) {
+        return build(elementName, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName elementName, QName typeName) {
+        XMLObjectBuilder<T> builder = (XMLObjectBuilder<T>) Configuration.getBuilderFactory()
+                .getBuilder(typeName != null ? typeName : elementName);
+        return typeName != null ? builder.buildObject(elementName, typeName) : builder.buildObject(elementName);
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.schema.XSAny;
+import org.opensaml.xml.schema.XSString;
+import org.opensaml.xml.schema.XSURI;
+import org.springframework.security.saml.SAMLCredential;
+
+/**
+ * Immutable index of the attributes of a SAML credential, built once per
+ * authentication.
+ * <p>
+ * Values are decoded to strings when the index is built and attributes are
+ * looked up by name or friendly name with a single hash lookup, instead of
+ * scanning the attribute statements and unmarshalling the values on every
+ * {@link SAMLCredential#getAttributeAsStringArray(String)} call. Attributes
+ * sent more than once under the same name are merged. Names take precedence
+ * over friendly names when they collide.
+ * <p>
+ * Membership tests on multi-valued attributes ({@link #hasValue(String, String)})
+ * use a hash set built on first use.
+ */
+public final class SAMLAttributes implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final SAMLAttributes EMPTY = new SAMLAttributes(new Entry[0]);
+
+    private final Entry[] entries;
+
+    private final Map<String, Entry> index;
+
+    private SAMLAttributes(Entry[] entries) {
+        this.entries = entries;
+        Map<String, Entry> map = new HashMap<String, Entry>(entries.length * 3 + 1);
+        for (Entry entry : entries) {
+            if (entry.friendlyName != null) {
+                map.put(entry.friendlyName, entry);
+            }
+        }
+        for (Entry entry : entries) {
+            map.put(entry.name, entry);
+        }
+        this.index = map;
+    }
+
+    /**
+     * @return the index of the credential, shared when the credential is compact
+     */
+    public static SAMLAttributes of(SAMLCredential credential) {
+        if (credential instanceof CompactSAMLCredential) {
+            return ((CompactSAMLCredential) credential).getAttributeIndex();
+        }
+        List<Attribute> attributes = credential.getAttributes();
+        if (attributes == null || attributes.isEmpty()) {
+            return EMPTY;
+        }
+        Builder builder = builder();
+        for (Attribute attribute : attributes) {
+            if (attribute.getName() == null) {
+                continue;
+            }
+            List<XMLObject> values = attribute.getAttributeValues();
+            List<String> strings = new ArrayList<String>(values.size());
+            for (XMLObject value : values) {
+                String string = getString(value);
+                if (string != null) {
+                    strings.add(string);
+                }
+            }
+            builder.add(attribute.getName(), attribute.getFriendlyName(), strings.toArray(new String[strings.size()]));
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static SAMLAttributes empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param name attribute name or friendly name
+     * @return the first value, or null when the attribute is missing or empty
+     */
+    public String getFirst(String name) {
+        Entry entry = index.get(name);
+        return entry != null && entry.values.length > 0 ? entry.values[0] : null;
+    }
+
+    /**
+     * @param name attribute name or friendly name
+     * @return read-only values, empty when the attribute is missing
+     */
+    public List<String> getValues(String name) {
+        Entry entry = index.get(name);
+        return entry != null ? entry.list : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return a copy of the values, or null when the attribute is missing
+     */
+    public String[] getValuesAsArray(String name) {
+        Entry entry = index.get(name);
+        return entry != null ? entry.values.clone() : null;
+    }
+
+    public boolean hasValue(String name, String value) {
+        Entry entry = index.get(name);
+        return entry != null && entry.contains(value);
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * @return the friendly name of an attribute, or null when it has none
+     */
+    public String getFriendlyName(String name) {
+        Entry entry = index.get(name);
+        return entry != null ? entry.friendlyName : null;
+    }
+
+    /**
+     * @return attribute names, in assertion order
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<String>(entries.length);
+        for (Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /**
+     * @param names attribute names to keep, all when null
+     * @return an index holding only the given attributes, this index when nothing is removed
+     */
+    public SAMLAttributes retain(Set<String> names) {
+        if (names == null) {
+            return this;
+        }
+        List<Entry> kept = new ArrayList<Entry>(entries.length);
+        for (Entry entry : entries) {
+            if (names.contains(entry.name)) {
+                kept.add(entry);
+            }
+        }
+        return kept.size() == entries.length ? this : new SAMLAttributes(kept.toArray(new Entry[kept.size()]));
+    }
+
+    int getEntryCount() {
+        return entries.length;
+    }
+
+    String getName(int i) {
+        return entries[i].name;
+    }
+
+    String getFriendlyNameAt(int i) {
+        return entries[i].friendlyName;
+    }
+
+    String[] getValuesAt(int i) {
+        return entries[i].values;
+    }
+
+    /*
+     * Same conversion as SAMLCredential.getAttributeAsStringArray.
+     */
+    static String getString(XMLObject value) {
+        if (value instanceof XSString) {
+            return ((XSString) value).getValue();
+        } else if (value instanceof XSAny) {
+            return ((XSAny) value).getTextContent();
+        } else if (value instanceof XSURI) {
+            return ((XSURI) value).getValue();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SAMLAttributes[");
+        for (int i = 0; i < entries.length; i++) {
+            sb.append(i > 0 ? ", " : "").append(entries[i].name).append('=').append(entries[i].values.length);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Accumulates attributes, merging the values of repeated names.
+     */
+    public static final class Builder {
+
+        private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+        public Builder add(String name, String friendlyName, String... values) {
+            Entry previous = entries.get(name);
+            if (previous != null) {
+                String[] merged = Arrays.copyOf(previous.values, previous.values.length + values.length);
+                System.arraycopy(values, 0, merged, previous.values.length, values.length);
+                values = merged;
+                if (friendlyName == null) {
+                    friendlyName = previous.friendlyName;
+                }
+            } else {
+                values = values.clone();
+            }
+            entries.put(name, new Entry(name, friendlyName, values));
+            return this;
+        }
+
+        public SAMLAttributes build() {
+            return entries.isEmpty() ? EMPTY : new SAMLAttributes(entries.values().toArray(new Entry[entries.size()]));
+        }
+    }
+
+    private static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private final String friendlyName;
+
+        private final String[] values;
+
+        private final List<String> list;
+
+        private transient volatile Set<String> set;
+
+        Entry(String name, String friendlyName, String[] values) {
+            this.name = name;
+            this.friendlyName = friendlyName;
+            this.values = values;
+            this.list = Collections.unmodifiableList(Arrays.asList(values));
+        }
+
+        boolean contains(String value) {
+            if (values.length <= 8) {
+                for (String candidate : values) {
+                    if (candidate.equals(value)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            Set<String> result = set;
+            if (result == null) {
+                result = new HashSet<String>(list);
+                set = result;
+            }
+            return result.contains(value);
+        }
+    }
+
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.util.SAMLUtil;
+
+/**
+ * Compact form of SAML authentications, for HTTP sessions which are
+ * replicated or stored outside of the JVM.
+ * <p>
+ * {@link #compact(ExpiringUsernameAuthenticationToken)} replaces the OpenSAML
+ * objects of a fresh authentication by plain values (see
+ * {@link CompactSAMLCredential}), keeping only the {@link #setAttributeNames(Set)
+ * selected attributes}. The resulting token serializes itself through
+ * {@link #encode(ExpiringUsernameAuthenticationToken)}: a versioned binary
+ * record of the principal, authorities, expiration, NameID, session indexes,
+ * entity IDs and attribute values, plus the deflated assertion when it is
+ * {@link #setRetainAssertion(boolean) retained}.
+ * <p>
+ * {@code User} principals are written without their password, and
+ * {@link SAMLUser} ones share the attribute index of the credential. Other
+ * principals and authentication details, unless they are the principal itself,
+ * fall back to Java serialization. Credentials other than SAML ones are dropped.
+ * <p>
+ * Java serialization of compact tokens and credentials, when HTTP sessions are
+ * persisted or replicated, goes through the codec
+ * {@link #setSerializationCodec(SAMLAuthenticationCodec) registered} by the
+ * application, so that restored sessions get the same authorities and
+ * attributes as decoded ones; through a default codec until one is.
+ */
+public class SAMLAuthenticationCodec {
+
+    private static final int VERSION = 2;
+
+    private static final int PRINCIPAL_STRING = 0;
+    private static final int PRINCIPAL_USER = 1;
+    private static final int PRINCIPAL_SERIALIZED = 2;
+    private static final int PRINCIPAL_SAML_USER = 3;
+
+    private static final int DETAILS_NONE = 0;
+    private static final int DETAILS_PRINCIPAL = 1;
+    private static final int DETAILS_SERIALIZED = 2;
+
+    private static final SAMLAuthenticationCodec DEFAULT = new SAMLAuthenticationCodec();
+
+    private static volatile SAMLAuthenticationCodec serializationCodec = DEFAULT;
+
+    private Set<String> attributeNames;
+
+    private boolean retainAssertion;
+
+    private Function<String, GrantedAuthority> authorityResolver = SimpleGrantedAuthority::new;
+
+    /**
+     * Converts a fresh authentication into its compact form.
+     */
+    public CompactSAMLAuthenticationToken compact(ExpiringUsernameAuthenticationToken token) {
+        if (token instanceof CompactSAMLAuthenticationToken) {
+            return (CompactSAMLAuthenticationToken) token;
+        }
+        Object principal = token.getPrincipal();
+        Object credentials = token.getCredentials();
+        if (credentials instanceof SAMLCredential) {
+            if (principal instanceof SAMLUser) {
+                SAMLUser user = (SAMLUser) principal;
+                CompactSAMLCredential credential = compact((SAMLCredential) credentials, user.getAttributes());
+                principal = user.withAttributes(credential.getAttributeIndex());
+                credentials = credential;
+            } else {
+                credentials = compact((SAMLCredential) credentials);
+            }
+        }
+        CompactSAMLAuthenticationToken result = new CompactSAMLAuthenticationToken(token.getTokenExpiration(),
+                principal, credentials, token.getAuthorities());
+        result.setDetails(token.getDetails() == token.getPrincipal() ? principal : token.getDetails());
+        return result;
+    }
+
+    public CompactSAMLCredential compact(SAMLCredential credential) {
+        if (credential instanceof CompactSAMLCredential) {
+            return (CompactSAMLCredential) credential;
+        }
+        return compact(credential, SAMLAttributes.of(credential));
+    }
+
+    /**
+     * @param attributes index already built for the credential, e.g. by the user details service
+     */
+    public CompactSAMLCredential compact(SAMLCredential credential, SAMLAttributes attributes) {
+        if (credential instanceof CompactSAMLCredential) {
+            return (CompactSAMLCredential) credential;
+        }
+        NameID nameID = credential.getNameID();
+        Assertion assertion = credential.getAuthenticationAssertion();
+        List<String> sessionIndexes = new ArrayList<String>(1);
+        long authnInstant = -1;
+        for (AuthnStatement statement : assertion.getAuthnStatements()) {
+            if (statement.getSessionIndex() != null) {
+                sessionIndexes.add(statement.getSessionIndex());
+            }
+            if (authnInstant == -1 && statement.getAuthnInstant() != null) {
+                authnInstant = statement.getAuthnInstant().getMillis();
+            }
+        }
+
+        return new CompactSAMLCredential(nameID.getValue(), nameID.getFormat(), nameID.getNameQualifier(),
+                nameID.getSPNameQualifier(), credential.getLocalEntityID(), credential.getRemoteEntityID(),
+                credential.getRelayState(), sessionIndexes, authnInstant, attributes.retain(attributeNames),
+                retainAssertion ? deflate(assertion) : null);
+    }
+
+    /**
+     * @param token authentication to encode, compacted first when needed
+     */
+    public byte[] encode(ExpiringUsernameAuthenticationToken token) {
+        CompactSAMLAuthenticationToken compact = compact(token);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            Date expiration = compact.getTokenExpiration();
+            out.writeLong(expiration != null ? expiration.getTime() : -1);
+            writeAuthorities(out, compact.getAuthorities());
+            Object credentials = compact.getCredentials();
+            CompactSAMLCredential credential = credentials instanceof CompactSAMLCredential
+                    ? (CompactSAMLCredential) credentials : null;
+            out.writeBoolean(credential != null);
+            if (credential != null) {
+                writeCredential(out, credential);
+            }
+            Object principal = compact.getPrincipal();
+            writePrincipal(out, principal, credential);
+            Object details = compact.getDetails();
+            if (details == null || !(details == principal || details instanceof Serializable)) {
+                out.writeByte(DETAILS_NONE);
+            } else if (details == principal) {
+                out.writeByte(DETAILS_PRINCIPAL);
+            } else {
+                out.writeByte(DETAILS_SERIALIZED);
+                writeBytes(out, serialize(details));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to encode authentication of " + token.getName(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public CompactSAMLAuthenticationToken decode(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            readVersion(in);
+            long expiration = in.readLong();
+            List<GrantedAuthority> authorities = readAuthorities(in);
+            CompactSAMLCredential credential = in.readBoolean() ? readCredential(in) : null;
+            Object principal = readPrincipal(in, credential);
+            Object details;
+            switch (in.readByte()) {
+                case DETAILS_PRINCIPAL:
+                    details = principal;
+                    break;
+                case DETAILS_SERIALIZED:
+                    details = deserialize(readBytes(in));
+                    break;
+                default:
+                    details = null;
+            }
+            CompactSAMLAuthenticationToken token = new CompactSAMLAuthenticationToken(
+                    expiration != -1 ? new Date(expiration) : null, principal, credential, authorities);
+            token.setDetails(details);
+            return token;
+        }
+    }
+
+    public byte[] encode(SAMLCredential credential) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writeCredential(out, compact(credential));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to encode credential", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public CompactSAMLCredential decodeCredential(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            readVersion(in);
+            return readCredential(in);
+        }
+    }
+
+    private void writeCredential(DataOutputStream out, CompactSAMLCredential credential) throws IOException {
+        writeString(out, credential.getNameIdValue());
+        writeString(out, credential.getNameIdFormat());
+        writeString(out, credential.getNameQualifier());
+        writeString(out, credential.getSpNameQualifier());
+        writeString(out, credential.getLocalEntityID());
+        writeString(out, credential.getRemoteEntityID());
+        writeString(out, credential.getRelayState());
+        writeCount(out, credential.getSessionIndexes().size());
+        for (String sessionIndex : credential.getSessionIndexes()) {
+            writeString(out, sessionIndex);
+        }
+        out.writeLong(credential.getAuthnInstant());
+        writeAttributes(out, credential.getAttributeIndex());
+        byte[] assertion = credential.getDeflatedAssertion();
+        out.writeBoolean(assertion != null);
+        if (assertion != null) {
+            writeBytes(out, assertion);
+        }
+    }
+
+    private CompactSAMLCredential readCredential(DataInputStream in) throws IOException {
+        String nameIdValue = readString(in);
+        String nameIdFormat = readString(in);
+        String nameQualifier = readString(in);
+        String spNameQualifier = readString(in);
+        String localEntityID = readString(in);
+        String remoteEntityID = readString(in);
+        String relayState = readString(in);
+        int sessionCount = readCount(in);
+        List<String> sessionIndexes = new ArrayList<String>(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            sessionIndexes.add(readString(in));
+        }
+        long authnInstant = in.readLong();
+        SAMLAttributes attributes = readAttributes(in);
+        byte[] assertion = in.readBoolean() ? readBytes(in) : null;
+        return new CompactSAMLCredential(nameIdValue, nameIdFormat, nameQualifier, spNameQualifier,
+                localEntityID, remoteEntityID, relayState, sessionIndexes, authnInstant, attributes, assertion);
+    }
+
+    private static void writeAttributes(DataOutputStream out, SAMLAttributes attributes) throws IOException {
+        writeCount(out, attributes.getEntryCount());
+        for (int i = 0; i < attributes.getEntryCount(); i++) {
+            writeString(out, attributes.getName(i));
+            writeString(out, attributes.getFriendlyNameAt(i));
+            String[] values = attributes.getValuesAt(i);
+            writeCount(out, values.length);
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static SAMLAttributes readAttributes(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        SAMLAttributes.Builder builder = SAMLAttributes.builder();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            String friendlyName = readString(in);
+            String[] values = new String[readCount(in)];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = readString(in);
+            }
+            builder.add(name, friendlyName, values);
+        }
+        return builder.build();
+    }
+
+    private void writePrincipal(DataOutputStream out, Object principal, CompactSAMLCredential credential)
+            throws IOException {
+        if (principal instanceof String) {
+            out.writeByte(PRINCIPAL_STRING);
+            writeString(out, (String) principal);
+        } else if (principal != null && principal.getClass() == User.class) {
+            out.writeByte(PRINCIPAL_USER);
+            writeUser(out, (User) principal);
+        } else if (principal != null && principal.getClass() == SAMLUser.class) {
+            SAMLUser user = (SAMLUser) principal;
+            out.writeByte(PRINCIPAL_SAML_USER);
+            writeUser(out, user);
+            boolean shared = credential != null && user.getAttributes() == credential.getAttributeIndex();
+            out.writeBoolean(shared);
+            if (!shared) {
+                writeAttributes(out, user.getAttributes());
+            }
+        } else if (principal instanceof Serializable) {
+            out.writeByte(PRINCIPAL_SERIALIZED);
+            writeBytes(out, serialize(principal));
+        } else {
+            throw new NotSerializableException(principal != null ? principal.getClass().getName() : "null principal");
+        }
+    }
+
+    private Object readPrincipal(DataInputStream in, CompactSAMLCredential credential) throws IOException {
+        switch (in.readByte()) {
+            case PRINCIPAL_STRING:
+                return readString(in);
+            case PRINCIPAL_USER: {
+                String username = readString(in);
+                int flags = in.readByte();
+                return new User(username, "", (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0,
+                        (flags & 8) != 0, readAuthorities(in));
+            }
+            case PRINCIPAL_SAML_USER: {
+                String username = readString(in);
+                int flags = in.readByte();
+                List<GrantedAuthority> authorities = readAuthorities(in);
+                boolean shared = in.readBoolean();
+                if (shared && credential == null) {
+                    throw new StreamCorruptedException("Shared attributes without credential");
+                }
+                SAMLAttributes attributes = shared ? credential.getAttributeIndex() : readAttributes(in);
+                return new SAMLUser(username, "", (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0,
+                        (flags & 8) != 0, authorities, attributes);
+            }
+            case PRINCIPAL_SERIALIZED:
+                return deserialize(readBytes(in));
+            default:
+                throw new StreamCorruptedException("Unknown principal type");
+        }
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        writeString(out, user.getUsername());
+        out.writeByte((user.isEnabled() ? 1 : 0) | (user.isAccountNonExpired() ? 2 : 0)
+                | (user.isCredentialsNonExpired() ? 4 : 0) | (user.isAccountNonLocked() ? 8 : 0));
+        writeAuthorities(out, user.getAuthorities());
+    }
+
+    private static void writeAuthorities(DataOutputStream out, Collection<? extends GrantedAuthority> authorities)
+            throws IOException {
+        writeCount(out, authorities.size());
+        for (GrantedAuthority authority : authorities) {
+            writeString(out, authority.getAuthority());
+        }
+    }
+
+    private List<GrantedAuthority> readAuthorities(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(count);
+        for (int i = 0; i < count; i++) {
+            authorities.add(authorityResolver.apply(readString(in)));
+        }
+        return authorities;
+    }
+
+    private static void readVersion(DataInputStream in) throws IOException {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported encoding version " + version);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeCount(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeCount(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeCount(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /*
+     * Unsigned varint, most values fit in one byte.
+     */
+    private static void writeCount(DataOutputStream out, int count) throws IOException {
+        while ((count & ~0x7F) != 0) {
+            out.writeByte((count & 0x7F) | 0x80);
+            count >>>= 7;
+        }
+        out.writeByte(count);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            count |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return count;
+            }
+        }
+        throw new StreamCorruptedException("Malformed length");
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidObjectException("Unknown class " + e.getMessage());
+        }
+    }
+
+    private static byte[] deflate(Assertion assertion) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(XMLHelper.nodeToString(SAMLUtil.marshallMessage(assertion)).getBytes(StandardCharsets.UTF_8));
+        } catch (MessageEncodingException e) {
+            throw new IllegalStateException("Unable to marshall assertion " + assertion.getID(), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    /**
+     * @param attributeNames names of the attributes kept in compacted credentials, all when null
+     */
+    public void setAttributeNames(Set<String> attributeNames) {
+        this.attributeNames = attributeNames;
+    }
+
+    public boolean isRetainAssertion() {
+        return retainAssertion;
+    }
+
+    /**
+     * @param retainAssertion whether compacted credentials keep the deflated assertion XML, so that
+     *                        {@link CompactSAMLCredential#getAuthenticationAssertion()} returns the original
+     */
+    public void setRetainAssertion(boolean retainAssertion) {
+        this.retainAssertion = retainAssertion;
+    }
+
+    /**
+     * @param authorityResolver instance of a decoded authority, such as
+     *                          {@link com.vdenotaris.spring.boot.security.saml.web.authority.AuthorityMapper#intern(String)}
+     *                          so that the sessions of users holding the same roles share their authorities
+     */
+    public void setAuthorityResolver(Function<String, GrantedAuthority> authorityResolver) {
+        this.authorityResolver = authorityResolver;
+    }
+
+    /**
+     * @param codec codec of the Java serialization of compact tokens and credentials, the
+     *              default one when null
+     */
+    public static void setSerializationCodec(SAMLAuthenticationCodec codec) {
+        serializationCodec = codec != null ? codec : DEFAULT;
+    }
+
+    static SAMLAuthenticationCodec getSerializationCodec() {
+        return serializationCodec;
+    }
+
+    /**
+     * Java serialization form of {@link CompactSAMLAuthenticationToken}.
+     */
+    static final class SerializedAuthentication implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+
+        SerializedAuthentication(CompactSAMLAuthenticationToken token) {
+            this.data = getSerializationCodec().encode(token);
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return getSerializationCodec().decode(data);
+            } catch (IOException e) {
+                throw new InvalidObjectException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Java serialization form of {@link CompactSAMLCredential}.
+     */
+    static final class SerializedCredential implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+
+        SerializedCredential(CompactSAMLCredential credential) {
+            this.data = getSerializationCodec().encode(credential);
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return getSerializationCodec().decodeCredential(data);
+            } catch (IOException e) {
+                throw new InvalidObjectException(e.getMessage());
+            }
+        }
+    }
+
+}
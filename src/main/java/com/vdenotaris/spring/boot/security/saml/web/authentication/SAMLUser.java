@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import java.util.Collection;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+/**
+ * User authenticated through SAML, carrying the {@link SAMLAttributes} of its
+ * assertion so that controllers receiving it through
+ * {@link com.vdenotaris.spring.boot.security.saml.web.stereotypes.CurrentUser}
+ * read attributes without going back to the credential.
+ */
+public class SAMLUser extends User {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SAMLAttributes attributes;
+
+    public SAMLUser(String username, String password, Collection<? extends GrantedAuthority> authorities,
+            SAMLAttributes attributes) {
+        this(username, password, true, true, true, true, authorities, attributes);
+    }
+
+    public SAMLUser(String username, String password, boolean enabled, boolean accountNonExpired,
+            boolean credentialsNonExpired, boolean accountNonLocked,
+            Collection<? extends GrantedAuthority> authorities, SAMLAttributes attributes) {
+        super(username, password, enabled, accountNonExpired, credentialsNonExpired, accountNonLocked, authorities);
+        this.attributes = attributes != null ? attributes : SAMLAttributes.empty();
+    }
+
+    public SAMLAttributes getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return a copy of this user holding other attributes
+     */
+    public SAMLUser withAttributes(SAMLAttributes attributes) {
+        if (attributes == this.attributes) {
+            return this;
+        }
+        return new SAMLUser(getUsername(), getPassword() != null ? getPassword() : "", isEnabled(),
+                isAccountNonExpired(), isCredentialsNonExpired(), isAccountNonLocked(), getAuthorities(), attributes);
+    }
+
+}
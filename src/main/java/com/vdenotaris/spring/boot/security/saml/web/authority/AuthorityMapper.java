@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authority;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+
+/**
+ * Maps SAML attributes to granted authorities with {@link AuthorityMappingRule rules}
+ * compiled at startup.
+ * <p>
+ * Rules are read from a file, one per line ({@code #} starts a comment),
+ * and compiled into lookup tables; the mapping cost per login depends on the
+ * number of attribute values, not on the number of rules. Authorities are
+ * interned and the lists returned are shared by all users holding the same
+ * roles, so a login allocates nothing but a small bit set.
+ * <p>
+ * The file is checked for changes at most every {@link #setReloadInterval(int)
+ * reload interval} and recompiled when modified; a file which can't be read
+ * keeps the previous rules in place. Malformed lines are logged and skipped.
+ */
+public class AuthorityMapper {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(AuthorityMapper.class);
+
+    // Distinct authority lists kept for sharing, users rarely hold more combinations
+    private static final int MAX_ROLE_SETS = 1024;
+
+    private final File rulesFile;
+
+    private final List<String> defaultAuthorities;
+
+    private final ConcurrentMap<String, GrantedAuthority> interned =
+            new ConcurrentHashMap<String, GrantedAuthority>();
+
+    private final AtomicLong nextCheck = new AtomicLong();
+
+    private final AtomicLong reloads = new AtomicLong();
+
+    private volatile CompiledAuthorityMapping mapping;
+
+    private volatile long lastModified;
+
+    private long reloadInterval = TimeUnit.SECONDS.toMillis(30);
+
+
+    /**
+     * @param rulesFile          rule file, may not exist in which case only the default authorities are granted
+     * @param defaultAuthorities authorities granted to every user
+     */
+    public AuthorityMapper(File rulesFile, String... defaultAuthorities) {
+        this.rulesFile = rulesFile;
+        this.defaultAuthorities = Arrays.asList(defaultAuthorities);
+        this.mapping = compile(Collections.<AuthorityMappingRule>emptyList());
+        reload();
+    }
+
+    /**
+     * @param rules              rules to apply, not reloaded
+     * @param defaultAuthorities authorities granted to every user
+     */
+    public AuthorityMapper(List<AuthorityMappingRule> rules, String... defaultAuthorities) {
+        this.rulesFile = null;
+        this.defaultAuthorities = Arrays.asList(defaultAuthorities);
+        this.mapping = compile(rules);
+    }
+
+    /**
+     * @param attributes attributes of the user
+     * @param issuer     entity ID of the IdP which issued them, enables the rules restricted to it
+     * @return read-only authorities, shared with the other users holding the same ones
+     */
+    public List<GrantedAuthority> map(SAMLAttributes attributes, String issuer) {
+        if (rulesFile != null) {
+            long now = System.currentTimeMillis();
+            long next = nextCheck.get();
+            if (now >= next && nextCheck.compareAndSet(next, now + reloadInterval)) {
+                reload();
+            }
+        }
+        return mapping.map(attributes, issuer);
+    }
+
+    /**
+     * Replaces the rules, e.g. when they are managed elsewhere than in the rule file.
+     */
+    public void setRules(List<AuthorityMappingRule> rules) {
+        mapping = compile(rules);
+    }
+
+    /**
+     * Recompiles the rule file if it changed since it was last read.
+     *
+     * @return true when new rules are in use
+     */
+    public synchronized boolean reload() {
+        if (rulesFile == null || !rulesFile.isFile()) {
+            if (lastModified == 0) {
+                LOG.info("Authority rule file {} not found, only {} are granted", rulesFile, defaultAuthorities);
+                lastModified = -1;
+            }
+            return false;
+        }
+        long modified = rulesFile.lastModified();
+        if (modified == lastModified) {
+            return false;
+        }
+        List<AuthorityMappingRule> rules = new ArrayList<AuthorityMappingRule>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(rulesFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    rules.add(AuthorityMappingRule.parse(line));
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Ignoring malformed authority rule {}: {}", line, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to read authority rules from " + rulesFile + ", keeping the previous rules", e);
+            return false;
+        }
+        mapping = compile(rules);
+        lastModified = modified;
+        LOG.info("Compiled {} authority rules from {} ({} reloads so far)", rules.size(), rulesFile,
+                reloads.incrementAndGet());
+        return true;
+    }
+
+    private CompiledAuthorityMapping compile(List<AuthorityMappingRule> rules) {
+        return new CompiledAuthorityMapping(rules, defaultAuthorities, this::intern, MAX_ROLE_SETS);
+    }
+
+    /**
+     * @return the shared instance of an authority
+     */
+    public GrantedAuthority intern(String authority) {
+        GrantedAuthority result = interned.get(authority);
+        if (result == null) {
+            GrantedAuthority created = new SimpleGrantedAuthority(authority);
+            result = interned.putIfAbsent(authority, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    public int getRuleCount() {
+        return mapping.getRuleCount();
+    }
+
+    public int getAuthorityCount() {
+        return mapping.getAuthorityCount();
+    }
+
+    /**
+     * @return number of distinct authority lists currently shared between users
+     */
+    public int getRoleSetCount() {
+        return mapping.getRoleSetCount();
+    }
+
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    /**
+     * @param reloadInterval seconds between two checks of the rule file
+     */
+    public void setReloadInterval(int reloadInterval) {
+        this.reloadInterval = TimeUnit.SECONDS.toMillis(reloadInterval);
+    }
+
+}
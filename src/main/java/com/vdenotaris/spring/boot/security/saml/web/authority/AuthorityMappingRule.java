@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authority;
+
+import java.util.regex.Pattern;
+
+/**
+ * Declarative rule granting an authority to users having an attribute value.
+ * <p>
+ * Rules are written one per line as
+ * {@code type|attribute|value|authority[|issuer]}, where {@code type} is
+ * {@code exact}, {@code prefix} or {@code regex}, {@code attribute} is an
+ * attribute name or friendly name, and the optional {@code issuer} restricts
+ * the rule to the assertions of one IdP. Regular expressions must match the
+ * whole value.
+ */
+public final class AuthorityMappingRule {
+
+    /**
+     * How the attribute value is compared.
+     */
+    public enum MatchType {
+        EXACT, PREFIX, REGEX
+    }
+
+    private final MatchType type;
+
+    private final String attribute;
+
+    private final String value;
+
+    private final String authority;
+
+    private final String issuer;
+
+    private final Pattern pattern;
+
+    public AuthorityMappingRule(MatchType type, String attribute, String value, String authority, String issuer) {
+        if (type == null || attribute == null || value == null || authority == null) {
+            throw new IllegalArgumentException("Type, attribute, value and authority are required");
+        }
+        this.type = type;
+        this.attribute = attribute;
+        this.value = value;
+        this.authority = authority;
+        this.issuer = issuer;
+        this.pattern = type == MatchType.REGEX ? Pattern.compile(value) : null;
+    }
+
+    public static AuthorityMappingRule exact(String attribute, String value, String authority) {
+        return new AuthorityMappingRule(MatchType.EXACT, attribute, value, authority, null);
+    }
+
+    public static AuthorityMappingRule prefix(String attribute, String value, String authority) {
+        return new AuthorityMappingRule(MatchType.PREFIX, attribute, value, authority, null);
+    }
+
+    public static AuthorityMappingRule regex(String attribute, String value, String authority) {
+        return new AuthorityMappingRule(MatchType.REGEX, attribute, value, authority, null);
+    }
+
+    /**
+     * @return a copy of this rule applying only to the assertions of an IdP
+     */
+    public AuthorityMappingRule forIssuer(String issuer) {
+        return new AuthorityMappingRule(type, attribute, value, authority, issuer);
+    }
+
+    /**
+     * Parses the line form of a rule.
+     *
+     * @throws IllegalArgumentException when the line is malformed or the regular expression invalid
+     */
+    public static AuthorityMappingRule parse(String line) {
+        String[] fields = line.split("\\|", -1);
+        if (fields.length != 4 && fields.length != 5) {
+            throw new IllegalArgumentException("Expected type|attribute|value|authority[|issuer]");
+        }
+        MatchType type = MatchType.valueOf(fields[0].trim().toUpperCase());
+        String issuer = fields.length == 5 && !fields[4].trim().isEmpty() ? fields[4].trim() : null;
+        return new AuthorityMappingRule(type, fields[1].trim(), fields[2].trim(), fields[3].trim(), issuer);
+    }
+
+    public MatchType getType() {
+        return type;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getAuthority() {
+        return authority;
+    }
+
+    /**
+     * @return entity ID of the IdP the rule is restricted to, or null when it applies to all
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + "|" + attribute + "|" + value + "|" + authority
+                + (issuer != null ? "|" + issuer : "");
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Rules compiled into lookup tables, immutable once built.
+ * <p>
+ * Each authority gets a bit. Rules are grouped by issuer (or global) and by
+ * attribute; for each attribute exact values are hashed, prefixes stored in a
+ * trie and regular expressions guarded by a single alternation of all of
+ * them. Mapping a user therefore costs one hash lookup and one trie walk per
+ * attribute value, whatever the number of exact and prefix rules. The
+ * resulting bit set is turned into an authority list shared by all users with
+ * the same roles.
+ */
+final class CompiledAuthorityMapping {
+
+    private final GrantedAuthority[] authorities;
+
+    private final BitSet defaults;
+
+    private final Scope global;
+
+    private final Map<String, Scope> issuers;
+
+    private final int ruleCount;
+
+    private final LruCache<BitSet, List<GrantedAuthority>> roleSets;
+
+    CompiledAuthorityMapping(List<AuthorityMappingRule> rules, Collection<String> defaultAuthorities,
+            Function<String, GrantedAuthority> intern, int maxRoleSets) {
+        Map<String, Integer> bits = new LinkedHashMap<String, Integer>();
+        this.defaults = new BitSet();
+        for (String authority : defaultAuthorities) {
+            defaults.set(bit(bits, authority));
+        }
+        ScopeBuilder globalBuilder = new ScopeBuilder();
+        Map<String, ScopeBuilder> issuerBuilders = new HashMap<String, ScopeBuilder>();
+        for (AuthorityMappingRule rule : rules) {
+            ScopeBuilder scope = rule.getIssuer() == null ? globalBuilder
+                    : issuerBuilders.computeIfAbsent(rule.getIssuer(), issuer -> new ScopeBuilder());
+            scope.add(rule, bit(bits, rule.getAuthority()));
+        }
+
+        this.authorities = new GrantedAuthority[bits.size()];
+        for (Map.Entry<String, Integer> entry : bits.entrySet()) {
+            authorities[entry.getValue()] = intern.apply(entry.getKey());
+        }
+        this.global = globalBuilder.build();
+        this.issuers = new HashMap<String, Scope>(issuerBuilders.size() * 4 / 3 + 1);
+        for (Map.Entry<String, ScopeBuilder> entry : issuerBuilders.entrySet()) {
+            issuers.put(entry.getKey(), entry.getValue().build());
+        }
+        this.ruleCount = rules.size();
+        this.roleSets = new LruCache<BitSet, List<GrantedAuthority>>(maxRoleSets);
+    }
+
+    private static int bit(Map<String, Integer> bits, String authority) {
+        Integer bit = bits.get(authority);
+        if (bit == null) {
+            bit = bits.size();
+            bits.put(authority, bit);
+        }
+        return bit;
+    }
+
+    List<GrantedAuthority> map(SAMLAttributes attributes, String issuer) {
+        BitSet granted = (BitSet) defaults.clone();
+        global.match(attributes, granted);
+        Scope scope = issuer != null ? issuers.get(issuer) : null;
+        if (scope != null) {
+            scope.match(attributes, granted);
+        }
+        List<GrantedAuthority> result = roleSets.get(granted);
+        if (result == null) {
+            List<GrantedAuthority> list = new ArrayList<GrantedAuthority>(granted.cardinality());
+            for (int i = granted.nextSetBit(0); i >= 0; i = granted.nextSetBit(i + 1)) {
+                list.add(authorities[i]);
+            }
+            result = roleSets.putIfAbsent(granted, Collections.unmodifiableList(list));
+        }
+        return result;
+    }
+
+    int getRuleCount() {
+        return ruleCount;
+    }
+
+    int getAuthorityCount() {
+        return authorities.length;
+    }
+
+    int getRoleSetCount() {
+        return roleSets.size();
+    }
+
+    /**
+     * Rules of one issuer, or of all issuers, by attribute.
+     */
+    private static final class Scope {
+
+        private final String[] attributes;
+
+        private final AttributeMatcher[] matchers;
+
+        Scope(Map<String, AttributeMatcher> matchers) {
+            this.attributes = matchers.keySet().toArray(new String[matchers.size()]);
+            this.matchers = matchers.values().toArray(new AttributeMatcher[matchers.size()]);
+        }
+
+        void match(SAMLAttributes values, BitSet granted) {
+            for (int i = 0; i < attributes.length; i++) {
+                List<String> attributeValues = values.getValues(attributes[i]);
+                for (int j = 0, size = attributeValues.size(); j < size; j++) {
+                    matchers[i].match(attributeValues.get(j), granted);
+                }
+            }
+        }
+    }
+
+    private static final class AttributeMatcher {
+
+        private final Map<String, BitSet> exact;
+
+        private final Trie prefixes;
+
+        private final Pattern anyRegex;
+
+        private final Pattern[] regexes;
+
+        private final int[] regexBits;
+
+        AttributeMatcher(Map<String, BitSet> exact, Trie prefixes, List<Pattern> regexes, List<Integer> regexBits) {
+            this.exact = exact;
+            this.prefixes = prefixes;
+            this.regexes = regexes.toArray(new Pattern[regexes.size()]);
+            this.regexBits = new int[regexBits.size()];
+            for (int i = 0; i < this.regexBits.length; i++) {
+                this.regexBits[i] = regexBits.get(i);
+            }
+            this.anyRegex = alternation(this.regexes);
+        }
+
+        /*
+         * Backreferences would be renumbered in the alternation, such rules are always evaluated.
+         */
+        private static Pattern alternation(Pattern[] regexes) {
+            if (regexes.length < 2) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Pattern regex : regexes) {
+                if (regex.pattern().matches(".*\\\\[1-9].*")) {
+                    return null;
+                }
+                sb.append(sb.length() > 0 ? "|" : "").append("(?:").append(regex.pattern()).append(')');
+            }
+            try {
+                return Pattern.compile(sb.toString());
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+        }
+
+        void match(String value, BitSet granted) {
+            BitSet bits = exact.get(value);
+            if (bits != null) {
+                granted.or(bits);
+            }
+            if (prefixes != null) {
+                prefixes.match(value, granted);
+            }
+            if (regexes.length > 0 && (anyRegex == null || anyRegex.matcher(value).matches())) {
+                for (int i = 0; i < regexes.length; i++) {
+                    if (regexes[i].matcher(value).matches()) {
+                        granted.set(regexBits[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Prefix tree whose nodes hold the bits granted to the values starting with their path.
+     */
+    private static final class Trie {
+
+        private final char[] keys;
+
+        private final Trie[] children;
+
+        private final BitSet bits;
+
+        Trie(char[] keys, Trie[] children, BitSet bits) {
+            this.keys = keys;
+            this.children = children;
+            this.bits = bits;
+        }
+
+        void match(String value, BitSet granted) {
+            Trie node = this;
+            for (int i = 0; ; i++) {
+                if (node.bits != null) {
+                    granted.or(node.bits);
+                }
+                if (i == value.length()) {
+                    return;
+                }
+                int index = Arrays.binarySearch(node.keys, value.charAt(i));
+                if (index < 0) {
+                    return;
+                }
+                node = node.children[index];
+            }
+        }
+    }
+
+    private static final class TrieBuilder {
+
+        private final TreeMap<Character, TrieBuilder> children = new TreeMap<Character, TrieBuilder>();
+
+        private BitSet bits;
+
+        void add(String prefix, int bit) {
+            TrieBuilder node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieBuilder());
+            }
+            if (node.bits == null) {
+                node.bits = new BitSet();
+            }
+            node.bits.set(bit);
+        }
+
+        Trie build() {
+            char[] keys = new char[children.size()];
+            Trie[] nodes = new Trie[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, TrieBuilder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i++] = entry.getValue().build();
+            }
+            return new Trie(keys, nodes, bits);
+        }
+    }
+
+    private static final class ScopeBuilder {
+
+        private final Map<String, Map<String, BitSet>> exact = new LinkedHashMap<String, Map<String, BitSet>>();
+
+        private final Map<String, TrieBuilder> prefixes = new HashMap<String, TrieBuilder>();
+
+        private final Map<String, List<Pattern>> regexes = new HashMap<String, List<Pattern>>();
+
+        private final Map<String, List<Integer>> regexBits = new HashMap<String, List<Integer>>();
+
+        void add(AuthorityMappingRule rule, int bit) {
+            String attribute = rule.getAttribute();
+            exact.computeIfAbsent(attribute, a -> new HashMap<String, BitSet>());
+            switch (rule.getType()) {
+                case EXACT:
+                    exact.get(attribute).computeIfAbsent(rule.getValue(), v -> new BitSet()).set(bit);
+                    break;
+                case PREFIX:
+                    prefixes.computeIfAbsent(attribute, a -> new TrieBuilder()).add(rule.getValue(), bit);
+                    break;
+                default:
+                    regexes.computeIfAbsent(attribute, a -> new ArrayList<Pattern>()).add(rule.getPattern());
+                    regexBits.computeIfAbsent(attribute, a -> new ArrayList<Integer>()).add(bit);
+            }
+        }
+
+        Scope build() {
+            Map<String, AttributeMatcher> matchers = new LinkedHashMap<String, AttributeMatcher>();
+            for (Map.Entry<String, Map<String, BitSet>> entry : exact.entrySet()) {
+                String attribute = entry.getKey();
+                TrieBuilder trie = prefixes.get(attribute);
+                matchers.put(attribute, new AttributeMatcher(entry.getValue(), trie != null ? trie.build() : null,
+                        regexes.getOrDefault(attribute, Collections.<Pattern>emptyList()),
+                        regexBits.getOrDefault(attribute, Collections.<Integer>emptyList())));
+            }
+            return new Scope(matchers);
+        }
+    }
+
+}
@@ -23,6 +23,9 @@ import org.slf4j.LoggerFactory;
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.Context;
 
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLEncoderEvent;
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLFlightRecorder;
+
 import java.io.OutputStreamWriter;
 import java.util.List;
 
@@ -130,30 +133,46 @@ public class HTTPArtifactEncoderThymeleaf extends BaseSAML2MessageEncoder {
     protected void postEncode(SAMLMessageContext artifactContext, HTTPOutTransport outTransport)
             throws MessageEncodingException {
         log.debug("Performing HTTP POST SAML 2 artifact encoding");
-
-        log.debug("Creating thymeleaf context");
-        Context context = new Context();
-        Encoder esapiEncoder = ESAPI.encoder();
-        String endpointURL = getEndpointURL(artifactContext).toString();
-        String encodedEndpointURL = esapiEncoder.encodeForHTMLAttribute(endpointURL);
-        log.debug("Setting action parameter to: '{}', encoded as '{}'", endpointURL, encodedEndpointURL);
-        context.setVariable("action", encodedEndpointURL);
-        context.setVariable("SAMLArt", buildArtifact(artifactContext).base64Encode());
-        context.setVariable("binding", getBindingURI());
-
-        if (checkRelayState(artifactContext.getRelayState())) {
-            String encodedRelayState = esapiEncoder.encodeForHTMLAttribute(artifactContext.getRelayState());
-            log.debug("Setting RelayState parameter to: '{}', encoded as '{}'", artifactContext.getRelayState(), encodedRelayState);
-            context.setVariable("RelayState", encodedRelayState);
+        SAMLEncoderEvent event = SAMLFlightRecorder.AVAILABLE ? new SAMLEncoderEvent() : null;
+        if (event != null) {
+            event.begin();
         }
-
+        String artifact = null;
+        Exception failure = null;
         try {
-            log.debug("Invoking thymeleaf template");
-            OutputStreamWriter outWriter = new OutputStreamWriter(outTransport.getOutgoingStream());
-            thymeleafEngine.process(thymeleafTemplateId, context, outWriter);
-        } catch (Exception e) {
-            log.error("Error invoking thymeleaf template to create POST form", e);
-            throw new MessageEncodingException("Error creating output document", e);
+            log.debug("Creating thymeleaf context");
+            Context context = new Context();
+            Encoder esapiEncoder = ESAPI.encoder();
+            String endpointURL = getEndpointURL(artifactContext).toString();
+            String encodedEndpointURL = esapiEncoder.encodeForHTMLAttribute(endpointURL);
+            log.debug("Setting action parameter to: '{}', encoded as '{}'", endpointURL, encodedEndpointURL);
+            context.setVariable("action", encodedEndpointURL);
+            artifact = buildArtifact(artifactContext).base64Encode();
+            context.setVariable("SAMLArt", artifact);
+            context.setVariable("binding", getBindingURI());
+
+            if (checkRelayState(artifactContext.getRelayState())) {
+                String encodedRelayState = esapiEncoder.encodeForHTMLAttribute(artifactContext.getRelayState());
+                log.debug("Setting RelayState parameter to: '{}', encoded as '{}'", artifactContext.getRelayState(), encodedRelayState);
+                context.setVariable("RelayState", encodedRelayState);
+            }
+
+            try {
+                log.debug("Invoking thymeleaf template");
+                OutputStreamWriter outWriter = new OutputStreamWriter(outTransport.getOutgoingStream());
+                thymeleafEngine.process(thymeleafTemplateId, context, outWriter);
+            } catch (Exception e) {
+                log.error("Error invoking thymeleaf template to create POST form", e);
+                throw new MessageEncodingException("Error creating output document", e);
+            }
+        } catch (MessageEncodingException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.commit(getBindingURI(), thymeleafTemplateId, artifactContext.getOutboundSAMLMessage(),
+                        artifactContext.getPeerEntityId(), artifact != null ? artifact.length() : 0, failure);
+            }
         }
     }
 
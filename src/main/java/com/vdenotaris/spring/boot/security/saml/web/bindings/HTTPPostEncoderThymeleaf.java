@@ -20,6 +20,9 @@ import org.slf4j.LoggerFactory;
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.Context;
 
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLEncoderEvent;
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLFlightRecorder;
+
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
@@ -117,8 +120,13 @@ public class HTTPPostEncoderThymeleaf extends BaseSAML2MessageEncoder {
      */
     protected void postEncode(SAMLMessageContext messageContext, String endpointURL) throws MessageEncodingException {
         log.debug("Invoking Thymeleaf template to create POST body");
+        SAMLEncoderEvent event = SAMLFlightRecorder.AVAILABLE ? new SAMLEncoderEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        Context context = new Context();
+        Exception failure = null;
         try {
-            Context context = new Context();
             populatehymeleafContext(context, messageContext, endpointURL);
 
             HTTPOutTransport outTransport = (HTTPOutTransport) messageContext.getOutboundMessageTransport();
@@ -130,8 +138,17 @@ public class HTTPPostEncoderThymeleaf extends BaseSAML2MessageEncoder {
             templateEngine.process(thymeleafTemplateId, context, out);
             out.flush();
         } catch (Exception e) {
+            failure = e;
             log.error("Error invoking Thymeleaf template", e);
             throw new MessageEncodingException("Error creating output document", e);
+        } finally {
+            if (event != null) {
+                Object encodedMessage = context.getVariables().containsKey("SAMLRequest")
+                        ? context.getVariables().get("SAMLRequest") : context.getVariables().get("SAMLResponse");
+                event.commit(getBindingURI(), thymeleafTemplateId, messageContext.getOutboundSAMLMessage(),
+                        messageContext.getPeerEntityId(),
+                        encodedMessage != null ? encodedMessage.toString().length() : 0, failure);
+            }
         }
     }
 
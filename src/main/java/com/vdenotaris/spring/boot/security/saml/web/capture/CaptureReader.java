@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.vdenotaris.spring.boot.security.saml.web.capture.CapturedMessage.Direction;
+
+/**
+ * Reads back the messages of a file written by {@link CaptureWriter}.
+ */
+public class CaptureReader implements Closeable {
+
+    private final DataInputStream in;
+
+    public CaptureReader(File file) throws IOException {
+        in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != CaptureWriter.MAGIC) {
+                throw new IOException(file + " is not a SAML capture file");
+            }
+            int version = in.readInt();
+            if (version != CaptureWriter.VERSION) {
+                throw new IOException("Unsupported capture file version " + version);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next message, or null at the end of the file, including the end
+     *         of a file still being written or cut short
+     */
+    public CapturedMessage read() throws IOException {
+        int direction;
+        try {
+            direction = in.readByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            long timestamp = in.readLong();
+            long offsetNanos = in.readLong();
+            long durationNanos = in.readLong();
+            String binding = readString();
+            String messageType = readString();
+            String messageId = readString();
+            String inResponseTo = readString();
+            String peerEntityId = readString();
+            String method = readString();
+            String requestURL = readString();
+            String queryString = readString();
+            int parameterCount = in.readShort();
+            Map<String, String> parameters = new LinkedHashMap<String, String>(parameterCount * 2);
+            for (int i = 0; i < parameterCount; i++) {
+                parameters.put(readString(), readString());
+            }
+            String body = readString();
+            return new CapturedMessage(Direction.values()[direction], timestamp, offsetNanos, durationNanos,
+                    binding, messageType, messageId, inResponseTo, peerEntityId, method, requestURL, queryString,
+                    parameters, body);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private String readString() throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends {@link CapturedMessage}s to a gzipped capture file, read back by
+ * {@link CaptureReader}.
+ * <p>
+ * Every record is flushed, so the file can be read while the application runs
+ * and survives it being killed. The capture stops by itself once the maximum
+ * number of messages is written. The file holds assertions as received, it is
+ * created readable by its owner only.
+ */
+public class CaptureWriter implements Closeable {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(CaptureWriter.class);
+
+    static final int MAGIC = 0x53414d4c;
+
+    static final int VERSION = 1;
+
+    private final File file;
+
+    private final int maxMessages;
+
+    private final long start = System.nanoTime();
+
+    private DataOutputStream out;
+
+    private int written;
+
+    /**
+     * @param file        capture file, overwritten if it exists
+     * @param maxMessages number of messages after which the capture stops
+     */
+    public CaptureWriter(File file, int maxMessages) {
+        this.file = file;
+        this.maxMessages = maxMessages;
+        try {
+            Files.deleteIfExists(file.toPath());
+            createFile(file);
+            out = new DataOutputStream(new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)), 8192, true));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open capture file " + file, e);
+        }
+        LOG.info("Capturing up to {} SAML messages to {}", maxMessages, file);
+    }
+
+    /*
+     * Readable by the owner from its creation, not after a window during which the umask applies.
+     */
+    private static void createFile(File file) throws IOException {
+        try {
+            Files.createFile(file.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file.toPath());
+            file.setReadable(false, false);
+            file.setReadable(true, true);
+        }
+    }
+
+    /**
+     * @return nanoseconds elapsed since the capture started, the offset of a message starting now
+     */
+    public long offset() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return false once the capture is complete, so that callers can skip building the record
+     */
+    public synchronized boolean isCapturing() {
+        return out != null;
+    }
+
+    public synchronized void write(CapturedMessage message) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(message.getDirection().ordinal());
+            out.writeLong(message.getTimestamp());
+            out.writeLong(message.getOffsetNanos());
+            out.writeLong(message.getDurationNanos());
+            writeString(message.getBinding());
+            writeString(message.getMessageType());
+            writeString(message.getMessageId());
+            writeString(message.getInResponseTo());
+            writeString(message.getPeerEntityId());
+            writeString(message.getMethod());
+            writeString(message.getRequestURL());
+            writeString(message.getQueryString());
+            out.writeShort(message.getParameters().size());
+            for (Map.Entry<String, String> parameter : message.getParameters().entrySet()) {
+                writeString(parameter.getKey());
+                writeString(parameter.getValue());
+            }
+            writeString(message.getBody());
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("Error writing capture file " + file + ", capture stopped", e);
+            close();
+            return;
+        }
+        if (++written >= maxMessages) {
+            LOG.info("Captured {} SAML messages to {}, capture complete", written, file);
+            close();
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public synchronized int getWrittenCount() {
+        return written;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing capture file " + file, e);
+        }
+        out = null;
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.capture;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One SAML message recorded by the {@link CapturingSAMLProcessor}.
+ * <p>
+ * Inbound messages keep what is needed to decode them again: the request
+ * method, URL, the SAML protocol parameters, raw as in the query string and
+ * decoded, and, for SOAP, the envelope. Outbound messages keep the XML of the message as sent. Nothing
+ * else of the HTTP exchange (headers, cookies, client address) is recorded.
+ */
+public final class CapturedMessage {
+
+    public enum Direction {
+        INBOUND, OUTBOUND
+    }
+
+    private final Direction direction;
+
+    private final long timestamp;
+
+    private final long offsetNanos;
+
+    private final long durationNanos;
+
+    private final String binding;
+
+    private final String messageType;
+
+    private final String messageId;
+
+    private final String inResponseTo;
+
+    private final String peerEntityId;
+
+    private final String method;
+
+    private final String requestURL;
+
+    private final String queryString;
+
+    private final Map<String, String> parameters;
+
+    private final String body;
+
+    /**
+     * @param timestamp     wall clock time in milliseconds when the processing started
+     * @param offsetNanos   nanoseconds between the start of the capture and the start of the processing
+     * @param durationNanos time spent decoding or encoding the message
+     * @param queryString   SAML protocol parameters of the query string of an inbound message, as received
+     * @param parameters    SAML protocol parameters of an inbound message, empty for outbound ones
+     * @param body          SOAP envelope of an inbound message or XML of an outbound message, may be null
+     */
+    public CapturedMessage(Direction direction, long timestamp, long offsetNanos, long durationNanos,
+            String binding, String messageType, String messageId, String inResponseTo, String peerEntityId,
+            String method, String requestURL, String queryString, Map<String, String> parameters, String body) {
+        this.direction = direction;
+        this.timestamp = timestamp;
+        this.offsetNanos = offsetNanos;
+        this.durationNanos = durationNanos;
+        this.binding = binding;
+        this.messageType = messageType;
+        this.messageId = messageId;
+        this.inResponseTo = inResponseTo;
+        this.peerEntityId = peerEntityId;
+        this.method = method;
+        this.requestURL = requestURL;
+        this.queryString = queryString;
+        this.parameters = parameters != null
+                ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(parameters))
+                : Collections.<String, String>emptyMap();
+        this.body = body;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public String getBinding() {
+        return binding;
+    }
+
+    /**
+     * @return local name of the message element, e.g. {@code Response}, or null when it could not be decoded
+     */
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getInResponseTo() {
+        return inResponseTo;
+    }
+
+    public String getPeerEntityId() {
+        return peerEntityId;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getRequestURL() {
+        return requestURL;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+}
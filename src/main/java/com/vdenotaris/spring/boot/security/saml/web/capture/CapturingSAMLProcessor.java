@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.capture;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.StatusResponseType;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLBinding;
+
+import com.vdenotaris.spring.boot.security.saml.web.capture.CapturedMessage.Direction;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.InstrumentedSAMLProcessor;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLMetrics;
+
+/**
+ * SAML processor recording the messages it decodes and encodes, with their
+ * timing, to a {@link CaptureWriter}, for the replay tool of the benchmarks
+ * module.
+ * <p>
+ * Inbound messages are recorded whether or not they decode, from the request
+ * they were read from; outbound messages once encoded, as XML, so that replayed
+ * responses can be matched with the request they answer.
+ */
+public class CapturingSAMLProcessor extends InstrumentedSAMLProcessor implements DisposableBean {
+
+    /**
+     * Request parameters of the SAML bindings, the only ones recorded.
+     */
+    static final List<String> SAML_PARAMETERS = Arrays.asList(
+            "SAMLRequest", "SAMLResponse", "SAMLart", "RelayState", "SigAlg", "Signature");
+
+    private final CaptureWriter writer;
+
+    public CapturingSAMLProcessor(Collection<SAMLBinding> bindings, SAMLMetrics metrics, CaptureWriter writer) {
+        super(bindings, metrics);
+        this.writer = writer;
+    }
+
+    @Override
+    public SAMLMessageContext retrieveMessage(SAMLMessageContext context, SAMLBinding binding)
+            throws SAMLException, MetadataProviderException, MessageDecodingException, SecurityException {
+        if (!writer.isCapturing() || !(context.getInboundMessageTransport() instanceof HttpServletRequestAdapter)) {
+            return super.retrieveMessage(context, binding);
+        }
+        long timestamp = System.currentTimeMillis();
+        long offset = writer.offset();
+        try {
+            return super.retrieveMessage(context, binding);
+        } finally {
+            long duration = writer.offset() - offset;
+            HttpServletRequest request = ((HttpServletRequestAdapter) context.getInboundMessageTransport())
+                    .getWrappedRequest();
+            Map<String, String> parameters = new LinkedHashMap<String, String>();
+            for (String name : SAML_PARAMETERS) {
+                String value = request.getParameter(name);
+                if (value != null) {
+                    parameters.put(name, value);
+                }
+            }
+            SAMLObject message = context.getInboundSAMLMessage();
+            String body = binding.getBindingURI().equals(SAMLConstants.SAML2_SOAP11_BINDING_URI)
+                    ? toString(context.getInboundMessage()) : null;
+            writer.write(new CapturedMessage(Direction.INBOUND, timestamp, offset, duration,
+                    binding.getBindingURI(), getMessageType(message), getMessageId(message),
+                    getInResponseTo(message), context.getPeerEntityId(), request.getMethod(),
+                    stripPathParameters(request.getRequestURL().toString()), samlQueryString(request.getQueryString()),
+                    parameters, body));
+        }
+    }
+
+    @Override
+    protected SAMLMessageContext sendMessage(SAMLMessageContext context, boolean sign, SAMLBinding binding)
+            throws SAMLException, MetadataProviderException, MessageEncodingException {
+        if (!writer.isCapturing()) {
+            return super.sendMessage(context, sign, binding);
+        }
+        long timestamp = System.currentTimeMillis();
+        long offset = writer.offset();
+        SAMLMessageContext result = super.sendMessage(context, sign, binding);
+        long duration = writer.offset() - offset;
+        SAMLObject message = context.getOutboundSAMLMessage();
+        writer.write(new CapturedMessage(Direction.OUTBOUND, timestamp, offset, duration,
+                binding.getBindingURI(), getMessageType(message), getMessageId(message),
+                getInResponseTo(message), context.getPeerEntityId(), null, null, null, null,
+                toString(message)));
+        return result;
+    }
+
+    private static String getMessageType(SAMLObject message) {
+        return message != null ? message.getElementQName().getLocalPart() : null;
+    }
+
+    private static String getMessageId(SAMLObject message) {
+        if (message instanceof RequestAbstractType) {
+            return ((RequestAbstractType) message).getID();
+        }
+        if (message instanceof StatusResponseType) {
+            return ((StatusResponseType) message).getID();
+        }
+        return null;
+    }
+
+    private static String getInResponseTo(SAMLObject message) {
+        return message instanceof StatusResponseType ? ((StatusResponseType) message).getInResponseTo() : null;
+    }
+
+    private static String toString(XMLObject message) {
+        return message != null && message.getDOM() != null ? XMLHelper.nodeToString(message.getDOM()) : null;
+    }
+
+    /*
+     * Drops ;jsessionid and other path parameters, which identify the session of the user.
+     */
+    private static String stripPathParameters(String url) {
+        int parameters = url.indexOf(';');
+        return parameters == -1 ? url : url.substring(0, parameters);
+    }
+
+    /*
+     * Keeps the SAML parameters of the query string as received, whose encoding is covered by the signature
+     * of the HTTP-Redirect binding, and drops the parameters of the application.
+     */
+    static String samlQueryString(String queryString) {
+        if (queryString == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(queryString.length());
+        for (String parameter : queryString.split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator == -1 ? parameter : parameter.substring(0, separator);
+            if (SAML_PARAMETERS.contains(name)) {
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(parameter);
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    public CaptureWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void destroy() {
+        writer.close();
+    }
+
+}
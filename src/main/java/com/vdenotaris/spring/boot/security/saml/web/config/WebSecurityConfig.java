@@ -16,13 +16,56 @@
 
 package com.vdenotaris.spring.boot.security.saml.web.config;
 
+import com.vdenotaris.spring.boot.security.saml.web.account.CachingLocalAccountStore;
+import com.vdenotaris.spring.boot.security.saml.web.account.InMemoryLocalAccountStore;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLAuthenticationProvider;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAuthenticationCodec;
+import com.vdenotaris.spring.boot.security.saml.web.authority.AuthorityMapper;
 import com.vdenotaris.spring.boot.security.saml.web.bindings.HTTPArtifactBindingThymeleaf;
 import com.vdenotaris.spring.boot.security.saml.web.bindings.HTTPPostBindingThymeleaf;
+import com.vdenotaris.spring.boot.security.saml.web.capture.CaptureWriter;
+import com.vdenotaris.spring.boot.security.saml.web.capture.CapturingSAMLProcessor;
+import com.vdenotaris.spring.boot.security.saml.web.context.TenantSAMLContextProvider;
 import com.vdenotaris.spring.boot.security.saml.web.core.SAMLUserDetailsServiceImpl;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.DiscoveryViewCache;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.IdPHintResolver;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.RememberIdPSuccessHandler;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.RememberedIdPDiscovery;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.RememberedIdPEntryPoint;
+import com.vdenotaris.spring.boot.security.saml.web.filters.SAMLDispatchFilter;
+import com.vdenotaris.spring.boot.security.saml.web.filters.SOAPLogoutProcessingFilter;
+import com.vdenotaris.spring.boot.security.saml.web.key.IndexedKeyManager;
+import com.vdenotaris.spring.boot.security.saml.web.log.SAMLEventLogger;
+import com.vdenotaris.spring.boot.security.saml.web.log.SampleRates;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.BackChannelMetadataGenerator;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.CachingMetadataDisplayFilter;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.HostedSPRegistry;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.KeyManagerTenantDirectory;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.OneShotMetadataGeneratorFilter;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.VersionedMetadataManager;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.InstrumentedSAMLProcessor;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.InstrumentedWebSSOProfileConsumer;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLMetrics;
+import com.vdenotaris.spring.boot.security.saml.web.replay.InMemoryReplayCache;
+import com.vdenotaris.spring.boot.security.saml.web.replay.ReplayCache;
+import com.vdenotaris.spring.boot.security.saml.web.replay.ReplayCheckingHoKWebSSOProfileConsumer;
+import com.vdenotaris.spring.boot.security.saml.web.session.BackChannelLogoutSender;
+import com.vdenotaris.spring.boot.security.saml.web.session.CookieSecurityContextRepository;
+import com.vdenotaris.spring.boot.security.saml.web.session.LocalSessionInvalidationBus;
+import com.vdenotaris.spring.boot.security.saml.web.session.RegistrySingleLogoutProfile;
+import com.vdenotaris.spring.boot.security.saml.web.session.RevokedSAMLSessions;
+import com.vdenotaris.spring.boot.security.saml.web.session.SAMLSessionRegistry;
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionInvalidationBus;
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionMemoryEstimator;
+import com.vdenotaris.spring.boot.security.saml.web.storage.CookieMessageStorageFactory;
+import com.vdenotaris.spring.boot.security.saml.web.storage.InMemoryMessageStorageFactory;
+import com.vdenotaris.spring.boot.security.saml.web.storage.StoreFirstWebSSOProfile;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.opensaml.saml2.metadata.provider.AbstractReloadingMetadataProvider;
+import org.opensaml.saml2.metadata.provider.FilesystemMetadataProvider;
 import org.opensaml.saml2.metadata.provider.HTTPMetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
@@ -30,6 +73,7 @@ import org.opensaml.xml.parse.ParserPool;
 import org.opensaml.xml.parse.StaticBasicParserPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.MethodInvokingFactoryBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -52,7 +96,6 @@ import org.springframework.security.saml.SAMLWebSSOHoKProcessingFilter;
 import org.springframework.security.saml.context.SAMLContextProviderImpl;
 import org.springframework.security.saml.key.JKSKeyManager;
 import org.springframework.security.saml.key.KeyManager;
-import org.springframework.security.saml.log.SAMLDefaultLogger;
 import org.springframework.security.saml.metadata.CachingMetadataManager;
 import org.springframework.security.saml.metadata.ExtendedMetadata;
 import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
@@ -65,40 +108,45 @@ import org.springframework.security.saml.processor.HTTPRedirectDeflateBinding;
 import org.springframework.security.saml.processor.HTTPSOAP11Binding;
 import org.springframework.security.saml.processor.SAMLBinding;
 import org.springframework.security.saml.processor.SAMLProcessorImpl;
+import org.springframework.security.saml.storage.HttpSessionStorageFactory;
+import org.springframework.security.saml.storage.SAMLMessageStorageFactory;
 import org.springframework.security.saml.trust.httpclient.TLSProtocolConfigurer;
 import org.springframework.security.saml.trust.httpclient.TLSProtocolSocketFactory;
 import org.springframework.security.saml.websso.ArtifactResolutionProfile;
 import org.springframework.security.saml.websso.ArtifactResolutionProfileImpl;
 import org.springframework.security.saml.websso.SingleLogoutProfile;
-import org.springframework.security.saml.websso.SingleLogoutProfileImpl;
 import org.springframework.security.saml.websso.WebSSOProfile;
 import org.springframework.security.saml.websso.WebSSOProfileConsumer;
 import org.springframework.security.saml.websso.WebSSOProfileConsumerHoKImpl;
-import org.springframework.security.saml.websso.WebSSOProfileConsumerImpl;
 import org.springframework.security.saml.websso.WebSSOProfileECPImpl;
-import org.springframework.security.saml.websso.WebSSOProfileImpl;
 import org.springframework.security.saml.websso.WebSSOProfileOptions;
-import org.springframework.security.web.DefaultSecurityFilterChain;
-import org.springframework.security.web.FilterChainProxy;
-import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.access.channel.ChannelProcessingFilter;
 import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
 import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
 import org.springframework.security.web.authentication.logout.LogoutHandler;
 import org.springframework.security.web.authentication.logout.SecurityContextLogoutHandler;
 import org.springframework.security.web.authentication.logout.SimpleUrlLogoutSuccessHandler;
+import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
-import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.util.StringUtils;
 import org.thymeleaf.TemplateEngine;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.servlet.Filter;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 @EnableWebSecurity
@@ -112,6 +160,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 	public void init() {
 		this.backgroundTaskTimer = new Timer(true);
 		this.multiThreadedHttpConnectionManager = new MultiThreadedHttpConnectionManager();
+		// Room for the back-channel logout threads next to metadata and artifact requests
+		this.multiThreadedHttpConnectionManager.getParams().setDefaultMaxConnectionsPerHost(8);
+		this.multiThreadedHttpConnectionManager.getParams().setMaxTotalConnections(40);
 	}
 	
 	@PreDestroy
@@ -124,6 +175,83 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     private SAMLUserDetailsServiceImpl samlUserDetailsServiceImpl;
 
+    @Autowired
+    private AuthorityMapper authorityMapper;
+
+    // Directory of the tenant keys, one PKCS#12 bundle per alias
+    @Value("${saml.keys.directory:saml/keys}")
+    private String keyDirectory;
+
+    @Value("${saml.keys.password:nalle123}")
+    private String keyDirectoryPassword;
+
+    // Keeps the authentication in an encrypted cookie instead of the HTTP session
+    @Value("${saml.session.stateless:false}")
+    private boolean statelessSession;
+
+    // Base64 AES key of the session cookie, shared by all the nodes
+    @Value("${saml.session.cookie.key:}")
+    private String sessionCookieKey;
+
+    // Attributes kept in the session cookie, which browsers limit to 4 KB
+    @Value("${saml.session.cookie.attributes:EmailAddress,FirstName,LastName}")
+    private String[] sessionCookieAttributes;
+
+    // Single Logout over SOAP with the IdPs publishing a SOAP endpoint, which
+    // the SP metadata then advertises on /saml/SingleLogout/soap
+    @Value("${saml.logout.backchannel:false}")
+    private boolean backChannelLogout;
+
+    // Where outstanding AuthnRequests are kept until answered: cookie, memory or session
+    @Value("${saml.requests.storage:cookie}")
+    private String requestStorage;
+
+    // Base64 HMAC key of the request cookies, shared by all the nodes; required
+    // with the cookie storage
+    @Value("${saml.requests.cookie.key:}")
+    private String requestCookieKey;
+
+    // Base64 HMAC key of the cookie remembering the IdP of the last login
+    @Value("${saml.discovery.cookie.key:}")
+    private String discoveryCookieKey;
+
+    // Metadata of the IdP, an http(s) URL or a local file such as the one
+    // written by the mock IdP of the benchmarks module
+    @Value("${saml.idp.metadata:https://idp.ssocircle.com/idp-meta.xml}")
+    private String idpMetadata;
+
+    // File recording the SAML messages processed, for the replay tool of the
+    // benchmarks module; no capture when empty
+    @Value("${saml.capture.file:}")
+    private String captureFile;
+
+    @Value("${saml.capture.max-messages:10000}")
+    private int captureMaxMessages;
+
+    // SAML events waiting to be logged, the others being dropped
+    @Value("${saml.logger.queue-size:8192}")
+    private int loggerQueueSize;
+
+    // Fraction of the SAML events logged, e.g. AuthNResponse:SUCCESS=0.1,*=1
+    @Value("${saml.logger.sample-rates:}")
+    private String loggerSampleRates;
+
+    // Characters of the messages written with the SAML events, only their size and hash when 0
+    @Value("${saml.logger.max-message-length:0}")
+    private int loggerMaxMessageLength;
+
+    // Last SAML messages kept in full
+    @Value("${saml.logger.recent-messages:100}")
+    private int loggerRecentMessages;
+
+    // Number of IdPs with their own latency histograms, the others are counted together
+    @Value("${saml.metrics.max-idps:256}")
+    private int metricsMaxIdPs;
+
+    // Sessions measured by an estimate of the session memory
+    @Value("${saml.session.memory.max-sessions:10000}")
+    private int memoryMaxSessions;
+
     @Bean
     public TemplateEngine thymeleafTemplateEngine() {
         return new TemplateEngine();
@@ -146,20 +274,78 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return new HttpClient(this.multiThreadedHttpConnectionManager);
     }
  
+    // Compact form of SAML authentications stored in the HTTP session or,
+    // with only the whitelisted attributes, in the session cookie; decoded
+    // authorities are the shared instances of the authority mapper, also in
+    // the HTTP sessions restored by Java serialization
+    @Bean
+    public SAMLAuthenticationCodec samlAuthenticationCodec() {
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+        codec.setAuthorityResolver(authorityMapper::intern);
+        if (statelessSession) {
+            codec.setAttributeNames(new HashSet<String>(Arrays.asList(sessionCookieAttributes)));
+        }
+        SAMLAuthenticationCodec.setSerializationCodec(codec);
+        return codec;
+    }
+ 
+    // Compiled attribute to authority rules, one type|attribute|value|authority[|issuer]
+    // per line, every user is granted ROLE_USER; static as the user details service
+    // using it is injected in this configuration
+    @Bean
+    public static AuthorityMapper authorityMapper(
+            @Value("${saml.authorities.rules:saml/authorities.txt}") String authorityRules) {
+        return new AuthorityMapper(new File(authorityRules), "ROLE_USER");
+    }
+ 
+    // Local accounts of the SAML users, cached for 5 minutes and refreshed in the
+    // background once 4 minutes old; the in-memory store stands in for a directory
+    // or a database
+    @Bean
+    public static CachingLocalAccountStore localAccountStore() {
+        return new CachingLocalAccountStore(new InMemoryLocalAccountStore(), 10000, 300, 240, TimeUnit.SECONDS);
+    }
+ 
     // SAML Authentication Provider responsible for validating of received SAML
-    // messages
+    // messages; the resulting authentication holds no OpenSAML objects
     @Bean
     public SAMLAuthenticationProvider samlAuthenticationProvider() {
-        SAMLAuthenticationProvider samlAuthenticationProvider = new SAMLAuthenticationProvider();
+        CompactSAMLAuthenticationProvider samlAuthenticationProvider =
+                new CompactSAMLAuthenticationProvider(samlAuthenticationCodec());
         samlAuthenticationProvider.setUserDetails(samlUserDetailsServiceImpl);
         samlAuthenticationProvider.setForcePrincipalAsString(false);
+        samlAuthenticationProvider.setMetrics(samlMetrics());
         return samlAuthenticationProvider;
     }
  
-    // Provider of default SAML Context
+    // Storage of the outstanding AuthnRequests, by default in signed cookies
+    // so that starting a login allocates no HTTP session; without a key the
+    // application does not start, as a key of its own would make every node
+    // reject the requests issued by the others
+    @Bean
+    public SAMLMessageStorageFactory samlMessageStorageFactory() {
+        switch (requestStorage) {
+            case "session":
+                return new HttpSessionStorageFactory();
+            case "memory":
+                return new InMemoryMessageStorageFactory(10000, 900);
+            default:
+                if (!StringUtils.hasText(requestCookieKey)) {
+                    throw new IllegalStateException("saml.requests.cookie.key must be set to a Base64 key shared by "
+                            + "all the nodes, e.g. generated with 'openssl rand -base64 32', or "
+                            + "saml.requests.storage to memory or session for a single node");
+                }
+                return new CookieMessageStorageFactory(requestCookieKey);
+        }
+    }
+ 
+    // Provider of default SAML Context, resolving tenant SPs from the registry
     @Bean
     public SAMLContextProviderImpl contextProvider() {
-        return new SAMLContextProviderImpl();
+        TenantSAMLContextProvider contextProvider = new TenantSAMLContextProvider();
+        contextProvider.setStorageFactory(samlMessageStorageFactory());
+        contextProvider.setMetrics(samlMetrics());
+        return contextProvider;
     }
  
     // Initialization of OpenSAML library
@@ -168,28 +354,47 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return new SAMLBootstrap();
     }
  
-    // Logger for SAML messages and events
+    // Latency histograms of the SAML processing stages, by binding and IdP,
+    // served on /admin/metrics/saml
+    @Bean
+    public SAMLMetrics samlMetrics() {
+        return new SAMLMetrics(metricsMaxIdPs);
+    }
+ 
+    // Logger for SAML messages and events, writing sampled JSON lines to the
+    // saml.events logger off the request thread; the last messages are kept
+    // in full and served on /admin/saml/messages
+    @Bean
+    public SAMLEventLogger samlLogger() {
+        return new SAMLEventLogger(loggerQueueSize, SampleRates.parse(loggerSampleRates),
+                loggerMaxMessageLength, loggerRecentMessages);
+    }
+ 
+    // Identifiers of the consumed responses and assertions, kept for the
+    // maximum assertion age plus the allowed clock skew (3000 + 60 seconds)
     @Bean
-    public SAMLDefaultLogger samlLogger() {
-        return new SAMLDefaultLogger();
+    public ReplayCache replayCache() {
+        return new InMemoryReplayCache(3060);
     }
  
-    // SAML 2.0 WebSSO Assertion Consumer
+    // SAML 2.0 WebSSO Assertion Consumer, rejecting replayed responses
     @Bean
     public WebSSOProfileConsumer webSSOprofileConsumer() {
-        return new WebSSOProfileConsumerImpl();
+        return new InstrumentedWebSSOProfileConsumer(replayCache(), samlMetrics());
     }
  
-    // SAML 2.0 Holder-of-Key WebSSO Assertion Consumer
+    // SAML 2.0 Holder-of-Key WebSSO Assertion Consumer, rejecting replayed
+    // responses in the same cache
     @Bean
     public WebSSOProfileConsumerHoKImpl hokWebSSOprofileConsumer() {
-        return new WebSSOProfileConsumerHoKImpl();
+        return new ReplayCheckingHoKWebSSOProfileConsumer(replayCache());
     }
  
-    // SAML 2.0 Web SSO profile
+    // SAML 2.0 Web SSO profile, storing the AuthnRequest before the response
+    // is committed so that the request cookie reaches the browser
     @Bean
     public WebSSOProfile webSSOprofile() {
-        return new WebSSOProfileImpl();
+        return new StoreFirstWebSSOProfile();
     }
  
     // SAML 2.0 Holder-of-Key Web SSO profile
@@ -204,12 +409,30 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return new WebSSOProfileECPImpl();
     }
  
+    // Single logout profile invalidating the sessions named by the IdP
+    // on every node, not only the session of the requesting browser; after a
+    // back-channel LogoutRequest the browser goes to the logout success page
+    @Bean
+    public SingleLogoutProfile logoutprofile() throws MetadataProviderException {
+        RegistrySingleLogoutProfile logoutProfile = new RegistrySingleLogoutProfile(samlSessionRegistry());
+        if (backChannelLogout) {
+            logoutProfile.setBackChannelSender(backChannelLogoutSender());
+            logoutProfile.setLogoutSuccessHandler(successLogoutHandler());
+        }
+        return logoutProfile;
+    }
+
+    // Sends LogoutRequests over SOAP on 4 threads sharing the pooled HTTP
+    // connections; beyond 1000 pending requests the logging out user waits
     @Bean
-    public SingleLogoutProfile logoutprofile() {
-        return new SingleLogoutProfileImpl();
+    public BackChannelLogoutSender backChannelLogoutSender() throws MetadataProviderException {
+        return new BackChannelLogoutSender(httpClient(), processor(), 4, 1000);
     }
  
-    // Central storage of cryptographic keys
+    // Central storage of cryptographic keys: application keys come from the
+    // keystore, tenant keys from the key directory where they are decrypted on
+    // first use (at most 1000 of them are kept in memory, a key which fails to
+    // load is only tried again after a minute)
     @Bean
     public KeyManager keyManager() {
         DefaultResourceLoader loader = new DefaultResourceLoader();
@@ -219,7 +442,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         Map<String, String> passwords = new HashMap<String, String>();
         passwords.put("apollo", "nalle123");
         String defaultKey = "apollo";
-        return new JKSKeyManager(storeFile, storePass, passwords, defaultKey);
+        KeyManager applicationKeys = new JKSKeyManager(storeFile, storePass, passwords, defaultKey);
+        return new IndexedKeyManager(applicationKeys, new File(keyDirectory),
+                keyDirectoryPassword, null, 1000);
     }
  
     // Setup TLS Socket Factory
@@ -256,10 +481,10 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     }
  
     // Entry point to initialize authentication, default values taken from
-    // properties file
+    // properties file; discovery is skipped when the IdP can be guessed
     @Bean
-    public SAMLEntryPoint samlEntryPoint() {
-        SAMLEntryPoint samlEntryPoint = new SAMLEntryPoint();
+    public SAMLEntryPoint samlEntryPoint() throws MetadataProviderException {
+        SAMLEntryPoint samlEntryPoint = new RememberedIdPEntryPoint(idpHintResolver());
         samlEntryPoint.setDefaultProfileOptions(defaultWebSSOProfileOptions());
         return samlEntryPoint;
     }
@@ -274,10 +499,17 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     	return extendedMetadata;
     }
     
+    // IdP of the user from a login hint, the last login or the common domain cookie,
+    // counted on /admin/metrics/discovery
+    @Bean
+    public IdPHintResolver idpHintResolver() throws MetadataProviderException {
+        return new IdPHintResolver(discoveryCookieKey, metadata(), discoveryViewCache());
+    }
+
     // IDP Discovery Service
     @Bean
-    public SAMLDiscovery samlIDPDiscovery() {
-        SAMLDiscovery idpDiscovery = new SAMLDiscovery();
+    public SAMLDiscovery samlIDPDiscovery() throws MetadataProviderException {
+        SAMLDiscovery idpDiscovery = new RememberedIdPDiscovery(idpHintResolver());
         idpDiscovery.setIdpSelectionPath("/saml/idpSelection");
         return idpDiscovery;
     }
@@ -286,12 +518,17 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 	@Qualifier("idp-ssocircle")
 	public ExtendedMetadataDelegate ssoCircleExtendedMetadataProvider()
 			throws MetadataProviderException {
-		String idpSSOCircleMetadataURL = "https://idp.ssocircle.com/idp-meta.xml";
-		HTTPMetadataProvider httpMetadataProvider = new HTTPMetadataProvider(
-				this.backgroundTaskTimer, httpClient(), idpSSOCircleMetadataURL);
-		httpMetadataProvider.setParserPool(parserPool());
+		AbstractReloadingMetadataProvider metadataProvider;
+		if (idpMetadata.startsWith("http:") || idpMetadata.startsWith("https:")) {
+			metadataProvider = new HTTPMetadataProvider(
+					this.backgroundTaskTimer, httpClient(), idpMetadata);
+		} else {
+			metadataProvider = new FilesystemMetadataProvider(
+					this.backgroundTaskTimer, new File(idpMetadata));
+		}
+		metadataProvider.setParserPool(parserPool());
 		ExtendedMetadataDelegate extendedMetadataDelegate = 
-				new ExtendedMetadataDelegate(httpMetadataProvider, extendedMetadata());
+				new ExtendedMetadataDelegate(metadataProvider, extendedMetadata());
 		extendedMetadataDelegate.setMetadataTrustCheck(true);
 		extendedMetadataDelegate.setMetadataRequireSignature(false);
 		backgroundTaskTimer.purge();
@@ -306,38 +543,58 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     public CachingMetadataManager metadata() throws MetadataProviderException {
         List<MetadataProvider> providers = new ArrayList<MetadataProvider>();
         providers.add(ssoCircleExtendedMetadataProvider());
-        return new CachingMetadataManager(providers);
+        return new VersionedMetadataManager(providers);
+    }
+
+    // IdP selection page model, rebuilt once per metadata refresh
+    @Bean
+    public DiscoveryViewCache discoveryViewCache() throws MetadataProviderException {
+        return new DiscoveryViewCache(metadata());
     }
  
     // Filter automatically generates default SP metadata
     @Bean
     public MetadataGenerator metadataGenerator() {
-        MetadataGenerator metadataGenerator = new MetadataGenerator();
+        MetadataGenerator metadataGenerator = new BackChannelMetadataGenerator();
         metadataGenerator.setEntityId("com:example:spring:sp");
+        if (backChannelLogout) {
+            metadataGenerator.setBindingsSLO(Arrays.asList("post", "redirect", "soap"));
+        }
         metadataGenerator.setExtendedMetadata(extendedMetadata());
         metadataGenerator.setIncludeDiscoveryExtension(false);
         metadataGenerator.setKeyManager(keyManager()); 
         return metadataGenerator;
     }
  
+    // Tenant SPs, generated on first use from the default generator settings.
+    // A tenant exists once its key is available in the key manager; at most
+    // 1000 tenant SPs are kept in memory at any time
+    @Bean
+    public HostedSPRegistry hostedSPRegistry() {
+        return new HostedSPRegistry(metadataGenerator(), keyManager(),
+                new KeyManagerTenantDirectory(keyManager()), 1000);
+    }
+ 
     // The filter is waiting for connections on URL suffixed with filterSuffix
-    // and presents SP metadata there
+    // and presents SP metadata there, serialized once and served with an ETag
     @Bean
     public MetadataDisplayFilter metadataDisplayFilter() {
-        return new MetadataDisplayFilter();
+        return new CachingMetadataDisplayFilter();
     }
      
-    // Handler deciding where to redirect user after successful login
+    // Handler deciding where to redirect user after successful login, and
+    // remembering the IdP for the next one
     @Bean
-    public SavedRequestAwareAuthenticationSuccessHandler successRedirectHandler() {
+    public SavedRequestAwareAuthenticationSuccessHandler successRedirectHandler() throws MetadataProviderException {
         SavedRequestAwareAuthenticationSuccessHandler successRedirectHandler =
-                new SavedRequestAwareAuthenticationSuccessHandler();
+                new RememberIdPSuccessHandler(idpHintResolver());
         successRedirectHandler.setDefaultTargetUrl("/landing");
         return successRedirectHandler;
     }
     
     @Bean
-    public HTTPArtifactBindingThymeleaf artifactBinding(ParserPool parserPool, TemplateEngine templateEngine) {
+    public HTTPArtifactBindingThymeleaf artifactBinding(ParserPool parserPool, TemplateEngine templateEngine)
+            throws MetadataProviderException {
         return new HTTPArtifactBindingThymeleaf(parserPool, templateEngine, artifactResolutionProfile());
     }
  
@@ -368,40 +625,37 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     
     // Processor
 	@Bean
-	public SAMLProcessorImpl processor() {
+	public SAMLProcessorImpl processor() throws MetadataProviderException {
 		Collection<SAMLBinding> bindings = new ArrayList<SAMLBinding>();
 		bindings.add(httpRedirectDeflateBinding());
 		bindings.add(httpPostBinding());
 		bindings.add(artifactBinding(parserPool(), thymeleafTemplateEngine()));
 		bindings.add(httpSOAP11Binding());
 		bindings.add(httpPAOS11Binding());
-		return new SAMLProcessorImpl(bindings);
+		if (!captureFile.isEmpty()) {
+			return new CapturingSAMLProcessor(bindings, samlMetrics(),
+					new CaptureWriter(new File(captureFile), captureMaxMessages));
+		}
+		return new InstrumentedSAMLProcessor(bindings, samlMetrics());
 	}
     
 	/**
 	 * Define the security filter chain in order to support SSO Auth by using SAML 2.0
 	 * 
-	 * @return Filter chain proxy
+	 * @return Filter dispatching SAML requests to their endpoint
 	 * @throws Exception
 	 */
     @Bean
-    public FilterChainProxy samlFilter() throws Exception {
-        List<SecurityFilterChain> chains = new ArrayList<SecurityFilterChain>();
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/login/**"),
-                samlEntryPoint()));
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/logout/**"),
-                samlLogoutFilter()));
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/metadata/**"),
-                metadataDisplayFilter()));
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/SSO/**"),
-                samlWebSSOProcessingFilter()));
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/SSOHoK/**"),
-                samlWebSSOHoKProcessingFilter()));
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/SingleLogout/**"),
-                samlLogoutProcessingFilter()));
-        chains.add(new DefaultSecurityFilterChain(new AntPathRequestMatcher("/saml/discovery/**"),
-                samlIDPDiscovery()));
-        return new FilterChainProxy(chains);
+    public SAMLDispatchFilter samlFilter() throws Exception {
+        Map<String, Filter> endpoints = new LinkedHashMap<String, Filter>();
+        endpoints.put("login", samlEntryPoint());
+        endpoints.put("logout", samlLogoutFilter());
+        endpoints.put("metadata", metadataDisplayFilter());
+        endpoints.put("SSO", samlWebSSOProcessingFilter());
+        endpoints.put("SSOHoK", samlWebSSOHoKProcessingFilter());
+        endpoints.put("SingleLogout", soapLogoutProcessingFilter());
+        endpoints.put("discovery", samlIDPDiscovery());
+        return new SAMLDispatchFilter("/saml", endpoints);
     }
      
     /**
@@ -431,6 +685,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         http
         	.csrf()
         		.disable();
+        http
+            .securityContext()
+                .securityContextRepository(securityContextRepository());
         http
             .addFilterBefore(metadataGeneratorFilter(), ChannelProcessingFilter.class)
             .addFilterAfter(samlFilter(), BasicAuthenticationFilter.class);
@@ -439,10 +696,14 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
             .antMatchers("/").permitAll()
             .antMatchers("/error").permitAll()
             .antMatchers("/saml/**").permitAll()
+            .antMatchers("/admin/**").hasRole("ADMIN")
             .anyRequest().authenticated();
         http
             .logout()
                 .logoutSuccessUrl("/");
+        for (LogoutHandler handler : logoutHandlers()) {
+            http.logout().addLogoutHandler(handler);
+        }
     }
  
     /**
@@ -473,6 +734,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         samlWebSSOHoKProcessingFilter.setAuthenticationSuccessHandler(successRedirectHandler());
         samlWebSSOHoKProcessingFilter.setAuthenticationManager(authenticationManager());
         samlWebSSOHoKProcessingFilter.setAuthenticationFailureHandler(authenticationFailureHandler());
+        samlWebSSOHoKProcessingFilter.setSessionAuthenticationStrategy(sessionAuthenticationStrategy());
         return samlWebSSOHoKProcessingFilter;
     }
 
@@ -483,12 +745,15 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         samlWebSSOProcessingFilter.setAuthenticationManager(authenticationManager());
         samlWebSSOProcessingFilter.setAuthenticationSuccessHandler(successRedirectHandler());
         samlWebSSOProcessingFilter.setAuthenticationFailureHandler(authenticationFailureHandler());
+        samlWebSSOProcessingFilter.setSessionAuthenticationStrategy(sessionAuthenticationStrategy());
         return samlWebSSOProcessingFilter;
     }
 
+    // Generates the hosted SP metadata on the first request; afterwards
+    // requests go through without looking at the metadata manager
     @Bean
     public MetadataGeneratorFilter metadataGeneratorFilter() {
-        return new MetadataGeneratorFilter(metadataGenerator());
+        return new OneShotMetadataGeneratorFilter(metadataGenerator());
     }
 
     // Handler for successful logout
@@ -499,6 +764,54 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         return successLogoutHandler;
     }
 
+    // Sessions logged out while their state lives on the client, checked
+    // for 30 minutes, the lifetime of an unused session cookie
+    @Bean
+    public RevokedSAMLSessions revokedSAMLSessions() {
+        return new RevokedSAMLSessions(1800);
+    }
+
+    // Delivers logouts to the other nodes; this in-process bus only reaches
+    // the local node, clusters replace it with a message broker
+    @Bean
+    public SessionInvalidationBus sessionInvalidationBus() {
+        return new LocalSessionInvalidationBus();
+    }
+
+    // Index of the SAML sessions of this node by IdP, NameID and SessionIndex,
+    // also registered as a listener of destroyed HTTP sessions
+    @Bean
+    public SAMLSessionRegistry samlSessionRegistry() {
+        return new SAMLSessionRegistry(sessionInvalidationBus(), revokedSAMLSessions());
+    }
+
+    // Applied to new SAML authentications: registers their session or, when
+    // stateless, rejects those too large for the session cookie
+    @Bean
+    public SessionAuthenticationStrategy sessionAuthenticationStrategy() {
+        if (statelessSession) {
+            return (CookieSecurityContextRepository) securityContextRepository();
+        }
+        return samlSessionRegistry();
+    }
+
+    // Estimates of the heap retained by the registered sessions, by component
+    // and IdP, served on /admin/sessions/memory
+    @Bean
+    public SessionMemoryEstimator sessionMemoryEstimator() {
+        return new SessionMemoryEstimator(samlSessionRegistry(), memoryMaxSessions);
+    }
+
+    // Storage of the security context between requests
+    @Bean
+    public SecurityContextRepository securityContextRepository() {
+        if (statelessSession) {
+            return new CookieSecurityContextRepository(samlAuthenticationCodec(), sessionCookieKey,
+                    revokedSAMLSessions());
+        }
+        return new HttpSessionSecurityContextRepository();
+    }
+
     // Logout handler terminating local session
     @Bean
     public SecurityContextLogoutHandler logoutHandler() {
@@ -515,7 +828,14 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Bean
     public SAMLLogoutProcessingFilter samlLogoutProcessingFilter() {
         return new SAMLLogoutProcessingFilter(successLogoutHandler(),
-                logoutHandler());
+                logoutHandlers());
+    }
+
+    // Back-channel logout endpoint on /saml/SingleLogout/soap, passing the
+    // other logout messages to the front-channel filter
+    @Bean
+    public SOAPLogoutProcessingFilter soapLogoutProcessingFilter() {
+        return new SOAPLogoutProcessingFilter(samlLogoutProcessingFilter());
     }
 
     // Overrides default logout processing filter with the one processing SAML
@@ -523,15 +843,27 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
     @Bean
     public SAMLLogoutFilter samlLogoutFilter() {
         return new SAMLLogoutFilter(successLogoutHandler(),
-                new LogoutHandler[] { logoutHandler() },
-                new LogoutHandler[] { logoutHandler() });
+                logoutHandlers(),
+                logoutHandlers());
+    }
+
+    // Handlers run on logout, including the removal of the session cookie
+    // in stateless mode
+    private LogoutHandler[] logoutHandlers() {
+        SecurityContextRepository repository = securityContextRepository();
+        if (repository instanceof LogoutHandler) {
+            return new LogoutHandler[] { logoutHandler(), (LogoutHandler) repository };
+        }
+        return new LogoutHandler[] { logoutHandler() };
     }
 
     // Bindings
-    private ArtifactResolutionProfile artifactResolutionProfile() {
+    private ArtifactResolutionProfile artifactResolutionProfile() throws MetadataProviderException {
         final ArtifactResolutionProfileImpl artifactResolutionProfile =
                 new ArtifactResolutionProfileImpl(httpClient());
         artifactResolutionProfile.setProcessor(new SAMLProcessorImpl(soapBinding()));
+        // Not a bean, so the IdP metadata used to locate the resolution service is set here
+        artifactResolutionProfile.setMetadata(metadata());
         return artifactResolutionProfile;
     }
 
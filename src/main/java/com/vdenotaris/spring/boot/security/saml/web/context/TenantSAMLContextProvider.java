@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.context;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.saml2.encryption.EncryptedElementTypeEncryptedKeyResolver;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.encryption.ChainingEncryptedKeyResolver;
+import org.opensaml.xml.encryption.InlineEncryptedKeyResolver;
+import org.opensaml.xml.encryption.SimpleRetrievalMethodEncryptedKeyResolver;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.StaticKeyInfoCredentialResolver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.saml.context.SAMLContextProviderImpl;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.util.Assert;
+
+import com.vdenotaris.spring.boot.security.saml.web.metadata.HostedSPRegistry;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.HostedSPRegistry.HostedSP;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.InstrumentedDecrypter;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLMetrics;
+import com.vdenotaris.spring.boot.security.saml.web.storage.CookieMessageStorageFactory;
+
+/**
+ * Context provider resolving the local entity of tenant requests from the
+ * {@link HostedSPRegistry} instead of the metadata manager. Requests which
+ * don't target a tenant, or whose alias belongs to statically configured
+ * metadata, are handled by the default implementation.
+ * <p>
+ * A {@link CookieMessageStorageFactory} is given the HTTP response, which it
+ * needs to store outstanding requests. When {@link SAMLMetrics} are set, the
+ * decryption of messages is timed.
+ */
+public class TenantSAMLContextProvider extends SAMLContextProviderImpl {
+
+    public static final String HOSTED_SP_ATTRIBUTE = "hostedSP";
+
+    // Same resolvers as the default implementation, whose chain is private
+    private static final ChainingEncryptedKeyResolver ENCRYPTED_KEY_RESOLVER = new ChainingEncryptedKeyResolver();
+
+    static {
+        ENCRYPTED_KEY_RESOLVER.getResolverChain().add(new InlineEncryptedKeyResolver());
+        ENCRYPTED_KEY_RESOLVER.getResolverChain().add(new EncryptedElementTypeEncryptedKeyResolver());
+        ENCRYPTED_KEY_RESOLVER.getResolverChain().add(new SimpleRetrievalMethodEncryptedKeyResolver());
+    }
+
+    private HostedSPRegistry hostedSPRegistry;
+
+    private SAMLMetrics metrics;
+
+    @Override
+    protected void populateGenericContext(HttpServletRequest request, HttpServletResponse response,
+            SAMLMessageContext context) throws MetadataProviderException {
+        super.populateGenericContext(request, response, context);
+        if (storageFactory instanceof CookieMessageStorageFactory) {
+            context.setMessageStorage(((CookieMessageStorageFactory) storageFactory)
+                    .getMessageStorage(request, response));
+        }
+    }
+
+    @Override
+    protected void populateLocalEntityId(SAMLMessageContext context, String requestURI)
+            throws MetadataProviderException {
+        HttpServletRequest request = getRequest(context);
+        String tenant = hostedSPRegistry.resolveTenant(request);
+        if (tenant == null || metadata.getEntityIdForAlias(tenant) != null) {
+            super.populateLocalEntityId(context, requestURI);
+            return;
+        }
+        HostedSP hostedSP = hostedSPRegistry.getHostedSP(tenant, request);
+        logger.debug("Using SP {} hosted for tenant {}", hostedSP.getEntityId(), tenant);
+        request.setAttribute(HOSTED_SP_ATTRIBUTE, hostedSP);
+        context.setLocalEntityId(hostedSP.getEntityId());
+        context.setLocalEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+    }
+
+    @Override
+    protected void populateLocalEntity(SAMLMessageContext context) throws MetadataProviderException {
+        HostedSP hostedSP = (HostedSP) getRequest(context).getAttribute(HOSTED_SP_ATTRIBUTE);
+        if (hostedSP == null || !hostedSP.getEntityId().equals(context.getLocalEntityId())) {
+            super.populateLocalEntity(context);
+            return;
+        }
+        ExtendedMetadata extendedMetadata = hostedSP.getExtendedMetadata();
+        context.setLocalEntityMetadata(hostedSP.getEntityDescriptor());
+        context.setLocalEntityRoleMetadata(hostedSP.getRoleDescriptor());
+        context.setLocalExtendedMetadata(extendedMetadata);
+        if (extendedMetadata.getSigningKey() != null) {
+            context.setLocalSigningCredential(keyManager.getCredential(extendedMetadata.getSigningKey()));
+        } else {
+            context.setLocalSigningCredential(keyManager.getDefaultCredential());
+        }
+    }
+
+    @Override
+    protected void populateDecrypter(SAMLMessageContext context) {
+        if (metrics == null) {
+            super.populateDecrypter(context);
+            return;
+        }
+        String encryptionKey = context.getLocalExtendedMetadata().getEncryptionKey();
+        Credential credential = encryptionKey != null
+                ? keyManager.getCredential(encryptionKey) : keyManager.getDefaultCredential();
+        InstrumentedDecrypter decrypter = new InstrumentedDecrypter(
+                new StaticKeyInfoCredentialResolver(credential), ENCRYPTED_KEY_RESOLVER, context, metrics);
+        decrypter.setRootInNewDocument(true);
+        context.setLocalDecrypter(decrypter);
+    }
+
+    @Autowired
+    public void setHostedSPRegistry(HostedSPRegistry hostedSPRegistry) {
+        this.hostedSPRegistry = hostedSPRegistry;
+    }
+
+    public void setMetrics(SAMLMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws ServletException {
+        super.afterPropertiesSet();
+        Assert.notNull(hostedSPRegistry, "Hosted SP registry must be set");
+    }
+
+    private HttpServletRequest getRequest(SAMLMessageContext context) {
+        return ((HttpServletRequestAdapter) context.getInboundMessageTransport()).getWrappedRequest();
+    }
+
+}
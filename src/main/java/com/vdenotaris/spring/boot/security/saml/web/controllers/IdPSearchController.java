@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.controllers;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.vdenotaris.spring.boot.security.saml.web.discovery.DiscoveryViewCache;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.IdPSearchIndex;
+
+/**
+ * Type-ahead search of the IdPs offered on the selection page.
+ */
+@Controller
+@RequestMapping("/saml")
+public class IdPSearchController {
+
+	public static final int MAX_LIMIT = 100;
+
+	@Autowired
+	private DiscoveryViewCache discoveryViewCache;
+
+	/*
+	 * Answered from the search index of the current metadata snapshot, e.g.
+	 * GET /saml/idpSearch?q=univ&offset=0&limit=20
+	 */
+	@RequestMapping(value = "/idpSearch", method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public IdPSearchIndex.Page idpSearch(@RequestParam(value = "q", defaultValue = "") String query,
+			@RequestParam(value = "offset", defaultValue = "0") int offset,
+			@RequestParam(value = "limit", defaultValue = "20") int limit) {
+		return discoveryViewCache.getView().getSearchIndex()
+				.search(query, offset, Math.min(Math.max(limit, 1), MAX_LIMIT));
+	}
+
+}
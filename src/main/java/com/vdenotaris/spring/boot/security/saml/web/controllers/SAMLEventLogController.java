@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.controllers;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.vdenotaris.spring.boot.security.saml.web.log.SAMLEventLogger;
+
+/**
+ * Dump of the last SAML messages kept by the event logger, for the
+ * administrators.
+ */
+@Controller
+@RequestMapping("/admin/saml")
+public class SAMLEventLogController {
+
+	@Autowired
+	private SAMLEventLogger samlLogger;
+
+	/*
+	 * The last messages in full, decoded to XML, the most recent first, e.g.
+	 * GET /admin/saml/messages?limit=10
+	 */
+	@RequestMapping(value = "/messages", method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public List<SAMLEventLogger.RecentMessage> recentMessages(
+			@RequestParam(value = "limit", defaultValue = "100") int limit) {
+		List<SAMLEventLogger.RecentMessage> messages = samlLogger.getRecentMessages();
+		return messages.subList(0, Math.min(Math.max(limit, 0), messages.size()));
+	}
+
+}
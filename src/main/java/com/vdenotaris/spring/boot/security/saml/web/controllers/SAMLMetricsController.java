@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.controllers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.vdenotaris.spring.boot.security.saml.web.discovery.IdPHintResolver;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLMetrics;
+
+/**
+ * Latencies of the SAML processing stages and discovery counters, for the
+ * administrators.
+ */
+@Controller
+@RequestMapping("/admin/metrics")
+public class SAMLMetricsController {
+
+	@Autowired
+	private SAMLMetrics samlMetrics;
+
+	@Autowired
+	private IdPHintResolver idpHintResolver;
+
+	/*
+	 * Count, mean, percentiles and maximum in milliseconds of every stage by
+	 * binding and IdP, optionally of a single IdP, e.g.
+	 * GET /admin/metrics/saml?idp=http://idp.ssocircle.com
+	 */
+	@RequestMapping(value = "/saml", method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public List<SAMLMetrics.StageLatency> latencies(@RequestParam(value = "idp", required = false) String idp) {
+		return samlMetrics.getLatencies(idp);
+	}
+
+	/*
+	 * Number of logins which skipped discovery, by source of their IdP, and of
+	 * logins which went through it, e.g. GET /admin/metrics/discovery
+	 */
+	@RequestMapping(value = "/discovery", method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public Map<String, Object> discovery() {
+		Map<String, Object> counts = new LinkedHashMap<String, Object>();
+		counts.put("resolved", idpHintResolver.getResolvedCounts());
+		counts.put("unresolved", idpHintResolver.getUnresolvedCount());
+		return counts;
+	}
+
+}
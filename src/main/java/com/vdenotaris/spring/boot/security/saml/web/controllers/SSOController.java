@@ -16,20 +16,24 @@
 
 package com.vdenotaris.spring.boot.security.saml.web.controllers;
 
-import java.util.Set;
-
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.security.saml.SAMLDiscovery;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.context.request.WebRequest;
+
+import com.vdenotaris.spring.boot.security.saml.web.discovery.DiscoveryView;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.DiscoveryViewCache;
 
 @Controller
 @RequestMapping("/saml")
@@ -40,19 +44,49 @@ public class SSOController {
 			.getLogger(SSOController.class);
 
 	@Autowired
-	private MetadataManager metadata;
+	private DiscoveryViewCache discoveryViewCache;
+
+	@Value("${saml.discovery.search.threshold:200}")
+	private int searchThreshold;
 
+	/*
+	 * The IdP list is rendered once per metadata snapshot; the page is
+	 * revalidated with an ETag covering the list and the return URL. Beyond
+	 * the search threshold only a search box is sent, backed by /saml/idpSearch.
+	 */
 	@RequestMapping(value = "/idpSelection", method = RequestMethod.GET)
-	public String idpSelection(HttpServletRequest request, Model model) {
+	public String idpSelection(HttpServletRequest request, HttpServletResponse response,
+			WebRequest webRequest, Model model) {
 		if (!(SecurityContextHolder.getContext().getAuthentication() instanceof AnonymousAuthenticationToken)) {
 			LOG.warn("The current user is already logged.");
 			return "redirect:/landing";
 		} else {
 			if (isForwarded(request)) {
-				Set<String> idps = metadata.getIDPEntityNames();
-				for (String idp : idps)
-					LOG.info("Configured Identity Provider for SSO: " + idp);
-				model.addAttribute("idps", idps);
+				DiscoveryView view = discoveryViewCache.getView();
+				String returnURL = (String) request.getAttribute(SAMLDiscovery.RETURN_URL);
+				String returnParam = (String) request.getAttribute(SAMLDiscovery.RETURN_PARAM);
+				if (returnParam == null) {
+					returnParam = SAMLDiscovery.ENTITY_ID_PARAM;
+				}
+				response.setHeader("Cache-Control", "private, no-cache");
+				if (view.size() > searchThreshold) {
+					String etag = "\"" + view.getDigest() + "-search-"
+							+ Integer.toHexString((returnURL + "\0" + returnParam).hashCode()) + "\"";
+					if (webRequest.checkNotModified(etag)) {
+						return null;
+					}
+					model.addAttribute("idpSearch", true);
+					model.addAttribute("idpCount", view.size());
+				} else {
+					DiscoveryView.Fragment fragment = view.getFragment(returnParam);
+					String etag = "\"" + fragment.getEtag() + "-"
+							+ Integer.toHexString(String.valueOf(returnURL).hashCode()) + "\"";
+					if (webRequest.checkNotModified(etag)) {
+						return null;
+					}
+					model.addAttribute("idps", view.getEntries());
+					model.addAttribute("idpList", fragment.getHtml());
+				}
 				return "saml/idpselection";
 			} else {
 				LOG.warn("Direct accesses to '/idpSelection' route are not allowed");
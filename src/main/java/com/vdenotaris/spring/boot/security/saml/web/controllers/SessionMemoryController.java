@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.controllers;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionMemoryEstimator;
+
+/**
+ * Heap retained by the SAML sessions of this node, for the administrators.
+ */
+@Controller
+@RequestMapping("/admin/sessions")
+public class SessionMemoryController {
+
+	@Autowired
+	private SessionMemoryEstimator sessionMemoryEstimator;
+
+	/*
+	 * Percentiles of the bytes retained by session and component, totals by
+	 * IdP and the heaviest sessions, optionally of a single IdP, e.g.
+	 * GET /admin/sessions/memory?idp=http://idp.ssocircle.com&top=20
+	 */
+	@RequestMapping(value = "/memory", method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	@ResponseBody
+	public SessionMemoryEstimator.Estimate memory(@RequestParam(value = "idp", required = false) String idp,
+			@RequestParam(value = "top", defaultValue = "10") int top) {
+		return sessionMemoryEstimator.estimate(idp, Math.max(top, 0));
+	}
+
+}
@@ -16,11 +16,17 @@
 
 package com.vdenotaris.spring.boot.security.saml.web.core;
 
-import java.security.Principal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.MethodParameter;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.User;
+import org.springframework.security.saml.SAMLCredential;
 import org.springframework.stereotype.Component;
 import org.springframework.web.bind.support.WebArgumentResolver;
 import org.springframework.web.bind.support.WebDataBinderFactory;
@@ -28,25 +34,122 @@ import org.springframework.web.context.request.NativeWebRequest;
 import org.springframework.web.method.support.HandlerMethodArgumentResolver;
 import org.springframework.web.method.support.ModelAndViewContainer;
 
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLAuthenticationToken;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLUser;
 import com.vdenotaris.spring.boot.security.saml.web.stereotypes.CurrentUser;
 
+/**
+ * Resolves {@link CurrentUser} parameters of type {@link User} (or a subclass
+ * such as {@link SAMLUser}) to the authenticated principal, of type
+ * {@link SAMLAttributes} to its attribute index, and of any type having a
+ * {@link PrincipalProjection} bean to that projection.
+ * <p>
+ * How a parameter is resolved is decided once per method parameter, and
+ * projections are built once per authentication and cached on the token.
+ */
 @Component
 public class CurrentUserHandlerMethodArgumentResolver implements
 		HandlerMethodArgumentResolver {
 
+	private final Map<Class<?>, PrincipalProjection<?>> projections = new HashMap<Class<?>, PrincipalProjection<?>>();
+
+	private final ConcurrentMap<MethodParameter, Resolution> resolutions =
+			new ConcurrentHashMap<MethodParameter, Resolution>();
+
+	@Autowired(required = false)
+	public void setProjections(List<PrincipalProjection<?>> projections) {
+		for (PrincipalProjection<?> projection : projections) {
+			this.projections.put(projection.getType(), projection);
+		}
+		resolutions.clear();
+	}
+
 	public boolean supportsParameter(MethodParameter methodParameter) {
-		return methodParameter.getParameterAnnotation(CurrentUser.class) != null
-				&& methodParameter.getParameterType().equals(User.class);
+		return getResolution(methodParameter) != Resolution.UNSUPPORTED;
 	}
 
 	public Object resolveArgument(MethodParameter methodParameter,
 			ModelAndViewContainer mavContainer, NativeWebRequest webRequest,
 			WebDataBinderFactory binderFactory) throws Exception {
-		if (this.supportsParameter(methodParameter)) {
-			Principal principal = (Principal) webRequest.getUserPrincipal();
-			return (User) ((Authentication) principal).getPrincipal();
-		} else {
+		Resolution resolution = getResolution(methodParameter);
+		if (resolution == Resolution.UNSUPPORTED) {
 			return WebArgumentResolver.UNRESOLVED;
 		}
+		Authentication authentication = (Authentication) webRequest.getUserPrincipal();
+		return authentication != null ? resolution.resolve(authentication) : null;
+	}
+
+	private Resolution getResolution(MethodParameter methodParameter) {
+		Resolution resolution = resolutions.get(methodParameter);
+		if (resolution == null) {
+			resolution = createResolution(methodParameter);
+			resolutions.putIfAbsent(methodParameter, resolution);
+		}
+		return resolution;
+	}
+
+	private Resolution createResolution(MethodParameter methodParameter) {
+		if (methodParameter.getParameterAnnotation(CurrentUser.class) == null) {
+			return Resolution.UNSUPPORTED;
+		}
+		Class<?> type = methodParameter.getParameterType();
+		if (User.class.isAssignableFrom(type)) {
+			return Resolution.PRINCIPAL;
+		}
+		if (type.equals(SAMLAttributes.class)) {
+			return Resolution.ATTRIBUTES;
+		}
+		PrincipalProjection<?> projection = projections.get(type);
+		return projection != null ? new ProjectionResolution<>(projection) : Resolution.UNSUPPORTED;
+	}
+
+	/**
+	 * How the parameters of one method parameter are resolved.
+	 */
+	private abstract static class Resolution {
+
+		static final Resolution UNSUPPORTED = new Resolution() {
+			Object resolve(Authentication authentication) {
+				return null;
+			}
+		};
+
+		static final Resolution PRINCIPAL = new Resolution() {
+			Object resolve(Authentication authentication) {
+				return (User) authentication.getPrincipal();
+			}
+		};
+
+		static final Resolution ATTRIBUTES = new Resolution() {
+			Object resolve(Authentication authentication) {
+				if (authentication.getPrincipal() instanceof SAMLUser) {
+					return ((SAMLUser) authentication.getPrincipal()).getAttributes();
+				}
+				if (authentication.getCredentials() instanceof SAMLCredential) {
+					return SAMLAttributes.of((SAMLCredential) authentication.getCredentials());
+				}
+				return SAMLAttributes.empty();
+			}
+		};
+
+		abstract Object resolve(Authentication authentication);
+	}
+
+	private static final class ProjectionResolution<T> extends Resolution {
+
+		private final PrincipalProjection<T> projection;
+
+		ProjectionResolution(PrincipalProjection<T> projection) {
+			this.projection = projection;
+		}
+
+		Object resolve(Authentication authentication) {
+			if (authentication instanceof CompactSAMLAuthenticationToken) {
+				return ((CompactSAMLAuthenticationToken) authentication).getProjection(projection.getType(),
+						projection::project);
+			}
+			return projection.project(authentication);
+		}
 	}
-}
\ No newline at end of file
+}
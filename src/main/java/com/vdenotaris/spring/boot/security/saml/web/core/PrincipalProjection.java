@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.core;
+
+import org.springframework.security.core.Authentication;
+
+/**
+ * View of the authenticated user which controllers receive through
+ * {@link com.vdenotaris.spring.boot.security.saml.web.stereotypes.CurrentUser}
+ * parameters of type {@code T}.
+ * <p>
+ * Projections are registered as beans and built once per authentication.
+ *
+ * @param <T> projection type
+ */
+public interface PrincipalProjection<T> {
+
+	Class<T> getType();
+
+	/**
+	 * @return the view of the authentication, or null when it can't be built for it
+	 */
+	T project(Authentication authentication);
+
+}
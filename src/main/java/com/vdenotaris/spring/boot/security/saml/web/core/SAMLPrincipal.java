@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.core;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable summary of a SAML user: NameID, IdP, hosted SP (which identifies
+ * the tenant), roles and selected attributes.
+ */
+public final class SAMLPrincipal implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String nameID;
+
+	private final String issuer;
+
+	private final String localEntityId;
+
+	private final Set<String> roles;
+
+	private final Map<String, List<String>> attributes;
+
+	public SAMLPrincipal(String nameID, String issuer, String localEntityId, Set<String> roles,
+			Map<String, List<String>> attributes) {
+		this.nameID = nameID;
+		this.issuer = issuer;
+		this.localEntityId = localEntityId;
+		this.roles = Collections.unmodifiableSet(roles);
+		this.attributes = Collections.unmodifiableMap(attributes);
+	}
+
+	public String getNameID() {
+		return nameID;
+	}
+
+	/**
+	 * @return entity ID of the IdP which authenticated the user
+	 */
+	public String getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * @return entity ID of the hosted SP the user logged into, one per tenant
+	 */
+	public String getLocalEntityId() {
+		return localEntityId;
+	}
+
+	public Set<String> getRoles() {
+		return roles;
+	}
+
+	public boolean hasRole(String role) {
+		return roles.contains(role);
+	}
+
+	/**
+	 * @return values of a selected attribute, empty when the user has none or it wasn't selected
+	 */
+	public List<String> getAttribute(String name) {
+		List<String> values = attributes.get(name);
+		return values != null ? values : Collections.<String>emptyList();
+	}
+
+	public Map<String, List<String>> getAttributes() {
+		return attributes;
+	}
+
+	@Override
+	public String toString() {
+		return "SAMLPrincipal[" + nameID + " from " + issuer + " at " + localEntityId + ", " + roles + "]";
+	}
+
+}
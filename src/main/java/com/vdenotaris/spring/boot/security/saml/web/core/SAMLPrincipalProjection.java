@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.core;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.stereotype.Component;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLUser;
+
+/**
+ * Builds the {@link SAMLPrincipal} of SAML authentications.
+ */
+@Component
+public class SAMLPrincipalProjection implements PrincipalProjection<SAMLPrincipal> {
+
+	// Attributes copied into the principal
+	@Value("${saml.principal.attributes:mail,displayName}")
+	private String[] attributeNames;
+
+	public Class<SAMLPrincipal> getType() {
+		return SAMLPrincipal.class;
+	}
+
+	public SAMLPrincipal project(Authentication authentication) {
+		if (!(authentication.getCredentials() instanceof SAMLCredential)) {
+			return null;
+		}
+		SAMLCredential credential = (SAMLCredential) authentication.getCredentials();
+		Set<String> roles = new LinkedHashSet<String>();
+		for (GrantedAuthority authority : authentication.getAuthorities()) {
+			roles.add(authority.getAuthority());
+		}
+		SAMLAttributes attributes = authentication.getPrincipal() instanceof SAMLUser
+				? ((SAMLUser) authentication.getPrincipal()).getAttributes() : SAMLAttributes.of(credential);
+		Map<String, List<String>> selected = new LinkedHashMap<String, List<String>>();
+		for (String name : attributeNames) {
+			if (attributes.contains(name)) {
+				selected.put(name, attributes.getValues(name));
+			}
+		}
+		return new SAMLPrincipal(credential.getNameID().getValue(), credential.getRemoteEntityID(),
+				credential.getLocalEntityID(), roles, selected);
+	}
+
+	public void setAttributeNames(String... attributeNames) {
+		this.attributeNames = attributeNames;
+	}
+
+}
@@ -21,37 +21,92 @@ import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.authentication.DisabledException;
 import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.saml.SAMLCredential;
 import org.springframework.security.saml.userdetails.SAMLUserDetailsService;
 import org.springframework.stereotype.Service;
 
+import com.vdenotaris.spring.boot.security.saml.web.account.LocalAccount;
+import com.vdenotaris.spring.boot.security.saml.web.account.LocalAccountStore;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLUser;
+import com.vdenotaris.spring.boot.security.saml.web.authority.AuthorityMapper;
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLFlightRecorder;
+import com.vdenotaris.spring.boot.security.saml.web.jfr.UserDetailsEvent;
+
 @Service
 public class SAMLUserDetailsServiceImpl implements SAMLUserDetailsService {
 	
 	// Logger
 	private static final Logger LOG = LoggerFactory.getLogger(SAMLUserDetailsServiceImpl.class);
 	
+	@Autowired
+	private AuthorityMapper authorityMapper;
+	
+	@Autowired
+	private LocalAccountStore localAccountStore;
+	
 	public Object loadUserBySAML(SAMLCredential credential)
 			throws UsernameNotFoundException {
+		if (!SAMLFlightRecorder.AVAILABLE) {
+			return loadUser(credential);
+		}
+		UserDetailsEvent event = new UserDetailsEvent();
+		event.begin();
+		SAMLUser user = null;
+		RuntimeException failure = null;
+		try {
+			user = loadUser(credential);
+			return user;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			event.commit(credential.getRemoteEntityID(), user != null ? user.getAttributes().size() : 0,
+					user != null ? user.getAuthorities().size() : 0, failure);
+		}
+	}
+	
+	private SAMLUser loadUser(SAMLCredential credential) {
 		
 		// The method is supposed to identify local account of user referenced by
 		// data in the SAML assertion and return UserDetails object describing the user.
 		
 		String userID = credential.getNameID().getValue();
 		
+		// Attribute values are decoded once, mapping code and controllers
+		// read them from the index instead of the assertion.
+		SAMLAttributes attributes = SAMLAttributes.of(credential);
+		
 		LOG.info(userID + " is logged in");
-		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
-		GrantedAuthority authority = new SimpleGrantedAuthority("ROLE_USER");
-		authorities.add(authority);
+		
+		// Authorities come from the compiled rules and are shared between users
+		// holding the same roles.
+		List<GrantedAuthority> authorities =
+				authorityMapper.map(attributes, credential.getRemoteEntityID());
 
 		// In a real scenario, this implementation has to locate user in a arbitrary
 		// dataStore based on information present in the SAMLCredential and
 		// returns such a date in a form of application specific UserDetails object.
-		return new User(userID, "<abc123>", true, true, true, true, authorities);
+		// The store is cached, most logins don't reach the backend.
+		LocalAccount account = localAccountStore.findAccount(credential.getRemoteEntityID(), userID);
+		if (account == null) {
+			return new SAMLUser(userID, "<abc123>", authorities, attributes);
+		}
+		if (!account.isEnabled()) {
+			throw new DisabledException("Local account of " + userID + " is disabled");
+		}
+		if (!account.getAuthorities().isEmpty()) {
+			List<GrantedAuthority> merged = new ArrayList<GrantedAuthority>(authorities);
+			for (String authority : account.getAuthorities()) {
+				merged.add(authorityMapper.intern(authority));
+			}
+			authorities = merged;
+		}
+		return new SAMLUser(account.getUsername(), "<abc123>", authorities, attributes);
 	}
 	
 }
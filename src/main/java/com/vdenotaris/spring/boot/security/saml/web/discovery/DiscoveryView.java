@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.web.util.HtmlUtils;
+
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Immutable IdP selection model of one metadata snapshot: the IdPs sorted by
+ * display name, their search index, and their HTML rendering cached per
+ * discovery return parameter together with its ETag.
+ */
+public final class DiscoveryView {
+
+    private static final int MAX_FRAGMENTS = 16;
+
+    private final long version;
+
+    private final List<IdPEntry> entries;
+
+    private final Map<String, IdPEntry> entriesById;
+
+    private final String digest;
+
+    private final IdPSearchIndex searchIndex;
+
+    private final LruCache<String, Fragment> fragments = new LruCache<String, Fragment>(MAX_FRAGMENTS);
+
+    DiscoveryView(long version, List<IdPEntry> entries) {
+        this(version, entries, null);
+    }
+
+    /**
+     * @param previous view of the previous snapshot, whose search index is updated rather than rebuilt
+     */
+    DiscoveryView(long version, List<IdPEntry> entries, DiscoveryView previous) {
+        this.version = version;
+        this.entries = Collections.unmodifiableList(entries);
+        Map<String, IdPEntry> byId = new HashMap<String, IdPEntry>(entries.size() * 4 / 3 + 1);
+        MessageDigest digest = sha256();
+        for (IdPEntry entry : entries) {
+            byId.put(entry.getEntityId(), entry);
+            update(digest, entry.getEntityId());
+            update(digest, entry.getDisplayName());
+            update(digest, entry.getLogoUrl());
+        }
+        this.entriesById = byId;
+        this.digest = Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        this.searchIndex = IdPSearchIndex.build(this.entries, previous != null ? previous.searchIndex : null);
+    }
+
+    /**
+     * @return version of the metadata snapshot the view was built from
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the IdPs sorted by display name
+     */
+    public List<IdPEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the IdP, or null when it is not in the metadata
+     */
+    public IdPEntry getEntry(String entityId) {
+        return entriesById.get(entityId);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public IdPSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * @return digest of the entries, identical for identical snapshots
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns the radio buttons of the IdPs, rendered once per return parameter.
+     *
+     * @param returnParam name of the parameter carrying the chosen entity ID back to the SP
+     */
+    public Fragment getFragment(String returnParam) {
+        Fragment fragment = fragments.get(returnParam);
+        if (fragment == null) {
+            fragment = fragments.putIfAbsent(returnParam, new Fragment(render(returnParam), digest));
+        }
+        return fragment;
+    }
+
+    private String render(String returnParam) {
+        String name = HtmlUtils.htmlEscape(returnParam);
+        StringBuilder sb = new StringBuilder(entries.size() * 160);
+        for (int i = 0; i < entries.size(); i++) {
+            IdPEntry entry = entries.get(i);
+            sb.append("<div class=\"idp\"><input type=\"radio\" name=\"").append(name)
+                    .append("\" id=\"idp_").append(i)
+                    .append("\" value=\"").append(HtmlUtils.htmlEscape(entry.getEntityId())).append("\" />")
+                    .append("<label for=\"idp_").append(i).append("\">");
+            if (entry.getLogoUrl() != null) {
+                sb.append("<img src=\"").append(HtmlUtils.htmlEscape(entry.getLogoUrl()))
+                        .append("\" alt=\"\" height=\"16\" /> ");
+            }
+            sb.append(HtmlUtils.htmlEscape(entry.getDisplayName())).append("</label></div>\n");
+        }
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Pre-rendered list of IdPs.
+     */
+    public static final class Fragment {
+
+        private final String html;
+
+        private final String etag;
+
+        Fragment(String html, String digest) {
+            this.html = html;
+            this.etag = digest + "-" + Integer.toHexString(html.hashCode());
+        }
+
+        public String getHtml() {
+            return html;
+        }
+
+        /**
+         * @return unquoted entity tag of the fragment
+         */
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.Organization;
+import org.opensaml.saml2.metadata.OrganizationDisplayName;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.samlext.saml2mdui.DiscoHints;
+import org.opensaml.samlext.saml2mdui.DisplayName;
+import org.opensaml.samlext.saml2mdui.DomainHint;
+import org.opensaml.samlext.saml2mdui.Keywords;
+import org.opensaml.samlext.saml2mdui.Logo;
+import org.opensaml.samlext.saml2mdui.UIInfo;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+import com.vdenotaris.spring.boot.security.saml.web.metadata.VersionedMetadataManager;
+
+/**
+ * Builds the {@link DiscoveryView} of the IdPs once per metadata snapshot.
+ * <p>
+ * With a {@link VersionedMetadataManager} the view is rebuilt by the first
+ * request following a metadata refresh; other managers keep the view until
+ * {@link #invalidate()} is called. Display names and logos come from the
+ * {@code mdui:UIInfo} extension of the IdP role, in the configured language
+ * when available, and display names fall back to the organization. Keywords
+ * and {@code mdui:DiscoHints} domains are only used by the search index, which
+ * is carried over from the previous view for the IdPs that did not change.
+ */
+public class DiscoveryViewCache {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(DiscoveryViewCache.class);
+
+    private static final Comparator<IdPEntry> ORDER = Comparator
+            .comparing(IdPEntry::getDisplayName, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(IdPEntry::getEntityId);
+
+    private final MetadataManager metadata;
+
+    private final String language;
+
+    private final Object buildLock = new Object();
+
+    private final AtomicLong builds = new AtomicLong();
+
+    private volatile DiscoveryView view;
+
+    public DiscoveryViewCache(MetadataManager metadata) {
+        this(metadata, "en");
+    }
+
+    /**
+     * @param language preferred language of the display names and logos
+     */
+    public DiscoveryViewCache(MetadataManager metadata, String language) {
+        this.metadata = metadata;
+        this.language = language;
+    }
+
+    /**
+     * @return the view of the current metadata snapshot
+     */
+    public DiscoveryView getView() {
+        long version = getMetadataVersion();
+        DiscoveryView current = view;
+        if (current != null && current.getVersion() == version) {
+            return current;
+        }
+        synchronized (buildLock) {
+            current = view;
+            if (current == null || current.getVersion() != version) {
+                current = build(version, current);
+                view = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Drops the current view, rebuilt on next use.
+     */
+    public void invalidate() {
+        view = null;
+    }
+
+    protected DiscoveryView build(long version, DiscoveryView previous) {
+        Set<String> entityIds = metadata.getIDPEntityNames();
+        List<IdPEntry> entries = new ArrayList<IdPEntry>(entityIds.size());
+        for (String entityId : entityIds) {
+            entries.add(getEntry(entityId));
+        }
+        entries.sort(ORDER);
+        builds.incrementAndGet();
+        DiscoveryView built = new DiscoveryView(version, entries, previous);
+        LOG.info("Built IdP selection view of {} Identity Providers ({} unchanged)",
+                entries.size(), built.getSearchIndex().getReusedCount());
+        return built;
+    }
+
+    private IdPEntry getEntry(String entityId) {
+        EntityDescriptor descriptor;
+        try {
+            descriptor = metadata.getEntityDescriptor(entityId);
+        } catch (MetadataProviderException e) {
+            LOG.warn("Unable to load metadata of IdP " + entityId, e);
+            return new IdPEntry(entityId, null, null);
+        }
+        if (descriptor == null) {
+            return new IdPEntry(entityId, null, null);
+        }
+        IDPSSODescriptor idpDescriptor = descriptor.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+        UIInfo uiInfo = getExtension(idpDescriptor, UIInfo.DEFAULT_ELEMENT_NAME);
+        String displayName = null;
+        String logoUrl = null;
+        List<String> keywords = new ArrayList<String>();
+        if (uiInfo != null) {
+            displayName = getDisplayName(uiInfo.getDisplayNames());
+            logoUrl = getLogoUrl(uiInfo.getLogos());
+            for (Keywords words : uiInfo.getKeywords()) {
+                keywords.addAll(words.getKeywords());
+            }
+        }
+        if (displayName == null) {
+            displayName = getDisplayName(descriptor.getOrganization());
+        }
+        List<String> domainHints = new ArrayList<String>();
+        DiscoHints discoHints = getExtension(idpDescriptor, DiscoHints.DEFAULT_ELEMENT_NAME);
+        if (discoHints != null) {
+            for (DomainHint domainHint : discoHints.getDomainHints()) {
+                if (domainHint.getHint() != null) {
+                    domainHints.add(domainHint.getHint());
+                }
+            }
+        }
+        return new IdPEntry(entityId, displayName, logoUrl, keywords, domainHints);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T getExtension(IDPSSODescriptor idpDescriptor, QName name) {
+        if (idpDescriptor == null || idpDescriptor.getExtensions() == null) {
+            return null;
+        }
+        List<XMLObject> extensions = idpDescriptor.getExtensions().getUnknownXMLObjects(name);
+        return extensions.isEmpty() ? null : (T) extensions.get(0);
+    }
+
+    private String getDisplayName(List<DisplayName> displayNames) {
+        String result = null;
+        for (DisplayName displayName : displayNames) {
+            if (displayName.getName() == null) {
+                continue;
+            }
+            if (language.equals(displayName.getName().getLanguage())) {
+                return displayName.getName().getLocalString();
+            }
+            if (result == null) {
+                result = displayName.getName().getLocalString();
+            }
+        }
+        return result;
+    }
+
+    private String getDisplayName(Organization organization) {
+        if (organization == null) {
+            return null;
+        }
+        String result = null;
+        for (OrganizationDisplayName displayName : organization.getDisplayNames()) {
+            if (displayName.getName() == null) {
+                continue;
+            }
+            if (language.equals(displayName.getName().getLanguage())) {
+                return displayName.getName().getLocalString();
+            }
+            if (result == null) {
+                result = displayName.getName().getLocalString();
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Logo in the preferred language, else the first one without language, else the first one.
+     */
+    private String getLogoUrl(List<Logo> logos) {
+        Logo result = null;
+        for (Logo logo : logos) {
+            if (language.equals(logo.getXMLLang())) {
+                return logo.getURL();
+            }
+            if (result == null || (result.getXMLLang() != null && logo.getXMLLang() == null)) {
+                result = logo;
+            }
+        }
+        return result != null ? result.getURL() : null;
+    }
+
+    private long getMetadataVersion() {
+        return metadata instanceof VersionedMetadataManager ? ((VersionedMetadataManager) metadata).getVersion() : 0;
+    }
+
+    /**
+     * @return number of views built so far
+     */
+    public long getBuildCount() {
+        return builds.get();
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Identity provider as presented to the user choosing where to log in.
+ */
+public final class IdPEntry {
+
+    private final String entityId;
+
+    private final String displayName;
+
+    private final String logoUrl;
+
+    private final List<String> keywords;
+
+    private final List<String> domainHints;
+
+    public IdPEntry(String entityId, String displayName, String logoUrl) {
+        this(entityId, displayName, logoUrl, null, null);
+    }
+
+    /**
+     * @param keywords    UIInfo keywords, may be null
+     * @param domainHints DiscoHints domains of the users of the IdP, may be null
+     */
+    public IdPEntry(String entityId, String displayName, String logoUrl,
+            List<String> keywords, List<String> domainHints) {
+        this.entityId = entityId;
+        this.displayName = displayName != null ? displayName : entityId;
+        this.logoUrl = logoUrl;
+        this.keywords = keywords != null ? Collections.unmodifiableList(keywords) : Collections.<String>emptyList();
+        this.domainHints = domainHints != null
+                ? Collections.unmodifiableList(domainHints) : Collections.<String>emptyList();
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * @return the UIInfo or organization display name, the entity ID when the metadata has none
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return URL of the UIInfo logo, null when the metadata has none
+     */
+    public String getLogoUrl() {
+        return logoUrl;
+    }
+
+    public List<String> getKeywords() {
+        return keywords;
+    }
+
+    public List<String> getDomainHints() {
+        return domainHints;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IdPEntry)) {
+            return false;
+        }
+        IdPEntry other = (IdPEntry) o;
+        return entityId.equals(other.entityId) && displayName.equals(other.displayName)
+                && Objects.equals(logoUrl, other.logoUrl) && keywords.equals(other.keywords)
+                && domainHints.equals(other.domainHints);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entityId, displayName, logoUrl, keywords, domainHints);
+    }
+
+    @Override
+    public String toString() {
+        return displayName + " (" + entityId + ")";
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Guesses the IdP of a user who starts a login, so that discovery can be
+ * skipped. In order of precedence:
+ * <ol>
+ * <li>the domain of the {@value #LOGIN_HINT_PARAMETER} request parameter, when
+ * exactly one IdP declares it in its {@code mdui:DiscoHints};</li>
+ * <li>the {@value #COOKIE_NAME} cookie, set after each successful login with
+ * the IdP that asserted it, holding its expiry and entity ID signed with
+ * HMAC-SHA256;</li>
+ * <li>the most recent IdP of the SAML Common Domain Cookie
+ * {@value #COMMON_DOMAIN_COOKIE}, when the SP belongs to the common domain.</li>
+ * </ol>
+ * A hint is only used when the IdP is still valid in the metadata. Users pick
+ * another IdP by starting the login with {@code ?}{@value #FORCE_DISCOVERY_PARAMETER}{@code =true}.
+ */
+public class IdPHintResolver {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(IdPHintResolver.class);
+
+    public static final String COOKIE_NAME = "SAML_IDP";
+
+    public static final String COMMON_DOMAIN_COOKIE = "_saml_idp";
+
+    public static final String LOGIN_HINT_PARAMETER = "login_hint";
+
+    public static final String FORCE_DISCOVERY_PARAMETER = "discovery";
+
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * Where a hint was found.
+     */
+    public enum Source {
+        LOGIN_HINT, REMEMBERED, COMMON_DOMAIN
+    }
+
+    private final SecretKeySpec key;
+
+    private final MetadataManager metadata;
+
+    private final DiscoveryViewCache discoveryViewCache;
+
+    private final Map<Source, AtomicLong> resolved = new EnumMap<Source, AtomicLong>(Source.class);
+
+    private final AtomicLong unresolved = new AtomicLong();
+
+    private String cookiePath = "/";
+
+    private int maxAge = 30 * 24 * 3600;
+
+    /**
+     * @param key Base64 encoded HMAC key shared by all the nodes; when empty a random key is
+     *            generated and the remembered IdPs are forgotten on restart
+     */
+    public IdPHintResolver(String key, MetadataManager metadata, DiscoveryViewCache discoveryViewCache) {
+        byte[] keyBytes;
+        if (StringUtils.hasText(key)) {
+            keyBytes = Base64.getDecoder().decode(key.trim());
+        } else {
+            LOG.warn("No IdP cookie key configured, remembered IdPs are only recognized by this node");
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        }
+        this.key = new SecretKeySpec(keyBytes, "HmacSHA256");
+        this.metadata = metadata;
+        this.discoveryViewCache = discoveryViewCache;
+        for (Source source : Source.values()) {
+            resolved.put(source, new AtomicLong());
+        }
+    }
+
+    /**
+     * Looks up the IdP of a login which starts, counting whether discovery is
+     * skipped. Call it once per login.
+     *
+     * @return the IdP to authenticate the user with, or null when the user must choose it
+     */
+    public Hint resolve(HttpServletRequest request) {
+        Hint hint = find(request);
+        if (hint == null) {
+            unresolved.incrementAndGet();
+        } else {
+            resolved.get(hint.getSource()).incrementAndGet();
+            LOG.debug("Using IdP {} from {}", hint.getEntityId(), hint.getSource());
+        }
+        return hint;
+    }
+
+    /**
+     * Same as {@link #resolve(HttpServletRequest)}, without counting the login.
+     */
+    public Hint find(HttpServletRequest request) {
+        if ("true".equals(request.getParameter(FORCE_DISCOVERY_PARAMETER))) {
+            return null;
+        }
+        Hint hint = fromLoginHint(request.getParameter(LOGIN_HINT_PARAMETER));
+        if (hint == null) {
+            hint = fromRememberedCookie(WebUtils.getCookie(request, COOKIE_NAME));
+        }
+        if (hint == null) {
+            hint = fromCommonDomainCookie(WebUtils.getCookie(request, COMMON_DOMAIN_COOKIE));
+        }
+        return hint;
+    }
+
+    /**
+     * Remembers the IdP a user authenticated with, for {@link #getMaxAge()} seconds.
+     */
+    public void remember(HttpServletRequest request, HttpServletResponse response, String entityId) {
+        byte[] id = entityId.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(8 + id.length)
+                .putLong(System.currentTimeMillis() + maxAge * 1000L).put(id).array();
+        byte[] value = Arrays.copyOf(payload, payload.length + MAC_LENGTH);
+        System.arraycopy(sign(payload), 0, value, payload.length, MAC_LENGTH);
+        StringBuilder sb = new StringBuilder(COOKIE_NAME.length() + value.length * 4 / 3 + 96);
+        sb.append(COOKIE_NAME).append('=').append(Base64.getUrlEncoder().withoutPadding().encodeToString(value))
+                .append("; Path=").append(request.getContextPath()).append(cookiePath)
+                .append("; Max-Age=").append(maxAge)
+                .append("; HttpOnly; SameSite=Lax");
+        if (request.isSecure()) {
+            sb.append("; Secure");
+        }
+        response.addHeader("Set-Cookie", sb.toString());
+    }
+
+    private Hint fromLoginHint(String loginHint) {
+        if (!StringUtils.hasText(loginHint)) {
+            return null;
+        }
+        List<IdPEntry> entries = discoveryViewCache.getView().getSearchIndex().findByDomain(loginHint);
+        if (entries.size() != 1) {
+            LOG.debug("{} IdPs found for login hint {}", entries.size(), loginHint);
+            return null;
+        }
+        return valid(Source.LOGIN_HINT, entries.get(0).getEntityId());
+    }
+
+    private Hint fromRememberedCookie(Cookie cookie) {
+        if (cookie == null) {
+            return null;
+        }
+        try {
+            byte[] value = Base64.getUrlDecoder().decode(cookie.getValue());
+            if (value.length <= 8 + MAC_LENGTH) {
+                return null;
+            }
+            byte[] payload = Arrays.copyOf(value, value.length - MAC_LENGTH);
+            byte[] mac = Arrays.copyOfRange(value, payload.length, value.length);
+            if (!MessageDigest.isEqual(mac, sign(payload))) {
+                LOG.debug("Invalid signature of the IdP cookie");
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            if (buffer.getLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            return valid(Source.REMEMBERED, new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid IdP cookie", e);
+            return null;
+        }
+    }
+
+    /*
+     * URL encoded, space separated list of Base64 encoded entity IDs, the most recent last.
+     */
+    private Hint fromCommonDomainCookie(Cookie cookie) {
+        if (cookie == null || cookie.getValue() == null) {
+            return null;
+        }
+        try {
+            String value = URLDecoder.decode(StringUtils.trimTrailingCharacter(
+                    StringUtils.trimLeadingCharacter(cookie.getValue(), '"'), '"'), "UTF-8");
+            String[] entityIds = value.trim().split("\\s+");
+            for (int i = entityIds.length - 1; i >= 0; i--) {
+                if (entityIds[i].isEmpty()) {
+                    continue;
+                }
+                Hint hint = valid(Source.COMMON_DOMAIN,
+                        new String(Base64.getMimeDecoder().decode(entityIds[i]), StandardCharsets.UTF_8));
+                if (hint != null) {
+                    return hint;
+                }
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            LOG.debug("Invalid common domain cookie", e);
+        }
+        return null;
+    }
+
+    private Hint valid(Source source, String entityId) {
+        if (!metadata.isIDPValid(entityId)) {
+            LOG.debug("Ignoring unknown IdP {} from {}", entityId, source);
+            return null;
+        }
+        return new Hint(source, entityId);
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update(COOKIE_NAME.getBytes(StandardCharsets.US_ASCII));
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to sign IdP cookie", e);
+        }
+    }
+
+    /**
+     * @return number of logins whose IdP was found from the source, skipping discovery
+     */
+    public long getResolvedCount(Source source) {
+        return resolved.get(source).get();
+    }
+
+    /**
+     * @return number of logins which skipped discovery, by source of their IdP
+     */
+    public Map<Source, Long> getResolvedCounts() {
+        Map<Source, Long> counts = new EnumMap<Source, Long>(Source.class);
+        for (Map.Entry<Source, AtomicLong> entry : resolved.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return number of logins which skipped discovery
+     */
+    public long getResolvedCount() {
+        long count = 0;
+        for (AtomicLong counter : resolved.values()) {
+            count += counter.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of logins for which no IdP was found, going through discovery
+     */
+    public long getUnresolvedCount() {
+        return unresolved.get();
+    }
+
+    public String getCookiePath() {
+        return cookiePath;
+    }
+
+    /**
+     * @param cookiePath path of the remembered IdP cookie, relative to the context path; it must cover
+     *                   every page whose access may start a login
+     */
+    public void setCookiePath(String cookiePath) {
+        this.cookiePath = cookiePath;
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge seconds during which the IdP of the last login is remembered
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * IdP guessed for a login.
+     */
+    public static final class Hint {
+
+        private final Source source;
+
+        private final String entityId;
+
+        Hint(Source source, String entityId) {
+            this.source = source;
+            this.entityId = entityId;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        public String getEntityId() {
+            return entityId;
+        }
+
+        @Override
+        public String toString() {
+            return entityId + " (" + source + ")";
+        }
+    }
+
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory search index over the IdPs of a {@link DiscoveryView}, answering
+ * type-ahead queries without walking the whole list.
+ * <p>
+ * Entity IDs, display names, UIInfo keywords and domain hints are split into
+ * lowercase words. Each word adds its trigrams, and its one and two character
+ * prefixes, to a table mapping every key to the sorted positions of the
+ * entries containing it. A query word of three characters or more matches the
+ * words containing it: the postings of its trigrams are intersected and the
+ * candidates checked. A shorter one matches the words starting with it. A
+ * query that looks like an email address or a domain is also looked up in the
+ * domain hints, so that typing one's address finds the home IdP.
+ * <p>
+ * The words of each entry are kept with the index, and reused when the index
+ * of the next metadata snapshot is built from this one and the entry did not
+ * change: only new or modified IdPs are tokenized again.
+ */
+public final class IdPSearchIndex {
+
+    private static final int GRAM = 3;
+
+    private static final char PREFIX_MARK = '^';
+
+    private static final int[] NONE = new int[0];
+
+    private final List<IdPEntry> entries;
+
+    private final Terms[] terms;
+
+    private final Map<String, Terms> termsById;
+
+    private final Map<String, int[]> postings;
+
+    private final Map<String, int[]> domains;
+
+    private final int reused;
+
+    private IdPSearchIndex(List<IdPEntry> entries, Terms[] terms, Map<String, Terms> termsById,
+            Map<String, int[]> postings, Map<String, int[]> domains, int reused) {
+        this.entries = entries;
+        this.terms = terms;
+        this.termsById = termsById;
+        this.postings = postings;
+        this.domains = domains;
+        this.reused = reused;
+    }
+
+    /**
+     * @param entries  IdPs in display order
+     * @param previous index of the previous snapshot whose unchanged entries are reused, may be null
+     */
+    static IdPSearchIndex build(List<IdPEntry> entries, IdPSearchIndex previous) {
+        Terms[] terms = new Terms[entries.size()];
+        Map<String, Terms> termsById = new HashMap<String, Terms>(entries.size() * 4 / 3 + 1);
+        Map<String, IntList> postings = new HashMap<String, IntList>();
+        Map<String, IntList> domains = new HashMap<String, IntList>();
+        int reused = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            IdPEntry entry = entries.get(i);
+            Terms entryTerms = previous != null ? previous.termsById.get(entry.getEntityId()) : null;
+            if (entryTerms != null && entryTerms.entry.equals(entry)) {
+                reused++;
+            } else {
+                entryTerms = new Terms(entry);
+            }
+            terms[i] = entryTerms;
+            termsById.put(entry.getEntityId(), entryTerms);
+            for (String key : entryTerms.keys) {
+                add(postings, key, i);
+            }
+            for (String domain : entryTerms.domains) {
+                add(domains, domain, i);
+            }
+        }
+        return new IdPSearchIndex(entries, terms, termsById, toArrays(postings), toArrays(domains), reused);
+    }
+
+    /**
+     * Finds the IdPs matching every word of a query. Domain hint matches come
+     * first, then entries whose display name starts with the query, then
+     * entries with a word starting with the first query word, then the others;
+     * each group in display order. An empty query matches every IdP.
+     *
+     * @param offset index of the first result to return
+     * @param limit  maximum number of results to return
+     */
+    public Page search(String query, int offset, int limit) {
+        String normalized = query != null ? query.trim().toLowerCase(Locale.ROOT) : "";
+        offset = Math.max(offset, 0);
+        limit = Math.max(limit, 0);
+        if (normalized.isEmpty()) {
+            int from = Math.min(offset, entries.size());
+            int to = Math.min(from + limit, entries.size());
+            return new Page(normalized, entries.size(), offset, limit, entries.subList(from, to));
+        }
+
+        List<String> words = words(normalized);
+        int[] domainMatches = matchDomain(normalized);
+        int[] wordMatches = words.isEmpty() ? NONE : matchWords(words);
+        int[] matches = union(domainMatches, wordMatches);
+
+        long[] ranked = new long[matches.length];
+        for (int i = 0; i < matches.length; i++) {
+            int position = matches[i];
+            long rank;
+            if (Arrays.binarySearch(domainMatches, position) >= 0) {
+                rank = 0;
+            } else if (terms[position].displayName.startsWith(normalized)) {
+                rank = 1;
+            } else if (terms[position].hasWordStartingWith(words.get(0))) {
+                rank = 2;
+            } else {
+                rank = 3;
+            }
+            ranked[i] = rank << 32 | position;
+        }
+        Arrays.sort(ranked);
+
+        int from = Math.min(offset, ranked.length);
+        int to = Math.min(from + limit, ranked.length);
+        List<IdPEntry> results = new ArrayList<IdPEntry>(to - from);
+        for (int i = from; i < to; i++) {
+            results.add(entries.get((int) ranked[i]));
+        }
+        return new Page(normalized, ranked.length, offset, limit, results);
+    }
+
+    /**
+     * @param emailOrDomain email address or domain, whose parent domains are also looked up
+     * @return the IdPs declaring the domain in their domain hints, in display order
+     */
+    public List<IdPEntry> findByDomain(String emailOrDomain) {
+        if (emailOrDomain == null) {
+            return Collections.emptyList();
+        }
+        int[] matches = matchDomain(emailOrDomain.trim().toLowerCase(Locale.ROOT));
+        List<IdPEntry> results = new ArrayList<IdPEntry>(matches.length);
+        for (int position : matches) {
+            results.add(entries.get(position));
+        }
+        return results;
+    }
+
+    private int[] matchWords(List<String> words) {
+        int[] result = null;
+        for (String word : words) {
+            int[] candidates = word.length() < GRAM ? posting(PREFIX_MARK + word) : containing(word);
+            result = result == null ? candidates : intersect(result, candidates);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Intersects the trigram postings, smallest first, then drops the entries
+     * having the trigrams in different words or in another order.
+     */
+    private int[] containing(String word) {
+        int[][] grams = new int[word.length() - GRAM + 1][];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = posting(word.substring(i, i + GRAM));
+            if (grams[i].length == 0) {
+                return NONE;
+            }
+        }
+        Arrays.sort(grams, (first, second) -> Integer.compare(first.length, second.length));
+        int[] candidates = grams[0];
+        for (int i = 1; i < grams.length && candidates.length > 0; i++) {
+            candidates = intersect(candidates, grams[i]);
+        }
+        int[] result = new int[candidates.length];
+        int size = 0;
+        for (int candidate : candidates) {
+            if (terms[candidate].hasWordContaining(word)) {
+                result[size++] = candidate;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /*
+     * Looks up the domain of an email address, or a domain, and its parent domains.
+     */
+    private int[] matchDomain(String query) {
+        String domain;
+        int at = query.lastIndexOf('@');
+        if (at != -1) {
+            domain = query.substring(at + 1);
+        } else if (query.indexOf('.') != -1 && query.indexOf(' ') == -1) {
+            domain = query;
+        } else {
+            return NONE;
+        }
+        int[] result = NONE;
+        while (domain.indexOf('.') > 0) {
+            int[] posting = domains.get(domain);
+            if (posting != null) {
+                result = union(result, posting);
+            }
+            domain = domain.substring(domain.indexOf('.') + 1);
+        }
+        return result;
+    }
+
+    private int[] posting(String key) {
+        int[] posting = postings.get(key);
+        return posting != null ? posting : NONE;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of distinct trigrams and prefixes
+     */
+    public int getKeyCount() {
+        return postings.size();
+    }
+
+    /**
+     * @return number of entries whose words were taken from the previous index
+     */
+    public int getReusedCount() {
+        return reused;
+    }
+
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start == -1) {
+                start = i;
+            } else if (!wordChar && start != -1) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static void add(Map<String, IntList> postings, String key, int position) {
+        IntList posting = postings.get(key);
+        if (posting == null) {
+            posting = new IntList();
+            postings.put(key, posting);
+        }
+        posting.add(position);
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, IntList> lists) {
+        Map<String, int[]> arrays = new HashMap<String, int[]>(lists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+            arrays.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return arrays;
+    }
+
+    private static int[] intersect(int[] first, int[] second) {
+        int[] result = new int[Math.min(first.length, second.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < first.length && j < second.length;) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                result[size++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static int[] union(int[] first, int[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        if (second.length == 0) {
+            return first;
+        }
+        int[] result = new int[first.length + second.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length || j < second.length) {
+            if (j == second.length || (i < first.length && first[i] < second[j])) {
+                result[size++] = first[i++];
+            } else if (i == first.length || second[j] < first[i]) {
+                result[size++] = second[j++];
+            } else {
+                result[size++] = first[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Searchable words of one entry.
+     */
+    private static final class Terms {
+
+        private final IdPEntry entry;
+
+        private final String displayName;
+
+        private final String[] words;
+
+        private final String[] keys;
+
+        private final String[] domains;
+
+        Terms(IdPEntry entry) {
+            this.entry = entry;
+            this.displayName = entry.getDisplayName().toLowerCase(Locale.ROOT);
+            Set<String> words = new LinkedHashSet<String>();
+            words.addAll(words(entry.getEntityId().toLowerCase(Locale.ROOT)));
+            words.addAll(words(displayName));
+            Set<String> domains = new LinkedHashSet<String>();
+            for (String keyword : entry.getKeywords()) {
+                words.addAll(words(keyword.toLowerCase(Locale.ROOT)));
+            }
+            for (String domainHint : entry.getDomainHints()) {
+                String domain = domainHint.trim().toLowerCase(Locale.ROOT);
+                domains.add(domain);
+                words.addAll(words(domain));
+            }
+            Set<String> keys = new LinkedHashSet<String>();
+            for (String word : words) {
+                keys.add(PREFIX_MARK + word.substring(0, 1));
+                if (word.length() > 1) {
+                    keys.add(PREFIX_MARK + word.substring(0, 2));
+                }
+                for (int i = 0; i + GRAM <= word.length(); i++) {
+                    keys.add(word.substring(i, i + GRAM));
+                }
+            }
+            this.words = words.toArray(new String[words.size()]);
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.domains = domains.toArray(new String[domains.size()]);
+        }
+
+        boolean hasWordContaining(String text) {
+            for (String word : words) {
+                if (word.contains(text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hasWordStartingWith(String text) {
+            for (String word : words) {
+                if (word.startsWith(text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Growable posting list, positions are appended in increasing order.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[4];
+
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static final class Page {
+
+        private final String query;
+
+        private final int total;
+
+        private final int offset;
+
+        private final int limit;
+
+        private final List<IdPEntry> results;
+
+        Page(String query, int total, int offset, int limit, List<IdPEntry> results) {
+            this.query = query;
+            this.total = total;
+            this.offset = offset;
+            this.limit = limit;
+            this.results = Collections.unmodifiableList(results);
+        }
+
+        /**
+         * @return the normalized query
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return number of IdPs matching the query, across all pages
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public List<IdPEntry> getResults() {
+            return results;
+        }
+    }
+
+}
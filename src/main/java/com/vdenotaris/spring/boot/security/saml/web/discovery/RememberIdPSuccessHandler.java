@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
+
+/**
+ * Success handler remembering the IdP which authenticated the user, so that
+ * the next login skips discovery.
+ */
+public class RememberIdPSuccessHandler extends SavedRequestAwareAuthenticationSuccessHandler {
+
+    private final IdPHintResolver hintResolver;
+
+    public RememberIdPSuccessHandler(IdPHintResolver hintResolver) {
+        this.hintResolver = hintResolver;
+    }
+
+    @Override
+    public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response,
+            Authentication authentication) throws ServletException, IOException {
+        if (authentication.getCredentials() instanceof SAMLCredential) {
+            hintResolver.remember(request, response,
+                    ((SAMLCredential) authentication.getCredentials()).getRemoteEntityID());
+        }
+        super.onAuthenticationSuccess(request, response, authentication);
+    }
+
+}
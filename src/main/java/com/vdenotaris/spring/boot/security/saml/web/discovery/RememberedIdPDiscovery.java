@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.saml.SAMLDiscovery;
+
+/**
+ * Discovery service answering passive requests with the IdP found by the
+ * {@link IdPHintResolver}, falling back to the default IdP. The login was
+ * already counted by the entry point which sent the user here.
+ */
+public class RememberedIdPDiscovery extends SAMLDiscovery {
+
+    private final IdPHintResolver hintResolver;
+
+    public RememberedIdPDiscovery(IdPHintResolver hintResolver) {
+        this.hintResolver = hintResolver;
+    }
+
+    @Override
+    protected String getPassiveIDP(HttpServletRequest request) {
+        IdPHintResolver.Hint hint = hintResolver.find(request);
+        return hint != null ? hint.getEntityId() : super.getPassiveIDP(request);
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.springframework.security.saml.SAMLEntryPoint;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+/**
+ * Entry point sending the AuthnRequest straight to the IdP found by the
+ * {@link IdPHintResolver}, instead of redirecting to discovery and the IdP
+ * selection page. Discovery still takes place when no hint is found.
+ */
+public class RememberedIdPEntryPoint extends SAMLEntryPoint {
+
+    private final IdPHintResolver hintResolver;
+
+    public RememberedIdPEntryPoint(IdPHintResolver hintResolver) {
+        this.hintResolver = hintResolver;
+    }
+
+    @Override
+    protected boolean isDiscovery(SAMLMessageContext context) {
+        if (!super.isDiscovery(context)) {
+            return false;
+        }
+        HttpServletRequest request = ((HttpServletRequestAdapter) context.getInboundMessageTransport())
+                .getWrappedRequest();
+        IdPHintResolver.Hint hint = hintResolver.resolve(request);
+        if (hint == null) {
+            return true;
+        }
+        try {
+            EntityDescriptor entityDescriptor = metadata.getEntityDescriptor(hint.getEntityId());
+            RoleDescriptor roleDescriptor = metadata.getRole(hint.getEntityId(),
+                    IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS);
+            if (entityDescriptor == null || roleDescriptor == null) {
+                return true;
+            }
+            context.setPeerEntityId(hint.getEntityId());
+            context.setPeerEntityRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+            context.setPeerEntityMetadata(entityDescriptor);
+            context.setPeerEntityRoleMetadata(roleDescriptor);
+            context.setPeerExtendedMetadata(metadata.getExtendedMetadata(hint.getEntityId()));
+            context.setPeerUserSelected(true);
+        } catch (MetadataProviderException e) {
+            logger.debug("Error loading metadata of IdP " + hint.getEntityId() + ", using discovery", e);
+            return true;
+        }
+        logger.debug("Skipping discovery, using IdP {}", hint);
+        return false;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.filters;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.util.Assert;
+import org.springframework.web.filter.GenericFilterBean;
+
+/**
+ * Dispatches SAML requests to the filter of their endpoint.
+ * <p>
+ * Replaces a {@link org.springframework.security.web.FilterChainProxy} made of
+ * one {@code /saml/<endpoint>/**} ant matcher per endpoint: requests outside
+ * the prefix are passed on after a single {@code startsWith}, the others after
+ * one hash lookup on the path segment following the prefix, whatever the
+ * number of endpoints. Path parameters (e.g. {@code ;jsessionid=}) are ignored
+ * as the firewall of the filter chain proxy used to do.
+ */
+public class SAMLDispatchFilter extends GenericFilterBean {
+
+    private final String prefix;
+
+    private final Map<String, Endpoint> endpoints;
+
+    private final LongAdder unmatched = new LongAdder();
+
+    /**
+     * @param prefix    path prefix of the SAML endpoints, e.g. {@code /saml}
+     * @param endpoints filters by endpoint name, the path segment following the prefix
+     */
+    public SAMLDispatchFilter(String prefix, Map<String, ? extends Filter> endpoints) {
+        Assert.hasText(prefix, "Prefix must be set");
+        this.prefix = prefix.endsWith("/") ? prefix : prefix + "/";
+        Map<String, Endpoint> map = new HashMap<String, Endpoint>();
+        for (Map.Entry<String, ? extends Filter> entry : endpoints.entrySet()) {
+            Assert.isTrue(entry.getKey().indexOf('/') == -1, "Endpoint name must be a single path segment");
+            map.put(entry.getKey(), new Endpoint(entry.getValue()));
+        }
+        this.endpoints = map;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        Endpoint endpoint = getEndpoint(getRequestPath((HttpServletRequest) request));
+        if (endpoint == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        endpoint.requests.increment();
+        endpoint.filter.doFilter(request, response, chain);
+    }
+
+    private Endpoint getEndpoint(String path) {
+        if (path == null || !path.startsWith(prefix)) {
+            return null;
+        }
+        int start = prefix.length();
+        int end = start;
+        while (end < path.length()) {
+            char c = path.charAt(end);
+            if (c == '/' || c == ';') {
+                break;
+            }
+            end++;
+        }
+        Endpoint endpoint = endpoints.get(path.substring(start, end));
+        if (endpoint == null) {
+            unmatched.increment();
+        }
+        return endpoint;
+    }
+
+    /*
+     * Same path as the one matched by AntPathRequestMatcher.
+     */
+    private static String getRequestPath(HttpServletRequest request) {
+        String path = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (pathInfo != null) {
+            path = path != null && !path.isEmpty() ? path + pathInfo : pathInfo;
+        }
+        return path;
+    }
+
+    /**
+     * @return number of requests dispatched to an endpoint so far
+     */
+    public long getRequestCount(String endpoint) {
+        Endpoint e = endpoints.get(endpoint);
+        return e != null ? e.requests.sum() : 0;
+    }
+
+    /**
+     * @return number of requests dispatched so far, by endpoint name
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().requests.sum());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return number of requests below the prefix which matched no endpoint
+     */
+    public long getUnmatchedCount() {
+        return unmatched.sum();
+    }
+
+    private static final class Endpoint {
+
+        private final Filter filter;
+
+        private final LongAdder requests = new LongAdder();
+
+        Endpoint(Filter filter) {
+            this.filter = filter;
+        }
+    }
+
+}
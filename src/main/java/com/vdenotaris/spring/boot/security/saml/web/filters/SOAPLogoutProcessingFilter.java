@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.filters;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.security.SecurityException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.saml.SAMLConstants;
+import org.springframework.security.saml.SAMLStatusException;
+import org.springframework.security.saml.context.SAMLContextProvider;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.log.SAMLLogger;
+import org.springframework.security.saml.processor.SAMLProcessor;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.springframework.security.saml.websso.SingleLogoutProfile;
+import org.springframework.util.Assert;
+import org.springframework.web.filter.GenericFilterBean;
+
+/**
+ * Back-channel Single Logout endpoint: receives LogoutRequests sent by the
+ * IdP over the SOAP binding on {@value #FILTER_URL} and answers them in the
+ * SOAP response, with no browser involved. Other requests of the logout
+ * endpoint go to the front-channel filter.
+ * <p>
+ * The sessions named by the requests are looked up by the logout profile;
+ * concurrent requests are applied and published to the other nodes in
+ * batches by the {@link com.vdenotaris.spring.boot.security.saml.web.session.SAMLSessionRegistry}.
+ */
+public class SOAPLogoutProcessingFilter extends GenericFilterBean {
+
+    public static final String FILTER_URL = "/saml/SingleLogout/soap";
+
+    private final Filter frontChannelFilter;
+
+    private final LongAdder processed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private SAMLContextProvider contextProvider;
+
+    private SAMLProcessor processor;
+
+    private SingleLogoutProfile logoutProfile;
+
+    private SAMLLogger samlLogger;
+
+    /**
+     * @param frontChannelFilter filter processing the logout messages delivered by the browser
+     */
+    public SOAPLogoutProcessingFilter(Filter frontChannelFilter) {
+        this.frontChannelFilter = frontChannelFilter;
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        if (!SAMLUtil.processFilter(FILTER_URL, request)) {
+            frontChannelFilter.doFilter(request, response, chain);
+            return;
+        }
+
+        SAMLMessageContext context;
+        try {
+            context = contextProvider.getLocalEntity(request, response);
+            context.setCommunicationProfileId(SAMLConstants.SAML2_SLO_PROFILE_URI);
+            processor.retrieveMessage(context, org.opensaml.common.xml.SAMLConstants.SAML2_SOAP11_BINDING_URI);
+            context.setLocalEntityEndpoint(SAMLUtil.getEndpoint(context.getLocalEntityRoleMetadata().getEndpoints(),
+                    context.getInboundSAMLBinding(), context.getInboundMessageTransport()));
+        } catch (SAMLException | MetadataProviderException | MessageDecodingException | SecurityException e) {
+            logger.debug("Incoming SOAP logout message is invalid", e);
+            rejected.increment();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (!(context.getInboundSAMLMessage() instanceof LogoutRequest)) {
+            logger.debug("Incoming SOAP logout message is not a LogoutRequest");
+            rejected.increment();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        try {
+            try {
+                logoutProfile.processLogoutRequest(context, null);
+            } catch (SAMLStatusException e) {
+                logger.debug("Received SOAP logout request is invalid, responding with error", e);
+                rejected.increment();
+                logoutProfile.sendLogoutResponse(context, e.getStatusCode(), e.getStatusMessage());
+                samlLogger.log(SAMLConstants.LOGOUT_REQUEST, SAMLConstants.FAILURE, context, e);
+                return;
+            }
+            logoutProfile.sendLogoutResponse(context, StatusCode.SUCCESS_URI, null);
+            processed.increment();
+            samlLogger.log(SAMLConstants.LOGOUT_REQUEST, SAMLConstants.SUCCESS, context);
+        } catch (SAMLException | MetadataProviderException | MessageEncodingException | RuntimeException e) {
+            logger.debug("Error processing SOAP logout request", e);
+            samlLogger.log(SAMLConstants.LOGOUT_REQUEST, SAMLConstants.FAILURE, context, e);
+            throw new ServletException("Error processing logout request", e);
+        }
+    }
+
+    /**
+     * @return number of SOAP LogoutRequests answered with a Success status
+     */
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    /**
+     * @return number of SOAP logout messages rejected as invalid
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Autowired
+    public void setContextProvider(SAMLContextProvider contextProvider) {
+        this.contextProvider = contextProvider;
+    }
+
+    @Autowired
+    public void setSAMLProcessor(SAMLProcessor processor) {
+        this.processor = processor;
+    }
+
+    @Autowired
+    public void setLogoutProfile(SingleLogoutProfile logoutProfile) {
+        this.logoutProfile = logoutProfile;
+    }
+
+    @Autowired
+    public void setSAMLLogger(SAMLLogger samlLogger) {
+        this.samlLogger = samlLogger;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws ServletException {
+        super.afterPropertiesSet();
+        Assert.notNull(contextProvider, "Context provider must be set");
+        Assert.notNull(processor, "SAML processor must be set");
+        Assert.notNull(logoutProfile, "Logout profile must be set");
+        Assert.notNull(samlLogger, "SAML logger must be set");
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Refresh of the metadata of the federation.
+ */
+@Name("com.vdenotaris.saml.MetadataRefresh")
+@Label("SAML Metadata Refresh")
+@Category(SAMLFlightRecorder.CATEGORY)
+@Description("Refresh of the metadata of the federation")
+@StackTrace(false)
+public class MetadataRefreshEvent extends jdk.jfr.Event {
+
+    @Label("Version")
+    @Description("Number of the metadata snapshot")
+    long version;
+
+    @Label("Providers")
+    int providers;
+
+    @Label("IdPs")
+    int idps;
+
+    @Label("Outcome")
+    String outcome;
+
+    public void commit(long version, int providers, int idps, Throwable failure) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.version = version;
+        this.providers = providers;
+        this.idps = idps;
+        this.outcome = SAMLFlightRecorder.getOutcome(failure);
+        commit();
+    }
+
+}
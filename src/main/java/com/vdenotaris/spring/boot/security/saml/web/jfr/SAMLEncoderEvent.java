@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.opensaml.common.SAMLObject;
+
+/**
+ * Rendering of the page posting a SAML message or artifact to its recipient.
+ */
+@Name("com.vdenotaris.saml.Encoder")
+@Label("SAML Encoder")
+@Category(SAMLFlightRecorder.CATEGORY)
+@Description("Rendering of the page posting a SAML message or artifact to its recipient")
+@StackTrace(false)
+public class SAMLEncoderEvent extends jdk.jfr.Event {
+
+    @Label("Binding")
+    String binding;
+
+    @Label("Template")
+    String template;
+
+    @Label("Message Type")
+    String messageType;
+
+    @Label("Peer")
+    @Description("Entity ID of the recipient")
+    String peer;
+
+    @Label("Payload Size")
+    @Description("Size of the encoded message or artifact")
+    @DataAmount
+    long payloadSize;
+
+    @Label("Outcome")
+    String outcome;
+
+    public void commit(String binding, String template, SAMLObject message, String peer, long payloadSize,
+            Throwable failure) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.binding = binding;
+        this.template = template;
+        this.messageType = SAMLFlightRecorder.getMessageType(message);
+        this.peer = peer;
+        this.payloadSize = payloadSize;
+        this.outcome = SAMLFlightRecorder.getOutcome(failure);
+        commit();
+    }
+
+}
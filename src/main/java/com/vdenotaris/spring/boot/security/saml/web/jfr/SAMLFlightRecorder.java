@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.jfr;
+
+import org.opensaml.common.SAMLObject;
+
+/**
+ * Support of the SAML flight recorder events.
+ * <p>
+ * The {@code jdk.jfr} API of the events appeared in Java 8 update 262: callers
+ * test {@link #AVAILABLE} before creating an event, so that the event classes
+ * are never loaded on older runtimes. Events cost a few nanoseconds when no
+ * recording is running; their fields are only computed for the events which
+ * a recording will keep.
+ */
+public final class SAMLFlightRecorder {
+
+    public static final boolean AVAILABLE = isAvailable();
+
+    static final String CATEGORY = "SAML";
+
+    static final String SUCCESS = "success";
+
+    private SAMLFlightRecorder() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, SAMLFlightRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return "success", or the simple name of the exception
+     */
+    static String getOutcome(Throwable failure) {
+        return failure == null ? SUCCESS : failure.getClass().getSimpleName();
+    }
+
+    static String getMessageType(SAMLObject message) {
+        return message != null ? message.getElementQName().getLocalPart() : null;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.opensaml.common.SAMLObject;
+
+/**
+ * Decoding or encoding of a SAML message by a binding.
+ */
+@Name("com.vdenotaris.saml.Message")
+@Label("SAML Message")
+@Category(SAMLFlightRecorder.CATEGORY)
+@Description("Decoding or encoding of a SAML message by a binding")
+@StackTrace(false)
+public class SAMLMessageEvent extends jdk.jfr.Event {
+
+    @Label("Inbound")
+    boolean inbound;
+
+    @Label("Binding")
+    String binding;
+
+    @Label("Message Type")
+    String messageType;
+
+    @Label("IdP")
+    @Description("Entity ID of the IdP, when known")
+    String idp;
+
+    @Label("Payload Size")
+    @Description("Size of the request holding an inbound message, 0 for outbound messages")
+    @DataAmount
+    long payloadSize;
+
+    @Label("Outcome")
+    String outcome;
+
+    public void commit(boolean inbound, String binding, SAMLObject message, String idp, long payloadSize,
+            Throwable failure) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.inbound = inbound;
+        this.binding = binding;
+        this.messageType = SAMLFlightRecorder.getMessageType(message);
+        this.idp = idp;
+        this.payloadSize = payloadSize;
+        this.outcome = SAMLFlightRecorder.getOutcome(failure);
+        commit();
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Loading of the local user of an authenticated assertion. The user is not
+ * recorded, recordings are shared more widely than the logs.
+ */
+@Name("com.vdenotaris.saml.UserDetails")
+@Label("SAML User Details")
+@Category(SAMLFlightRecorder.CATEGORY)
+@Description("Loading of the local user of an authenticated assertion")
+@StackTrace(false)
+public class UserDetailsEvent extends jdk.jfr.Event {
+
+    @Label("IdP")
+    String idp;
+
+    @Label("Attributes")
+    @Description("Number of attributes of the user, 0 if not loaded")
+    int attributes;
+
+    @Label("Authorities")
+    @Description("Number of authorities of the user, 0 if not loaded")
+    int authorities;
+
+    @Label("Outcome")
+    String outcome;
+
+    public void commit(String idp, int attributes, int authorities, Throwable failure) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.idp = idp;
+        this.attributes = attributes;
+        this.authorities = authorities;
+        this.outcome = SAMLFlightRecorder.getOutcome(failure);
+        commit();
+    }
+
+}
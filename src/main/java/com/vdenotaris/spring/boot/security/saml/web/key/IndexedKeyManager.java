@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.key;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.key.KeyManager;
+
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Key manager serving a large number of keys stored as one PKCS#12 bundle per
+ * alias in a key directory, on top of a regular key manager holding the
+ * application keys.
+ * <p>
+ * Only the directory index is read at startup: either the {@value #INDEX_FILE}
+ * file ({@code alias,sha256-fingerprint,file} per line) or, when missing, the
+ * names of the {@code *.p12} files. Bundles are opened and their private keys
+ * decrypted on first use and kept in a bounded LRU cache, so lookups by alias
+ * or by certificate fingerprint are hash lookups whatever the number of keys.
+ * Concurrent first uses of a key share a single load, and a key which failed to
+ * load is not tried again before {@link #setRetryDelay(int) the retry delay}.
+ * Fingerprints are only known from the index file: the certificates of the
+ * bundles are encrypted with their keys, so lookups by fingerprint require it.
+ * <p>
+ * {@link #getAvailableCredentials()} only lists the keys of the delegate key
+ * manager: Spring SAML iterates that set to build trust anchors, which must not
+ * include (nor load) every tenant key.
+ */
+public class IndexedKeyManager implements KeyManager {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedKeyManager.class);
+
+    public static final String INDEX_FILE = "index.csv";
+
+    private static final String BUNDLE_EXTENSION = ".p12";
+
+    private final KeyManager delegate;
+
+    private final Map<String, File> bundles = new ConcurrentHashMap<String, File>();
+
+    private final ConcurrentMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+
+    private final Map<String, String> passwords;
+
+    private final String defaultPassword;
+
+    private final LruCache<String, X509Credential> credentials;
+
+    private final ConcurrentMap<String, FutureTask<X509Credential>> pending =
+            new ConcurrentHashMap<String, FutureTask<X509Credential>>();
+
+    private final ConcurrentMap<String, FailedLoad> failures = new ConcurrentHashMap<String, FailedLoad>();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private int retryDelay = 60;
+
+    private boolean fingerprintsIndexed;
+
+    /**
+     * @param delegate        key manager holding the application keys, also providing the default key
+     * @param directory       key directory, may not exist in which case only the delegate keys are available
+     * @param defaultPassword password of the bundles not listed in {@code passwords}
+     * @param passwords       per alias bundle passwords
+     * @param maxCachedKeys   maximum number of decrypted keys kept in memory
+     */
+    public IndexedKeyManager(KeyManager delegate, File directory, String defaultPassword,
+            Map<String, String> passwords, int maxCachedKeys) {
+        this.delegate = delegate;
+        this.defaultPassword = defaultPassword;
+        this.passwords = passwords != null ? passwords : Collections.<String, String>emptyMap();
+        this.credentials = new LruCache<String, X509Credential>(maxCachedKeys);
+        index(directory);
+    }
+
+    private void index(File directory) {
+        if (directory == null || !directory.isDirectory()) {
+            LOG.info("Key directory {} not found, only default keys are available", directory);
+            return;
+        }
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.isFile()) {
+            readIndex(directory, indexFile);
+            fingerprintsIndexed = true;
+        } else {
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(BUNDLE_EXTENSION));
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    bundles.put(name.substring(0, name.length() - BUNDLE_EXTENSION.length()), file);
+                }
+            }
+        }
+        LOG.info("Indexed {} keys in {}", bundles.size(), directory);
+    }
+
+    private void readIndex(File directory, File indexFile) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length != 3) {
+                    LOG.warn("Ignoring malformed key index line: {}", line);
+                    continue;
+                }
+                String alias = fields[0].trim();
+                bundles.put(alias, new File(directory, fields[2].trim()));
+                fingerprints.put(normalizeFingerprint(fields[1]), alias);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read key index " + indexFile, e);
+        }
+    }
+
+    @Override
+    public Credential getCredential(String keyName) {
+        if (keyName == null || !bundles.containsKey(keyName)) {
+            return delegate.getCredential(keyName);
+        }
+        return getIndexedCredential(keyName);
+    }
+
+    /**
+     * Finds a credential by the SHA-256 fingerprint of its certificate.
+     *
+     * @param fingerprint hex encoded fingerprint, case and colons are ignored
+     * @return the credential, or null when no indexed key has this fingerprint
+     * @throws IllegalStateException when the key directory has no {@value #INDEX_FILE}
+     */
+    public Credential getCredentialByFingerprint(String fingerprint) {
+        if (!fingerprintsIndexed) {
+            throw new IllegalStateException("Lookup by fingerprint requires the key index " + INDEX_FILE);
+        }
+        if (fingerprint == null) {
+            return null;
+        }
+        String alias = fingerprints.get(normalizeFingerprint(fingerprint));
+        return alias != null ? getCredential(alias) : null;
+    }
+
+    @Override
+    public Credential getDefaultCredential() {
+        return delegate.getDefaultCredential();
+    }
+
+    @Override
+    public String getDefaultCredentialName() {
+        return delegate.getDefaultCredentialName();
+    }
+
+    @Override
+    public Set<String> getAvailableCredentials() {
+        return delegate.getAvailableCredentials();
+    }
+
+    @Override
+    public X509Certificate getCertificate(String alias) {
+        if (alias == null || !bundles.containsKey(alias)) {
+            return delegate.getCertificate(alias);
+        }
+        return getIndexedCredential(alias).getEntityCertificate();
+    }
+
+    /**
+     * @return true if the key is present in the key directory, without loading it
+     */
+    public boolean isIndexed(String alias) {
+        return alias != null && bundles.containsKey(alias);
+    }
+
+    @Override
+    public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
+        Credential credential = resolveSingle(criteriaSet);
+        return credential != null ? Collections.singletonList(credential) : Collections.<Credential>emptyList();
+    }
+
+    @Override
+    public Credential resolveSingle(CriteriaSet criteriaSet) throws SecurityException {
+        EntityIDCriteria criteria = criteriaSet != null ? criteriaSet.get(EntityIDCriteria.class) : null;
+        if (criteria == null || !bundles.containsKey(criteria.getEntityID())) {
+            return delegate.resolveSingle(criteriaSet);
+        }
+        return getIndexedCredential(criteria.getEntityID());
+    }
+
+    private X509Credential getIndexedCredential(String alias) {
+        X509Credential credential = credentials.get(alias);
+        if (credential != null) {
+            return credential;
+        }
+        checkFailure(alias);
+        FutureTask<X509Credential> task = new FutureTask<X509Credential>(() -> loadOnce(alias));
+        FutureTask<X509Credential> current = pending.putIfAbsent(alias, task);
+        if (current == null) {
+            current = task;
+            task.run();
+        }
+        try {
+            return current.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading key " + alias, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        } finally {
+            pending.remove(alias, current);
+        }
+    }
+
+    /*
+     * Run by a single thread per alias; the key may have been loaded, or failed to, since the caller looked.
+     */
+    private X509Credential loadOnce(String alias) {
+        X509Credential credential = credentials.get(alias);
+        if (credential != null) {
+            return credential;
+        }
+        checkFailure(alias);
+        try {
+            credential = credentials.putIfAbsent(alias, load(alias, bundles.get(alias)));
+        } catch (RuntimeException e) {
+            failures.put(alias, new FailedLoad(System.currentTimeMillis() + retryDelay * 1000L, e));
+            throw e;
+        }
+        failures.remove(alias);
+        return credential;
+    }
+
+    private void checkFailure(String alias) {
+        FailedLoad failure = failures.get(alias);
+        if (failure != null && failure.retryAt > System.currentTimeMillis()) {
+            throw new IllegalStateException("Key " + alias + " failed to load, not retried before "
+                    + new Date(failure.retryAt), failure.cause);
+        }
+    }
+
+    protected X509Credential load(String alias, File bundle) {
+        String password = passwords.containsKey(alias) ? passwords.get(alias) : defaultPassword;
+        char[] secret = password != null ? password.toCharArray() : null;
+        try (InputStream in = new FileInputStream(bundle)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, secret);
+            Enumeration<String> entries = keyStore.aliases();
+            while (entries.hasMoreElements()) {
+                String entry = entries.nextElement();
+                if (!keyStore.isKeyEntry(entry)) {
+                    continue;
+                }
+                List<X509Certificate> chain = new ArrayList<X509Certificate>();
+                for (Certificate certificate : keyStore.getCertificateChain(entry)) {
+                    chain.add((X509Certificate) certificate);
+                }
+                BasicX509Credential credential = new BasicX509Credential();
+                credential.setEntityId(alias);
+                credential.setUsageType(UsageType.UNSPECIFIED);
+                credential.setPrivateKey((PrivateKey) keyStore.getKey(entry, secret));
+                credential.setEntityCertificate(chain.get(0));
+                credential.setEntityCertificateChain(chain);
+                LOG.debug("Loaded key {} from {} ({} keys loaded so far)", alias, bundle, loads.incrementAndGet());
+                return credential;
+            }
+            throw new IllegalStateException("No private key found in " + bundle);
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.error("Error loading key " + alias + " from " + bundle, e);
+            throw new RuntimeException("Error loading key " + alias, e);
+        }
+    }
+
+    /**
+     * @return lowercase hex SHA-256 fingerprint of the certificate
+     */
+    public static String fingerprint(X509Certificate certificate) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new IllegalStateException("Unable to compute certificate fingerprint", e);
+        }
+    }
+
+    private static String normalizeFingerprint(String fingerprint) {
+        return fingerprint.trim().replace(":", "").toLowerCase();
+    }
+
+    public int getIndexedCount() {
+        return bundles.size();
+    }
+
+    public int getCachedCount() {
+        return credentials.size();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return number of keys which failed to load and are not retried yet
+     */
+    public int getFailedCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (FailedLoad failure : failures.values()) {
+            if (failure.retryAt > now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @param retryDelay seconds during which a key which failed to load is reported as failed
+     *                   without opening its bundle again
+     */
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    private static final class FailedLoad {
+
+        private final long retryAt;
+
+        private final RuntimeException cause;
+
+        FailedLoad(long retryAt, RuntimeException cause) {
+            this.retryAt = retryAt;
+            this.cause = cause;
+        }
+    }
+
+}
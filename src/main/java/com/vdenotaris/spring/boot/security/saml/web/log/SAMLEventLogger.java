@@ -0,0 +1,513 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.StatusResponseType;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.log.SAMLLogger;
+import org.w3c.dom.Element;
+
+/**
+ * SAML logger writing one JSON line per event to the {@code saml.events}
+ * logger, off the request thread.
+ * <p>
+ * The request thread only copies references to the fields of the event into a
+ * preallocated slot and queues it, which allocates nothing; when all the slots
+ * are in use the event is dropped and counted. A single writer thread then
+ * serializes the outbound messages, keeps the last messages in full for
+ * {@link #getRecentMessages()}, and logs the events selected by the
+ * {@link SampleRates}, with the size and SHA-256 hash of their message and at
+ * most its first characters.
+ * <p>
+ * Inbound messages are kept as received in the request, the decoding of the
+ * HTTP-POST and HTTP-Redirect encodings being left to the callers of
+ * {@link RecentMessage#getMessage()}.
+ */
+public class SAMLEventLogger implements SAMLLogger, DisposableBean {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(SAMLEventLogger.class);
+
+    private static final Logger EVENTS = LoggerFactory.getLogger("saml.events");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final BlockingQueue<Event> free;
+
+    private final BlockingQueue<Event> pending;
+
+    private final SampleRates sampleRates;
+
+    private final int maxMessageLength;
+
+    private final RecentMessage[] recentMessages;
+
+    private final Thread writer;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private final AtomicLong sampled = new AtomicLong();
+
+    private long recentCount;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param queueSize        number of events waiting for the writer thread
+     * @param sampleRates      fraction of the events logged
+     * @param maxMessageLength number of characters of the messages logged, none if 0
+     * @param recentMessages   number of messages kept in full
+     */
+    public SAMLEventLogger(int queueSize, SampleRates sampleRates, int maxMessageLength, int recentMessages) {
+        this.free = new ArrayBlockingQueue<Event>(queueSize);
+        this.pending = new ArrayBlockingQueue<Event>(queueSize);
+        for (int i = 0; i < queueSize; i++) {
+            free.add(new Event());
+        }
+        this.sampleRates = sampleRates;
+        this.maxMessageLength = maxMessageLength;
+        this.recentMessages = new RecentMessage[recentMessages];
+        this.writer = new Thread(this::write, "saml-event-logger");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void log(String operation, String result, SAMLMessageContext context) {
+        log(operation, result, context, SecurityContextHolder.getContext().getAuthentication(), null);
+    }
+
+    @Override
+    public void log(String operation, String result, SAMLMessageContext context, Exception e) {
+        log(operation, result, context, SecurityContextHolder.getContext().getAuthentication(), e);
+    }
+
+    @Override
+    public void log(String operation, String result, SAMLMessageContext context, Authentication a, Exception e) {
+        Event event = free.poll();
+        if (event == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        event.timestamp = System.currentTimeMillis();
+        event.operation = operation;
+        event.result = result;
+        event.error = e;
+        if (a != null) {
+            event.principal = a.getCredentials() instanceof SAMLCredential
+                    && ((SAMLCredential) a.getCredentials()).getNameID() != null
+                    ? ((SAMLCredential) a.getCredentials()).getNameID().getValue() : a.getPrincipal();
+        }
+        if (context != null) {
+            event.localEntityId = context.getLocalEntityId();
+            event.peerEntityId = context.getPeerEntityId();
+            event.binding = context.getInboundSAMLBinding();
+            SAMLObject message = context.getInboundSAMLMessage();
+            if (context.getInboundMessageTransport() instanceof HTTPInTransport) {
+                HTTPInTransport transport = (HTTPInTransport) context.getInboundMessageTransport();
+                event.peerAddress = transport.getPeerAddress();
+                event.payload = transport.getParameterValue("SAMLResponse");
+                if (event.payload == null) {
+                    event.payload = transport.getParameterValue("SAMLRequest");
+                }
+            }
+            if (message == null && context.getOutboundSAMLMessage() != null) {
+                // Not used by the request thread anymore, serialized by the writer
+                message = context.getOutboundSAMLMessage();
+                event.outboundMessage = message.getDOM();
+                event.binding = null;
+            }
+            if (message != null) {
+                event.messageType = message.getElementQName().getLocalPart();
+                event.messageId = message instanceof RequestAbstractType ? ((RequestAbstractType) message).getID()
+                        : message instanceof StatusResponseType ? ((StatusResponseType) message).getID() : null;
+            }
+        }
+        pending.offer(event);
+    }
+
+    private void write() {
+        StringBuilder line = new StringBuilder(1024);
+        MessageDigest digest = sha256();
+        while (running || !pending.isEmpty()) {
+            Event event;
+            try {
+                event = pending.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                write(event, line, digest);
+            } catch (RuntimeException e) {
+                LOG.warn("Error logging SAML event " + event.operation, e);
+            } finally {
+                event.clear();
+                free.offer(event);
+                processed.incrementAndGet();
+            }
+        }
+    }
+
+    private void write(Event event, StringBuilder line, MessageDigest digest) {
+        String payload = event.payload;
+        MessageEncoding encoding = getEncoding(event.binding);
+        if (event.outboundMessage != null) {
+            payload = XMLHelper.nodeToString(event.outboundMessage);
+            encoding = MessageEncoding.XML;
+        }
+        if (recentMessages.length > 0) {
+            synchronized (recentMessages) {
+                recentMessages[(int) (recentCount++ % recentMessages.length)] = new RecentMessage(event.timestamp,
+                        event.operation, event.result, event.peerEntityId, event.messageType, event.messageId,
+                        payload, encoding);
+            }
+        }
+        if (!isSampled(event)) {
+            return;
+        }
+        sampled.incrementAndGet();
+        if (!EVENTS.isInfoEnabled()) {
+            return;
+        }
+        line.setLength(0);
+        line.append('{');
+        appendField(line, "timestamp", event.timestamp);
+        appendField(line, "operation", event.operation);
+        appendField(line, "result", event.result);
+        appendField(line, "peerAddress", event.peerAddress);
+        appendField(line, "sp", event.localEntityId);
+        appendField(line, "idp", event.peerEntityId);
+        appendField(line, "user", getName(event.principal));
+        appendField(line, "messageType", event.messageType);
+        appendField(line, "messageId", event.messageId);
+        if (payload != null) {
+            appendField(line, "messageSize", payload.length());
+            appendField(line, "messageSha256", hex(digest.digest(payload.getBytes(StandardCharsets.UTF_8))));
+            if (maxMessageLength > 0) {
+                appendField(line, "message", payload.length() > maxMessageLength
+                        ? payload.substring(0, maxMessageLength) : payload);
+                appendField(line, "messageTruncated", payload.length() > maxMessageLength);
+            }
+        }
+        if (event.error != null) {
+            appendField(line, "error", event.error.getClass().getName());
+            appendField(line, "errorMessage", event.error.getMessage());
+        }
+        line.setLength(line.length() - 1);
+        line.append('}');
+        EVENTS.info(line.toString());
+    }
+
+    private boolean isSampled(Event event) {
+        double rate = sampleRates.get(event.operation, event.result);
+        return rate >= 1 || rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private static MessageEncoding getEncoding(String binding) {
+        return SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(binding) ? MessageEncoding.DEFLATE_BASE64
+                : MessageEncoding.BASE64;
+    }
+
+    private static String getName(Object principal) {
+        if (principal == null || principal instanceof String) {
+            return (String) principal;
+        }
+        if (principal instanceof UserDetails) {
+            return ((UserDetails) principal).getUsername();
+        }
+        if (principal instanceof Principal) {
+            return ((Principal) principal).getName();
+        }
+        return principal.toString();
+    }
+
+    private static void appendField(StringBuilder line, String name, Object value) {
+        if (value == null) {
+            return;
+        }
+        line.append('"').append(name).append("\":");
+        if (value instanceof Number || value instanceof Boolean) {
+            line.append(value);
+        } else {
+            line.append('"');
+            String string = value.toString();
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < 0x20) {
+                    line.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+        line.append(',');
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * @return the last messages processed, the most recent first
+     */
+    public List<RecentMessage> getRecentMessages() {
+        List<RecentMessage> messages = new ArrayList<RecentMessage>(recentMessages.length);
+        synchronized (recentMessages) {
+            for (long i = recentCount - 1; i >= 0 && i >= recentCount - recentMessages.length; i--) {
+                messages.add(recentMessages[(int) (i % recentMessages.length)]);
+            }
+        }
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * @return number of events dropped because the writer thread was behind
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of events handled by the writer thread, logged or not
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return number of events selected by the sample rates, written to the log
+     *         when the saml.events logger is at the INFO level
+     */
+    public long getSampledCount() {
+        return sampled.get();
+    }
+
+    /**
+     * Logs the events queued and stops the writer thread.
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        writer.interrupt();
+        writer.join(5000);
+    }
+
+    /**
+     * Slot of an event queued for the writer thread, reused.
+     */
+    private static final class Event {
+
+        long timestamp;
+
+        String operation;
+
+        String result;
+
+        String peerAddress;
+
+        String localEntityId;
+
+        String peerEntityId;
+
+        String binding;
+
+        String messageType;
+
+        String messageId;
+
+        Object principal;
+
+        String payload;
+
+        Element outboundMessage;
+
+        Exception error;
+
+        void clear() {
+            operation = result = peerAddress = localEntityId = peerEntityId = binding = null;
+            messageType = messageId = payload = null;
+            principal = null;
+            outboundMessage = null;
+            error = null;
+        }
+
+    }
+
+    /**
+     * How the message of a {@link RecentMessage} is encoded.
+     */
+    public enum MessageEncoding {
+
+        /**
+         * XML, as the outbound messages.
+         */
+        XML,
+
+        /**
+         * Base64 encoded XML, as received with the HTTP-POST binding.
+         */
+        BASE64,
+
+        /**
+         * Deflated and base64 encoded XML, as received with the HTTP-Redirect binding.
+         */
+        DEFLATE_BASE64
+
+    }
+
+    /**
+     * Message of a recent SAML event, in full.
+     */
+    public static final class RecentMessage {
+
+        private final long timestamp;
+
+        private final String operation;
+
+        private final String result;
+
+        private final String idp;
+
+        private final String messageType;
+
+        private final String messageId;
+
+        private final String payload;
+
+        private final MessageEncoding encoding;
+
+        RecentMessage(long timestamp, String operation, String result, String idp, String messageType,
+                String messageId, String payload, MessageEncoding encoding) {
+            this.timestamp = timestamp;
+            this.operation = operation;
+            this.result = result;
+            this.idp = idp;
+            this.messageType = messageType;
+            this.messageId = messageId;
+            this.payload = payload;
+            this.encoding = encoding;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        public String getIdp() {
+            return idp;
+        }
+
+        public String getMessageType() {
+            return messageType;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        /**
+         * @return the message as XML, decoded on each call, null if the event had no
+         *         message or it can't be decoded
+         */
+        public String getMessage() {
+            if (payload == null || encoding == MessageEncoding.XML) {
+                return payload;
+            }
+            try {
+                byte[] decoded = Base64.getMimeDecoder().decode(payload);
+                return new String(encoding == MessageEncoding.DEFLATE_BASE64 ? inflate(decoded) : decoded,
+                        StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException | DataFormatException e) {
+                return null;
+            }
+        }
+
+        private static byte[] inflate(byte[] deflated) throws DataFormatException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(deflated);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+                byte[] buffer = new byte[4096];
+                while (!inflater.finished()) {
+                    int length = inflater.inflate(buffer);
+                    if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated deflated message");
+                    }
+                    out.write(buffer, 0, length);
+                }
+                return out.toByteArray();
+            } finally {
+                inflater.end();
+            }
+        }
+
+    }
+
+}
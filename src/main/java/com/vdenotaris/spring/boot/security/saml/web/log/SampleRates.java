@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fraction of the SAML events written to the log, by operation and result, as
+ * given by a list such as {@code AuthNResponse=0.1,AuthNResponse:FAILURE=1,*=0.5}.
+ * The most specific entry applies, events matching no entry are all logged.
+ */
+public final class SampleRates {
+
+    private static final String ANY = "*";
+
+    private static final Double ALL = 1.0;
+
+    private final Map<String, Map<String, Double>> rates;
+
+    private SampleRates(Map<String, Map<String, Double>> rates) {
+        this.rates = rates;
+    }
+
+    /**
+     * @param rates comma separated {@code operation[:result]=rate}, operation or result being * for any
+     * @throws IllegalArgumentException if an entry can't be parsed or a rate isn't between 0 and 1
+     */
+    public static SampleRates parse(String rates) {
+        Map<String, Map<String, Double>> parsed = new HashMap<String, Map<String, Double>>();
+        for (String entry : rates.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("Sample rate " + entry + " is not of the form operation[:result]=rate");
+            }
+            String key = entry.substring(0, equals).trim();
+            double rate = Double.parseDouble(entry.substring(equals + 1).trim());
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("Sample rate of " + key + " must be between 0 and 1");
+            }
+            int colon = key.indexOf(':');
+            String operation = colon == -1 ? key : key.substring(0, colon);
+            String result = colon == -1 ? ANY : key.substring(colon + 1);
+            Map<String, Double> byResult = parsed.get(operation);
+            if (byResult == null) {
+                byResult = new HashMap<String, Double>();
+                parsed.put(operation, byResult);
+            }
+            byResult.put(result, rate);
+        }
+        return new SampleRates(parsed);
+    }
+
+    public static SampleRates all() {
+        return new SampleRates(Collections.<String, Map<String, Double>>emptyMap());
+    }
+
+    /**
+     * @return the fraction of the events of the operation and result to log
+     */
+    public double get(String operation, String result) {
+        Double rate = get(rates.get(operation), result);
+        if (rate == null) {
+            rate = get(rates.get(ANY), result);
+        }
+        return rate != null ? rate : ALL;
+    }
+
+    private static Double get(Map<String, Double> byResult, String result) {
+        if (byResult == null) {
+            return null;
+        }
+        Double rate = byResult.get(result);
+        return rate != null ? rate : byResult.get(ANY);
+    }
+
+}
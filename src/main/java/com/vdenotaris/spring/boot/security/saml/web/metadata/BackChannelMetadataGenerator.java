@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.springframework.security.saml.metadata.MetadataGenerator;
+
+import com.vdenotaris.spring.boot.security.saml.web.filters.SOAPLogoutProcessingFilter;
+
+/**
+ * Metadata generator publishing the SOAP Single Logout endpoint on its own
+ * path, {@value SOAPLogoutProcessingFilter#FILTER_URL}, ahead of the alias.
+ */
+public class BackChannelMetadataGenerator extends MetadataGenerator {
+
+    private static final String SOAP_PATH = "/soap";
+
+    private static final String ALIAS_PATH = "/alias/";
+
+    @Override
+    protected SingleLogoutService getSingleLogoutService(String entityBaseURL, String entityAlias, String binding) {
+        SingleLogoutService logoutService = super.getSingleLogoutService(entityBaseURL, entityAlias, binding);
+        if (SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(binding)) {
+            String location = logoutService.getLocation();
+            int aliasIndex = location.indexOf(ALIAS_PATH);
+            logoutService.setLocation(aliasIndex == -1 ? location + SOAP_PATH
+                    : location.substring(0, aliasIndex) + SOAP_PATH + location.substring(aliasIndex));
+        }
+        return logoutService;
+    }
+
+}
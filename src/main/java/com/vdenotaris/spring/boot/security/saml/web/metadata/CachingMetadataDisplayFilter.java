@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.io.MarshallingException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataDisplayFilter;
+import org.springframework.util.Assert;
+
+import com.vdenotaris.spring.boot.security.saml.web.metadata.HostedSPRegistry.HostedSP;
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Metadata display filter serving pre-serialized documents.
+ * <p>
+ * The metadata of each hosted SP (including the tenant SPs of the
+ * {@link HostedSPRegistry}) is marshalled, signed when enabled, and gzipped
+ * once. The cached document is reused until the entity descriptor is replaced
+ * in the metadata manager or the signing certificate changes, and is served
+ * with a strong ETag so that polling clients get a 304 without a body.
+ */
+public class CachingMetadataDisplayFilter extends MetadataDisplayFilter {
+
+    private static final String ALIAS_PATH = "/alias/";
+
+    private static final String CONTENT_TYPE = "application/samlmetadata+xml";
+
+    private final LruCache<String, MetadataDocument> documents;
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private HostedSPRegistry hostedSPRegistry;
+
+    private int maxAge = 300;
+
+    public CachingMetadataDisplayFilter() {
+        this(1000);
+    }
+
+    /**
+     * @param maxCachedDocuments maximum number of serialized documents kept in memory
+     */
+    public CachingMetadataDisplayFilter(int maxCachedDocuments) {
+        this.documents = new LruCache<String, MetadataDocument>(maxCachedDocuments);
+    }
+
+    @Override
+    protected void processMetadataDisplay(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        MetadataDocument document;
+        try {
+            document = getDocument(request);
+        } catch (MetadataProviderException e) {
+            throw new ServletException("Error initializing metadata", e);
+        } catch (MarshallingException e) {
+            log.error("Error marshalling entity descriptor", e);
+            throw new ServletException(e);
+        }
+
+        boolean gzip = acceptsGzip(request);
+        String etag = gzip ? document.gzipEtag : document.etag;
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matches(request.getHeader("If-None-Match"), document)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = gzip ? document.gzip : document.xml;
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.addHeader("Content-Disposition", "attachment; filename=\"spring_saml_metadata.xml\"");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    protected MetadataDocument getDocument(HttpServletRequest request)
+            throws MetadataProviderException, MarshallingException {
+        String tenant = hostedSPRegistry.resolveTenant(request);
+        if (tenant != null && manager.getEntityIdForAlias(tenant) == null) {
+            HostedSP hostedSP = hostedSPRegistry.getHostedSP(tenant, request);
+            MetadataDocument document = documents.get(hostedSP.getEntityId());
+            if (document == null || document.source != hostedSP) {
+                document = store(hostedSP.getEntityId(), new MetadataDocument(hostedSP, null,
+                        hostedSP.getMetadata()));
+            }
+            return document;
+        }
+
+        String entityId = getLocalEntityId(request);
+        EntityDescriptor descriptor = manager.getEntityDescriptor(entityId);
+        if (descriptor == null) {
+            throw new MetadataProviderException("Metadata entity with ID " + entityId + " wasn't found");
+        }
+        X509Certificate signingCertificate = getSigningCertificate(entityId);
+        MetadataDocument document = documents.get(entityId);
+        if (document == null || document.source != descriptor
+                || !equals(document.signingCertificate, signingCertificate)) {
+            document = store(entityId, new MetadataDocument(descriptor, signingCertificate,
+                    getMetadataAsString(descriptor)));
+        }
+        return document;
+    }
+
+    /*
+     * Same resolution as SAMLContextProviderImpl, without building a whole message context.
+     */
+    private String getLocalEntityId(HttpServletRequest request) throws MetadataProviderException {
+        String entityId = (String) request.getAttribute("localEntityId");
+        if (entityId != null) {
+            return entityId;
+        }
+        String uri = request.getRequestURI();
+        int aliasIndex = uri == null ? -1 : uri.indexOf(ALIAS_PATH);
+        if (aliasIndex == -1) {
+            return manager.getHostedSPName();
+        }
+        String alias = uri.substring(aliasIndex + ALIAS_PATH.length());
+        int roleIndex = alias.lastIndexOf('/');
+        if (roleIndex != -1) {
+            alias = alias.substring(0, roleIndex);
+        }
+        entityId = manager.getEntityIdForAlias(alias);
+        if (entityId == null) {
+            throw new MetadataProviderException("No local entity found for alias " + alias + ", verify your configuration.");
+        }
+        return entityId;
+    }
+
+    private X509Certificate getSigningCertificate(String entityId) throws MetadataProviderException {
+        ExtendedMetadata extendedMetadata = manager.getExtendedMetadata(entityId);
+        if (extendedMetadata == null || !extendedMetadata.isSignMetadata()) {
+            return null;
+        }
+        String signingKey = extendedMetadata.getSigningKey() != null
+                ? extendedMetadata.getSigningKey() : keyManager.getDefaultCredentialName();
+        return keyManager.getCertificate(signingKey);
+    }
+
+    private MetadataDocument store(String entityId, MetadataDocument document) {
+        documents.put(entityId, document);
+        generated.incrementAndGet();
+        return document;
+    }
+
+    /**
+     * Drops the cached document of an entity, e.g. after its keys were rotated.
+     */
+    public void evict(String entityId) {
+        documents.remove(entityId);
+    }
+
+    public void evictAll() {
+        documents.clear();
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    private static boolean matches(String ifNoneMatch, MetadataDocument document) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(document.etag) || tag.equals(document.gzipEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(X509Certificate first, X509Certificate second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    @Autowired
+    public void setHostedSPRegistry(HostedSPRegistry hostedSPRegistry) {
+        this.hostedSPRegistry = hostedSPRegistry;
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge seconds during which clients may reuse the metadata without revalidating it
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws ServletException {
+        super.afterPropertiesSet();
+        Assert.notNull(hostedSPRegistry, "Hosted SP registry must be set");
+    }
+
+    /**
+     * Serialized metadata of one entity, in plain and gzip encodings.
+     */
+    protected static final class MetadataDocument {
+
+        private final Object source;
+
+        private final X509Certificate signingCertificate;
+
+        private final byte[] xml;
+
+        private final byte[] gzip;
+
+        private final String etag;
+
+        private final String gzipEtag;
+
+        MetadataDocument(Object source, X509Certificate signingCertificate, String metadata) {
+            this.source = source;
+            this.signingCertificate = signingCertificate;
+            this.xml = metadata.getBytes(StandardCharsets.UTF_8);
+            this.gzip = gzip(xml);
+            String digest = digest(xml);
+            this.etag = "\"" + digest + "\"";
+            this.gzipEtag = "\"" + digest + "-gzip\"";
+        }
+
+        private static byte[] gzip(byte[] content) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(content);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to compress metadata", e);
+            }
+            return out.toByteArray();
+        }
+
+        private static String digest(byte[] content) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+
+}
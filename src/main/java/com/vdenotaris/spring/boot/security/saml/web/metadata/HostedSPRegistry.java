@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataGenerator;
+import org.springframework.security.saml.util.SAMLUtil;
+
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Registry of the service providers hosted on behalf of tenants.
+ * <p>
+ * Tenant SPs are not registered in the {@link org.springframework.security.saml.metadata.MetadataManager}:
+ * their metadata is generated (and signed, when the extended metadata asks for it)
+ * the first time a tenant is seen, using the application {@link MetadataGenerator}
+ * as a template, and kept in a size-bounded LRU cache. Startup cost is therefore
+ * independent of the number of tenants and memory is capped by the cache size.
+ */
+public class HostedSPRegistry {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(HostedSPRegistry.class);
+
+    public static final String TENANT_PLACEHOLDER = "{tenant}";
+
+    private static final String ALIAS_PATH = "/alias/";
+
+    /**
+     * Where the tenant identifier is taken from.
+     */
+    public enum TenantResolution {
+        /** First label of the request host, e.g. {@code acme.sp.example.com}. */
+        HOST,
+        /** Spring SAML alias path segment, e.g. {@code /saml/SSO/alias/acme}. */
+        PATH
+    }
+
+    private final MetadataGenerator template;
+
+    private final KeyManager keyManager;
+
+    private final TenantDirectory tenantDirectory;
+
+    private final LruCache<String, HostedSP> hostedSPs;
+
+    private final ConcurrentMap<String, FutureTask<HostedSP>> pending =
+            new ConcurrentHashMap<String, FutureTask<HostedSP>>();
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private TenantResolution tenantResolution = TenantResolution.PATH;
+
+    private String entityIdPattern = "com:example:spring:sp:" + TENANT_PLACEHOLDER;
+
+    private String entityBaseURLPattern;
+
+    /**
+     * @param template        generator whose settings are applied to every tenant SP
+     * @param keyManager      key manager holding the tenant signing and encryption keys
+     * @param tenantDirectory known tenants
+     * @param maxHostedSPs    maximum number of tenant SPs kept in memory
+     */
+    public HostedSPRegistry(MetadataGenerator template, KeyManager keyManager,
+            TenantDirectory tenantDirectory, int maxHostedSPs) {
+        this.template = template;
+        this.keyManager = keyManager;
+        this.tenantDirectory = tenantDirectory;
+        this.hostedSPs = new LruCache<String, HostedSP>(maxHostedSPs);
+    }
+
+    /**
+     * Extracts the tenant targeted by a request.
+     *
+     * @return the tenant identifier, or null when the request is for the main hosted SP
+     */
+    public String resolveTenant(HttpServletRequest request) {
+        String tenant;
+        if (tenantResolution == TenantResolution.HOST) {
+            String host = request.getServerName();
+            int dot = host == null ? -1 : host.indexOf('.');
+            tenant = dot > 0 ? host.substring(0, dot) : null;
+        } else {
+            String uri = request.getRequestURI();
+            int aliasIndex = uri == null ? -1 : uri.indexOf(ALIAS_PATH);
+            if (aliasIndex == -1) {
+                tenant = null;
+            } else {
+                tenant = uri.substring(aliasIndex + ALIAS_PATH.length());
+                int slash = tenant.indexOf('/');
+                if (slash != -1) {
+                    tenant = tenant.substring(0, slash);
+                }
+            }
+        }
+        return tenant != null && tenantDirectory.isTenant(tenant) ? tenant : null;
+    }
+
+    /**
+     * Returns the hosted SP of a tenant, generating it on first use. Concurrent
+     * first requests for the same tenant share a single generation.
+     *
+     * @param tenant  tenant identifier, as returned by {@link #resolveTenant(HttpServletRequest)}
+     * @param request request used to derive the entity base URL when no pattern is configured
+     */
+    public HostedSP getHostedSP(String tenant, HttpServletRequest request) throws MetadataProviderException {
+        HostedSP hostedSP = hostedSPs.get(tenant);
+        if (hostedSP != null) {
+            return hostedSP;
+        }
+        final String entityBaseURL = getEntityBaseURL(tenant, request);
+        FutureTask<HostedSP> task = new FutureTask<HostedSP>(() -> generate(tenant, entityBaseURL));
+        FutureTask<HostedSP> current = pending.putIfAbsent(tenant, task);
+        if (current == null) {
+            current = task;
+            task.run();
+        }
+        try {
+            return current.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetadataProviderException("Interrupted while generating metadata of tenant " + tenant, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MetadataProviderException) {
+                throw (MetadataProviderException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new MetadataProviderException("Error generating metadata of tenant " + tenant, (Exception) e.getCause());
+        } finally {
+            pending.remove(tenant, current);
+        }
+    }
+
+    /**
+     * Drops the cached SP of a tenant, e.g. after its keys were rotated.
+     */
+    public void evict(String tenant) {
+        hostedSPs.remove(tenant);
+    }
+
+    /**
+     * Drops every cached tenant SP, e.g. after the template generator was reconfigured.
+     */
+    public void evictAll() {
+        hostedSPs.clear();
+    }
+
+    protected HostedSP generate(String tenant, String entityBaseURL) throws MetadataProviderException {
+        ExtendedMetadata extendedMetadata = template.getExtendedMetadata() != null
+                ? template.getExtendedMetadata().clone() : new ExtendedMetadata();
+        extendedMetadata.setAlias(tenant);
+        Credential credential = keyManager.getCredential(tenant);
+        if (credential == null || credential.getPrivateKey() == null) {
+            throw new MetadataProviderException("Tenant " + tenant + " has no private key");
+        }
+        extendedMetadata.setSigningKey(tenant);
+        extendedMetadata.setEncryptionKey(tenant);
+
+        MetadataGenerator generator = template instanceof BackChannelMetadataGenerator
+                ? new BackChannelMetadataGenerator() : new MetadataGenerator();
+        generator.setEntityId(entityIdPattern.replace(TENANT_PLACEHOLDER, tenant));
+        generator.setEntityBaseURL(entityBaseURL);
+        generator.setExtendedMetadata(extendedMetadata);
+        generator.setKeyManager(keyManager);
+        generator.setRequestSigned(template.isRequestSigned());
+        generator.setWantAssertionSigned(template.isWantAssertionSigned());
+        generator.setNameID(template.getNameID());
+        generator.setBindingsSSO(template.getBindingsSSO());
+        generator.setBindingsHoKSSO(template.getBindingsHoKSSO());
+        generator.setBindingsSLO(template.getBindingsSLO());
+        generator.setIncludeDiscoveryExtension(template.isIncludeDiscoveryExtension());
+        generator.setAssertionConsumerIndex(template.getAssertionConsumerIndex());
+
+        EntityDescriptor descriptor = generator.generateMetadata();
+        ExtendedMetadata generatedExtendedMetadata = generator.generateExtendedMetadata();
+        String metadata;
+        try {
+            metadata = SAMLUtil.getMetadataAsString(null, keyManager, descriptor, generatedExtendedMetadata);
+        } catch (MarshallingException e) {
+            throw new MetadataProviderException("Error marshalling metadata of tenant " + tenant, e);
+        }
+
+        HostedSP hostedSP = hostedSPs.putIfAbsent(tenant,
+                new HostedSP(tenant, descriptor, generatedExtendedMetadata, metadata));
+        long count = generated.incrementAndGet();
+        LOG.info("Generated metadata for tenant {} with entityID {} ({} generated so far)",
+                tenant, descriptor.getEntityID(), count);
+        return hostedSP;
+    }
+
+    protected String getEntityBaseURL(String tenant, HttpServletRequest request) {
+        if (entityBaseURLPattern != null) {
+            return entityBaseURLPattern.replace(TENANT_PLACEHOLDER, tenant);
+        }
+        if (tenantResolution == TenantResolution.PATH && template.getEntityBaseURL() != null) {
+            return template.getEntityBaseURL();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.getScheme()).append("://").append(request.getServerName())
+                .append(":").append(request.getServerPort()).append(request.getContextPath());
+        return sb.toString();
+    }
+
+    public int getCachedCount() {
+        return hostedSPs.size();
+    }
+
+    public long getGeneratedCount() {
+        return generated.get();
+    }
+
+    public long getEvictedCount() {
+        return hostedSPs.getEvictions();
+    }
+
+    public TenantResolution getTenantResolution() {
+        return tenantResolution;
+    }
+
+    public void setTenantResolution(TenantResolution tenantResolution) {
+        this.tenantResolution = tenantResolution;
+    }
+
+    public String getEntityIdPattern() {
+        return entityIdPattern;
+    }
+
+    /**
+     * @param entityIdPattern entity ID of the tenant SPs, {@value #TENANT_PLACEHOLDER} is replaced by the tenant
+     */
+    public void setEntityIdPattern(String entityIdPattern) {
+        this.entityIdPattern = entityIdPattern;
+    }
+
+    public String getEntityBaseURLPattern() {
+        return entityBaseURLPattern;
+    }
+
+    /**
+     * @param entityBaseURLPattern base URL of the tenant SPs, {@value #TENANT_PLACEHOLDER} is replaced
+     *                             by the tenant; when not set the URL is derived from the first request
+     */
+    public void setEntityBaseURLPattern(String entityBaseURLPattern) {
+        this.entityBaseURLPattern = entityBaseURLPattern;
+    }
+
+    /**
+     * Generated SP of one tenant, immutable once built.
+     */
+    public static final class HostedSP {
+
+        private final String tenant;
+
+        private final EntityDescriptor entityDescriptor;
+
+        private final SPSSODescriptor roleDescriptor;
+
+        private final ExtendedMetadata extendedMetadata;
+
+        private final String metadata;
+
+        HostedSP(String tenant, EntityDescriptor entityDescriptor,
+                ExtendedMetadata extendedMetadata, String metadata) {
+            this.tenant = tenant;
+            this.entityDescriptor = entityDescriptor;
+            this.roleDescriptor = entityDescriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+            this.extendedMetadata = extendedMetadata;
+            this.metadata = metadata;
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        public String getEntityId() {
+            return entityDescriptor.getEntityID();
+        }
+
+        public EntityDescriptor getEntityDescriptor() {
+            return entityDescriptor;
+        }
+
+        public SPSSODescriptor getRoleDescriptor() {
+            return roleDescriptor;
+        }
+
+        public ExtendedMetadata getExtendedMetadata() {
+            return extendedMetadata;
+        }
+
+        /**
+         * @return serialized (and signed, when enabled) metadata document
+         */
+        public String getMetadata() {
+            return metadata;
+        }
+    }
+
+}
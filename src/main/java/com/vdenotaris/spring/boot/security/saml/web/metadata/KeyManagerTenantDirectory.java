@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import org.opensaml.xml.security.credential.Credential;
+import org.springframework.security.saml.key.KeyManager;
+
+import com.vdenotaris.spring.boot.security.saml.web.key.IndexedKeyManager;
+
+/**
+ * Treats every private key alias of the {@link KeyManager} (except the default
+ * key, which belongs to the main hosted SP) as a tenant: a tenant exists as
+ * soon as its signing key has been provisioned. Trusted certificates, such as
+ * those of the IdPs, are not tenants. Keys are looked up by alias rather than
+ * through {@link KeyManager#getAvailableCredentials()}, which key managers
+ * serving many keys don't enumerate.
+ * <p>
+ * With an {@link IndexedKeyManager}, the keys of its directory are tenants as
+ * soon as they are indexed, without opening their bundles: the key of a tenant
+ * is only loaded when its SP is generated or signs a message.
+ */
+public class KeyManagerTenantDirectory implements TenantDirectory {
+
+    private final KeyManager keyManager;
+
+    public KeyManagerTenantDirectory(KeyManager keyManager) {
+        this.keyManager = keyManager;
+    }
+
+    @Override
+    public boolean isTenant(String tenantId) {
+        return tenantId != null
+                && !tenantId.equals(keyManager.getDefaultCredentialName())
+                && (isIndexed(tenantId) || hasPrivateKey(tenantId));
+    }
+
+    private boolean isIndexed(String alias) {
+        return keyManager instanceof IndexedKeyManager && ((IndexedKeyManager) keyManager).isIndexed(alias);
+    }
+
+    private boolean hasPrivateKey(String alias) {
+        try {
+            Credential credential = keyManager.getCredential(alias);
+            return credential != null && credential.getPrivateKey() != null;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+}
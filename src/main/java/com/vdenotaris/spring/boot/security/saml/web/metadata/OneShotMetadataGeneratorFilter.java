@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.saml.metadata.MetadataGenerator;
+import org.springframework.security.saml.metadata.MetadataGeneratorFilter;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+/**
+ * Metadata generator filter which stops touching the metadata manager once the
+ * hosted SP exists.
+ * <p>
+ * The filter sits in front of the whole security chain, so the default
+ * implementation reads the hosted SP name of the metadata manager on every
+ * request of the application. This one does so only until the hosted SP is
+ * known, then flips a volatile flag after which it merely passes requests on.
+ * Any request may trigger the generation, as the entry point of a protected
+ * page needs the hosted SP as much as the SAML endpoints do.
+ */
+public class OneShotMetadataGeneratorFilter extends MetadataGeneratorFilter {
+
+    private volatile boolean initialized;
+
+    private final AtomicLong generations = new AtomicLong();
+
+    public OneShotMetadataGeneratorFilter(MetadataGenerator generator) {
+        super(generator);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!initialized) {
+            processMetadataInitialization((HttpServletRequest) request);
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    protected void processMetadataInitialization(HttpServletRequest request) throws ServletException {
+        if (manager.getHostedSPName() == null) {
+            // Same monitor as the default implementation, so that the check below is exact
+            synchronized (MetadataManager.class) {
+                if (manager.getHostedSPName() == null) {
+                    super.processMetadataInitialization(request);
+                    log.info("Hosted SP metadata generated ({} generations so far)", generations.incrementAndGet());
+                }
+            }
+        }
+        initialized = manager.getHostedSPName() != null;
+    }
+
+    /**
+     * @return true once the hosted SP exists and requests are no longer inspected
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * @return number of times hosted SP metadata was actually generated
+     */
+    public long getGenerationCount() {
+        return generations.get();
+    }
+
+}
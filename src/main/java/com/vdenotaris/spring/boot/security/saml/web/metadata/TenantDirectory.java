@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+/**
+ * Source of truth for the tenants hosted by this service provider.
+ * <p>
+ * Implementations are consulted on the request path, so lookups are
+ * expected to be constant time (an index, not a scan).
+ */
+public interface TenantDirectory {
+
+    /**
+     * @param tenantId tenant identifier taken from the request host or path
+     * @return true if a hosted SP should be served for the tenant
+     */
+    boolean isTenant(String tenantId);
+
+}
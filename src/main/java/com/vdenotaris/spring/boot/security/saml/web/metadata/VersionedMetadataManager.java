@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.springframework.security.saml.metadata.CachingMetadataManager;
+
+import com.vdenotaris.spring.boot.security.saml.web.jfr.MetadataRefreshEvent;
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLFlightRecorder;
+
+/**
+ * Metadata manager numbering its snapshots, so that views derived from the
+ * metadata can tell whether they are still current with a single read.
+ * Refreshes are emitted as {@link MetadataRefreshEvent}s to the flight recorder.
+ */
+public class VersionedMetadataManager extends CachingMetadataManager {
+
+    private final AtomicLong version = new AtomicLong();
+
+    public VersionedMetadataManager(List<MetadataProvider> providers) throws MetadataProviderException {
+        super(providers);
+    }
+
+    @Override
+    public void refreshMetadata() {
+        if (!SAMLFlightRecorder.AVAILABLE) {
+            super.refreshMetadata();
+            version.incrementAndGet();
+            return;
+        }
+        MetadataRefreshEvent event = new MetadataRefreshEvent();
+        event.begin();
+        RuntimeException failure = null;
+        try {
+            super.refreshMetadata();
+            version.incrementAndGet();
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            event.commit(version.get(), getProviders().size(), getIDPEntityNames().size(), failure);
+        }
+    }
+
+    /**
+     * @return number of the current metadata snapshot, incremented after each refresh
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metrics;
+
+import org.opensaml.common.SAMLObject;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.EncryptedAttribute;
+import org.opensaml.saml2.core.EncryptedID;
+import org.opensaml.saml2.encryption.Decrypter;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.encryption.EncryptedKeyResolver;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+/**
+ * Decrypter of a message context timing the decryption of the elements of its
+ * message into {@link SAMLMetrics}, for the binding and IdP of the context.
+ */
+public class InstrumentedDecrypter extends Decrypter {
+
+    private final SAMLMessageContext context;
+
+    private final SAMLMetrics metrics;
+
+    public InstrumentedDecrypter(KeyInfoCredentialResolver kekResolver, EncryptedKeyResolver encryptedKeyResolver,
+            SAMLMessageContext context, SAMLMetrics metrics) {
+        super(null, kekResolver, encryptedKeyResolver);
+        this.context = context;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Assertion decrypt(EncryptedAssertion encryptedAssertion) throws DecryptionException {
+        long start = System.nanoTime();
+        try {
+            return super.decrypt(encryptedAssertion);
+        } finally {
+            record(start);
+        }
+    }
+
+    @Override
+    public Attribute decrypt(EncryptedAttribute encryptedAttribute) throws DecryptionException {
+        long start = System.nanoTime();
+        try {
+            return super.decrypt(encryptedAttribute);
+        } finally {
+            record(start);
+        }
+    }
+
+    @Override
+    public SAMLObject decrypt(EncryptedID encryptedID) throws DecryptionException {
+        long start = System.nanoTime();
+        try {
+            return super.decrypt(encryptedID);
+        } finally {
+            record(start);
+        }
+    }
+
+    private void record(long start) {
+        metrics.record(SAMLStage.DECRYPTION, context.getInboundSAMLBinding(), context.getPeerEntityId(),
+                System.nanoTime() - start);
+    }
+
+}
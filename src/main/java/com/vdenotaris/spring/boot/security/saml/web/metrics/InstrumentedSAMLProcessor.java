@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metrics;
+
+import java.util.Collection;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.security.SecurityException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLBinding;
+import org.springframework.security.saml.processor.SAMLProcessorImpl;
+
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLFlightRecorder;
+import com.vdenotaris.spring.boot.security.saml.web.jfr.SAMLMessageEvent;
+
+/**
+ * SAML processor timing the decoding and encoding of messages by each binding,
+ * failed ones included, into {@link SAMLMetrics}, and emitting them as
+ * {@link SAMLMessageEvent}s to the flight recorder.
+ */
+public class InstrumentedSAMLProcessor extends SAMLProcessorImpl {
+
+    private final SAMLMetrics metrics;
+
+    public InstrumentedSAMLProcessor(Collection<SAMLBinding> bindings, SAMLMetrics metrics) {
+        super(bindings);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public SAMLMessageContext retrieveMessage(SAMLMessageContext context, SAMLBinding binding)
+            throws SAMLException, MetadataProviderException, MessageDecodingException, SecurityException {
+        SAMLMessageEvent event = SAMLFlightRecorder.AVAILABLE ? new SAMLMessageEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        Throwable failure = null;
+        long start = System.nanoTime();
+        try {
+            return super.retrieveMessage(context, binding);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            metrics.record(SAMLStage.DECODE, binding.getBindingURI(), context.getPeerEntityId(),
+                    System.nanoTime() - start);
+            if (event != null) {
+                event.commit(true, binding.getBindingURI(), context.getInboundSAMLMessage(),
+                        context.getPeerEntityId(), getPayloadSize(context), failure);
+            }
+        }
+    }
+
+    @Override
+    protected SAMLMessageContext sendMessage(SAMLMessageContext context, boolean sign, SAMLBinding binding)
+            throws SAMLException, MetadataProviderException, MessageEncodingException {
+        SAMLMessageEvent event = SAMLFlightRecorder.AVAILABLE ? new SAMLMessageEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        Throwable failure = null;
+        long start = System.nanoTime();
+        try {
+            return super.sendMessage(context, sign, binding);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            metrics.record(SAMLStage.ENCODE, binding.getBindingURI(), context.getPeerEntityId(),
+                    System.nanoTime() - start);
+            if (event != null) {
+                event.commit(false, binding.getBindingURI(), context.getOutboundSAMLMessage(),
+                        context.getPeerEntityId(), 0, failure);
+            }
+        }
+    }
+
+    /*
+     * Size of the form or query string of the request, the message itself being
+     * encoded differently by each binding.
+     */
+    private static long getPayloadSize(SAMLMessageContext context) {
+        if (!(context.getInboundMessageTransport() instanceof HttpServletRequestAdapter)) {
+            return 0;
+        }
+        HttpServletRequest request = ((HttpServletRequestAdapter) context.getInboundMessageTransport())
+                .getWrappedRequest();
+        if (request.getContentLength() >= 0) {
+            return request.getContentLength();
+        }
+        return request.getQueryString() != null ? request.getQueryString().length() : 0;
+    }
+
+    public SAMLMetrics getMetrics() {
+        return metrics;
+    }
+
+}
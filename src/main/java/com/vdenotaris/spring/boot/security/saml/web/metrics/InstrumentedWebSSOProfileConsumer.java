@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metrics;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.validation.ValidationException;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+import com.vdenotaris.spring.boot.security.saml.web.replay.ReplayCache;
+import com.vdenotaris.spring.boot.security.saml.web.replay.ReplayCheckingWebSSOProfileConsumer;
+
+/**
+ * Web SSO consumer timing the validation of responses and the verification of
+ * their signatures into {@link SAMLMetrics}. Signatures are verified without
+ * the message context, their durations are recorded for all bindings.
+ */
+public class InstrumentedWebSSOProfileConsumer extends ReplayCheckingWebSSOProfileConsumer {
+
+    private final SAMLMetrics metrics;
+
+    public InstrumentedWebSSOProfileConsumer(ReplayCache replayCache, SAMLMetrics metrics) {
+        super(replayCache);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public SAMLCredential processAuthenticationResponse(SAMLMessageContext context)
+            throws SAMLException, SecurityException, ValidationException, DecryptionException {
+        long start = System.nanoTime();
+        try {
+            return super.processAuthenticationResponse(context);
+        } finally {
+            metrics.record(SAMLStage.VALIDATION, context.getInboundSAMLBinding(), context.getPeerEntityId(),
+                    System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected void verifySignature(Signature signature, String idpEntityId, SignatureTrustEngine trustEngine)
+            throws SecurityException, ValidationException {
+        long start = System.nanoTime();
+        try {
+            super.verifySignature(signature, idpEntityId, trustEngine);
+        } finally {
+            metrics.record(SAMLStage.SIGNATURE, null, idpEntityId, System.nanoTime() - start);
+        }
+    }
+
+    public SAMLMetrics getMetrics() {
+        return metrics;
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metrics;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency histograms of the SAML processing, by {@link SAMLStage}, binding and
+ * IdP.
+ * <p>
+ * Recording into an existing histogram only looks up the binding and IdP
+ * strings, it allocates nothing; histograms are created the first time a
+ * binding and IdP are seen for a stage. The number of IdPs is capped, since
+ * failed messages can name any entity: the durations of the IdPs seen past the
+ * cap are recorded under {@link #OTHER_IDPS}. Stages which don't know the
+ * binding or the IdP, as the user details or a message failing to decode,
+ * are recorded under {@link #UNKNOWN}.
+ */
+public class SAMLMetrics {
+
+    public static final String UNKNOWN = "-";
+
+    public static final String OTHER_IDPS = "other";
+
+    private final Map<SAMLStage, ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>>> histograms =
+            new EnumMap<SAMLStage, ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>>>(SAMLStage.class);
+
+    private final ConcurrentMap<String, Boolean> idps = new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicInteger idpCount = new AtomicInteger();
+
+    private final int maxIdPs;
+
+    /**
+     * @param maxIdPs number of IdPs with their own histograms
+     */
+    public SAMLMetrics(int maxIdPs) {
+        this.maxIdPs = maxIdPs;
+        for (SAMLStage stage : SAMLStage.values()) {
+            histograms.put(stage, new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>());
+        }
+    }
+
+    /**
+     * @param binding URI of the binding of the message, null if unknown
+     * @param idp     entity ID of the IdP, null if unknown
+     */
+    public void record(SAMLStage stage, String binding, String idp, long durationNanos) {
+        getHistogram(stage, binding != null ? binding : UNKNOWN, idp != null ? idp : UNKNOWN)
+                .record(durationNanos);
+    }
+
+    private LatencyHistogram getHistogram(SAMLStage stage, String binding, String idp) {
+        ConcurrentMap<String, LatencyHistogram> byIdP = histograms.get(stage).get(binding);
+        if (byIdP != null) {
+            LatencyHistogram histogram = byIdP.get(idp);
+            if (histogram != null) {
+                return histogram;
+            }
+        }
+        return createHistogram(stage, binding, idp);
+    }
+
+    private LatencyHistogram createHistogram(SAMLStage stage, String binding, String idp) {
+        String key = isTracked(idp) ? idp : OTHER_IDPS;
+        ConcurrentMap<String, LatencyHistogram> byIdP = histograms.get(stage).get(binding);
+        if (byIdP == null) {
+            ConcurrentMap<String, LatencyHistogram> created = new ConcurrentHashMap<String, LatencyHistogram>();
+            byIdP = histograms.get(stage).putIfAbsent(binding, created);
+            if (byIdP == null) {
+                byIdP = created;
+            }
+        }
+        LatencyHistogram histogram = byIdP.get(key);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = byIdP.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private boolean isTracked(String idp) {
+        if (UNKNOWN.equals(idp) || idps.containsKey(idp)) {
+            return true;
+        }
+        if (idpCount.incrementAndGet() > maxIdPs) {
+            idpCount.decrementAndGet();
+            return false;
+        }
+        if (idps.putIfAbsent(idp, Boolean.TRUE) != null) {
+            idpCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * @param idp entity ID of an IdP, or null for all IdPs
+     * @return the latencies recorded, by stage, binding and IdP
+     */
+    public List<StageLatency> getLatencies(String idp) {
+        List<StageLatency> latencies = new ArrayList<StageLatency>();
+        for (Map.Entry<SAMLStage, ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>>> stage
+                : histograms.entrySet()) {
+            for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> binding : stage.getValue().entrySet()) {
+                for (Map.Entry<String, LatencyHistogram> histogram : binding.getValue().entrySet()) {
+                    if (idp == null || idp.equals(histogram.getKey())) {
+                        latencies.add(new StageLatency(stage.getKey().getLabel(), binding.getKey(),
+                                histogram.getKey(), histogram.getValue().snapshot()));
+                    }
+                }
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * Latency of a stage for a binding and an IdP, in milliseconds.
+     */
+    public static final class StageLatency {
+
+        private final String stage;
+
+        private final String binding;
+
+        private final String idp;
+
+        private final LatencyHistogram.Snapshot snapshot;
+
+        StageLatency(String stage, String binding, String idp, LatencyHistogram.Snapshot snapshot) {
+            this.stage = stage;
+            this.binding = binding;
+            this.idp = idp;
+            this.snapshot = snapshot;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getBinding() {
+            return binding;
+        }
+
+        public String getIdp() {
+            return idp;
+        }
+
+        public long getCount() {
+            return snapshot.getCount();
+        }
+
+        public double getMean() {
+            return toMillis(snapshot.getMean());
+        }
+
+        public double getP50() {
+            return toMillis(snapshot.getValueAtQuantile(0.5));
+        }
+
+        public double getP90() {
+            return toMillis(snapshot.getValueAtQuantile(0.9));
+        }
+
+        public double getP99() {
+            return toMillis(snapshot.getValueAtQuantile(0.99));
+        }
+
+        public double getMax() {
+            return toMillis(snapshot.getMax());
+        }
+
+        private static double toMillis(long micros) {
+            return micros / 1000.0;
+        }
+
+    }
+
+}
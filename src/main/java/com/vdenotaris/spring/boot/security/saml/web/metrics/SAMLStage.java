@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metrics;
+
+/**
+ * Stages of the processing of SAML messages timed by {@link SAMLMetrics}.
+ * Stages nest: the validation of a response includes the verification of its
+ * signatures and its decryption, the authentication includes the validation
+ * and the user details.
+ */
+public enum SAMLStage {
+
+    /**
+     * Reading a message from the request with its binding, XML parsing and the
+     * checks of the binding security policy included.
+     */
+    DECODE("decode"),
+
+    /**
+     * Verification of the XML signature of a response or an assertion.
+     */
+    SIGNATURE("signature"),
+
+    /**
+     * Decryption of an assertion, attribute or name identifier.
+     */
+    DECRYPTION("decryption"),
+
+    /**
+     * Validation of an authentication response by the Web SSO consumer.
+     */
+    VALIDATION("validation"),
+
+    /**
+     * Loading the local user of an authenticated assertion.
+     */
+    USER_DETAILS("userDetails"),
+
+    /**
+     * Authentication of a decoded response by the authentication provider.
+     */
+    AUTHENTICATION("authentication"),
+
+    /**
+     * Signing and encoding of an outgoing message with its binding.
+     */
+    ENCODE("encode");
+
+    private final String label;
+
+    SAMLStage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+}
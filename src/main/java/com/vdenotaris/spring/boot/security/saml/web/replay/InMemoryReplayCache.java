@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replay cache held in the memory of one node.
+ * <p>
+ * Identifiers are spread over lock stripes. Each stripe maps identifiers to
+ * their expiry and groups them in time buckets of {@code bucketSeconds}, so
+ * that expired identifiers are dropped a whole bucket at a time. Expiries are
+ * capped to the {@code horizon}, the longest time an assertion can be accepted
+ * after it was issued, which bounds memory by the traffic over that period;
+ * beyond {@code maxEntries} per stripe the earliest bucket is dropped early
+ * and a warning logged.
+ * <p>
+ * A rotating Bloom filter sits in front of the stripes: most identifiers are
+ * new, and for those the stripe is written to without being searched first.
+ * The filter only picks the operation; whether an identifier was seen is
+ * always decided from the stripe, under its lock, so that concurrent
+ * submissions of the same identifier cannot both be accepted.
+ */
+public class InMemoryReplayCache implements ReplayCache {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryReplayCache.class);
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final Stripe[] stripes;
+
+    private final RotatingBloomFilter bloomFilter;
+
+    private final long horizon;
+
+    private final long bucketWidth;
+
+    private final int maxEntriesPerStripe;
+
+    private final AtomicLong replays = new AtomicLong();
+
+    private final AtomicLong bloomHits = new AtomicLong();
+
+    public InMemoryReplayCache(long horizonSeconds) {
+        this(horizonSeconds, 30, 16, 100000, 1000000);
+    }
+
+    /**
+     * @param horizonSeconds  longest time during which an identifier can be accepted
+     * @param bucketSeconds   expiry granularity
+     * @param stripes         number of lock stripes, rounded up to a power of two
+     * @param expectedEntries identifiers expected over the horizon, sizes the Bloom filter
+     * @param maxEntries      hard limit on the number of identifiers kept
+     */
+    public InMemoryReplayCache(long horizonSeconds, long bucketSeconds, int stripes, int expectedEntries,
+            int maxEntries) {
+        int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.horizon = TimeUnit.SECONDS.toMillis(horizonSeconds);
+        this.bucketWidth = TimeUnit.SECONDS.toMillis(bucketSeconds);
+        this.maxEntriesPerStripe = Math.max(1, maxEntries / count);
+        this.bloomFilter = new RotatingBloomFilter(expectedEntries, 0.01, horizon);
+    }
+
+    @Override
+    public boolean isReplay(String issuer, String id, long expiresAt) {
+        boolean replay = check(key(issuer, id), expiresAt);
+        if (replay) {
+            LOG.warn("Replay of {} issued by {} detected ({} replays so far)", id, issuer, replays.incrementAndGet());
+        }
+        return replay;
+    }
+
+    /*
+     * Records a key, returns true if it was already present.
+     */
+    boolean check(String key, long expiresAt) {
+        long now = System.currentTimeMillis();
+        long expiry = Math.min(expiresAt, now + horizon);
+        boolean known = bloomFilter.mightContain(key);
+        if (known) {
+            bloomHits.incrementAndGet();
+        } else {
+            bloomFilter.put(key);
+        }
+        Stripe stripe = stripes[spread(key.hashCode()) & (stripes.length - 1)];
+        synchronized (stripe) {
+            stripe.expire(now);
+            if (known) {
+                Long previous = stripe.expiries.get(key);
+                if (previous != null && previous >= now) {
+                    return true;
+                }
+            }
+            if (!stripe.add(key, expiry, bucketWidth, now)) {
+                return true;
+            }
+            if (stripe.expiries.size() > maxEntriesPerStripe) {
+                LOG.warn("Replay cache full, forgetting identifiers before their expiry");
+                stripe.dropFirstBucket();
+            }
+            return false;
+        }
+    }
+
+    static String key(String issuer, String id) {
+        return new StringBuilder(issuer.length() + id.length() + 1).append(issuer).append(SEPARATOR).append(id)
+                .toString();
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.expiries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getReplayCount() {
+        return replays.get();
+    }
+
+    /**
+     * @return number of lookups which the Bloom filter could not answer alone
+     */
+    public long getBloomFilterHitCount() {
+        return bloomHits.get();
+    }
+
+    private static final class Stripe {
+
+        private final Map<String, Long> expiries = new HashMap<String, Long>();
+
+        private final TreeMap<Long, List<String>> buckets = new TreeMap<Long, List<String>>();
+
+        /*
+         * Returns false, leaving the stripe unchanged, if the key is already present and not expired.
+         */
+        boolean add(String key, long expiry, long bucketWidth, long now) {
+            Long previous = expiries.put(key, expiry);
+            if (previous != null && previous >= now) {
+                expiries.put(key, previous);
+                return false;
+            }
+            Long bucket = expiry / bucketWidth * bucketWidth + bucketWidth;
+            List<String> keys = buckets.get(bucket);
+            if (keys == null) {
+                keys = new ArrayList<String>();
+                buckets.put(bucket, keys);
+            }
+            keys.add(key);
+            return true;
+        }
+
+        void expire(long now) {
+            while (!buckets.isEmpty() && buckets.firstKey() <= now) {
+                Map.Entry<Long, List<String>> bucket = buckets.pollFirstEntry();
+                remove(bucket.getValue(), bucket.getKey());
+            }
+        }
+
+        void dropFirstBucket() {
+            if (!buckets.isEmpty()) {
+                Map.Entry<Long, List<String>> bucket = buckets.pollFirstEntry();
+                remove(bucket.getValue(), bucket.getKey());
+            }
+        }
+
+        /*
+         * Keys added again with a later expiry belong to a later bucket and are kept.
+         */
+        private void remove(List<String> keys, long bucketEnd) {
+            for (String key : keys) {
+                Long expiry = expiries.get(key);
+                if (expiry != null && expiry < bucketEnd) {
+                    expiries.remove(key);
+                }
+            }
+        }
+    }
+
+}
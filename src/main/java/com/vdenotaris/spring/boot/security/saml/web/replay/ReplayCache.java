@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+/**
+ * Identifiers of the SAML messages and assertions already consumed.
+ * <p>
+ * Implementations shared by all the nodes of a cluster detect a replay
+ * whichever node received the first copy.
+ */
+public interface ReplayCache {
+
+    /**
+     * Records an identifier and tells whether it was already recorded.
+     *
+     * @param issuer    entity ID of the issuer, identifiers are only unique per issuer
+     * @param id        message or assertion identifier
+     * @param expiresAt time in milliseconds after which the message or assertion is rejected anyway,
+     *                  and the identifier can be forgotten
+     * @return true if the identifier was recorded before and has not expired
+     */
+    boolean isReplay(String issuer, String id, long expiresAt);
+
+}
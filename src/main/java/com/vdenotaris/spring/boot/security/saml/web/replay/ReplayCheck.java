@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.AbstractProfileBase;
+
+/**
+ * Replay check of the Web SSO consumers, shared by the profiles which cannot
+ * share a superclass.
+ */
+final class ReplayCheck {
+
+    private final ReplayCache replayCache;
+
+    ReplayCheck(ReplayCache replayCache) {
+        this.replayCache = replayCache;
+    }
+
+    /**
+     * @param profile consumer which accepted the response, giving its maximum age
+     */
+    void checkResponse(SAMLMessageContext context, AbstractProfileBase profile) throws SAMLException {
+        Response response = (Response) context.getInboundSAMLMessage();
+        if (response.getID() != null && replayCache.isReplay(context.getPeerEntityId(), response.getID(),
+                getExpiry(profile, response.getIssueInstant(), null))) {
+            throw new SAMLException("Response " + response.getID() + " was already processed");
+        }
+    }
+
+    /**
+     * @param profile consumer which accepted the assertion, giving its maximum age
+     */
+    void checkAssertion(Assertion assertion, SAMLMessageContext context, AbstractProfileBase profile)
+            throws SAMLException {
+        DateTime notOnOrAfter = assertion.getConditions() != null ? assertion.getConditions().getNotOnOrAfter() : null;
+        if (assertion.getID() != null
+                && replayCache.isReplay(context.getPeerEntityId(), assertion.getID(),
+                        getExpiry(profile, assertion.getIssueInstant(), notOnOrAfter))) {
+            throw new SAMLException("Assertion " + assertion.getID() + " was already processed");
+        }
+    }
+
+    /*
+     * Time after which the base checks reject the message: too old with regard to
+     * its issue instant or past its NotOnOrAfter condition, with the allowed skew.
+     */
+    private static long getExpiry(AbstractProfileBase profile, DateTime issueInstant, DateTime notOnOrAfter) {
+        long skew = profile.getResponseSkew() * 1000L;
+        long expiry = issueInstant != null
+                ? issueInstant.getMillis() + profile.getMaxAssertionTime() * 1000L
+                : System.currentTimeMillis() + profile.getMaxAssertionTime() * 1000L;
+        if (notOnOrAfter != null) {
+            expiry = Math.min(expiry, notOnOrAfter.getMillis());
+        }
+        return expiry + skew;
+    }
+
+    ReplayCache getReplayCache() {
+        return replayCache;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.validation.ValidationException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.websso.WebSSOProfileConsumerHoKImpl;
+
+/**
+ * Holder-of-Key Web SSO consumer with the replay check of
+ * {@link ReplayCheckingWebSSOProfileConsumer}, so that responses posted to the
+ * HoK endpoint cannot bypass it.
+ */
+public class ReplayCheckingHoKWebSSOProfileConsumer extends WebSSOProfileConsumerHoKImpl {
+
+    private final ReplayCheck replayCheck;
+
+    public ReplayCheckingHoKWebSSOProfileConsumer(ReplayCache replayCache) {
+        this.replayCheck = new ReplayCheck(replayCache);
+    }
+
+    @Override
+    public SAMLCredential processAuthenticationResponse(SAMLMessageContext context)
+            throws SAMLException, SecurityException, ValidationException, DecryptionException {
+        SAMLCredential credential = super.processAuthenticationResponse(context);
+        replayCheck.checkResponse(context, this);
+        return credential;
+    }
+
+    @Override
+    protected void verifyAssertion(Assertion assertion, AuthnRequest request, SAMLMessageContext context)
+            throws AuthenticationException, SAMLException, SecurityException, ValidationException,
+            DecryptionException {
+        super.verifyAssertion(assertion, request, context);
+        replayCheck.checkAssertion(assertion, context, this);
+    }
+
+    public ReplayCache getReplayCache() {
+        return replayCheck.getReplayCache();
+    }
+
+}
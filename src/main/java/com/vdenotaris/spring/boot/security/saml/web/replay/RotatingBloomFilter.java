@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over a fixed time window, alternating two generations so that
+ * entries are forgotten without deleting them: an entry added to the current
+ * generation is still visible in the previous one for a whole window after
+ * the rotation.
+ * <p>
+ * Bits are set with compare-and-set, lookups and insertions are lock-free.
+ */
+class RotatingBloomFilter {
+
+    private final int bits;
+
+    private final int hashes;
+
+    private final long window;
+
+    private volatile Generation current;
+
+    private volatile Generation previous;
+
+    /**
+     * @param expectedEntries    entries expected per window
+     * @param falsePositiveRate  target false positive rate at the expected load, of each generation
+     * @param windowMillis       minimum time during which an entry stays visible
+     */
+    RotatingBloomFilter(int expectedEntries, double falsePositiveRate, long windowMillis) {
+        double ln2 = Math.log(2);
+        this.bits = (int) Math.max(64, Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedEntries * ln2));
+        this.window = windowMillis;
+        long now = System.currentTimeMillis();
+        this.current = new Generation(bits, now);
+        this.previous = new Generation(bits, now);
+    }
+
+    boolean mightContain(String key) {
+        rotate();
+        int h1 = key.hashCode();
+        int h2 = mix(h1);
+        return current.contains(h1, h2, hashes, bits) || previous.contains(h1, h2, hashes, bits);
+    }
+
+    void put(String key) {
+        rotate();
+        int h1 = key.hashCode();
+        current.put(h1, mix(h1), hashes, bits);
+    }
+
+    private void rotate() {
+        Generation generation = current;
+        if (System.currentTimeMillis() - generation.start < window) {
+            return;
+        }
+        synchronized (this) {
+            if (current == generation) {
+                previous = generation;
+                current = new Generation(bits, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /*
+     * Second hash for double hashing, derived from the first one (murmur3 finalizer).
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+
+    int getBitCount() {
+        return bits;
+    }
+
+    int getHashCount() {
+        return hashes;
+    }
+
+    private static final class Generation {
+
+        private final AtomicLongArray words;
+
+        private final long start;
+
+        Generation(int bits, long start) {
+            this.words = new AtomicLongArray((bits + 63) >>> 6);
+            this.start = start;
+        }
+
+        boolean contains(int h1, int h2, int hashes, int bits) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(int h1, int h2, int hashes, int bits) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                int index = bit >>> 6;
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                } while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Replay cache shared through an append-only file, for several nodes running
+ * on one host or sharing a file system with working locks, typically in tests.
+ * <p>
+ * Each check takes an exclusive lock on the file, replays the lines appended
+ * by the other nodes into a local {@link InMemoryReplayCache}, and appends
+ * the new identifier. The file is never compacted.
+ */
+public class SharedFileReplayCache implements ReplayCache, Closeable {
+
+    private final InMemoryReplayCache local;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private long offset;
+
+    /**
+     * @param file           file shared by the nodes, created when missing
+     * @param horizonSeconds longest time during which an identifier can be accepted
+     */
+    public SharedFileReplayCache(File file, long horizonSeconds) throws IOException {
+        this.local = new InMemoryReplayCache(horizonSeconds);
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    /*
+     * Synchronized as file locks are held by the whole JVM.
+     */
+    @Override
+    public synchronized boolean isReplay(String issuer, String id, long expiresAt) {
+        String key = InMemoryReplayCache.key(issuer, id);
+        try (FileLock lock = channel.lock()) {
+            catchUp();
+            if (local.check(key, expiresAt)) {
+                return true;
+            }
+            byte[] line = (expiresAt + " " + Base64.getUrlEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8))
+                    + "\n").getBytes(StandardCharsets.US_ASCII);
+            channel.write(ByteBuffer.wrap(line), offset);
+            offset += line.length;
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to access replay cache file", e);
+        }
+    }
+
+    private void catchUp() throws IOException {
+        long size = channel.size();
+        if (size <= offset) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (size - offset));
+        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+            // read until the end of the file
+        }
+        String content = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) != -1) {
+            String line = content.substring(start, end);
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                long expiresAt = Long.parseLong(line.substring(0, space));
+                String key = new String(Base64.getUrlDecoder().decode(line.substring(space + 1)), StandardCharsets.UTF_8);
+                local.check(key, expiresAt);
+            }
+            start = end + 1;
+        }
+        offset += start;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+}
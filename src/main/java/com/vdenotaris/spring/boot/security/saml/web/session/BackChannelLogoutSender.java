@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.soap.client.http.TLSProtocolSocketFactory;
+import org.opensaml.ws.transport.OutTransport;
+import org.opensaml.ws.transport.http.HttpClientInTransport;
+import org.opensaml.ws.transport.http.HttpClientOutTransport;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLProcessor;
+import org.springframework.security.saml.trust.X509KeyManager;
+import org.springframework.security.saml.trust.X509TrustManager;
+
+import com.vdenotaris.spring.boot.security.saml.web.util.LruCache;
+
+/**
+ * Sends LogoutRequests to the IdP over the SOAP binding, off the request
+ * thread.
+ * <p>
+ * The request is encoded (and signed) by the caller, so that the browser gets
+ * its local logout redirect right away instead of a round trip through the
+ * IdP. The HTTP exchange and the check of the LogoutResponse run on a small
+ * pool sharing the pooled {@link HttpClient} connections. When the queue of
+ * the pool is full the caller runs the exchange itself, which bounds the
+ * memory held by pending logouts.
+ * <p>
+ * The TLS protocol of each SP and IdP pair is built once: the connection
+ * manager pools connections per host configuration, and a host configuration
+ * only matches another one holding the same protocol. A connection opened
+ * with the client certificate of one SP is thus never reused for another.
+ */
+public class BackChannelLogoutSender implements Closeable {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(BackChannelLogoutSender.class);
+
+    // Max number of SP and IdP pairs with a TLS protocol
+    private static final int MAX_PROTOCOLS = 1000;
+
+    private final HttpClient httpClient;
+
+    private final SAMLProcessor processor;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LruCache<String, Protocol> protocols = new LruCache<String, Protocol>(MAX_PROTOCOLS);
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param httpClient    client with a pooled connection manager
+     * @param processor     processor holding the SOAP binding
+     * @param threads       number of concurrent exchanges with the IdPs
+     * @param queueCapacity number of LogoutRequests waiting for a thread
+     */
+    public BackChannelLogoutSender(HttpClient httpClient, SAMLProcessor processor, int threads, int queueCapacity) {
+        this.httpClient = httpClient;
+        this.processor = processor;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "saml-logout-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Encodes the outbound LogoutRequest of the context for its peer endpoint
+     * and schedules its delivery.
+     */
+    public void send(SAMLMessageContext context, boolean sign)
+            throws SAMLException, MetadataProviderException, MessageEncodingException {
+        String location = context.getPeerEntityEndpoint().getLocation();
+        PostMethod postMethod = new PostMethod();
+        HostConfiguration hostConfiguration;
+        try {
+            URI uri = new URI(location, true, "UTF-8");
+            postMethod.setPath(uri.getPath());
+            hostConfiguration = getHostConfiguration(uri, context);
+        } catch (IOException e) {
+            throw new MessageEncodingException("Error parsing remote location URI", e);
+        }
+
+        OutTransport outTransport = context.getOutboundMessageTransport();
+        context.setOutboundMessageTransport(new HttpClientOutTransport(postMethod));
+        try {
+            processor.sendMessage(context, sign, SAMLConstants.SAML2_SOAP11_BINDING_URI);
+        } finally {
+            context.setOutboundMessageTransport(outTransport);
+        }
+
+        SAMLMessageContext responseContext = responseContext(context);
+        responseContext.setInboundMessageTransport(new HttpClientInTransport(postMethod, location));
+        String requestId = ((LogoutRequest) context.getOutboundSAMLMessage()).getID();
+        executor.execute(() -> exchange(hostConfiguration, postMethod, responseContext, requestId));
+    }
+
+    private void exchange(HostConfiguration hostConfiguration, PostMethod postMethod,
+            SAMLMessageContext context, String requestId) {
+        try {
+            int responseCode = httpClient.executeMethod(hostConfiguration, postMethod);
+            if (responseCode != 200) {
+                failed.incrementAndGet();
+                LOG.warn("LogoutRequest {} to {} failed with HTTP status {}",
+                        requestId, context.getPeerEntityId(), responseCode);
+                return;
+            }
+            processor.retrieveMessage(context, SAMLConstants.SAML2_SOAP11_BINDING_URI);
+            SAMLObject message = context.getInboundSAMLMessage();
+            if (!(message instanceof LogoutResponse)
+                    || !requestId.equals(((LogoutResponse) message).getInResponseTo())) {
+                failed.incrementAndGet();
+                LOG.warn("Unexpected answer from {} to LogoutRequest {}", context.getPeerEntityId(), requestId);
+                return;
+            }
+            String status = ((LogoutResponse) message).getStatus().getStatusCode().getValue();
+            if (!StatusCode.SUCCESS_URI.equals(status)) {
+                failed.incrementAndGet();
+                LOG.warn("LogoutRequest {} to {} answered with status {}", requestId, context.getPeerEntityId(), status);
+                return;
+            }
+            sent.incrementAndGet();
+            LOG.debug("LogoutRequest {} to {} succeeded", requestId, context.getPeerEntityId());
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            LOG.warn("Error sending LogoutRequest " + requestId + " to " + context.getPeerEntityId(), e);
+        } finally {
+            postMethod.releaseConnection();
+        }
+    }
+
+    /*
+     * The request context belongs to the calling thread, the response is decoded in a copy.
+     */
+    private static SAMLMessageContext responseContext(SAMLMessageContext context) {
+        SAMLMessageContext copy = new SAMLMessageContext();
+        copy.setMetadataProvider(context.getMetadataProvider());
+        copy.setLocalEntityId(context.getLocalEntityId());
+        copy.setLocalEntityRole(context.getLocalEntityRole());
+        copy.setLocalEntityMetadata(context.getLocalEntityMetadata());
+        copy.setLocalEntityRoleMetadata(context.getLocalEntityRoleMetadata());
+        copy.setLocalExtendedMetadata(context.getLocalExtendedMetadata());
+        copy.setLocalTrustEngine(context.getLocalTrustEngine());
+        copy.setLocalSSLTrustEngine(context.getLocalSSLTrustEngine());
+        copy.setLocalDecrypter(context.getLocalDecrypter());
+        copy.setPeerEntityId(context.getPeerEntityId());
+        copy.setPeerEntityRole(context.getPeerEntityRole());
+        copy.setPeerEntityMetadata(context.getPeerEntityMetadata());
+        copy.setPeerEntityRoleMetadata(context.getPeerEntityRoleMetadata());
+        copy.setPeerExtendedMetadata(context.getPeerExtendedMetadata());
+        copy.setCommunicationProfileId(context.getCommunicationProfileId());
+        return copy;
+    }
+
+    /*
+     * Same TLS setup as the artifact resolution profile.
+     */
+    HostConfiguration getHostConfiguration(URI uri, SAMLMessageContext context) throws IOException {
+        HostConfiguration hostConfiguration = httpClient.getHostConfiguration();
+        hostConfiguration = hostConfiguration != null
+                ? new HostConfiguration(hostConfiguration) : new HostConfiguration();
+        if ("http".equalsIgnoreCase(uri.getScheme())) {
+            hostConfiguration.setHost(uri);
+            return hostConfiguration;
+        }
+        hostConfiguration.setHost(uri.getHost(), uri.getPort(), getProtocol(context));
+        return hostConfiguration;
+    }
+
+    /*
+     * The key manager depends on the local SP, the trust manager on the IdP.
+     */
+    private Protocol getProtocol(SAMLMessageContext context) {
+        String key = context.getLocalEntityId() + '\u0000' + context.getPeerEntityId();
+        Protocol protocol = protocols.get(key);
+        if (protocol != null) {
+            return protocol;
+        }
+        CriteriaSet criteriaSet = new CriteriaSet();
+        criteriaSet.add(new EntityIDCriteria(context.getPeerEntityId()));
+        criteriaSet.add(new MetadataCriteria(IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
+        criteriaSet.add(new UsageCriteria(UsageType.UNSPECIFIED));
+        ProtocolSocketFactory socketFactory = new PairSocketFactory(new TLSProtocolSocketFactory(
+                new X509KeyManager(context.getLocalSSLCredential()),
+                new X509TrustManager(criteriaSet, context.getLocalSSLTrustEngine()),
+                context.getLocalSSLHostnameVerifier()));
+        return protocols.putIfAbsent(key, new Protocol("https", socketFactory, 443));
+    }
+
+    /*
+     * TLSProtocolSocketFactory instances are all equal, which would let the
+     * connections of every SP and IdP pair share one pool.
+     */
+    private static final class PairSocketFactory implements SecureProtocolSocketFactory {
+
+        private final TLSProtocolSocketFactory delegate;
+
+        PairSocketFactory(TLSProtocolSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort,
+                HttpConnectionParams params) throws IOException {
+            return delegate.createSocket(host, port, localHost, localPort, params);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return delegate.createSocket(socket, host, port, autoClose);
+        }
+    }
+
+    /**
+     * @return number of LogoutRequests waiting for a thread
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of LogoutRequests acknowledged with a Success status
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+}
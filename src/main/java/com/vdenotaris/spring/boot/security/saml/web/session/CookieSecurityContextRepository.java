@@ -0,0 +1,379 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+import org.springframework.security.web.authentication.session.SessionAuthenticationException;
+import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLAuthenticationToken;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLCredential;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAuthenticationCodec;
+
+/**
+ * Security context repository keeping SAML authentications in a cookie instead
+ * of the HTTP session.
+ * <p>
+ * The cookie holds the {@link SAMLAuthenticationCodec} encoding of the
+ * authentication and its issue time, encrypted and authenticated with
+ * AES-GCM, so it can neither be read nor forged without the key. All the nodes
+ * sharing the key accept each other's cookies. A cookie expires after
+ * {@link #setMaxInactiveInterval(int) the inactivity interval} and is reissued
+ * once half of it has elapsed.
+ * <p>
+ * Logging out clears the cookie and, as a copy may survive in the browser or
+ * elsewhere, records the SAML session in {@link RevokedSAMLSessions}, which is
+ * checked whenever a cookie is read.
+ * <p>
+ * Browsers drop cookies of more than 4 KB. Used as the session authentication
+ * strategy of the SAML processing filters, the repository rejects
+ * authentications which would not fit, so that the login fails with an error
+ * instead of looping through the IdP; keeping only the attributes the
+ * application needs in the {@link SAMLAuthenticationCodec} avoids it.
+ */
+public class CookieSecurityContextRepository
+        implements SecurityContextRepository, LogoutHandler, SessionAuthenticationStrategy {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(CookieSecurityContextRepository.class);
+
+    public static final String DEFAULT_COOKIE_NAME = "SAML_SESSION";
+
+    private static final String LOADED_ATTRIBUTE = CookieSecurityContextRepository.class.getName() + ".LOADED";
+
+    private static final int VERSION = 1;
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH = 128;
+
+    private static final int MAX_COOKIE_LENGTH = 4000;
+
+    private final SAMLAuthenticationCodec codec;
+
+    private final SecretKey key;
+
+    private final RevokedSAMLSessions revokedSessions;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private String cookieName = DEFAULT_COOKIE_NAME;
+
+    private long maxInactiveInterval = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * @param codec           codec of the authentications
+     * @param key             Base64 encoded AES key of 16, 24 or 32 bytes shared by all the nodes; when empty
+     *                        a random key is generated and cookies are only valid on this node until restart
+     * @param revokedSessions sessions terminated by a logout
+     */
+    public CookieSecurityContextRepository(SAMLAuthenticationCodec codec, String key,
+            RevokedSAMLSessions revokedSessions) {
+        this.codec = codec;
+        this.revokedSessions = revokedSessions;
+        byte[] keyBytes;
+        if (StringUtils.hasText(key)) {
+            keyBytes = Base64.getDecoder().decode(key.trim());
+            if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+                throw new IllegalArgumentException("Session cookie key must be 16, 24 or 32 bytes long");
+            }
+        } else {
+            LOG.warn("No session cookie key configured, sessions won't survive a restart nor be shared between nodes");
+            keyBytes = new byte[16];
+            random.nextBytes(keyBytes);
+        }
+        this.key = new SecretKeySpec(keyBytes, "AES");
+    }
+
+    @Override
+    public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+        HttpServletRequest request = requestResponseHolder.getRequest();
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        Loaded loaded = getLoaded(request);
+        if (loaded != null) {
+            context.setAuthentication(loaded.authentication);
+        }
+        requestResponseHolder.setResponse(new SaveToCookieResponseWrapper(request, requestResponseHolder.getResponse()));
+        return context;
+    }
+
+    @Override
+    public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        SaveToCookieResponseWrapper wrapper = WebUtils.getNativeResponse(response, SaveToCookieResponseWrapper.class);
+        if (wrapper == null) {
+            throw new IllegalStateException("Response was not wrapped by loadContext, "
+                    + "make sure this repository is used by the SecurityContextPersistenceFilter");
+        }
+        if (!wrapper.isContextSaved()) {
+            wrapper.saveContext(context);
+        }
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        return getLoaded(request) != null;
+    }
+
+    /**
+     * Clears the cookie and revokes the SAML session of the authentication being logged out.
+     */
+    @Override
+    public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        if (authentication != null && authentication.getCredentials() instanceof SAMLCredential) {
+            SAMLCredential credential = (SAMLCredential) authentication.getCredentials();
+            String nameID = credential.getNameID().getValue();
+            if (credential instanceof CompactSAMLCredential
+                    && !((CompactSAMLCredential) credential).getSessionIndexes().isEmpty()) {
+                for (String sessionIndex : ((CompactSAMLCredential) credential).getSessionIndexes()) {
+                    revokedSessions.revoke(credential.getRemoteEntityID(), nameID, sessionIndex);
+                }
+            } else {
+                revokedSessions.revoke(credential.getRemoteEntityID(), nameID, null);
+            }
+        }
+        if (WebUtils.getCookie(request, cookieName) != null) {
+            response.addCookie(createCookie(request, null));
+        }
+        request.setAttribute(LOADED_ATTRIBUTE, Loaded.CLEARED);
+    }
+
+    /**
+     * Fails authentications whose session cookie would be too large for browsers to keep.
+     */
+    @Override
+    public void onAuthentication(Authentication authentication, HttpServletRequest request,
+            HttpServletResponse response) throws SessionAuthenticationException {
+        if (authentication instanceof ExpiringUsernameAuthenticationToken) {
+            int length = encrypt((ExpiringUsernameAuthenticationToken) authentication,
+                    System.currentTimeMillis()).length();
+            if (length > MAX_COOKIE_LENGTH) {
+                throw new SessionAuthenticationException("Session of " + authentication.getName() + " needs a "
+                        + length + " characters cookie, more than the " + MAX_COOKIE_LENGTH
+                        + " browsers keep; reduce the attributes kept by the SAML authentication codec");
+            }
+        }
+    }
+
+    private Loaded getLoaded(HttpServletRequest request) {
+        Loaded loaded = (Loaded) request.getAttribute(LOADED_ATTRIBUTE);
+        if (loaded == null) {
+            loaded = readCookie(request);
+            request.setAttribute(LOADED_ATTRIBUTE, loaded);
+        }
+        return loaded != Loaded.NONE && loaded != Loaded.CLEARED ? loaded : null;
+    }
+
+    private Loaded readCookie(HttpServletRequest request) {
+        Cookie cookie = WebUtils.getCookie(request, cookieName);
+        if (cookie == null || !StringUtils.hasLength(cookie.getValue())) {
+            return Loaded.NONE;
+        }
+        try {
+            byte[] data = Base64.getUrlDecoder().decode(cookie.getValue());
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, data, 0, IV_LENGTH));
+            cipher.updateAAD(cookieName.getBytes(StandardCharsets.UTF_8));
+            byte[] plain = cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+            if (in.readByte() != VERSION) {
+                LOG.debug("Ignoring session cookie of unsupported version");
+                return Loaded.NONE;
+            }
+            long issuedAt = in.readLong();
+            if (System.currentTimeMillis() - issuedAt > maxInactiveInterval) {
+                LOG.debug("Ignoring session cookie issued at {}, it has expired", issuedAt);
+                return Loaded.NONE;
+            }
+            byte[] encoded = new byte[plain.length - 9];
+            in.readFully(encoded);
+            CompactSAMLAuthenticationToken authentication = codec.decode(encoded);
+            if (isRevoked(authentication, issuedAt)) {
+                LOG.debug("Ignoring session cookie of {}, the SAML session was logged out", authentication.getName());
+                return Loaded.NONE;
+            }
+            return new Loaded(authentication, issuedAt);
+        } catch (IllegalArgumentException | GeneralSecurityException | IOException e) {
+            LOG.debug("Ignoring invalid session cookie", e);
+            return Loaded.NONE;
+        }
+    }
+
+    private boolean isRevoked(CompactSAMLAuthenticationToken authentication, long issuedAt) {
+        if (!(authentication.getCredentials() instanceof CompactSAMLCredential)) {
+            return false;
+        }
+        CompactSAMLCredential credential = (CompactSAMLCredential) authentication.getCredentials();
+        String nameID = credential.getNameID().getValue();
+        if (credential.getSessionIndexes().isEmpty()) {
+            return revokedSessions.isRevoked(credential.getRemoteEntityID(), nameID, null, issuedAt);
+        }
+        for (String sessionIndex : credential.getSessionIndexes()) {
+            if (revokedSessions.isRevoked(credential.getRemoteEntityID(), nameID, sessionIndex, issuedAt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeCookie(HttpServletRequest request, HttpServletResponse response,
+            ExpiringUsernameAuthenticationToken authentication) {
+        long issuedAt = System.currentTimeMillis();
+        String value = encrypt(authentication, issuedAt);
+        if (value.length() > MAX_COOKIE_LENGTH) {
+            LOG.error("Session cookie of {} is {} characters long, browsers would drop it; "
+                    + "reduce the attributes kept by the SAML authentication codec", authentication.getName(),
+                    value.length());
+            return;
+        }
+        response.addCookie(createCookie(request, value));
+        request.setAttribute(LOADED_ATTRIBUTE, new Loaded(authentication, issuedAt));
+    }
+
+    private String encrypt(ExpiringUsernameAuthenticationToken authentication, long issuedAt) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeLong(issuedAt);
+            out.write(codec.encode(authentication));
+
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+            cipher.updateAAD(cookieName.getBytes(StandardCharsets.UTF_8));
+            byte[] encrypted = cipher.doFinal(bytes.toByteArray());
+            byte[] data = new byte[IV_LENGTH + encrypted.length];
+            System.arraycopy(iv, 0, data, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, data, IV_LENGTH, encrypted.length);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Unable to encrypt session cookie", e);
+        }
+    }
+
+    private Cookie createCookie(HttpServletRequest request, String value) {
+        Cookie cookie = new Cookie(cookieName, value);
+        cookie.setPath(StringUtils.hasLength(request.getContextPath()) ? request.getContextPath() : "/");
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        cookie.setMaxAge(value != null ? -1 : 0);
+        return cookie;
+    }
+
+    public String getCookieName() {
+        return cookieName;
+    }
+
+    public void setCookieName(String cookieName) {
+        this.cookieName = cookieName;
+    }
+
+    public int getMaxInactiveInterval() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(maxInactiveInterval);
+    }
+
+    /**
+     * @param maxInactiveInterval seconds after which an unused cookie is no longer accepted
+     */
+    public void setMaxInactiveInterval(int maxInactiveInterval) {
+        this.maxInactiveInterval = TimeUnit.SECONDS.toMillis(maxInactiveInterval);
+    }
+
+    /**
+     * Authentication read from, or last written to, the cookie of a request.
+     */
+    private static final class Loaded {
+
+        static final Loaded NONE = new Loaded(null, 0);
+
+        static final Loaded CLEARED = new Loaded(null, 0);
+
+        private final ExpiringUsernameAuthenticationToken authentication;
+
+        private final long issuedAt;
+
+        Loaded(ExpiringUsernameAuthenticationToken authentication, long issuedAt) {
+            this.authentication = authentication;
+            this.issuedAt = issuedAt;
+        }
+    }
+
+    private final class SaveToCookieResponseWrapper extends SaveContextOnUpdateOrErrorResponseWrapper {
+
+        private final HttpServletRequest request;
+
+        SaveToCookieResponseWrapper(HttpServletRequest request, HttpServletResponse response) {
+            super(response, true);
+            this.request = request;
+        }
+
+        @Override
+        protected void saveContext(SecurityContext context) {
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            Authentication authentication = context.getAuthentication();
+            Loaded loaded = getLoaded(request);
+            if (!(authentication instanceof ExpiringUsernameAuthenticationToken)) {
+                if (request.getAttribute(LOADED_ATTRIBUTE) != Loaded.CLEARED
+                        && (loaded != null || WebUtils.getCookie(request, cookieName) != null)) {
+                    LOG.debug("No SAML authentication in context, clearing session cookie");
+                    response.addCookie(createCookie(request, null));
+                    request.setAttribute(LOADED_ATTRIBUTE, Loaded.CLEARED);
+                }
+                return;
+            }
+            if (loaded != null && loaded.authentication == authentication
+                    && System.currentTimeMillis() - loaded.issuedAt < maxInactiveInterval / 2) {
+                return;
+            }
+            writeCookie(request, response, (ExpiringUsernameAuthenticationToken) authentication);
+        }
+    }
+
+}
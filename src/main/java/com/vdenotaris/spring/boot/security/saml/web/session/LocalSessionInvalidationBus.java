@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invalidation bus delivering synchronously to the subscribers of this JVM,
+ * standing in for a cluster-wide channel on single node deployments and in
+ * tests.
+ */
+public class LocalSessionInvalidationBus implements SessionInvalidationBus {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(LocalSessionInvalidationBus.class);
+
+    private final List<Consumer<SessionInvalidation>> subscribers =
+            new CopyOnWriteArrayList<Consumer<SessionInvalidation>>();
+
+    @Override
+    public void publish(SessionInvalidation invalidation) {
+        for (Consumer<SessionInvalidation> subscriber : subscribers) {
+            try {
+                subscriber.accept(invalidation);
+            } catch (RuntimeException e) {
+                LOG.warn("Error applying " + invalidation, e);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<SessionInvalidation> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+}
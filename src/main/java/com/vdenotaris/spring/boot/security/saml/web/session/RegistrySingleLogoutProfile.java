@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.SessionIndex;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.SAMLStatusException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.springframework.security.saml.websso.SingleLogoutProfileImpl;
+import org.springframework.security.web.authentication.logout.LogoutSuccessHandler;
+import org.springframework.security.web.authentication.logout.SimpleUrlLogoutSuccessHandler;
+
+/**
+ * Single logout profile terminating the sessions named by a LogoutRequest
+ * wherever they are, instead of only the session of the browser delivering
+ * the request.
+ * <p>
+ * The request is validated as by the default implementation (signature
+ * policy, destination, issuer and issue instant), against a credential made
+ * of its own NameID and session indexes. The sessions are then looked up and
+ * invalidated through the {@link SAMLSessionRegistry}. The local logout
+ * handlers only run when the current session is one of them; otherwise the
+ * IdP still gets a Success response, rather than UnknownPrincipal because the
+ * request didn't come through the user's browser.
+ * <p>
+ * LogoutRequests received over the SOAP binding are answered in the SOAP
+ * response. With a {@link BackChannelLogoutSender}, LogoutRequests are sent
+ * over SOAP to the IdPs publishing such an endpoint, and the browser is handed
+ * at once to the {@link #setLogoutSuccessHandler(LogoutSuccessHandler) logout
+ * success handler}, as the logout filter doesn't answer it after a global
+ * logout. Messages sent through the browser never use the SOAP endpoints of
+ * the IdP.
+ */
+public class RegistrySingleLogoutProfile extends SingleLogoutProfileImpl {
+
+    private final SAMLSessionRegistry sessionRegistry;
+
+    private BackChannelLogoutSender backChannelSender;
+
+    private LogoutSuccessHandler logoutSuccessHandler = new SimpleUrlLogoutSuccessHandler();
+
+    public RegistrySingleLogoutProfile(SAMLSessionRegistry sessionRegistry) {
+        this.sessionRegistry = sessionRegistry;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void sendLogoutRequest(SAMLMessageContext context, SAMLCredential credential)
+            throws SAMLException, MetadataProviderException, MessageEncodingException {
+        if (credential == null) {
+            return;
+        }
+        IDPSSODescriptor idpDescriptor = (IDPSSODescriptor) context.getPeerEntityRoleMetadata();
+        SingleLogoutService logoutService = backChannelSender != null ? getSOAPLogoutService(idpDescriptor) : null;
+        boolean backChannel = logoutService != null;
+        if (!backChannel) {
+            logoutService = getFrontChannelLogoutService(idpDescriptor,
+                    (SPSSODescriptor) context.getLocalEntityRoleMetadata());
+        }
+        LogoutRequest logoutRequest = getLogoutRequest(context, credential, logoutService);
+        context.setCommunicationProfileId(getProfileIdentifier());
+        context.setOutboundMessage(logoutRequest);
+        context.setOutboundSAMLMessage(logoutRequest);
+        context.setPeerEntityEndpoint(logoutService);
+        boolean signMessage = context.getPeerExtendedMetadata().isRequireLogoutRequestSigned();
+        if (backChannel) {
+            backChannelSender.send(context, signMessage);
+            completeBackChannelLogout(context);
+            return;
+        }
+        // Stored first, the cookie storage can't write to a committed response
+        SAMLMessageStorage messageStorage = context.getMessageStorage();
+        if (messageStorage != null) {
+            messageStorage.storeMessage(logoutRequest.getID(), logoutRequest);
+        }
+        sendMessage(context, signMessage, logoutService.getBinding());
+    }
+
+    private void completeBackChannelLogout(SAMLMessageContext context) throws MessageEncodingException {
+        HttpServletRequest request = ((HttpServletRequestAdapter) context.getInboundMessageTransport())
+                .getWrappedRequest();
+        HttpServletResponse response = ((HttpServletResponseAdapter) context.getOutboundMessageTransport())
+                .getWrappedResponse();
+        try {
+            logoutSuccessHandler.onLogoutSuccess(request, response, null);
+        } catch (IOException | ServletException e) {
+            throw new MessageEncodingException("Error completing back-channel logout", e);
+        }
+    }
+
+    /**
+     * Answers over SOAP the requests received over SOAP, and through the
+     * browser with a front-channel binding the others.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void sendLogoutResponse(SAMLMessageContext context, String statusCode, String statusMessage)
+            throws MetadataProviderException, SAMLException, MessageEncodingException {
+        boolean backChannel = SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(context.getInboundSAMLBinding());
+        @SuppressWarnings("unchecked")
+        LogoutResponse logoutResponse = ((SAMLObjectBuilder<LogoutResponse>) builderFactory
+                .getBuilder(LogoutResponse.DEFAULT_ELEMENT_NAME)).buildObject();
+        logoutResponse.setID(generateID());
+        logoutResponse.setIssuer(getIssuer(context.getLocalEntityId()));
+        logoutResponse.setVersion(SAMLVersion.VERSION_20);
+        logoutResponse.setIssueInstant(new DateTime());
+        logoutResponse.setInResponseTo(context.getInboundSAMLMessageId());
+        logoutResponse.setStatus(getStatus(statusCode, statusMessage));
+        context.setCommunicationProfileId(getProfileIdentifier());
+        context.setOutboundMessage(logoutResponse);
+        context.setOutboundSAMLMessage(logoutResponse);
+        boolean signMessage = context.getPeerExtendedMetadata().isRequireLogoutResponseSigned();
+        if (backChannel) {
+            sendMessage(context, signMessage, SAMLConstants.SAML2_SOAP11_BINDING_URI);
+            return;
+        }
+
+        IDPSSODescriptor idpDescriptor = SAMLUtil.getIDPDescriptor(metadata, context.getPeerEntityId());
+        SingleLogoutService logoutService = getFrontChannelLogoutService(idpDescriptor,
+                (SPSSODescriptor) context.getLocalEntityRoleMetadata());
+        logoutResponse.setDestination(logoutService.getLocation());
+        context.setPeerEntityEndpoint(logoutService);
+        context.setPeerEntityRoleMetadata(idpDescriptor);
+        sendMessage(context, signMessage, logoutService.getBinding());
+    }
+
+    @Override
+    public boolean processLogoutRequest(SAMLMessageContext context, SAMLCredential credential) throws SAMLException {
+        SAMLObject message = context.getInboundSAMLMessage();
+        if (!(message instanceof LogoutRequest)) {
+            return super.processLogoutRequest(context, credential);
+        }
+        LogoutRequest logoutRequest = (LogoutRequest) message;
+        NameID nameID;
+        try {
+            nameID = getNameID(context, logoutRequest);
+        } catch (DecryptionException e) {
+            throw new SAMLStatusException(StatusCode.RESPONDER_URI, "The NameID can't be decrypted", e);
+        }
+        if (nameID == null) {
+            return super.processLogoutRequest(context, credential);
+        }
+        List<String> sessionIndexes = new ArrayList<String>(logoutRequest.getSessionIndexes().size());
+        for (SessionIndex sessionIndex : logoutRequest.getSessionIndexes()) {
+            sessionIndexes.add(sessionIndex.getSessionIndex());
+        }
+
+        super.processLogoutRequest(context, requestCredential(context, nameID, sessionIndexes));
+        int count = sessionRegistry.logout(context.getPeerEntityId(), nameID.getValue(), sessionIndexes);
+        log.debug("LogoutRequest from {} invalidated {} local sessions", context.getPeerEntityId(), count);
+        return isCurrentSession(credential, context.getPeerEntityId(), nameID, sessionIndexes);
+    }
+
+    /*
+     * Credential satisfying the session index and NameID checks of the default implementation.
+     */
+    @SuppressWarnings("unchecked")
+    private SAMLCredential requestCredential(SAMLMessageContext context, NameID nameID, List<String> sessionIndexes) {
+        Assertion assertion = ((SAMLObjectBuilder<Assertion>) builderFactory
+                .getBuilder(Assertion.DEFAULT_ELEMENT_NAME)).buildObject();
+        SAMLObjectBuilder<AuthnStatement> statementBuilder = (SAMLObjectBuilder<AuthnStatement>) builderFactory
+                .getBuilder(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        for (String sessionIndex : sessionIndexes) {
+            AuthnStatement statement = statementBuilder.buildObject();
+            statement.setSessionIndex(sessionIndex);
+            assertion.getAuthnStatements().add(statement);
+        }
+        return new SAMLCredential(nameID, assertion, context.getPeerEntityId(), context.getLocalEntityId());
+    }
+
+    private static SingleLogoutService getSOAPLogoutService(IDPSSODescriptor descriptor) {
+        for (SingleLogoutService service : descriptor.getSingleLogoutServices()) {
+            if (SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(service.getBinding())) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Same choice as SAMLUtil.getLogoutBinding, without the SOAP endpoints which the browser can't reach.
+     */
+    private static SingleLogoutService getFrontChannelLogoutService(IDPSSODescriptor idpDescriptor,
+            SPSSODescriptor spDescriptor) throws MetadataProviderException {
+        SingleLogoutService fallback = null;
+        for (SingleLogoutService idpService : idpDescriptor.getSingleLogoutServices()) {
+            if (SAMLConstants.SAML2_SOAP11_BINDING_URI.equals(idpService.getBinding())) {
+                continue;
+            }
+            for (SingleLogoutService spService : spDescriptor.getSingleLogoutServices()) {
+                if (idpService.getBinding().equals(spService.getBinding())) {
+                    return idpService;
+                }
+            }
+            if (fallback == null) {
+                fallback = idpService;
+            }
+        }
+        if (fallback == null) {
+            throw new MetadataProviderException("IDP doesn't contain any front-channel SingleLogout endpoints");
+        }
+        return fallback;
+    }
+
+    private static boolean isCurrentSession(SAMLCredential credential, String issuer, NameID nameID,
+            List<String> sessionIndexes) {
+        if (credential == null || !issuer.equals(credential.getRemoteEntityID())
+                || !nameID.getValue().equals(credential.getNameID().getValue())) {
+            return false;
+        }
+        if (sessionIndexes.isEmpty()) {
+            return true;
+        }
+        for (String sessionIndex : SAMLSessionRegistry.sessionIndexes(credential)) {
+            if (sessionIndexes.contains(sessionIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param backChannelSender sender of the LogoutRequests to the IdPs with a SOAP endpoint,
+     *                          null to always log out through the browser
+     */
+    public void setBackChannelSender(BackChannelLogoutSender backChannelSender) {
+        this.backChannelSender = backChannelSender;
+    }
+
+    public LogoutSuccessHandler getLogoutSuccessHandler() {
+        return logoutSuccessHandler;
+    }
+
+    /**
+     * @param logoutSuccessHandler handler answering the browser once a LogoutRequest was queued for the
+     *                             back channel, by default a redirect to the root of the application
+     */
+    public void setLogoutSuccessHandler(LogoutSuccessHandler logoutSuccessHandler) {
+        this.logoutSuccessHandler = logoutSuccessHandler;
+    }
+
+}
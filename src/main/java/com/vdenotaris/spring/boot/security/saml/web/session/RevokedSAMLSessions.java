@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SAML sessions terminated by a logout, for session state which cannot be
+ * destroyed on the server, such as {@link CookieSecurityContextRepository}
+ * cookies.
+ * <p>
+ * A session is identified by the IdP entity ID, the NameID and the
+ * SessionIndex; a revocation without SessionIndex covers every session of the
+ * NameID at the IdP. Only state issued before the revocation is rejected, and
+ * entries are dropped once such state has expired anyway, so the index only
+ * holds the sessions logged out during the last {@code retention} period.
+ */
+public class RevokedSAMLSessions {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private static final int PURGE_INTERVAL = 64;
+
+    private final ConcurrentMap<String, Long> revocations = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicInteger operations = new AtomicInteger();
+
+    private final long retention;
+
+    /**
+     * @param retentionSeconds maximum lifetime of the session state checked against this index
+     */
+    public RevokedSAMLSessions(long retentionSeconds) {
+        this.retention = TimeUnit.SECONDS.toMillis(retentionSeconds);
+    }
+
+    /**
+     * Revokes a session, or all the sessions of a NameID when {@code sessionIndex} is null.
+     */
+    public void revoke(String remoteEntityID, String nameID, String sessionIndex) {
+        revocations.put(key(remoteEntityID, nameID, sessionIndex), System.currentTimeMillis());
+        if (operations.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge();
+        }
+    }
+
+    /**
+     * Revokes all the sessions issued by an IdP.
+     */
+    public void revokeIssuer(String remoteEntityID) {
+        revocations.put(remoteEntityID + SEPARATOR, System.currentTimeMillis());
+    }
+
+    /**
+     * @param issuedAt time at which the session state being checked was issued
+     * @return true if the session, all sessions of the NameID or all sessions of the IdP were
+     *         revoked after {@code issuedAt}
+     */
+    public boolean isRevoked(String remoteEntityID, String nameID, String sessionIndex, long issuedAt) {
+        if (revocations.isEmpty()) {
+            return false;
+        }
+        return isRevoked(remoteEntityID + SEPARATOR, issuedAt)
+                || isRevoked(key(remoteEntityID, nameID, null), issuedAt)
+                || (sessionIndex != null && isRevoked(key(remoteEntityID, nameID, sessionIndex), issuedAt));
+    }
+
+    private boolean isRevoked(String key, long issuedAt) {
+        Long revokedAt = revocations.get(key);
+        return revokedAt != null && issuedAt <= revokedAt;
+    }
+
+    /**
+     * Drops the revocations older than the retention period.
+     */
+    public void purge() {
+        long limit = System.currentTimeMillis() - retention;
+        for (Iterator<Map.Entry<String, Long>> it = revocations.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue() < limit) {
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return revocations.size();
+    }
+
+    static String key(String remoteEntityID, String nameID, String sessionIndex) {
+        StringBuilder sb = new StringBuilder(remoteEntityID.length() + nameID.length() + 24);
+        sb.append(remoteEntityID).append(SEPARATOR).append(nameID).append(SEPARATOR);
+        if (sessionIndex != null) {
+            sb.append(sessionIndex);
+        }
+        return sb.toString();
+    }
+
+}
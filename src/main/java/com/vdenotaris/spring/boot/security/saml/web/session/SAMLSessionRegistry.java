@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.opensaml.saml2.core.AuthnStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLCredential;
+
+/**
+ * Index of the live SAML sessions of this node by IdP, NameID and
+ * SessionIndex, so that a logout finds the sessions it names without
+ * scanning all of them.
+ * <p>
+ * HTTP sessions are registered when the SAML login completes (the registry
+ * is the {@link SessionAuthenticationStrategy} of the SSO filters) and
+ * removed when they are destroyed. Each NameID maps to a small immutable
+ * array of sessions replaced atomically, and each IdP to the set of its
+ * NameIDs: logging out a set of session indexes, a user or a whole IdP
+ * costs a hash lookup plus the sessions actually invalidated.
+ * <p>
+ * Logouts are applied locally, then published on the
+ * {@link SessionInvalidationBus} for the other nodes. Concurrent logouts are
+ * combined: the thread finding no batch in progress applies and publishes
+ * every pending logout, up to {@code maxBatchSize}, while the others wait for
+ * their result, so a burst of LogoutRequests costs one bus message per batch. Cookie sessions,
+ * which can't be destroyed on the server, are revoked in the
+ * {@link RevokedSAMLSessions} index.
+ */
+public class SAMLSessionRegistry implements HttpSessionListener, SessionAuthenticationStrategy {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(SAMLSessionRegistry.class);
+
+    private static final char SEPARATOR = '\u0000';
+
+    private static final SessionEntry[] NONE = new SessionEntry[0];
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final ConcurrentMap<String, SessionEntry[]> subjects = new ConcurrentHashMap<String, SessionEntry[]>();
+
+    private final ConcurrentMap<String, SessionEntry> sessions = new ConcurrentHashMap<String, SessionEntry>();
+
+    private final ConcurrentMap<String, Set<String>> subjectsByIssuer = new ConcurrentHashMap<String, Set<String>>();
+
+    private final SessionInvalidationBus bus;
+
+    private final RevokedSAMLSessions revokedSessions;
+
+    private final Queue<PendingLogout> pendingLogouts = new ConcurrentLinkedQueue<PendingLogout>();
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicLong invalidated = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private int maxBatchSize = 256;
+
+    /**
+     * @param bus             channel to the other nodes
+     * @param revokedSessions revocation index of the cookie sessions, may be null
+     */
+    public SAMLSessionRegistry(SessionInvalidationBus bus, RevokedSAMLSessions revokedSessions) {
+        this.bus = bus;
+        this.revokedSessions = revokedSessions;
+        bus.subscribe(invalidation -> {
+            if (!nodeId.equals(invalidation.getOrigin())) {
+                apply(invalidation);
+            }
+        });
+    }
+
+    /**
+     * Registers the HTTP session of a fresh SAML authentication.
+     */
+    @Override
+    public void onAuthentication(Authentication authentication, HttpServletRequest request,
+            HttpServletResponse response) {
+        if (authentication.getCredentials() instanceof SAMLCredential) {
+            register(request.getSession(), (SAMLCredential) authentication.getCredentials());
+        }
+    }
+
+    public void register(HttpSession session, SAMLCredential credential) {
+        String issuer = credential.getRemoteEntityID();
+        String subject = key(issuer, credential.getNameID().getValue());
+        SessionEntry entry = new SessionEntry(session, subject, sessionIndexes(credential));
+        SessionEntry previous = sessions.put(session.getId(), entry);
+        if (previous != null) {
+            remove(previous);
+        }
+        subjects.compute(subject, (key, current) -> {
+            subjectsByIssuer.compute(issuer, (i, issuerSubjects) -> {
+                Set<String> result = issuerSubjects != null ? issuerSubjects : ConcurrentHashMap.<String>newKeySet();
+                result.add(subject);
+                return result;
+            });
+            if (current == null) {
+                return new SessionEntry[] {entry};
+            }
+            SessionEntry[] result = Arrays.copyOf(current, current.length + 1);
+            result[current.length] = entry;
+            return result;
+        });
+    }
+
+    public void unregister(String sessionId) {
+        SessionEntry entry = sessions.remove(sessionId);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent event) {
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent event) {
+        unregister(event.getSession().getId());
+    }
+
+    /**
+     * Logs out sessions on every node.
+     *
+     * @param nameID         NameID of the user, null for all the users of the IdP
+     * @param sessionIndexes sessions to log out, null or empty for all the sessions of the user
+     * @return number of sessions invalidated on this node
+     */
+    public int logout(String issuer, String nameID, Collection<String> sessionIndexes) {
+        PendingLogout pending = new PendingLogout(new SessionInvalidation(nodeId, issuer, nameID, sessionIndexes));
+        pendingLogouts.add(pending);
+        drain();
+        try {
+            return pending.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Rechecks the queue after releasing the flag, so that a logout queued
+     * while the last batch was published is not left behind.
+     */
+    private void drain() {
+        while (!pendingLogouts.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                drainBatch();
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    private void drainBatch() {
+        List<PendingLogout> batch = new ArrayList<PendingLogout>();
+        PendingLogout pending;
+        while (batch.size() < maxBatchSize && (pending = pendingLogouts.poll()) != null) {
+            batch.add(pending);
+        }
+        List<SessionInvalidation> invalidations = new ArrayList<SessionInvalidation>(batch.size());
+        int[] counts = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                counts[i] = apply(batch.get(i).invalidation);
+                invalidations.add(batch.get(i).invalidation);
+            } catch (RuntimeException e) {
+                batch.get(i).result.completeExceptionally(e);
+            }
+        }
+        batches.incrementAndGet();
+        try {
+            bus.publishAll(invalidations);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to publish " + batch.size() + " session invalidations", e);
+            for (PendingLogout failed : batch) {
+                failed.result.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(counts[i]);
+        }
+    }
+
+    /**
+     * @return number of sessions invalidated on this node
+     */
+    protected int apply(SessionInvalidation invalidation) {
+        String issuer = invalidation.getIssuer();
+        String nameID = invalidation.getNameID();
+        if (revokedSessions != null) {
+            if (nameID == null) {
+                revokedSessions.revokeIssuer(issuer);
+            } else if (invalidation.getSessionIndexes() == null) {
+                revokedSessions.revoke(issuer, nameID, null);
+            } else {
+                for (String sessionIndex : invalidation.getSessionIndexes()) {
+                    revokedSessions.revoke(issuer, nameID, sessionIndex);
+                }
+            }
+        }
+
+        List<SessionEntry> matched = new ArrayList<SessionEntry>();
+        if (nameID == null) {
+            Set<String> issuerSubjects = subjectsByIssuer.remove(issuer);
+            if (issuerSubjects != null) {
+                for (String subject : issuerSubjects) {
+                    SessionEntry[] entries = subjects.remove(subject);
+                    if (entries != null) {
+                        matched.addAll(Arrays.asList(entries));
+                    }
+                }
+            }
+        } else {
+            String subject = key(issuer, nameID);
+            List<String> indexes = invalidation.getSessionIndexes();
+            subjects.computeIfPresent(subject, (key, entries) -> {
+                List<SessionEntry> kept = new ArrayList<SessionEntry>(entries.length);
+                for (SessionEntry entry : entries) {
+                    (indexes == null || entry.matches(indexes) ? matched : kept).add(entry);
+                }
+                if (kept.isEmpty()) {
+                    removeSubject(key);
+                    return null;
+                }
+                return kept.toArray(new SessionEntry[kept.size()]);
+            });
+        }
+
+        for (SessionEntry entry : matched) {
+            sessions.remove(entry.session.getId(), entry);
+            try {
+                entry.session.invalidate();
+            } catch (IllegalStateException e) {
+                LOG.debug("Session {} was already invalidated", entry.session.getId());
+            }
+        }
+        invalidated.addAndGet(matched.size());
+        if (!matched.isEmpty()) {
+            LOG.info("Invalidated {} sessions for {}", matched.size(), invalidation);
+        }
+        return matched.size();
+    }
+
+    private void remove(SessionEntry entry) {
+        subjects.computeIfPresent(entry.subject, (key, entries) -> {
+            int index = Arrays.asList(entries).indexOf(entry);
+            if (index == -1) {
+                return entries;
+            }
+            if (entries.length == 1) {
+                removeSubject(key);
+                return null;
+            }
+            SessionEntry[] result = new SessionEntry[entries.length - 1];
+            System.arraycopy(entries, 0, result, 0, index);
+            System.arraycopy(entries, index + 1, result, index, result.length - index);
+            return result;
+        });
+    }
+
+    /*
+     * Called while the subject is being removed from the subjects map, under its lock, so that a
+     * concurrent registration of the same subject can't be dropped from the index of its issuer.
+     */
+    private void removeSubject(String subject) {
+        subjectsByIssuer.computeIfPresent(subject.substring(0, subject.indexOf(SEPARATOR)),
+                (issuer, issuerSubjects) -> {
+                    issuerSubjects.remove(subject);
+                    return issuerSubjects.isEmpty() ? null : issuerSubjects;
+                });
+    }
+
+    /**
+     * @return identifiers of the sessions of a user on this node
+     */
+    public List<String> getSessionIds(String issuer, String nameID) {
+        SessionEntry[] entries = subjects.getOrDefault(key(issuer, nameID), NONE);
+        List<String> ids = new ArrayList<String>(entries.length);
+        for (SessionEntry entry : entries) {
+            ids.add(entry.session.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Visits the sessions registered on this node, in no particular order; a
+     * session registered or removed during the visit may be visited or not.
+     *
+     * @param limit maximum number of sessions visited
+     */
+    public void forEachSession(int limit, SessionVisitor visitor) {
+        int count = 0;
+        for (SessionEntry entry : sessions.values()) {
+            if (count++ == limit) {
+                return;
+            }
+            int separator = entry.subject.indexOf(SEPARATOR);
+            visitor.visit(entry.session, entry.subject.substring(0, separator),
+                    entry.subject.substring(separator + 1));
+        }
+    }
+
+    /**
+     * @return number of sessions registered on this node
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return number of users having a session on this node
+     */
+    public int getSubjectCount() {
+        return subjects.size();
+    }
+
+    /**
+     * @return number of IdPs having users with a session on this node
+     */
+    public int getIssuerCount() {
+        return subjectsByIssuer.size();
+    }
+
+    public long getInvalidatedCount() {
+        return invalidated.get();
+    }
+
+    /**
+     * @return number of logouts waiting for the batch in progress
+     */
+    public int getPendingCount() {
+        return pendingLogouts.size();
+    }
+
+    /**
+     * @return number of batches of logouts applied and published so far
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize maximum number of logouts published in one bus message
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    static String[] sessionIndexes(SAMLCredential credential) {
+        if (credential instanceof CompactSAMLCredential) {
+            List<String> indexes = ((CompactSAMLCredential) credential).getSessionIndexes();
+            return indexes.toArray(new String[indexes.size()]);
+        }
+        List<String> indexes = new ArrayList<String>(1);
+        for (AuthnStatement statement : credential.getAuthenticationAssertion().getAuthnStatements()) {
+            if (statement.getSessionIndex() != null) {
+                indexes.add(statement.getSessionIndex());
+            }
+        }
+        return indexes.toArray(new String[indexes.size()]);
+    }
+
+    private static String key(String issuer, String nameID) {
+        return issuer + SEPARATOR + nameID;
+    }
+
+    /**
+     * Callback of {@link SAMLSessionRegistry#forEachSession(int, SessionVisitor)}.
+     */
+    public interface SessionVisitor {
+
+        void visit(HttpSession session, String issuer, String nameID);
+    }
+
+    private static final class PendingLogout {
+
+        private final SessionInvalidation invalidation;
+
+        private final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+        PendingLogout(SessionInvalidation invalidation) {
+            this.invalidation = invalidation;
+        }
+    }
+
+    private static final class SessionEntry {
+
+        private final HttpSession session;
+
+        private final String subject;
+
+        private final String[] sessionIndexes;
+
+        SessionEntry(HttpSession session, String subject, String[] sessionIndexes) {
+            this.session = session;
+            this.subject = subject;
+            this.sessionIndexes = sessionIndexes;
+        }
+
+        boolean matches(List<String> indexes) {
+            for (String sessionIndex : sessionIndexes) {
+                if (indexes.contains(sessionIndex)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
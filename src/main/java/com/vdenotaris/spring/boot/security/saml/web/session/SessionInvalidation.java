@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Logout of SAML sessions, sent to every node through a {@link SessionInvalidationBus}.
+ * <p>
+ * Covers the given session indexes of a NameID, all the sessions of a NameID
+ * when no index is given, or all the sessions issued by an IdP when no NameID
+ * is given either.
+ */
+public final class SessionInvalidation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String origin;
+
+    private final String issuer;
+
+    private final String nameID;
+
+    private final List<String> sessionIndexes;
+
+    public SessionInvalidation(String origin, String issuer, String nameID, Collection<String> sessionIndexes) {
+        if (issuer == null || (nameID == null && sessionIndexes != null)) {
+            throw new IllegalArgumentException("Issuer required, and NameID required with session indexes");
+        }
+        this.origin = origin;
+        this.issuer = issuer;
+        this.nameID = nameID;
+        this.sessionIndexes = sessionIndexes == null || sessionIndexes.isEmpty() ? null
+                : Collections.unmodifiableList(new ArrayList<String>(sessionIndexes));
+    }
+
+    /**
+     * @return identifier of the node which initiated the logout
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * @return the NameID, null for all the sessions of the issuer
+     */
+    public String getNameID() {
+        return nameID;
+    }
+
+    /**
+     * @return the session indexes, null for all the sessions of the NameID
+     */
+    public List<String> getSessionIndexes() {
+        return sessionIndexes;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionInvalidation[" + issuer + (nameID != null ? ", " + nameID : "")
+                + (sessionIndexes != null ? ", " + sessionIndexes : "") + "]";
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Channel carrying {@link SessionInvalidation}s to every node of a cluster,
+ * e.g. a message broker topic. Each node applies them to the sessions it holds.
+ */
+public interface SessionInvalidationBus {
+
+    /**
+     * Sends an invalidation to every subscriber, including the ones of the sending node.
+     */
+    void publish(SessionInvalidation invalidation);
+
+    /**
+     * Sends a batch of invalidations; brokers supporting it should send them as a single message.
+     */
+    default void publishAll(List<SessionInvalidation> invalidations) {
+        for (SessionInvalidation invalidation : invalidations) {
+            publish(invalidation);
+        }
+    }
+
+    void subscribe(Consumer<SessionInvalidation> subscriber);
+
+}
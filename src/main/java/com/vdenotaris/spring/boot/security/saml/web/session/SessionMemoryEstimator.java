@@ -0,0 +1,408 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLCredential;
+import com.vdenotaris.spring.boot.security.saml.web.util.ObjectSizeEstimator;
+
+/**
+ * Estimates the heap retained by the HTTP sessions of the
+ * {@link SAMLSessionRegistry}, by {@link Component}.
+ * <p>
+ * Each session is measured on demand with an {@link ObjectSizeEstimator}, the
+ * components in the order of {@link Component}, each counting the objects the
+ * previous ones did not: the assertion first, with its DOM and the response
+ * holding it when the credential keeps them, then the rest of the credential,
+ * the security context with the token and the principal, the outstanding
+ * messages of the session message storage and the other session attributes.
+ * Granted authorities, which the authority mapper shares between users, and
+ * the loggers of the OpenSAML objects are not counted; other shared objects,
+ * such as entity ID strings read from the metadata, are counted in every
+ * session holding them.
+ * <p>
+ * Sessions whose security context lives in a cookie only cost their other
+ * attributes. At most {@code maxSessions} sessions are measured per estimate.
+ */
+public class SessionMemoryEstimator {
+
+    /**
+     * Attribute of the outstanding messages of {@code HttpSessionStorage}.
+     */
+    static final String MESSAGE_STORAGE_KEY = "_springSamlStorageKey";
+
+    public enum Component {
+
+        ASSERTION("assertion"),
+        CREDENTIAL("credential"),
+        TOKEN("token"),
+        MESSAGES("messages"),
+        OTHER("other");
+
+        private final String label;
+
+        Component(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Component[] COMPONENTS = Component.values();
+
+    private final ObjectSizeEstimator estimator = new ObjectSizeEstimator()
+            .stopAt(HttpSession.class)
+            .stopAt(ServletContext.class)
+            .stopAt(Logger.class)
+            .stopAt(GrantedAuthority.class)
+            .ignoreField(CompactSAMLCredential.class, "authenticationAssertion");
+
+    private final SAMLSessionRegistry registry;
+
+    private final int maxSessions;
+
+    /**
+     * @param maxSessions maximum number of sessions measured by an estimate
+     */
+    public SessionMemoryEstimator(SAMLSessionRegistry registry, int maxSessions) {
+        this.registry = registry;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * @param idp entity ID of an IdP, or null for all IdPs
+     * @param top number of heaviest sessions listed
+     */
+    public Estimate estimate(String idp, int top) {
+        List<SessionMemory> sessions = new ArrayList<SessionMemory>();
+        registry.forEachSession(maxSessions, (session, issuer, nameID) -> {
+            if (idp == null || idp.equals(issuer)) {
+                SessionMemory memory = estimate(session, issuer, nameID);
+                if (memory != null) {
+                    sessions.add(memory);
+                }
+            }
+        });
+
+        List<ComponentMemory> components = new ArrayList<ComponentMemory>(COMPONENTS.length + 1);
+        long[] values = new long[sessions.size()];
+        for (Component component : COMPONENTS) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = sessions.get(i).bytes[component.ordinal()];
+            }
+            components.add(new ComponentMemory(component.getLabel(), values));
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sessions.get(i).getTotalBytes();
+        }
+        components.add(new ComponentMemory("total", values));
+
+        Map<String, IdPMemory> byIdP = new TreeMap<String, IdPMemory>();
+        for (SessionMemory session : sessions) {
+            byIdP.computeIfAbsent(session.getIdp(), IdPMemory::new).add(session);
+        }
+        List<IdPMemory> idps = new ArrayList<IdPMemory>(byIdP.values());
+        idps.sort(Comparator.comparingLong(IdPMemory::getTotalBytes).reversed());
+
+        sessions.sort(Comparator.comparingLong(SessionMemory::getTotalBytes).reversed());
+        List<SessionMemory> heaviest =
+                new ArrayList<SessionMemory>(sessions.subList(0, Math.min(top, sessions.size())));
+        return new Estimate(registry.size(), sessions.size(), components, idps, heaviest);
+    }
+
+    /**
+     * @return the memory retained by the session, null when it was invalidated meanwhile
+     */
+    public SessionMemory estimate(HttpSession session, String idp, String nameID) {
+        long[] bytes = new long[COMPONENTS.length];
+        ObjectSizeEstimator.Walk walk = estimator.newWalk();
+        try {
+            Object context =
+                    session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+            Authentication authentication = context instanceof SecurityContext
+                    ? ((SecurityContext) context).getAuthentication() : null;
+            Object credential = authentication != null ? authentication.getCredentials() : null;
+            if (credential instanceof CompactSAMLCredential) {
+                CompactSAMLCredential compact = (CompactSAMLCredential) credential;
+                bytes[Component.ASSERTION.ordinal()] = walk.add(compact.getDeflatedAssertion())
+                        + walk.add(compact.getLoadedAssertion());
+            } else if (credential instanceof SAMLCredential) {
+                bytes[Component.ASSERTION.ordinal()] =
+                        walk.add(((SAMLCredential) credential).getAuthenticationAssertion());
+            }
+            bytes[Component.CREDENTIAL.ordinal()] = walk.add(credential);
+            bytes[Component.TOKEN.ordinal()] = walk.add(context);
+            bytes[Component.MESSAGES.ordinal()] = walk.add(session.getAttribute(MESSAGE_STORAGE_KEY));
+            Enumeration<String> names = session.getAttributeNames();
+            while (names.hasMoreElements()) {
+                bytes[Component.OTHER.ordinal()] += walk.add(session.getAttribute(names.nextElement()));
+            }
+            return new SessionMemory(idp, nameID, session.getCreationTime(), bytes);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estimate of the sessions of this node, sizes in bytes.
+     */
+    public static final class Estimate {
+
+        private final int sessions;
+
+        private final int measuredSessions;
+
+        private final List<ComponentMemory> components;
+
+        private final List<IdPMemory> idps;
+
+        private final List<SessionMemory> heaviest;
+
+        Estimate(int sessions, int measuredSessions, List<ComponentMemory> components, List<IdPMemory> idps,
+                List<SessionMemory> heaviest) {
+            this.sessions = sessions;
+            this.measuredSessions = measuredSessions;
+            this.components = components;
+            this.idps = idps;
+            this.heaviest = heaviest;
+        }
+
+        /**
+         * @return number of sessions registered on this node
+         */
+        public int getSessions() {
+            return sessions;
+        }
+
+        public int getMeasuredSessions() {
+            return measuredSessions;
+        }
+
+        /**
+         * @return distribution of the bytes of each component over the sessions measured, then of their total
+         */
+        public List<ComponentMemory> getComponents() {
+            return components;
+        }
+
+        /**
+         * @return sessions measured by IdP, the IdPs retaining the most memory first
+         */
+        public List<IdPMemory> getIdps() {
+            return idps;
+        }
+
+        /**
+         * @return the heaviest sessions measured, heaviest first
+         */
+        public List<SessionMemory> getHeaviest() {
+            return heaviest;
+        }
+
+    }
+
+    /**
+     * Distribution of the bytes of a component over sessions.
+     */
+    public static final class ComponentMemory {
+
+        private final String component;
+
+        private final long[] sorted;
+
+        private final long totalBytes;
+
+        ComponentMemory(String component, long[] values) {
+            this.component = component;
+            this.sorted = values.clone();
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long value : sorted) {
+                total += value;
+            }
+            this.totalBytes = total;
+        }
+
+        public String getComponent() {
+            return component;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getMean() {
+            return sorted.length == 0 ? 0 : totalBytes / sorted.length;
+        }
+
+        public long getP50() {
+            return getValueAtQuantile(0.5);
+        }
+
+        public long getP90() {
+            return getValueAtQuantile(0.9);
+        }
+
+        public long getP99() {
+            return getValueAtQuantile(0.99);
+        }
+
+        public long getMax() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.max(1, Math.ceil(quantile * sorted.length));
+            return sorted[rank - 1];
+        }
+
+    }
+
+    /**
+     * Bytes retained by the sessions of an IdP.
+     */
+    public static final class IdPMemory {
+
+        private final String idp;
+
+        private int sessions;
+
+        private long totalBytes;
+
+        private long maxBytes;
+
+        IdPMemory(String idp) {
+            this.idp = idp;
+        }
+
+        void add(SessionMemory session) {
+            sessions++;
+            totalBytes += session.getTotalBytes();
+            maxBytes = Math.max(maxBytes, session.getTotalBytes());
+        }
+
+        public String getIdp() {
+            return idp;
+        }
+
+        public int getSessions() {
+            return sessions;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getMeanBytes() {
+            return sessions == 0 ? 0 : totalBytes / sessions;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+    }
+
+    /**
+     * Bytes retained by one session, by component.
+     */
+    public static final class SessionMemory {
+
+        private final String idp;
+
+        private final String nameID;
+
+        private final long creationTime;
+
+        private final long[] bytes;
+
+        private final long totalBytes;
+
+        SessionMemory(String idp, String nameID, long creationTime, long[] bytes) {
+            this.idp = idp;
+            this.nameID = nameID;
+            this.creationTime = creationTime;
+            this.bytes = bytes;
+            long total = 0;
+            for (long value : bytes) {
+                total += value;
+            }
+            this.totalBytes = total;
+        }
+
+        public String getIdp() {
+            return idp;
+        }
+
+        public String getNameID() {
+            return nameID;
+        }
+
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        public long getBytes(Component component) {
+            return bytes[component.ordinal()];
+        }
+
+        /**
+         * @return bytes by component label
+         */
+        public Map<String, Long> getComponents() {
+            Map<String, Long> components = new LinkedHashMap<String, Long>();
+            for (Component component : COMPONENTS) {
+                components.put(component.getLabel(), bytes[component.ordinal()]);
+            }
+            return Collections.unmodifiableMap(components);
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.Configuration;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml.parser.ParserPoolHolder;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.security.saml.storage.SAMLMessageStorageFactory;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
+import org.w3c.dom.Element;
+
+/**
+ * Message storage keeping outstanding requests in short-lived cookies instead
+ * of the HTTP session, so that starting a login creates no server state.
+ * <p>
+ * Each message gets its own cookie, named after its ID and restricted to the
+ * SAML endpoints, holding its expiry and deflated XML, signed with
+ * HMAC-SHA256. A cookie is read and cleared when the response to its request
+ * comes back; a replayed cookie comes with a replayed response, which the
+ * replay cache rejects.
+ * <p>
+ * Writing requires the HTTP response, see {@link #getMessageStorage(HttpServletRequest, HttpServletResponse)}.
+ * On HTTPS the cookie is marked {@code SameSite=None; Secure} so that browsers
+ * send it with the POST coming from the IdP.
+ */
+public class CookieMessageStorageFactory implements SAMLMessageStorageFactory {
+
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(CookieMessageStorageFactory.class);
+
+    public static final String COOKIE_PREFIX = "SAML_AUTHN_";
+
+    private static final int MAC_LENGTH = 32;
+
+    private final SecretKeySpec key;
+
+    private String cookiePath = "/saml";
+
+    private int timeToLive = 900;
+
+    /**
+     * @param key Base64 encoded HMAC key shared by all the nodes; when empty a random key is
+     *            generated and requests can only be answered on this node
+     */
+    public CookieMessageStorageFactory(String key) {
+        byte[] keyBytes;
+        if (StringUtils.hasText(key)) {
+            keyBytes = Base64.getDecoder().decode(key.trim());
+        } else {
+            LOG.warn("No request cookie key configured, responses will only be accepted by this node");
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        }
+        this.key = new SecretKeySpec(keyBytes, "HmacSHA256");
+    }
+
+    /**
+     * @return storage able to read and clear messages, but not to store new ones
+     */
+    @Override
+    public SAMLMessageStorage getMessageStorage(HttpServletRequest request) {
+        return new CookieMessageStorage(request, null);
+    }
+
+    public SAMLMessageStorage getMessageStorage(HttpServletRequest request, HttpServletResponse response) {
+        return new CookieMessageStorage(request, response);
+    }
+
+    private byte[] sign(String name, byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            mac.update(name.getBytes(StandardCharsets.US_ASCII));
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to sign request cookie", e);
+        }
+    }
+
+    private static String cookieName(String messageId) {
+        for (int i = 0; i < messageId.length(); i++) {
+            char c = messageId.charAt(i);
+            if (!(Character.isLetterOrDigit(c) && c < 128) && c != '_' && c != '-') {
+                throw new IllegalArgumentException("Unsupported message ID " + messageId);
+            }
+        }
+        return COOKIE_PREFIX + messageId;
+    }
+
+    public String getCookiePath() {
+        return cookiePath;
+    }
+
+    /**
+     * @param cookiePath path, relative to the context path, of the endpoints receiving the responses
+     */
+    public void setCookiePath(String cookiePath) {
+        this.cookiePath = cookiePath;
+    }
+
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @param timeToLive seconds during which a response to a request is accepted
+     */
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    private final class CookieMessageStorage implements SAMLMessageStorage {
+
+        private final HttpServletRequest request;
+
+        private final HttpServletResponse response;
+
+        CookieMessageStorage(HttpServletRequest request, HttpServletResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public void storeMessage(String messageId, XMLObject message) {
+            if (response == null) {
+                throw new IllegalStateException("Messages can only be stored when the response is available");
+            }
+            String name = cookieName(messageId);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+                out.write(ByteBuffer.allocate(8).putLong(System.currentTimeMillis() + timeToLive * 1000L).array());
+                out.write(XMLHelper.nodeToString(SAMLUtil.marshallMessage(message)).getBytes(StandardCharsets.UTF_8));
+            } catch (MessageEncodingException | IOException e) {
+                throw new IllegalStateException("Unable to store message " + messageId, e);
+            }
+            byte[] payload = bytes.toByteArray();
+            byte[] mac = sign(name, payload);
+            byte[] value = Arrays.copyOf(payload, payload.length + MAC_LENGTH);
+            System.arraycopy(mac, 0, value, payload.length, MAC_LENGTH);
+            addCookie(name, Base64.getUrlEncoder().withoutPadding().encodeToString(value), timeToLive);
+        }
+
+        @Override
+        public XMLObject retrieveMessage(String messageId) {
+            String name;
+            try {
+                name = cookieName(messageId);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            Cookie cookie = WebUtils.getCookie(request, name);
+            if (cookie == null) {
+                LOG.debug("No cookie found for message {}", messageId);
+                return null;
+            }
+            if (response != null) {
+                addCookie(name, "", 0);
+            }
+            try {
+                byte[] value = Base64.getUrlDecoder().decode(cookie.getValue());
+                if (value.length <= MAC_LENGTH) {
+                    return null;
+                }
+                byte[] payload = Arrays.copyOf(value, value.length - MAC_LENGTH);
+                byte[] mac = Arrays.copyOfRange(value, payload.length, value.length);
+                if (!MessageDigest.isEqual(mac, sign(name, payload))) {
+                    LOG.warn("Invalid signature of the cookie of message {}", messageId);
+                    return null;
+                }
+                try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(payload))) {
+                    byte[] expiry = new byte[8];
+                    if (in.read(expiry) != 8 || ByteBuffer.wrap(expiry).getLong() < System.currentTimeMillis()) {
+                        LOG.debug("Cookie of message {} has expired", messageId);
+                        return null;
+                    }
+                    Element element = ParserPoolHolder.getPool().parse(in).getDocumentElement();
+                    return Configuration.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+                }
+            } catch (IllegalArgumentException | IOException | XMLParserException | UnmarshallingException e) {
+                LOG.debug("Invalid cookie of message " + messageId, e);
+                return null;
+            }
+        }
+
+        /*
+         * Written as a header, the servlet API can't set the SameSite attribute.
+         */
+        private void addCookie(String name, String value, int maxAge) {
+            StringBuilder sb = new StringBuilder(name.length() + value.length() + 96);
+            sb.append(name).append('=').append(value)
+                    .append("; Path=").append(request.getContextPath()).append(cookiePath)
+                    .append("; Max-Age=").append(maxAge)
+                    .append("; HttpOnly");
+            if (request.isSecure()) {
+                sb.append("; Secure; SameSite=None");
+            }
+            response.addHeader("Set-Cookie", sb.toString());
+        }
+    }
+
+}
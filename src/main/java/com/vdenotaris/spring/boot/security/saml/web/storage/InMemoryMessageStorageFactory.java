@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opensaml.xml.XMLObject;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.security.saml.storage.SAMLMessageStorageFactory;
+
+/**
+ * Message storage shared by all users of one node, holding at most
+ * {@code capacity} outstanding requests for {@code timeToLive} seconds.
+ * <p>
+ * Requests are written to a ring: when it is full the oldest request is
+ * overwritten, whether answered or not, so crawlers and abandoned logins use
+ * a bounded amount of memory instead of HTTP sessions. Message IDs are
+ * unguessable, which is what keeps users from answering each other's
+ * requests. Responses must reach the node which sent the request.
+ */
+public class InMemoryMessageStorageFactory implements SAMLMessageStorageFactory, SAMLMessageStorage {
+
+    private final Entry[] ring;
+
+    private final ConcurrentMap<String, Entry> entries;
+
+    private final long timeToLive;
+
+    private final AtomicLong overwritten = new AtomicLong();
+
+    private int next;
+
+    /**
+     * @param capacity           maximum number of outstanding requests
+     * @param timeToLiveSeconds  seconds during which a response to a request is accepted
+     */
+    public InMemoryMessageStorageFactory(int capacity, int timeToLiveSeconds) {
+        this.ring = new Entry[capacity];
+        this.entries = new ConcurrentHashMap<String, Entry>(capacity * 4 / 3 + 1);
+        this.timeToLive = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+    }
+
+    @Override
+    public SAMLMessageStorage getMessageStorage(HttpServletRequest request) {
+        return this;
+    }
+
+    @Override
+    public void storeMessage(String messageId, XMLObject message) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(messageId, message, now + timeToLive);
+        synchronized (ring) {
+            Entry oldest = ring[next];
+            if (oldest != null && entries.remove(oldest.messageId, oldest) && oldest.expiresAt > now) {
+                overwritten.incrementAndGet();
+            }
+            ring[next] = entry;
+            next = (next + 1) % ring.length;
+        }
+        entries.put(messageId, entry);
+    }
+
+    /**
+     * Returns and forgets a message, a response is only accepted once.
+     */
+    @Override
+    public XMLObject retrieveMessage(String messageId) {
+        Entry entry = entries.remove(messageId);
+        return entry != null && entry.expiresAt > System.currentTimeMillis() ? entry.message : null;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of requests dropped before their expiry because the ring was full
+     */
+    public long getOverwrittenCount() {
+        return overwritten.get();
+    }
+
+    private static final class Entry {
+
+        private final String messageId;
+
+        private final XMLObject message;
+
+        private final long expiresAt;
+
+        Entry(String messageId, XMLObject message, long expiresAt) {
+            this.messageId = messageId;
+            this.message = message;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.storage;
+
+import org.opensaml.common.SAMLException;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.security.saml.websso.WebSSOProfileImpl;
+
+/**
+ * Web SSO profile storing the AuthnRequest before it is sent.
+ * <p>
+ * {@link WebSSOProfileImpl} stores the request once encoded, when the redirect
+ * or the POST form has already committed the HTTP response: the cookie of the
+ * {@link CookieMessageStorageFactory} is then dropped and the Response of the
+ * IdP rejected. The request is stored first, and the storage removed from the
+ * context so that it isn't stored a second time.
+ */
+public class StoreFirstWebSSOProfile extends WebSSOProfileImpl {
+
+    @Override
+    protected void sendMessage(SAMLMessageContext context, boolean sign)
+            throws MetadataProviderException, SAMLException, MessageEncodingException {
+        SAMLMessageStorage messageStorage = context.getMessageStorage();
+        if (messageStorage != null && context.getOutboundSAMLMessage() instanceof AuthnRequest) {
+            AuthnRequest request = (AuthnRequest) context.getOutboundSAMLMessage();
+            messageStorage.storeMessage(request.getID(), request);
+            context.setMessageStorage(null);
+        }
+        super.sendMessage(context, sign);
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.util;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the heap retained by object graphs, following their instance
+ * fields by reflection.
+ * <p>
+ * Sizes are those of a 64-bit HotSpot JVM with compressed references, the
+ * default below 32 GB of heap: 12 bytes of object header, 4 bytes per
+ * reference, 16 bytes of array header, everything aligned to 8 bytes. Field
+ * packing is not modelled, so an estimate may be a few bytes per object off.
+ * <p>
+ * Static fields, classes, enums, soft and weak references and instances of
+ * the types passed to {@link #stopAt(Class)} are never counted: they are
+ * shared by the whole application, or not retained by the graph being
+ * measured. A {@link Walk} counts
+ * each object once, so that several roots sharing objects, measured one after
+ * the other, each get the bytes the previous ones did not already account for.
+ */
+public class ObjectSizeEstimator {
+
+    private static final int OBJECT_HEADER = 12;
+
+    private static final int ARRAY_HEADER = 16;
+
+    private static final int REFERENCE = 4;
+
+    private static final Layout STOP = new Layout(0, Collections.<Field>emptyList());
+
+    private final Set<Class<?>> stopTypes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    private final Map<Field, Class<?>> ignoredFields = new ConcurrentHashMap<Field, Class<?>>();
+
+    private final ConcurrentHashMap<Class<?>, Layout> layouts = new ConcurrentHashMap<Class<?>, Layout>();
+
+    public ObjectSizeEstimator() {
+        stopAt(Class.class);
+        stopAt(ClassLoader.class);
+        stopAt(Thread.class);
+        stopAt(Enum.class);
+        stopAt(Reference.class);
+    }
+
+    /**
+     * Instances of the type and its subtypes, and what they refer to, are not counted.
+     */
+    public ObjectSizeEstimator stopAt(Class<?> type) {
+        stopTypes.add(type);
+        layouts.clear();
+        return this;
+    }
+
+    /**
+     * The field of instances of the owner type and its subtypes is not followed.
+     *
+     * @throws IllegalArgumentException when the type has no such field
+     */
+    public ObjectSizeEstimator ignoreField(Class<?> owner, String name) {
+        for (Class<?> type = owner; type != null; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (field.getName().equals(name) && !Modifier.isStatic(field.getModifiers())) {
+                    ignoredFields.put(field, owner);
+                    layouts.clear();
+                    return this;
+                }
+            }
+        }
+        throw new IllegalArgumentException(owner.getName() + " has no field " + name);
+    }
+
+    /**
+     * @return bytes retained by the object and what it refers to
+     */
+    public long sizeOf(Object root) {
+        return newWalk().add(root);
+    }
+
+    public Walk newWalk() {
+        return new Walk();
+    }
+
+    /**
+     * @return size of an instance of the class, not counting what its fields refer to
+     */
+    public long shallowSizeOf(Class<?> type) {
+        return layout(type).size;
+    }
+
+    private Layout layout(Class<?> type) {
+        Layout layout = layouts.get(type);
+        if (layout == null) {
+            layout = layouts.computeIfAbsent(type, this::computeLayout);
+        }
+        return layout;
+    }
+
+    private Layout computeLayout(Class<?> type) {
+        for (Class<?> stopType : stopTypes) {
+            if (stopType.isAssignableFrom(type)) {
+                return STOP;
+            }
+        }
+        long size = OBJECT_HEADER;
+        List<Field> references = new ArrayList<Field>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                Class<?> fieldType = field.getType();
+                size += fieldType.isPrimitive() ? primitiveSize(fieldType) : REFERENCE;
+                Class<?> owner = ignoredFields.get(field);
+                if (!fieldType.isPrimitive() && (owner == null || !owner.isAssignableFrom(type))) {
+                    try {
+                        field.setAccessible(true);
+                        references.add(field);
+                    } catch (RuntimeException e) {
+                        // SecurityException, or InaccessibleObjectException for the JDK classes of
+                        // unopened modules on Java 9+: counted as a reference, not followed
+                    }
+                }
+            }
+        }
+        return new Layout(align(size), references);
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Measure of several roots counting the objects they share once; not thread-safe.
+     */
+    public final class Walk {
+
+        private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        private final Deque<Object> pending = new ArrayDeque<Object>();
+
+        private Walk() {
+        }
+
+        /**
+         * @return bytes retained by the root not already counted by this walk, 0 for null
+         */
+        public long add(Object root) {
+            long size = 0;
+            push(root);
+            Object object;
+            while ((object = pending.poll()) != null) {
+                Class<?> type = object.getClass();
+                if (type.isArray()) {
+                    size += arraySize(object, type.getComponentType());
+                } else {
+                    Layout layout = layout(type);
+                    size += layout.size;
+                    for (Field field : layout.references) {
+                        try {
+                            push(field.get(object));
+                        } catch (IllegalAccessException e) {
+                            // not followed
+                        }
+                    }
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Excludes an object, and what only it refers to, from the next roots.
+         */
+        public void exclude(Object object) {
+            if (object != null) {
+                visited.add(object);
+            }
+        }
+
+        private long arraySize(Object array, Class<?> componentType) {
+            if (componentType.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) primitiveSize(componentType) * Array.getLength(array));
+            }
+            Object[] elements = (Object[]) array;
+            for (Object element : elements) {
+                push(element);
+            }
+            return align(ARRAY_HEADER + (long) REFERENCE * elements.length);
+        }
+
+        private void push(Object object) {
+            if (object != null && visited.add(object)) {
+                pending.push(object);
+            }
+        }
+    }
+
+    private static final class Layout {
+
+        private final long size;
+
+        private final List<Field> references;
+
+        Layout(long size, List<Field> references) {
+            this.size = size;
+            this.references = references;
+        }
+    }
+
+}
@@ -17,8 +17,10 @@
 package com.vdenotaris.spring.boot.security.saml.web;
 
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.PropertySource;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 @SpringBootApplication
+@PropertySource("classpath:test.properties")
 public class TestConfig extends WebMvcConfigurerAdapter {
 }
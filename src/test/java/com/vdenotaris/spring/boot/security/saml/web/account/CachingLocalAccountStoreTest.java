@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.account;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CachingLocalAccountStoreTest {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    @Test
+    public void testConcurrentLookupsShareOneBackendCall() throws Exception {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        LocalAccount account = new LocalAccount("jdoe", true, null);
+        LocalAccountStore backend = (issuer, nameID) -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return account;
+        };
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try (CachingLocalAccountStore store = new CachingLocalAccountStore(backend, 100, 1, 1, TimeUnit.MINUTES)) {
+            // when
+            Future<LocalAccount> first = threads.submit(() -> store.findAccount(IDP, "jdoe@example.com"));
+            started.await();
+            Future<?>[] others = new Future<?>[7];
+            for (int i = 0; i < others.length; i++) {
+                others[i] = threads.submit(() -> store.findAccount(IDP, "jdoe@example.com"));
+            }
+            while (store.getCoalescedCount() < others.length) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            // then
+            assertSame(account, first.get());
+            for (Future<?> other : others) {
+                assertSame(account, other.get());
+            }
+            assertEquals(1, calls.get());
+            assertSame(account, store.findAccount(IDP, "jdoe@example.com"));
+            assertEquals(1, store.getHitCount());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRefreshAheadAndExpiry() throws Exception {
+        // given
+        InMemoryLocalAccountStore backend = new InMemoryLocalAccountStore();
+        backend.addAccount(null, "jdoe@example.com", new LocalAccount("jdoe", true, null));
+        try (CachingLocalAccountStore store = new CachingLocalAccountStore(backend, 100, 400, 100,
+                TimeUnit.MILLISECONDS)) {
+            store.findAccount(IDP, "jdoe@example.com");
+            backend.addAccount(null, "jdoe@example.com", new LocalAccount("john.doe", true, null));
+
+            // when
+            Thread.sleep(150);
+            String stale = store.findAccount(IDP, "jdoe@example.com").getUsername();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.getRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            String refreshed = store.findAccount(IDP, "jdoe@example.com").getUsername();
+            backend.removeAccount(null, "jdoe@example.com");
+            Thread.sleep(450);
+            LocalAccount expired = store.findAccount(IDP, "jdoe@example.com");
+
+            // then
+            assertEquals("jdoe", stale);
+            assertEquals("john.doe", refreshed);
+            assertNull(expired);
+            assertEquals(3, backend.getLookupCount());
+        }
+    }
+
+    @Test
+    public void testPrefetchUsesOneBulkCall() {
+        // given
+        InMemoryLocalAccountStore backend = new InMemoryLocalAccountStore();
+        backend.addAccount(IDP, "a@example.com", new LocalAccount("a", true, Collections.singletonList("ROLE_A")));
+        backend.addAccount(null, "b@example.com", new LocalAccount("b", false, null));
+        try (CachingLocalAccountStore store = new CachingLocalAccountStore(backend, 100, 1, 1, TimeUnit.MINUTES)) {
+            // when
+            int loaded = store.prefetch(IDP, Arrays.asList("a@example.com", "b@example.com", "c@example.com"));
+            LocalAccount a = store.findAccount(IDP, "a@example.com");
+            LocalAccount b = store.findAccount(IDP, "b@example.com");
+            LocalAccount c = store.findAccount(IDP, "c@example.com");
+
+            // then
+            assertEquals(3, loaded);
+            assertEquals(Collections.singletonList("ROLE_A"), a.getAuthorities());
+            assertFalse(b.isEnabled());
+            assertNull(c);
+            assertEquals(1, backend.getLookupCount());
+            assertEquals(0, store.prefetch(IDP, Collections.singletonList("c@example.com")));
+        }
+    }
+}
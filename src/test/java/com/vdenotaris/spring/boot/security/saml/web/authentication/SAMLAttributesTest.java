@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.schema.XSString;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.xml.namespace.QName;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class SAMLAttributesTest extends CommonTestSupport {
+
+    private static final String MEMBER_OF = "urn:oid:1.2.840.113556.1.2.102";
+
+    private SAMLCredential credential;
+
+    @Before
+    public void setUp() {
+        String[] groups = new String[300];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = "cn=group" + i + ",ou=groups,dc=example,dc=com";
+        }
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue(USER_NAME);
+        credential = new SAMLCredential(nameID, build(Assertion.DEFAULT_ELEMENT_NAME), "http://idp.ssocircle.com",
+                null, Arrays.asList(attribute("urn:oid:0.9.2342.19200300.100.1.3", "mail", "user@example.com"),
+                attribute(MEMBER_OF, "memberOf", Arrays.copyOf(groups, 200)),
+                attribute(MEMBER_OF, null, Arrays.copyOfRange(groups, 200, 300))), "com:example:spring:sp");
+    }
+
+    @Test
+    public void testLookupByNameAndFriendlyName() {
+        // when
+        SAMLAttributes attributes = SAMLAttributes.of(credential);
+
+        // then
+        assertEquals(2, attributes.size());
+        assertEquals("user@example.com", attributes.getFirst("mail"));
+        assertEquals("user@example.com", attributes.getFirst("urn:oid:0.9.2342.19200300.100.1.3"));
+        assertEquals(300, attributes.getValues("memberOf").size());
+        assertSame(attributes.getValues("memberOf"), attributes.getValues(MEMBER_OF));
+        assertEquals("memberOf", attributes.getFriendlyName(MEMBER_OF));
+        assertTrue(attributes.hasValue("memberOf", "cn=group299,ou=groups,dc=example,dc=com"));
+        assertFalse(attributes.hasValue("memberOf", "cn=group300,ou=groups,dc=example,dc=com"));
+        assertTrue(attributes.getValues("missing").isEmpty());
+        assertNull(attributes.getFirst("missing"));
+    }
+
+    @Test
+    public void testIndexIsSharedByPrincipalAndCredential() throws Exception {
+        // given
+        SAMLAttributes attributes = SAMLAttributes.of(credential);
+        SAMLUser user = new SAMLUser(USER_NAME, "", AUTHORITIES, attributes);
+        ExpiringUsernameAuthenticationToken token =
+                new ExpiringUsernameAuthenticationToken(new Date(60000L), user, credential, AUTHORITIES);
+        token.setDetails(user);
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+
+        // when
+        CompactSAMLAuthenticationToken compact = codec.compact(token);
+        CompactSAMLAuthenticationToken decoded = codec.decode(codec.encode(token));
+
+        // then
+        assertSame(attributes, ((CompactSAMLCredential) compact.getCredentials()).getAttributeIndex());
+        assertSame(compact.getPrincipal(), compact.getDetails());
+        SAMLUser decodedUser = (SAMLUser) decoded.getPrincipal();
+        CompactSAMLCredential decodedCredential = (CompactSAMLCredential) decoded.getCredentials();
+        assertSame(decodedCredential.getAttributeIndex(), decodedUser.getAttributes());
+        assertSame(decodedUser, decoded.getDetails());
+        assertEquals(300, decodedUser.getAttributes().getValues("memberOf").size());
+        assertEquals("mail", decodedCredential.getAttribute("mail").getFriendlyName());
+        assertArrayEquals(new String[] {"user@example.com"}, decodedCredential.getAttributeAsStringArray("mail"));
+    }
+
+    @Test
+    public void testRetainedAttributesAreAppliedToThePrincipal() throws Exception {
+        // given
+        SAMLUser user = new SAMLUser(USER_NAME, "", AUTHORITIES, SAMLAttributes.of(credential));
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+        codec.setAttributeNames(Collections.singleton(MEMBER_OF));
+
+        // when
+        CompactSAMLAuthenticationToken compact = codec.compact(
+                new ExpiringUsernameAuthenticationToken(null, user, credential, AUTHORITIES));
+
+        // then
+        SAMLUser compactUser = (SAMLUser) compact.getPrincipal();
+        assertEquals(Collections.singletonList(MEMBER_OF), compactUser.getAttributes().getNames());
+        assertSame(compactUser.getAttributes(),
+                ((CompactSAMLCredential) compact.getCredentials()).getAttributeIndex());
+    }
+
+    private static Attribute attribute(String name, String friendlyName, String... values) {
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName(name);
+        attribute.setFriendlyName(friendlyName);
+        for (String value : values) {
+            XSString xsValue = build(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            xsValue.setValue(value);
+            attribute.getAttributeValues().add(xsValue);
+        }
+        return attribute;
+    }
+
+    private static <T extends XMLObject> T build(QName elementName) {
+        return build(elementName, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName elementName, QName typeName) {
+        XMLObjectBuilder<T> builder = (XMLObjectBuilder<T>) Configuration.getBuilderFactory()
+                .getBuilder(typeName != null ? typeName : elementName);
+        return typeName != null ? builder.buildObject(elementName, typeName) : builder.buildObject(elementName);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authentication;
+
+import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.authority.AuthorityMapper;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.schema.XSString;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class SAMLAuthenticationCodecTest extends CommonTestSupport {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    private static final String SP = "com:example:spring:sp";
+
+    @Autowired
+    private SAMLAuthenticationCodec samlAuthenticationCodec;
+
+    @Autowired
+    private AuthorityMapper authorityMapper;
+
+    private ExpiringUsernameAuthenticationToken token;
+
+    @Before
+    public void setUp() {
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue(USER_NAME);
+        nameID.setFormat(NameID.EMAIL);
+
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID("_assertion1");
+        assertion.setIssueInstant(new DateTime());
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(IDP);
+        assertion.setIssuer(issuer);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        NameID subjectNameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        subjectNameID.setValue(USER_NAME);
+        subject.setNameID(subjectNameID);
+        assertion.setSubject(subject);
+        AuthnStatement statement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        statement.setSessionIndex("s2abc");
+        statement.setAuthnInstant(new DateTime(1000L));
+        assertion.getAuthnStatements().add(statement);
+
+        SAMLCredential credential = new SAMLCredential(nameID, assertion, IDP, null,
+                Arrays.asList(attribute("mail", "user@example.com"), attribute("groups", "staff", "admins")), SP);
+        token = new ExpiringUsernameAuthenticationToken(new Date(60000L), USER_DETAILS, credential, AUTHORITIES);
+        token.setDetails(USER_DETAILS);
+    }
+
+    @Test
+    public void testJavaSerializationRoundTrip() throws Exception {
+        // given
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+
+        // when
+        ExpiringUsernameAuthenticationToken actual =
+                (ExpiringUsernameAuthenticationToken) deserialize(serialize(codec.compact(token)));
+
+        // then
+        assertTrue(actual instanceof CompactSAMLAuthenticationToken);
+        assertEquals(new Date(60000L), actual.getTokenExpiration());
+        assertEquals(AUTHORITIES, Arrays.asList(actual.getAuthorities().toArray()));
+        User user = (User) actual.getPrincipal();
+        assertEquals(USER_NAME, user.getUsername());
+        assertEquals(AUTHORITIES, Arrays.asList(user.getAuthorities().toArray()));
+        assertSame(user, actual.getDetails());
+
+        CompactSAMLCredential credential = (CompactSAMLCredential) actual.getCredentials();
+        assertEquals(USER_NAME, credential.getNameID().getValue());
+        assertEquals(NameID.EMAIL, credential.getNameID().getFormat());
+        assertEquals(IDP, credential.getRemoteEntityID());
+        assertEquals(SP, credential.getLocalEntityID());
+        assertEquals("user@example.com", credential.getAttributeAsString("mail"));
+        assertArrayEquals(new String[] {"staff", "admins"}, credential.getAttributeAsStringArray("groups"));
+        assertEquals(2, credential.getAttribute("groups").getAttributeValues().size());
+        assertFalse(credential.isAssertionRetained());
+
+        Assertion assertion = credential.getAuthenticationAssertion();
+        assertEquals(IDP, assertion.getIssuer().getValue());
+        assertEquals(USER_NAME, assertion.getSubject().getNameID().getValue());
+        assertEquals("s2abc", assertion.getAuthnStatements().get(0).getSessionIndex());
+        assertEquals(1000L, assertion.getAuthnStatements().get(0).getAuthnInstant().getMillis());
+    }
+
+    @Test
+    public void testCompactFormIsSmaller() throws Exception {
+        // given
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+
+        // when
+        int original = serialize(token).length;
+        int compact = serialize(codec.compact(token)).length;
+
+        // then
+        assertTrue("compact " + compact + " bytes, original " + original + " bytes", compact * 3 < original);
+    }
+
+    @Test
+    public void testSelectedAttributesAndRetainedAssertion() throws Exception {
+        // given
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+        codec.setAttributeNames(new HashSet<String>(Collections.singletonList("mail")));
+        codec.setRetainAssertion(true);
+
+        // when
+        CompactSAMLAuthenticationToken actual = codec.decode(codec.encode(token));
+
+        // then
+        CompactSAMLCredential credential = (CompactSAMLCredential) actual.getCredentials();
+        assertEquals(Collections.singleton("mail"), credential.getAttributeNames());
+        assertNull(credential.getAttribute("groups"));
+        assertTrue(credential.isAssertionRetained());
+        assertEquals("_assertion1", credential.getAuthenticationAssertion().getID());
+        assertSame(credential.getAuthenticationAssertion(), credential.getAuthenticationAssertion());
+    }
+
+    @Test
+    public void testDecodedAuthoritiesAreShared() throws Exception {
+        // given
+        AuthorityMapper authorityMapper = new AuthorityMapper(new File("missing-rules.txt"));
+        SAMLAuthenticationCodec codec = new SAMLAuthenticationCodec();
+        codec.setAuthorityResolver(authorityMapper::intern);
+        byte[] encoded = codec.encode(token);
+
+        // when
+        CompactSAMLAuthenticationToken first = codec.decode(encoded);
+        CompactSAMLAuthenticationToken second = codec.decode(encoded);
+
+        // then
+        GrantedAuthority authority = first.getAuthorities().iterator().next();
+        assertEquals(AUTHORITIES.get(0), authority);
+        assertSame(authority, second.getAuthorities().iterator().next());
+        assertSame(authority, ((User) second.getPrincipal()).getAuthorities().iterator().next());
+        assertSame(authorityMapper.intern(authority.getAuthority()), authority);
+    }
+
+    @Test
+    public void testSerializedAuthoritiesAreThoseOfTheConfiguredCodec() throws Exception {
+        // given
+        CompactSAMLAuthenticationToken compact = samlAuthenticationCodec.compact(token);
+
+        // when
+        CompactSAMLAuthenticationToken restored = (CompactSAMLAuthenticationToken) deserialize(serialize(compact));
+
+        // then
+        GrantedAuthority authority = restored.getAuthorities().iterator().next();
+        assertEquals(AUTHORITIES.get(0), authority);
+        assertSame(authorityMapper.intern(authority.getAuthority()), authority);
+        assertSame(authority, ((User) restored.getPrincipal()).getAuthorities().iterator().next());
+    }
+
+    private Attribute attribute(String name, String... values) {
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName(name);
+        for (String value : values) {
+            XSString xsValue = build(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            xsValue.setValue(value);
+            attribute.getAttributeValues().add(xsValue);
+        }
+        return attribute;
+    }
+
+    private static <T extends XMLObject> T build(QName elementName) {
+        return build(elementName, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName elementName, QName typeName) {
+        XMLObjectBuilder<T> builder = (XMLObjectBuilder<T>) Configuration.getBuilderFactory()
+                .getBuilder(typeName != null ? typeName : elementName);
+        return typeName != null ? builder.buildObject(elementName, typeName) : builder.buildObject(elementName);
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+}
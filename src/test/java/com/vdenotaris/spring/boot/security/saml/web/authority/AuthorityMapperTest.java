@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.authority;
+
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AuthorityMapperTest {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExactPrefixRegexAndIssuerRules() {
+        // given
+        AuthorityMapper mapper = new AuthorityMapper(Arrays.asList(
+                AuthorityMappingRule.exact("memberOf", "cn=admins,ou=groups,dc=example,dc=com", "ROLE_ADMIN"),
+                AuthorityMappingRule.prefix("memberOf", "cn=app-", "ROLE_APP"),
+                AuthorityMappingRule.regex("mail", ".*@partner\\.com", "ROLE_PARTNER"),
+                AuthorityMappingRule.regex("mail", "ops-.*", "ROLE_OPS"),
+                AuthorityMappingRule.exact("memberOf", "staff", "ROLE_STAFF").forIssuer(IDP)), "ROLE_USER");
+        SAMLAttributes attributes = SAMLAttributes.builder()
+                .add("urn:oid:1.2.840.113556.1.2.102", "memberOf", groups(300))
+                .add("mail", null, "ops-1@partner.com")
+                .add("memberOf2", null, "staff")
+                .build();
+        SAMLAttributes staff = SAMLAttributes.builder()
+                .add("memberOf", null, "staff", "cn=app-reports,ou=groups,dc=example,dc=com")
+                .build();
+
+        // when
+        List<GrantedAuthority> authorities = mapper.map(attributes, "http://other.example.com");
+        List<GrantedAuthority> staffAtIdP = mapper.map(staff, IDP);
+        List<GrantedAuthority> staffElsewhere = mapper.map(staff, null);
+
+        // then
+        assertEquals("[ROLE_USER, ROLE_ADMIN, ROLE_APP, ROLE_PARTNER, ROLE_OPS]", authorities.toString());
+        assertEquals("[ROLE_USER, ROLE_APP, ROLE_STAFF]", staffAtIdP.toString());
+        assertEquals("[ROLE_USER, ROLE_APP]", staffElsewhere.toString());
+        assertEquals(6, mapper.getAuthorityCount());
+    }
+
+    @Test
+    public void testAuthoritiesAreShared() {
+        // given
+        AuthorityMapper mapper = new AuthorityMapper(Arrays.asList(
+                AuthorityMappingRule.exact("memberOf", "admins", "ROLE_ADMIN")), "ROLE_USER");
+
+        // when
+        List<GrantedAuthority> first = mapper.map(SAMLAttributes.builder().add("memberOf", null, "admins").build(), null);
+        List<GrantedAuthority> second = mapper.map(SAMLAttributes.builder().add("memberOf", null, "admins").build(), null);
+        List<GrantedAuthority> none = mapper.map(SAMLAttributes.empty(), null);
+
+        // then
+        assertSame(first, second);
+        assertSame(none.get(0), first.get(0));
+        assertSame(mapper.intern("ROLE_ADMIN"), first.get(1));
+        assertEquals(2, mapper.getRoleSetCount());
+    }
+
+    @Test
+    public void testRulesAreReloadedFromFile() throws Exception {
+        // given
+        File file = folder.newFile("authorities.txt");
+        write(file, "# comment", "exact|memberOf|admins|ROLE_ADMIN", "bogus line");
+        AuthorityMapper mapper = new AuthorityMapper(file, "ROLE_USER");
+        SAMLAttributes attributes = SAMLAttributes.builder().add("memberOf", null, "admins", "ops").build();
+        List<GrantedAuthority> before = mapper.map(attributes, null);
+
+        // when
+        write(file, "exact|memberOf|admins|ROLE_ADMIN", "prefix|memberOf|op|ROLE_OPS");
+        file.setLastModified(file.lastModified() + 2000);
+        boolean reloaded = mapper.reload();
+
+        // then
+        assertEquals("[ROLE_USER, ROLE_ADMIN]", before.toString());
+        assertEquals(true, reloaded);
+        assertEquals(2, mapper.getRuleCount());
+        assertEquals("[ROLE_USER, ROLE_ADMIN, ROLE_OPS]", mapper.map(attributes, null).toString());
+        assertSame(before.get(1), mapper.map(attributes, null).get(1));
+        assertEquals(2, mapper.getReloadCount());
+    }
+
+    private static String[] groups(int count) {
+        List<String> groups = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            groups.add("cn=group" + i + ",ou=groups,dc=example,dc=com");
+        }
+        groups.add("cn=admins,ou=groups,dc=example,dc=com");
+        groups.add("cn=app-billing,ou=groups,dc=example,dc=com");
+        return groups.toArray(new String[groups.size()]);
+    }
+
+    private static void write(File file, String... lines) throws Exception {
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+}
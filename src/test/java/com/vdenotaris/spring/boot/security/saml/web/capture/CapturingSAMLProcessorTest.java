@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.capture;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.capture.CapturedMessage.Direction;
+import com.vdenotaris.spring.boot.security.saml.web.metrics.SAMLMetrics;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.message.decoder.MessageDecoder;
+import org.opensaml.ws.message.encoder.MessageEncoder;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.security.trust.TrustEngine;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.security.saml.processor.SAMLBinding;
+import org.springframework.security.saml.util.SAMLUtil;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.servlet.http.Cookie;
+import javax.xml.namespace.QName;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class CapturingSAMLProcessorTest {
+
+    private static final String IDP = "http://idp.example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMessagesAreRecordedAndReadBack() throws Exception {
+        // given
+        File file = folder.newFile("capture.bin");
+        CaptureWriter writer = new CaptureWriter(file, 100);
+        SAMLBinding binding = binding();
+        CapturingSAMLProcessor processor = new CapturingSAMLProcessor(Collections.singletonList(binding),
+                new SAMLMetrics(10), writer);
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml/SSO;jsessionid=F00");
+        request.setParameter("SAMLResponse", "PHNhbWxwOlJlc3BvbnNlLz4=");
+        request.setParameter("RelayState", "state");
+        request.setParameter("other", "ignored");
+        request.setCookies(new Cookie("JSESSIONID", "F00"));
+
+        // when
+        processor.retrieveMessage(inboundContext(request), binding);
+        SAMLMessageContext outbound = context();
+        outbound.setPeerEntityId(IDP);
+        outbound.setOutboundSAMLMessage(authnRequest("a1"));
+        processor.sendMessage(outbound, false, binding);
+        processor.destroy();
+
+        // then
+        try (CaptureReader reader = new CaptureReader(file)) {
+            CapturedMessage response = reader.read();
+            assertEquals(Direction.INBOUND, response.getDirection());
+            assertEquals(SAMLConstants.SAML2_POST_BINDING_URI, response.getBinding());
+            assertEquals("Response", response.getMessageType());
+            assertEquals("r1", response.getMessageId());
+            assertEquals("a1", response.getInResponseTo());
+            assertEquals(IDP, response.getPeerEntityId());
+            assertEquals("POST", response.getMethod());
+            assertEquals("http://localhost/saml/SSO", response.getRequestURL());
+            assertEquals(2, response.getParameters().size());
+            assertEquals("PHNhbWxwOlJlc3BvbnNlLz4=", response.getParameters().get("SAMLResponse"));
+            assertEquals("state", response.getParameters().get("RelayState"));
+            assertNull(response.getQueryString());
+            assertNull(response.getBody());
+
+            CapturedMessage sent = reader.read();
+            assertEquals(Direction.OUTBOUND, sent.getDirection());
+            assertEquals("AuthnRequest", sent.getMessageType());
+            assertEquals("a1", sent.getMessageId());
+            assertTrue(sent.getBody().contains("ID=\"a1\""));
+            assertTrue(sent.getOffsetNanos() >= response.getOffsetNanos());
+
+            assertNull(reader.read());
+        }
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file.toPath()));
+    }
+
+    @Test
+    public void testOnlySAMLParametersOfTheQueryStringAreRecorded() {
+        // when
+        String queryString = CapturingSAMLProcessor.samlQueryString(
+                "token=secret&SAMLRequest=fZJdb%2B&RelayState=%2Flanding&SigAlg=rsa%2Dsha256&Signature=c2ln&lang=en");
+
+        // then
+        assertEquals("SAMLRequest=fZJdb%2B&RelayState=%2Flanding&SigAlg=rsa%2Dsha256&Signature=c2ln", queryString);
+        assertNull(CapturingSAMLProcessor.samlQueryString("token=secret"));
+        assertNull(CapturingSAMLProcessor.samlQueryString(null));
+    }
+
+    @Test
+    public void testCaptureStopsAfterMaxMessages() throws Exception {
+        // given
+        File file = folder.newFile("capture.bin");
+        CaptureWriter writer = new CaptureWriter(file, 1);
+        SAMLBinding binding = binding();
+        CapturingSAMLProcessor processor = new CapturingSAMLProcessor(Collections.singletonList(binding),
+                new SAMLMetrics(10), writer);
+
+        // when
+        processor.retrieveMessage(inboundContext(new MockHttpServletRequest("POST", "/saml/SSO")), binding);
+        processor.retrieveMessage(inboundContext(new MockHttpServletRequest("POST", "/saml/SSO")), binding);
+
+        // then
+        assertFalse(writer.isCapturing());
+        assertEquals(1, writer.getWrittenCount());
+        try (CaptureReader reader = new CaptureReader(file)) {
+            assertEquals("r1", reader.read().getMessageId());
+            assertNull(reader.read());
+        }
+    }
+
+    private SAMLMessageContext inboundContext(MockHttpServletRequest request) {
+        SAMLMessageContext context = context();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SAMLMessageContext context() {
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setMetadataProvider(mock(MetadataManager.class));
+        context.setLocalEntityId("com:example:sp");
+        context.setLocalEntityRole(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        context.setLocalEntityMetadata(mock(EntityDescriptor.class));
+        context.setLocalEntityRoleMetadata(mock(SPSSODescriptor.class));
+        context.setLocalExtendedMetadata(new ExtendedMetadata());
+        context.setLocalTrustEngine(mock(SignatureTrustEngine.class));
+        context.setLocalSSLTrustEngine(mock(TrustEngine.class));
+        return context;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SAMLBinding binding() throws Exception {
+        MessageDecoder decoder = mock(MessageDecoder.class);
+        doAnswer(invocation -> {
+            SAMLMessageContext context = (SAMLMessageContext) invocation.getArguments()[0];
+            Response response = build(Response.DEFAULT_ELEMENT_NAME);
+            response.setID("r1");
+            response.setInResponseTo("a1");
+            context.setInboundSAMLMessage(response);
+            EntityDescriptor descriptor = build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+            descriptor.setEntityID(IDP);
+            context.setPeerEntityMetadata(descriptor);
+            return null;
+        }).when(decoder).decode(any(MessageContext.class));
+        MessageEncoder encoder = mock(MessageEncoder.class);
+        doAnswer(invocation -> {
+            SAMLMessageContext context = (SAMLMessageContext) invocation.getArguments()[0];
+            SAMLUtil.marshallMessage(context.getOutboundSAMLMessage());
+            return null;
+        }).when(encoder).encode(any(MessageContext.class));
+        SAMLBinding binding = mock(SAMLBinding.class);
+        when(binding.getBindingURI()).thenReturn(SAMLConstants.SAML2_POST_BINDING_URI);
+        when(binding.getMessageDecoder()).thenReturn(decoder);
+        when(binding.getMessageEncoder()).thenReturn(encoder);
+        return binding;
+    }
+
+    private AuthnRequest authnRequest(String id) {
+        AuthnRequest request = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID(id);
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T build(QName elementName) {
+        XMLObjectBuilder<?> builder = Configuration.getBuilderFactory().getBuilder(elementName);
+        return (T) builder.buildObject(elementName);
+    }
+
+}
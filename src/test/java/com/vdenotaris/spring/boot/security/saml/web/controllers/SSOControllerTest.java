@@ -18,6 +18,7 @@ package com.vdenotaris.spring.boot.security.saml.web.controllers;
 
 import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
 import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.discovery.DiscoveryViewCache;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,6 +29,7 @@ import org.springframework.security.saml.metadata.MetadataManager;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.web.servlet.View;
 
@@ -36,8 +38,12 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.view;
@@ -67,6 +73,8 @@ public class SSOControllerTest extends CommonTestSupport {
     public void setUp()
     {
         MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(ssoController, "discoveryViewCache", new DiscoveryViewCache(metadata));
+        ReflectionTestUtils.setField(ssoController, "searchThreshold", 200);
         mockMvc = standaloneSetup(ssoController).setSingleView(mockView).build();
     }
 
@@ -94,7 +102,43 @@ public class SSOControllerTest extends CommonTestSupport {
                 .requestAttr("javax.servlet.forward.request_uri", "http://forward.to")
         )
                 .andExpect(status().isOk())
-                .andExpect(model().attribute("idps", IDPS))
+                .andExpect(model().attribute("idpList", containsString("value=\"idp1\"")))
+                .andExpect(model().attribute("idpList", containsString("value=\"idp3\"")))
+                .andExpect(header().string("ETag", containsString("\"")))
+                .andExpect(view().name("saml/idpselection"));
+    }
+
+    @Test
+    public void testIdpSelectionNotModified() throws Exception {
+        // given
+        when(metadata.getIDPEntityNames()).thenReturn(IDPS);
+        String etag = mockMvc.perform(get("/saml/idpSelection").session(mockAnonymousHttpSession())
+                .requestAttr("javax.servlet.forward.request_uri", "http://forward.to"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        // when / then
+        mockMvc.perform(get("/saml/idpSelection").session(mockAnonymousHttpSession())
+                .requestAttr("javax.servlet.forward.request_uri", "http://forward.to")
+                .header("If-None-Match", etag)
+        )
+                .andExpect(status().isNotModified());
+        verify(metadata, times(1)).getIDPEntityNames();
+    }
+
+    @Test
+    public void testIdpSelectionAboveSearchThreshold() throws Exception {
+        // given
+        when(metadata.getIDPEntityNames()).thenReturn(IDPS);
+        ReflectionTestUtils.setField(ssoController, "searchThreshold", 2);
+
+        // when / then
+        mockMvc.perform(get("/saml/idpSelection").session(mockAnonymousHttpSession())
+                .requestAttr("javax.servlet.forward.request_uri", "http://forward.to")
+        )
+                .andExpect(status().isOk())
+                .andExpect(model().attribute("idpSearch", true))
+                .andExpect(model().attribute("idpCount", 3))
+                .andExpect(model().attributeDoesNotExist("idpList"))
                 .andExpect(view().name("saml/idpselection"));
     }
 
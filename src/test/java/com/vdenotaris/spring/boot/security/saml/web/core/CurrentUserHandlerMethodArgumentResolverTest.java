@@ -18,14 +18,20 @@ package com.vdenotaris.spring.boot.security.saml.web.core;
 
 import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
 import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.CompactSAMLAuthenticationToken;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAttributes;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLUser;
 import com.vdenotaris.spring.boot.security.saml.web.stereotypes.CurrentUser;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.opensaml.saml2.core.NameID;
 import org.springframework.core.MethodParameter;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.User;
+import org.springframework.security.saml.SAMLCredential;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.web.bind.support.WebArgumentResolver;
@@ -34,10 +40,13 @@ import org.springframework.web.context.request.NativeWebRequest;
 import org.springframework.web.method.support.ModelAndViewContainer;
 
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -55,6 +64,8 @@ public class CurrentUserHandlerMethodArgumentResolverTest extends CommonTestSupp
 
     private MethodParameter wrongTypeParam;
 
+    private MethodParameter attributesParam;
+
     @Before
     public void init() throws NoSuchMethodException {
         validParam = new MethodParameter(
@@ -63,6 +74,8 @@ public class CurrentUserHandlerMethodArgumentResolverTest extends CommonTestSupp
         		MethodSamples.class.getMethod("notAnnotatedUser", User.class), 0);
         wrongTypeParam = new MethodParameter(
         		MethodSamples.class.getMethod("wrongTypeUser", Object.class), 0);
+        attributesParam = new MethodParameter(
+        		MethodSamples.class.getMethod("attributes", SAMLAttributes.class), 0);
     }
 
     @Test
@@ -70,6 +83,20 @@ public class CurrentUserHandlerMethodArgumentResolverTest extends CommonTestSupp
         assertTrue(resolver.supportsParameter(validParam));
         assertFalse(resolver.supportsParameter(notAnnotatedParam));
         assertFalse(resolver.supportsParameter(wrongTypeParam));
+        assertTrue(resolver.supportsParameter(attributesParam));
+    }
+
+    @Test
+    public void testResolveAttributes() throws Exception {
+        // given
+        NativeWebRequest webRequest = mock(NativeWebRequest.class);
+        SAMLAttributes attributes = SAMLAttributes.empty();
+        SAMLUser stubUser = new SAMLUser(USER_NAME, "", AUTHORITIES, attributes);
+        when(webRequest.getUserPrincipal()).thenReturn(new UsernamePasswordAuthenticationToken(stubUser, null));
+
+        // when/then
+        assertSame(attributes, resolver.resolveArgument(attributesParam, null, webRequest, null));
+        assertSame(stubUser, resolver.resolveArgument(validParam, null, webRequest, null));
     }
 
     @Test
@@ -91,6 +118,70 @@ public class CurrentUserHandlerMethodArgumentResolverTest extends CommonTestSupp
                 resolver.resolveArgument(wrongTypeParam, mavContainer, webRequest,binderFactory));
     }
 
+    @Test
+    public void testProjectionIsBuiltOncePerAuthentication() throws Exception {
+        // given
+        AtomicInteger built = new AtomicInteger();
+        CurrentUserHandlerMethodArgumentResolver projectingResolver = new CurrentUserHandlerMethodArgumentResolver();
+        projectingResolver.setProjections(Collections.singletonList(new PrincipalProjection<Integer>() {
+            public Class<Integer> getType() {
+                return Integer.class;
+            }
+
+            public Integer project(Authentication authentication) {
+                return built.incrementAndGet();
+            }
+        }));
+        MethodParameter projectionParam = new MethodParameter(
+                MethodSamples.class.getMethod("projection", Integer.class), 0);
+        NativeWebRequest webRequest = mock(NativeWebRequest.class);
+        when(webRequest.getUserPrincipal()).thenReturn(
+                new CompactSAMLAuthenticationToken(null, USER_DETAILS, null, AUTHORITIES));
+
+        // when
+        Object first = projectingResolver.resolveArgument(projectionParam, null, webRequest, null);
+        Object second = projectingResolver.resolveArgument(projectionParam, null, webRequest, null);
+
+        // then
+        assertTrue(projectingResolver.supportsParameter(projectionParam));
+        assertFalse(resolver.supportsParameter(projectionParam));
+        assertEquals(1, first);
+        assertSame(first, second);
+        assertEquals(1, built.get());
+    }
+
+    @Test
+    public void testResolveSAMLPrincipal() throws Exception {
+        // given
+        NameID nameID = mock(NameID.class);
+        when(nameID.getValue()).thenReturn(USER_NAME);
+        SAMLCredential credential = mock(SAMLCredential.class);
+        when(credential.getNameID()).thenReturn(nameID);
+        when(credential.getRemoteEntityID()).thenReturn("http://idp.ssocircle.com");
+        when(credential.getLocalEntityID()).thenReturn("com:example:spring:sp:acme");
+        SAMLAttributes attributes = SAMLAttributes.builder()
+                .add("urn:oid:0.9.2342.19200300.100.1.3", "mail", "user@example.com")
+                .add("memberOf", null, "staff")
+                .build();
+        SAMLUser user = new SAMLUser(USER_NAME, "", AUTHORITIES, attributes);
+        NativeWebRequest webRequest = mock(NativeWebRequest.class);
+        when(webRequest.getUserPrincipal()).thenReturn(
+                new CompactSAMLAuthenticationToken(null, user, credential, AUTHORITIES));
+        MethodParameter principalParam = new MethodParameter(
+                MethodSamples.class.getMethod("principal", SAMLPrincipal.class), 0);
+
+        // when
+        SAMLPrincipal principal = (SAMLPrincipal) resolver.resolveArgument(principalParam, null, webRequest, null);
+
+        // then
+        assertEquals(USER_NAME, principal.getNameID());
+        assertEquals("com:example:spring:sp:acme", principal.getLocalEntityId());
+        assertTrue(principal.hasRole(USER_ROLE));
+        assertEquals(Arrays.asList("user@example.com"), principal.getAttribute("mail"));
+        assertTrue(principal.getAttribute("memberOf").isEmpty());
+        assertSame(principal, resolver.resolveArgument(principalParam, null, webRequest, null));
+    }
+
     @SuppressWarnings("unused")
     private static final class MethodSamples {
 
@@ -99,5 +190,11 @@ public class CurrentUserHandlerMethodArgumentResolverTest extends CommonTestSupp
         public void notAnnotatedUser(User user) {}
 
         public void wrongTypeUser(@CurrentUser Object user) {}
+
+        public void attributes(@CurrentUser SAMLAttributes attributes) {}
+
+        public void projection(@CurrentUser Integer projection) {}
+
+        public void principal(@CurrentUser SAMLPrincipal principal) {}
     }
 }
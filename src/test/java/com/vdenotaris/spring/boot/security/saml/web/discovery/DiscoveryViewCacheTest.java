@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.VersionedMetadataManager;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.Extensions;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.LocalizedString;
+import org.opensaml.saml2.metadata.Organization;
+import org.opensaml.saml2.metadata.OrganizationDisplayName;
+import org.opensaml.samlext.saml2mdui.DisplayName;
+import org.opensaml.samlext.saml2mdui.Logo;
+import org.opensaml.samlext.saml2mdui.UIInfo;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.xml.namespace.QName;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class DiscoveryViewCacheTest {
+
+    @Test
+    public void testEntriesTakeNamesAndLogosFromMetadata() throws Exception {
+        // given
+        MetadataManager metadata = mock(MetadataManager.class);
+        when(metadata.getIDPEntityNames()).thenReturn(new HashSet<>(Arrays.asList("urn:a", "urn:b", "urn:c")));
+        EntityDescriptor withOrganization = idp("urn:a");
+        Organization organization = build(Organization.DEFAULT_ELEMENT_NAME);
+        OrganizationDisplayName organizationName = build(OrganizationDisplayName.DEFAULT_ELEMENT_NAME);
+        organizationName.setName(new LocalizedString("alpha <org>", "en"));
+        organization.getDisplayNames().add(organizationName);
+        withOrganization.setOrganization(organization);
+        EntityDescriptor withUIInfo = idp("urn:b");
+        UIInfo uiInfo = build(UIInfo.DEFAULT_ELEMENT_NAME);
+        uiInfo.getDisplayNames().add(displayName("Beta DE", "de"));
+        uiInfo.getDisplayNames().add(displayName("Beta", "en"));
+        Logo logo = build(Logo.DEFAULT_ELEMENT_NAME);
+        logo.setURL("https://idp.example.com/logo.png");
+        uiInfo.getLogos().add(logo);
+        Extensions extensions = build(new QName(SAMLConstants.SAML20MD_NS, Extensions.LOCAL_NAME, SAMLConstants.SAML20MD_PREFIX));
+        extensions.getUnknownXMLObjects().add(uiInfo);
+        withUIInfo.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).setExtensions(extensions);
+        when(metadata.getEntityDescriptor("urn:a")).thenReturn(withOrganization);
+        when(metadata.getEntityDescriptor("urn:b")).thenReturn(withUIInfo);
+        DiscoveryViewCache cache = new DiscoveryViewCache(metadata);
+
+        // when
+        DiscoveryView view = cache.getView();
+        String html = view.getFragment("entityID").getHtml();
+
+        // then
+        assertEquals(3, view.size());
+        assertEquals("alpha <org>", view.getEntries().get(0).getDisplayName());
+        assertEquals("Beta", view.getEntries().get(1).getDisplayName());
+        assertEquals("https://idp.example.com/logo.png", view.getEntry("urn:b").getLogoUrl());
+        assertEquals("urn:c", view.getEntries().get(2).getDisplayName());
+        assertNull(view.getEntry("urn:c").getLogoUrl());
+        assertTrue(html.contains("name=\"entityID\" id=\"idp_0\" value=\"urn:a\""));
+        assertTrue(html.contains("alpha &lt;org&gt;"));
+        assertTrue(html.contains("<img src=\"https://idp.example.com/logo.png\""));
+    }
+
+    @Test
+    public void testViewIsBuiltOncePerMetadataVersion() {
+        // given
+        VersionedMetadataManager metadata = mock(VersionedMetadataManager.class);
+        when(metadata.getIDPEntityNames()).thenReturn(new HashSet<>(Arrays.asList("urn:a", "urn:b")));
+        when(metadata.getVersion()).thenReturn(1L, 1L, 2L);
+        DiscoveryViewCache cache = new DiscoveryViewCache(metadata);
+
+        // when
+        DiscoveryView first = cache.getView();
+        DiscoveryView second = cache.getView();
+        DiscoveryView refreshed = cache.getView();
+
+        // then
+        assertSame(first, second);
+        assertSame(first.getFragment("entityID"), second.getFragment("entityID"));
+        assertNotSame(first, refreshed);
+        assertEquals(first.getFragment("entityID").getEtag(), refreshed.getFragment("entityID").getEtag());
+        assertEquals(2, cache.getBuildCount());
+    }
+
+    private EntityDescriptor idp(String entityId) {
+        EntityDescriptor descriptor = build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        descriptor.setEntityID(entityId);
+        IDPSSODescriptor idpDescriptor = build(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idpDescriptor.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        descriptor.getRoleDescriptors().add(idpDescriptor);
+        return descriptor;
+    }
+
+    private DisplayName displayName(String name, String language) {
+        DisplayName displayName = build(DisplayName.DEFAULT_ELEMENT_NAME);
+        displayName.setName(new LocalizedString(name, language));
+        return displayName;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        XMLObjectBuilder<T> builder = (XMLObjectBuilder<T>) Configuration.getBuilderFactory().getBuilder(name);
+        return builder.buildObject(name);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+import javax.servlet.http.Cookie;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IdPHintResolverTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    private static final List<IdPEntry> ENTRIES = Arrays.asList(
+            new IdPEntry("urn:idp:example", "Example", null, null, Arrays.asList("example.org")),
+            new IdPEntry("urn:idp:other", "Other", null, null, Arrays.asList("other.edu")));
+
+    private MetadataManager metadata;
+
+    private IdPHintResolver resolver;
+
+    @Before
+    public void setUp() {
+        metadata = mock(MetadataManager.class);
+        when(metadata.isIDPValid("urn:idp:example")).thenReturn(true);
+        when(metadata.isIDPValid("urn:idp:other")).thenReturn(true);
+        DiscoveryViewCache discoveryViewCache = new DiscoveryViewCache(metadata) {
+            @Override
+            protected DiscoveryView build(long version, DiscoveryView previous) {
+                return new DiscoveryView(version, ENTRIES, previous);
+            }
+        };
+        resolver = new IdPHintResolver(KEY, metadata, discoveryViewCache);
+    }
+
+    @Test
+    public void testRememberedIdP() {
+        // given
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/app");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        resolver.remember(request, response, "urn:idp:other");
+        IdPHintResolver.Hint hint = resolver.resolve(requestWithCookie(response));
+
+        // then
+        assertTrue(response.getHeader("Set-Cookie").contains("; Path=/app/; Max-Age=2592000; HttpOnly"));
+        assertEquals("urn:idp:other", hint.getEntityId());
+        assertEquals(IdPHintResolver.Source.REMEMBERED, hint.getSource());
+        assertEquals(1, resolver.getResolvedCount(IdPHintResolver.Source.REMEMBERED));
+    }
+
+    @Test
+    public void testInvalidRememberedIdPsAreIgnored() {
+        // given
+        MockHttpServletResponse tampered = new MockHttpServletResponse();
+        resolver.remember(new MockHttpServletRequest(), tampered, "urn:idp:other");
+        MockHttpServletRequest tamperedRequest = requestWithCookie(tampered);
+        Cookie cookie = tamperedRequest.getCookies()[0];
+        cookie.setValue(cookie.getValue().substring(1));
+        MockHttpServletResponse signedByOther = new MockHttpServletResponse();
+        new IdPHintResolver(null, metadata, null).remember(new MockHttpServletRequest(), signedByOther,
+                "urn:idp:other");
+        MockHttpServletResponse expired = new MockHttpServletResponse();
+        resolver.setMaxAge(-1);
+        resolver.remember(new MockHttpServletRequest(), expired, "urn:idp:other");
+        MockHttpServletResponse unknown = new MockHttpServletResponse();
+        resolver.setMaxAge(3600);
+        resolver.remember(new MockHttpServletRequest(), unknown, "urn:idp:removed");
+
+        // when / then
+        assertNull(resolver.resolve(tamperedRequest));
+        assertNull(resolver.resolve(requestWithCookie(signedByOther)));
+        assertNull(resolver.resolve(requestWithCookie(expired)));
+        assertNull(resolver.resolve(requestWithCookie(unknown)));
+        assertEquals(4, resolver.getUnresolvedCount());
+        assertEquals(0, resolver.getResolvedCount());
+    }
+
+    @Test
+    public void testLoginHintTakesPrecedence() {
+        // given
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        resolver.remember(new MockHttpServletRequest(), response, "urn:idp:other");
+        MockHttpServletRequest request = requestWithCookie(response);
+        request.setParameter(IdPHintResolver.LOGIN_HINT_PARAMETER, "jane@mail.example.org");
+
+        // when
+        IdPHintResolver.Hint hint = resolver.resolve(request);
+
+        // then
+        assertEquals("urn:idp:example", hint.getEntityId());
+        assertEquals(IdPHintResolver.Source.LOGIN_HINT, hint.getSource());
+    }
+
+    @Test
+    public void testCommonDomainCookie() throws Exception {
+        // given
+        String value = encode("urn:idp:example") + " " + encode("urn:idp:other") + " " + encode("urn:idp:removed");
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(IdPHintResolver.COMMON_DOMAIN_COOKIE, URLEncoder.encode(value, "UTF-8")));
+
+        // when
+        IdPHintResolver.Hint hint = resolver.resolve(request);
+
+        // then
+        assertEquals("urn:idp:other", hint.getEntityId());
+        assertEquals(IdPHintResolver.Source.COMMON_DOMAIN, hint.getSource());
+    }
+
+    @Test
+    public void testForcedDiscovery() {
+        // given
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        resolver.remember(new MockHttpServletRequest(), response, "urn:idp:other");
+        MockHttpServletRequest request = requestWithCookie(response);
+        request.setParameter(IdPHintResolver.FORCE_DISCOVERY_PARAMETER, "true");
+
+        // when / then
+        assertNull(resolver.resolve(request));
+        assertEquals(1, resolver.getUnresolvedCount());
+    }
+
+    private static MockHttpServletRequest requestWithCookie(MockHttpServletResponse response) {
+        String header = response.getHeader("Set-Cookie");
+        String value = header.substring(header.indexOf('=') + 1, header.indexOf(';'));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(IdPHintResolver.COOKIE_NAME, value));
+        return request;
+    }
+
+    private static String encode(String entityId) {
+        return Base64.getEncoder().encodeToString(entityId.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
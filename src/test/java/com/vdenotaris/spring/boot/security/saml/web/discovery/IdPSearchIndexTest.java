@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdPSearchIndexTest {
+
+    private static final List<IdPEntry> ENTRIES = Arrays.asList(
+            new IdPEntry("https://idp.example.org/idp", "Example University", null,
+                    Arrays.asList("campus", "students"), Arrays.asList("example.org")),
+            new IdPEntry("urn:mace:incommon:other.edu", "Other College", null,
+                    null, Arrays.asList("other.edu")),
+            new IdPEntry("https://sso.university.net", "Universidad del Norte", null, null, null),
+            new IdPEntry("https://idp.ssocircle.com", null, null, null, null));
+
+    @Test
+    public void testSubstringSearch() {
+        // given
+        IdPSearchIndex index = IdPSearchIndex.build(ENTRIES, null);
+
+        // when
+        IdPSearchIndex.Page page = index.search("NIVER", 0, 10);
+
+        // then
+        assertEquals(2, page.getTotal());
+        assertEquals("https://idp.example.org/idp", page.getResults().get(0).getEntityId());
+        assertEquals("https://sso.university.net", page.getResults().get(1).getEntityId());
+    }
+
+    @Test
+    public void testPrefixSearchOfShortWords() {
+        // given
+        IdPSearchIndex index = IdPSearchIndex.build(ENTRIES, null);
+
+        // when
+        IdPSearchIndex.Page page = index.search("un", 0, 10);
+
+        // then
+        assertEquals(2, page.getTotal());
+        assertEquals("Universidad del Norte", page.getResults().get(0).getDisplayName());
+        assertEquals("Example University", page.getResults().get(1).getDisplayName());
+    }
+
+    @Test
+    public void testEveryWordMustMatch() {
+        // given
+        IdPSearchIndex index = IdPSearchIndex.build(ENTRIES, null);
+
+        // when / then
+        assertEquals(1, index.search("example campus", 0, 10).getTotal());
+        assertEquals(0, index.search("example norte", 0, 10).getTotal());
+        assertEquals(0, index.search("unic", 0, 10).getTotal());
+        assertEquals(1, index.search("ssocircle", 0, 10).getTotal());
+    }
+
+    @Test
+    public void testEmailAddressMatchesDomainHints() {
+        // given
+        IdPSearchIndex index = IdPSearchIndex.build(ENTRIES, null);
+
+        // when
+        IdPSearchIndex.Page byAddress = index.search("jane.doe@mail.other.edu", 0, 10);
+        IdPSearchIndex.Page byDomain = index.search("example.org", 0, 10);
+
+        // then
+        assertEquals(1, byAddress.getTotal());
+        assertEquals("urn:mace:incommon:other.edu", byAddress.getResults().get(0).getEntityId());
+        assertEquals("https://idp.example.org/idp", byDomain.getResults().get(0).getEntityId());
+    }
+
+    @Test
+    public void testPagination() {
+        // given
+        IdPSearchIndex index = IdPSearchIndex.build(ENTRIES, null);
+
+        // when
+        IdPSearchIndex.Page first = index.search("", 0, 3);
+        IdPSearchIndex.Page second = index.search(" ", 3, 3);
+        IdPSearchIndex.Page beyond = index.search("o", 10, 3);
+
+        // then
+        assertEquals(4, first.getTotal());
+        assertEquals(3, first.getResults().size());
+        assertEquals(ENTRIES.get(3), second.getResults().get(0));
+        assertTrue(beyond.getTotal() > 0);
+        assertTrue(beyond.getResults().isEmpty());
+    }
+
+    @Test
+    public void testUnchangedEntriesAreReused() {
+        // given
+        IdPSearchIndex previous = IdPSearchIndex.build(ENTRIES, null);
+        List<IdPEntry> refreshed = new ArrayList<>(ENTRIES);
+        refreshed.set(1, new IdPEntry("urn:mace:incommon:other.edu", "Other State College", null,
+                null, Arrays.asList("other.edu")));
+
+        // when
+        IdPSearchIndex index = IdPSearchIndex.build(refreshed, previous);
+
+        // then
+        assertEquals(3, index.getReusedCount());
+        assertEquals(1, index.search("state", 0, 10).getTotal());
+        assertEquals(1, index.search("campus", 0, 10).getTotal());
+    }
+
+}
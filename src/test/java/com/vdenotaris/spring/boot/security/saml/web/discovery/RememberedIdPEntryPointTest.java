@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.discovery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataManager;
+
+import javax.servlet.http.Cookie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RememberedIdPEntryPointTest {
+
+    private MetadataManager metadata;
+
+    private IdPHintResolver hintResolver;
+
+    private RememberedIdPEntryPoint entryPoint;
+
+    @Before
+    public void setUp() throws Exception {
+        metadata = mock(MetadataManager.class);
+        when(metadata.isIDPValid("urn:idp:other")).thenReturn(true);
+        when(metadata.getEntityDescriptor("urn:idp:other")).thenReturn(mock(EntityDescriptor.class));
+        when(metadata.getRole("urn:idp:other", IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS))
+                .thenReturn(mock(IDPSSODescriptor.class));
+        hintResolver = new IdPHintResolver(null, metadata, null);
+        entryPoint = new RememberedIdPEntryPoint(hintResolver);
+        entryPoint.setMetadata(metadata);
+    }
+
+    @Test
+    public void testDiscoveryIsSkippedForRememberedIdP() {
+        // given
+        SAMLMessageContext context = context(rememberedRequest());
+
+        // when
+        boolean discovery = entryPoint.isDiscovery(context);
+
+        // then
+        assertFalse(discovery);
+        assertTrue(context.isPeerUserSelected());
+        assertEquals("urn:idp:other", context.getPeerEntityId());
+        assertEquals(1, hintResolver.getResolvedCount());
+    }
+
+    @Test
+    public void testDiscoveryWithoutHint() {
+        // given
+        SAMLMessageContext context = context(new MockHttpServletRequest());
+
+        // when
+        boolean discovery = entryPoint.isDiscovery(context);
+
+        // then
+        assertTrue(discovery);
+        assertNull(context.getPeerEntityRoleMetadata());
+        assertEquals(1, hintResolver.getUnresolvedCount());
+    }
+
+    @Test
+    public void testPassiveDiscoveryDoesNotCountTheLoginAgain() {
+        // given
+        MockHttpServletRequest request = rememberedRequest();
+        entryPoint.isDiscovery(context(request));
+
+        // when
+        String idp = new RememberedIdPDiscovery(hintResolver).getPassiveIDP(request);
+
+        // then
+        assertEquals("urn:idp:other", idp);
+        assertEquals(1, hintResolver.getResolvedCount());
+        assertEquals(0, hintResolver.getUnresolvedCount());
+    }
+
+    private MockHttpServletRequest rememberedRequest() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        hintResolver.remember(new MockHttpServletRequest(), response, "urn:idp:other");
+        String header = response.getHeader("Set-Cookie");
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(IdPHintResolver.COOKIE_NAME,
+                header.substring(header.indexOf('=') + 1, header.indexOf(';'))));
+        return request;
+    }
+
+    private static SAMLMessageContext context(MockHttpServletRequest request) {
+        ExtendedMetadata extendedMetadata = new ExtendedMetadata();
+        extendedMetadata.setIdpDiscoveryEnabled(true);
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        context.setLocalExtendedMetadata(extendedMetadata);
+        return context;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.filters;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SAMLDispatchFilterTest {
+
+    private Filter login;
+
+    private Filter sso;
+
+    private SAMLDispatchFilter filter;
+
+    @Before
+    public void setUp() {
+        login = mock(Filter.class);
+        sso = mock(Filter.class);
+        Map<String, Filter> endpoints = new LinkedHashMap<String, Filter>();
+        endpoints.put("login", login);
+        endpoints.put("SSO", sso);
+        filter = new SAMLDispatchFilter("/saml", endpoints);
+    }
+
+    @Test
+    public void testDispatchesToEndpoint() throws Exception {
+        // when
+        perform("/saml/SSO");
+        perform("/saml/SSO/alias/tenant1");
+        perform("/saml/login;jsessionid=1234");
+
+        // then
+        verify(sso, times(2)).doFilter(any(ServletRequest.class),
+                any(ServletResponse.class), any(FilterChain.class));
+        verify(login).doFilter(any(ServletRequest.class), any(ServletResponse.class), any(FilterChain.class));
+        assertEquals(2, filter.getRequestCount("SSO"));
+        assertEquals(1, filter.getRequestCount("login"));
+    }
+
+    @Test
+    public void testBypassesOtherPaths() throws Exception {
+        // when
+        MockFilterChain home = perform("/home");
+        MockFilterChain unknown = perform("/saml/SSOHoK");
+        MockFilterChain partial = perform("/saml/loginx");
+
+        // then
+        assertNotNull(home.getRequest());
+        assertNotNull(unknown.getRequest());
+        assertNotNull(partial.getRequest());
+        verify(sso, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class), any(FilterChain.class));
+        verify(login, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class), any(FilterChain.class));
+        assertEquals(2, filter.getUnmatchedCount());
+    }
+
+    @Test
+    public void testPathInfoIsMatched() throws Exception {
+        // given
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/app/saml/SSO");
+        request.setContextPath("/app");
+        request.setServletPath("/saml");
+        request.setPathInfo("/SSO");
+        MockFilterChain chain = new MockFilterChain();
+
+        // when
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        // then
+        assertNull(chain.getRequest());
+        assertEquals(1, filter.getRequestCount("SSO"));
+    }
+
+    private MockFilterChain perform(String path) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setServletPath(path);
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        return chain;
+    }
+}
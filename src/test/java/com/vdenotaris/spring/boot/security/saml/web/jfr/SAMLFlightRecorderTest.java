@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.jfr;
+
+import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.core.SAMLUserDetailsServiceImpl;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.opensaml.saml2.core.NameID;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class SAMLFlightRecorderTest extends CommonTestSupport {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Autowired
+    private SAMLUserDetailsServiceImpl userDetailsService;
+
+    @Test
+    public void testUserDetailsAreRecorded() throws Exception {
+        // given
+        NameID nameID = mock(NameID.class);
+        when(nameID.getValue()).thenReturn(USER_NAME);
+        SAMLCredential credential = mock(SAMLCredential.class);
+        when(credential.getNameID()).thenReturn(nameID);
+        when(credential.getRemoteEntityID()).thenReturn(IDP);
+        File file = folder.newFile("saml.jfr");
+
+        // when
+        try (Recording recording = new Recording()) {
+            recording.enable(UserDetailsEvent.class).withoutThreshold();
+            recording.start();
+            userDetailsService.loadUserBySAML(credential);
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+
+        // then
+        assertTrue(SAMLFlightRecorder.AVAILABLE);
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertEquals("com.vdenotaris.saml.UserDetails", event.getEventType().getName());
+        assertEquals(IDP, event.getString("idp"));
+        assertEquals(1, event.getInt("authorities"));
+        assertEquals("success", event.getString("outcome"));
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.key;
+
+import com.vdenotaris.spring.boot.security.saml.web.metadata.KeyManagerTenantDirectory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.security.saml.key.JKSKeyManager;
+import org.springframework.security.saml.key.KeyManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexedKeyManagerTest {
+
+    private static final String PASSWORD = "nalle123";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KeyManager applicationKeys;
+
+    private X509Certificate certificate;
+
+    @Before
+    public void setUp() throws Exception {
+        applicationKeys = new JKSKeyManager(new ClassPathResource("saml/samlKeystore.jks"), PASSWORD,
+                Collections.singletonMap("apollo", PASSWORD), "apollo");
+        KeyStore jks = ((JKSKeyManager) applicationKeys).getKeyStore();
+        PrivateKey privateKey = (PrivateKey) jks.getKey("apollo", PASSWORD.toCharArray());
+        Certificate[] chain = jks.getCertificateChain("apollo");
+        certificate = (X509Certificate) chain[0];
+
+        KeyStore bundle = KeyStore.getInstance("PKCS12");
+        bundle.load(null, null);
+        bundle.setKeyEntry("key", privateKey, PASSWORD.toCharArray(), chain);
+        try (OutputStream out = new FileOutputStream(new File(folder.getRoot(), "tenant1.p12"))) {
+            bundle.store(out, PASSWORD.toCharArray());
+        }
+    }
+
+    @Test
+    public void testKeysAreLoadedOnFirstUse() {
+        // given
+        IndexedKeyManager keyManager = keyManager();
+        assertEquals(1, keyManager.getIndexedCount());
+        assertEquals(0, keyManager.getLoadCount());
+
+        // when
+        Credential first = keyManager.getCredential("tenant1");
+        Credential second = keyManager.getCredential("tenant1");
+
+        // then
+        assertNotNull(first.getPrivateKey());
+        assertEquals("tenant1", first.getEntityId());
+        assertSame(first, second);
+        assertEquals(1, keyManager.getLoadCount());
+        assertEquals(certificate, keyManager.getCertificate("tenant1"));
+    }
+
+    @Test
+    public void testApplicationKeysAreDelegated() throws Exception {
+        // given
+        IndexedKeyManager keyManager = keyManager();
+
+        // when / then
+        assertEquals("apollo", keyManager.getDefaultCredentialName());
+        assertEquals(applicationKeys.getAvailableCredentials(), keyManager.getAvailableCredentials());
+        assertFalse(keyManager.getAvailableCredentials().contains("tenant1"));
+        assertNotNull(keyManager.getCredential("apollo").getPrivateKey());
+        assertNull(keyManager.getCertificate("unknown"));
+        assertTrue(keyManager.isIndexed("tenant1"));
+        assertFalse(keyManager.isIndexed("apollo"));
+        assertEquals(0, keyManager.getLoadCount());
+        assertNotNull(keyManager.resolveSingle(new CriteriaSet(new EntityIDCriteria("tenant1"))));
+        assertEquals(1, keyManager.getLoadCount());
+    }
+
+    @Test
+    public void testLookupByFingerprintFromIndex() throws Exception {
+        // given
+        String fingerprint = IndexedKeyManager.fingerprint(certificate);
+        Files.write(new File(folder.getRoot(), IndexedKeyManager.INDEX_FILE).toPath(),
+                ("# alias,fingerprint,file\ntenant1," + fingerprint.toUpperCase() + ",tenant1.p12\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        IndexedKeyManager keyManager = keyManager();
+
+        // when
+        Credential credential = keyManager.getCredentialByFingerprint(fingerprint);
+
+        // then
+        assertNotNull(credential);
+        assertEquals("tenant1", credential.getEntityId());
+        assertNull(keyManager.getCredentialByFingerprint("00:11"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLookupByFingerprintRequiresIndex() throws Exception {
+        // given
+        IndexedKeyManager keyManager = keyManager();
+        keyManager.getCredential("tenant1");
+
+        // when
+        keyManager.getCredentialByFingerprint(IndexedKeyManager.fingerprint(certificate));
+    }
+
+    @Test
+    public void testTenantsAreFoundWithoutLoadingKeys() throws Exception {
+        // given
+        Files.write(new File(folder.getRoot(), "corrupt.p12").toPath(), new byte[] { 1, 2, 3 });
+        IndexedKeyManager keyManager = keyManager();
+        KeyManagerTenantDirectory directory = new KeyManagerTenantDirectory(keyManager);
+
+        // when / then
+        assertTrue(directory.isTenant("tenant1"));
+        assertTrue(directory.isTenant("corrupt"));
+        assertFalse(directory.isTenant("apollo"));
+        assertFalse(directory.isTenant("ssocircle"));
+        assertEquals(0, keyManager.getLoadCount());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        // given
+        IndexedKeyManager keyManager = new IndexedKeyManager(applicationKeys, folder.getRoot(), PASSWORD, null, 1);
+        keyManager.getCredential("tenant1");
+
+        // when
+        keyManager.getCredential("tenant1");
+
+        // then
+        assertEquals(1, keyManager.getCachedCount());
+        assertEquals(1, keyManager.getLoadCount());
+    }
+
+    @Test
+    public void testFailedKeyIsNotReloadedBeforeRetryDelay() throws Exception {
+        // given
+        Files.write(new File(folder.getRoot(), "corrupt.p12").toPath(), new byte[] { 1, 2, 3 });
+        AtomicInteger attempts = new AtomicInteger();
+        IndexedKeyManager keyManager = new IndexedKeyManager(applicationKeys, folder.getRoot(), PASSWORD, null, 10) {
+            @Override
+            protected X509Credential load(String alias, File bundle) {
+                attempts.incrementAndGet();
+                return super.load(alias, bundle);
+            }
+        };
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            try {
+                keyManager.getCredential("corrupt");
+                fail("Corrupt key loaded");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        }
+
+        // then
+        assertEquals(1, attempts.get());
+        assertEquals(1, keyManager.getFailedCount());
+        assertNotNull(keyManager.getCredential("tenant1"));
+
+        // when
+        keyManager.setRetryDelay(0);
+        try {
+            keyManager.getCredential("corrupt");
+            fail("Corrupt key loaded");
+        } catch (RuntimeException e) {
+            // then
+            assertEquals(2, attempts.get());
+        }
+    }
+
+    @Test
+    public void testConcurrentFirstUsesShareOneLoad() throws Exception {
+        // given
+        int threads = 8;
+        CountDownLatch started = new CountDownLatch(threads);
+        IndexedKeyManager keyManager = new IndexedKeyManager(applicationKeys, folder.getRoot(), PASSWORD, null, 10) {
+            @Override
+            protected X509Credential load(String alias, File bundle) {
+                try {
+                    started.await(5, TimeUnit.SECONDS);
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.load(alias, bundle);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Credential>> credentials = new ArrayList<Future<Credential>>();
+
+        // when
+        try {
+            for (int t = 0; t < threads; t++) {
+                credentials.add(executor.submit(() -> {
+                    started.countDown();
+                    return keyManager.getCredential("tenant1");
+                }));
+            }
+            for (Future<Credential> credential : credentials) {
+                assertSame(credentials.get(0).get(), credential.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertEquals(1, keyManager.getLoadCount());
+    }
+
+    private IndexedKeyManager keyManager() {
+        return new IndexedKeyManager(applicationKeys, folder.getRoot(), PASSWORD, null, 10);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.log;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml.SAMLConstants;
+import org.springframework.security.saml.context.SAMLMessageContext;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.opensaml.common.xml.SAMLConstants.SAML2_POST_BINDING_URI;
+import static org.opensaml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+public class SAMLEventLoggerTest {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    private static final String RESPONSE = "<samlp:Response ID=\"r1\"/>";
+
+    private SAMLEventLogger logger;
+
+    @After
+    public void tearDown() throws Exception {
+        if (logger != null) {
+            logger.destroy();
+        }
+    }
+
+    @Test
+    public void testRecentMessagesAreKeptInFull() throws Exception {
+        // given
+        logger = new SAMLEventLogger(16, SampleRates.all(), 0, 2);
+        String encoded = Base64.getEncoder().encodeToString(RESPONSE.getBytes(StandardCharsets.UTF_8));
+
+        // when
+        logger.log(SAMLConstants.AUTH_N_RESPONSE, SAMLConstants.SUCCESS,
+                context(SAML2_POST_BINDING_URI, "SAMLResponse", encoded), null, null);
+        logger.log(SAMLConstants.AUTH_N_RESPONSE, SAMLConstants.SUCCESS,
+                context(SAML2_REDIRECT_BINDING_URI, "SAMLResponse", deflate(RESPONSE)), null, null);
+        logger.log(SAMLConstants.AUTH_N_RESPONSE, SAMLConstants.FAILURE,
+                context(SAML2_POST_BINDING_URI, "SAMLResponse", "not base64!"), null,
+                new IllegalStateException("failed"));
+        awaitProcessed(3);
+
+        // then
+        List<SAMLEventLogger.RecentMessage> messages = logger.getRecentMessages();
+        assertEquals(2, messages.size());
+        assertEquals(SAMLConstants.FAILURE, messages.get(0).getResult());
+        assertNull(messages.get(0).getMessage());
+        assertEquals(RESPONSE, messages.get(1).getMessage());
+        assertEquals(IDP, messages.get(1).getIdp());
+        assertEquals(3, logger.getSampledCount());
+        assertEquals(0, logger.getDroppedCount());
+    }
+
+    @Test
+    public void testEventsAreSampled() throws Exception {
+        // given
+        logger = new SAMLEventLogger(16, SampleRates.parse("AuthNResponse:SUCCESS=0"), 16, 10);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            logger.log(SAMLConstants.AUTH_N_RESPONSE, SAMLConstants.SUCCESS,
+                    context(SAML2_POST_BINDING_URI, "SAMLResponse", "UmVzcG9uc2U="), null, null);
+        }
+        logger.log(SAMLConstants.AUTH_N_RESPONSE, SAMLConstants.FAILURE,
+                context(SAML2_POST_BINDING_URI, "SAMLResponse", "UmVzcG9uc2U="), null, null);
+        awaitProcessed(6);
+
+        // then
+        assertEquals(1, logger.getSampledCount());
+        assertEquals(6, logger.getRecentMessages().size());
+    }
+
+    @Test
+    public void testSampleRatesPrecedence() {
+        // given
+        SampleRates rates = SampleRates.parse("AuthNResponse=0.5, AuthNResponse:FAILURE=1, *:SUCCESS=0.1, *=0.2");
+
+        // when, then
+        assertEquals(1.0, rates.get("AuthNResponse", "FAILURE"), 0);
+        assertEquals(0.5, rates.get("AuthNResponse", "SUCCESS"), 0);
+        assertEquals(0.1, rates.get("LogoutRequest", "SUCCESS"), 0);
+        assertEquals(0.2, rates.get("LogoutRequest", "FAILURE"), 0);
+        assertEquals(1.0, SampleRates.all().get("LogoutRequest", "FAILURE"), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleRate() {
+        SampleRates.parse("AuthNResponse=2");
+    }
+
+    private SAMLMessageContext context(String binding, String parameter, String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml/SSO");
+        request.setParameter(parameter, value);
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        context.setInboundSAMLBinding(binding);
+        context.setPeerEntityId(IDP);
+        return context;
+    }
+
+    private static String deflate(String message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFLATED, true))) {
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    private void awaitProcessed(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (logger.getProcessedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.context.SAMLContextProvider;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class CachingMetadataDisplayFilterTest {
+
+    private static final String ENTITY_ID = "com:example:spring:sp";
+
+    private MetadataManager manager;
+
+    private CachingMetadataDisplayFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        manager = mock(MetadataManager.class);
+        when(manager.getHostedSPName()).thenReturn(ENTITY_ID);
+        when(manager.getEntityDescriptor(ENTITY_ID)).thenReturn(descriptor());
+        when(manager.getExtendedMetadata(ENTITY_ID)).thenReturn(new ExtendedMetadata());
+
+        filter = new CachingMetadataDisplayFilter();
+        filter.setManager(manager);
+        filter.setKeyManager(mock(KeyManager.class));
+        filter.setContextProvider(mock(SAMLContextProvider.class));
+        filter.setHostedSPRegistry(mock(HostedSPRegistry.class));
+        filter.afterPropertiesSet();
+    }
+
+    @Test
+    public void testMetadataIsSerializedOnce() throws Exception {
+        // when
+        MockHttpServletResponse first = perform(request());
+        MockHttpServletResponse second = perform(request());
+
+        // then
+        assertEquals(200, first.getStatus());
+        assertTrue(first.getContentType().startsWith("application/samlmetadata+xml"));
+        assertTrue(first.getContentAsString().contains("entityID=\"" + ENTITY_ID + "\""));
+        assertEquals(first.getContentAsString(), second.getContentAsString());
+        assertNotNull(first.getHeader("ETag"));
+        assertEquals("public, max-age=300", first.getHeader("Cache-Control"));
+        assertEquals(1, filter.getGeneratedCount());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        // given
+        String etag = perform(request()).getHeader("ETag");
+        MockHttpServletRequest request = request();
+        request.addHeader("If-None-Match", "\"other\", " + etag);
+
+        // when
+        MockHttpServletResponse response = perform(request);
+
+        // then
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(etag, response.getHeader("ETag"));
+    }
+
+    @Test
+    public void testGzipVariant() throws Exception {
+        // given
+        String plain = perform(request()).getContentAsString();
+        MockHttpServletRequest request = request();
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+
+        // when
+        MockHttpServletResponse response = perform(request);
+
+        // then
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(plain, gunzip(response.getContentAsByteArray()));
+        assertNotEquals(perform(request()).getHeader("ETag"), response.getHeader("ETag"));
+    }
+
+    @Test
+    public void testRegeneratedWhenDescriptorChanges() throws Exception {
+        // given
+        perform(request());
+
+        // when
+        when(manager.getEntityDescriptor(ENTITY_ID)).thenReturn(descriptor());
+        perform(request());
+
+        // then
+        assertEquals(2, filter.getGeneratedCount());
+    }
+
+    private MockHttpServletRequest request() {
+        return new MockHttpServletRequest("GET", "/saml/metadata");
+    }
+
+    private MockHttpServletResponse perform(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private EntityDescriptor descriptor() {
+        SAMLObjectBuilder<EntityDescriptor> builder = (SAMLObjectBuilder<EntityDescriptor>)
+                Configuration.getBuilderFactory().getBuilder(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        EntityDescriptor descriptor = builder.buildObject();
+        descriptor.setEntityID(ENTITY_ID);
+        return descriptor;
+    }
+
+    private String gunzip(byte[] content) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.key.IndexedKeyManager;
+import com.vdenotaris.spring.boot.security.saml.web.metadata.HostedSPRegistry.HostedSP;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.MetadataGenerator;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class HostedSPRegistryTest extends CommonTestSupport {
+
+    private static final String PASSWORD = "nalle123";
+
+    @Autowired
+    private MetadataGenerator metadataGenerator;
+
+    @Autowired
+    private KeyManager keyManager;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IndexedKeyManager tenantKeys;
+
+    private HostedSPRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        X509Credential applicationKey = (X509Credential) keyManager.getDefaultCredential();
+        for (String tenant : new String[] {"tenant1", "tenant2", "tenant3"}) {
+            KeyStore bundle = KeyStore.getInstance("PKCS12");
+            bundle.load(null, null);
+            bundle.setKeyEntry("key", applicationKey.getPrivateKey(), PASSWORD.toCharArray(),
+                    applicationKey.getEntityCertificateChain().toArray(new Certificate[0]));
+            try (OutputStream out = new FileOutputStream(new File(folder.getRoot(), tenant + ".p12"))) {
+                bundle.store(out, PASSWORD.toCharArray());
+            }
+        }
+        tenantKeys = new IndexedKeyManager(keyManager, folder.getRoot(), PASSWORD,
+                Collections.<String, String>emptyMap(), 10);
+        registry = new HostedSPRegistry(metadataGenerator, tenantKeys,
+                tenant -> tenant.startsWith("tenant") || tenant.equals("ssocircle"), 2);
+        registry.setEntityBaseURLPattern("https://sp.example.com/" + HostedSPRegistry.TENANT_PLACEHOLDER);
+    }
+
+    @Test
+    public void testResolveTenantFromPath() {
+        assertEquals("tenant1", registry.resolveTenant(request("/saml/SSO/alias/tenant1")));
+        assertEquals("tenant2", registry.resolveTenant(request("/saml/metadata/alias/tenant2")));
+        assertNull(registry.resolveTenant(request("/saml/metadata/alias/unknown")));
+        assertNull(registry.resolveTenant(request("/saml/metadata")));
+    }
+
+    @Test
+    public void testResolveTenantFromHost() {
+        // given
+        registry.setTenantResolution(HostedSPRegistry.TenantResolution.HOST);
+        MockHttpServletRequest request = request("/saml/SSO");
+        request.setServerName("tenant3.sp.example.com");
+
+        // when / then
+        assertEquals("tenant3", registry.resolveTenant(request));
+    }
+
+    @Test
+    public void testHostedSPGeneratedOnce() throws Exception {
+        // when
+        HostedSP first = registry.getHostedSP("tenant1", request("/saml/metadata/alias/tenant1"));
+        HostedSP second = registry.getHostedSP("tenant1", request("/saml/metadata/alias/tenant1"));
+
+        // then
+        assertSame(first, second);
+        assertEquals(1, registry.getGeneratedCount());
+        assertEquals("com:example:spring:sp:tenant1", first.getEntityId());
+        assertEquals("tenant1", first.getExtendedMetadata().getAlias());
+        assertTrue(first.getExtendedMetadata().isLocal());
+        assertTrue(first.getRoleDescriptor().getAssertionConsumerServices().get(0).getLocation()
+                .startsWith("https://sp.example.com/tenant1/saml/SSO/alias/tenant1"));
+        assertTrue(first.getMetadata().contains("entityID=\"com:example:spring:sp:tenant1\""));
+    }
+
+    @Test
+    public void testHostedSPCacheIsBounded() throws Exception {
+        // given
+        HostedSP first = registry.getHostedSP("tenant1", request("/"));
+        registry.getHostedSP("tenant2", request("/"));
+        registry.getHostedSP("tenant3", request("/"));
+
+        // when
+        HostedSP regenerated = registry.getHostedSP("tenant1", request("/"));
+
+        // then
+        assertNotSame(first, regenerated);
+        assertEquals(2, registry.getCachedCount());
+        assertEquals(4, registry.getGeneratedCount());
+        assertEquals(2, registry.getEvictedCount());
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testTenantWithoutPrivateKeyIsRejected() throws Exception {
+        registry.getHostedSP("ssocircle", request("/saml/metadata/alias/ssocircle"));
+    }
+
+    @Test
+    public void testOnlyPrivateKeysAreTenants() {
+        // given
+        KeyManagerTenantDirectory directory = new KeyManagerTenantDirectory(tenantKeys);
+
+        // when / then
+        assertTrue(directory.isTenant("tenant1"));
+        assertFalse(directory.isTenant("apollo"));
+        assertFalse(directory.isTenant("ssocircle"));
+        assertFalse(directory.isTenant("startcom"));
+        assertFalse(directory.isTenant("unknown"));
+    }
+
+    private MockHttpServletRequest request(String uri) {
+        return new MockHttpServletRequest("GET", uri);
+    }
+}
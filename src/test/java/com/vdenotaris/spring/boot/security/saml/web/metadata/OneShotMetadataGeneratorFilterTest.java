@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metadata;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.MetadataGenerator;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class OneShotMetadataGeneratorFilterTest {
+
+    private MetadataManager manager;
+
+    private OneShotMetadataGeneratorFilter filter;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        SAMLObjectBuilder<EntityDescriptor> builder = (SAMLObjectBuilder<EntityDescriptor>)
+                Configuration.getBuilderFactory().getBuilder(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        EntityDescriptor descriptor = builder.buildObject();
+        descriptor.setEntityID("com:example:spring:sp");
+
+        MetadataGenerator generator = mock(MetadataGenerator.class);
+        when(generator.getEntityId()).thenReturn("com:example:spring:sp");
+        when(generator.getEntityBaseURL()).thenReturn("http://localhost:8080");
+        when(generator.generateMetadata()).thenReturn(descriptor);
+        when(generator.generateExtendedMetadata()).thenReturn(new ExtendedMetadata());
+
+        AtomicReference<String> hostedSPName = new AtomicReference<String>();
+        manager = mock(MetadataManager.class);
+        when(manager.getHostedSPName()).thenAnswer(invocation -> hostedSPName.get());
+        doAnswer(invocation -> {
+            hostedSPName.set((String) invocation.getArguments()[0]);
+            return null;
+        }).when(manager).setHostedSPName(anyString());
+
+        filter = new OneShotMetadataGeneratorFilter(generator);
+        filter.setManager(manager);
+    }
+
+    @Test
+    public void testProtectedPageGeneratesHostedSP() throws Exception {
+        // when
+        perform("/landing");
+
+        // then
+        assertTrue(filter.isInitialized());
+        assertEquals(1, filter.getGenerationCount());
+        assertEquals("com:example:spring:sp", manager.getHostedSPName());
+    }
+
+    @Test
+    public void testGeneratesOnceThenSkipsManager() throws Exception {
+        // when
+        perform("/saml/login");
+
+        // then
+        assertTrue(filter.isInitialized());
+        assertEquals(1, filter.getGenerationCount());
+        assertNotNull(manager.getHostedSPName());
+
+        // when
+        reset(manager);
+        perform("/saml/login");
+        perform("/home");
+
+        // then
+        verifyZeroInteractions(manager);
+        assertEquals(1, filter.getGenerationCount());
+    }
+
+    private void perform(String uri) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        assertNotNull(chain.getRequest());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.metrics;
+
+import org.junit.Test;
+import org.opensaml.common.xml.SAMLConstants;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SAMLMetricsTest {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        // given
+        long previous = -1;
+
+        // when, then
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(previous + 1));
+            assertEquals(bucket, LatencyHistogram.bucket(upperBound));
+            assertTrue(upperBound - previous <= Math.max(1, (previous + 1) / 8));
+            previous = upperBound;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // when
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        histogram.record(TimeUnit.HOURS.toNanos(1));
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        // then
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(500, snapshot.getValueAtQuantile(0.5), 500 / 8);
+        assertEquals(990, snapshot.getValueAtQuantile(0.99), 990 / 8);
+        assertEquals(LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1), snapshot.getMax());
+        assertEquals(snapshot.getMax(), snapshot.getValueAtQuantile(1));
+    }
+
+    @Test
+    public void testLatenciesByStageBindingAndIdP() {
+        // given
+        SAMLMetrics metrics = new SAMLMetrics(10);
+
+        // when
+        metrics.record(SAMLStage.DECODE, SAMLConstants.SAML2_POST_BINDING_URI, IDP, 2000000);
+        metrics.record(SAMLStage.DECODE, SAMLConstants.SAML2_POST_BINDING_URI, IDP, 4000000);
+        metrics.record(SAMLStage.USER_DETAILS, null, IDP, 1000000);
+        metrics.record(SAMLStage.DECODE, SAMLConstants.SAML2_REDIRECT_BINDING_URI, null, 1000000);
+        List<SAMLMetrics.StageLatency> latencies = metrics.getLatencies(IDP);
+
+        // then
+        assertEquals(2, latencies.size());
+        SAMLMetrics.StageLatency decode = latencies.get(0);
+        assertEquals("decode", decode.getStage());
+        assertEquals(SAMLConstants.SAML2_POST_BINDING_URI, decode.getBinding());
+        assertEquals(2, decode.getCount());
+        assertEquals(3.0, decode.getMean(), 0.001);
+        assertEquals(4.0, decode.getMax(), 0.001);
+        SAMLMetrics.StageLatency userDetails = latencies.get(1);
+        assertEquals("userDetails", userDetails.getStage());
+        assertEquals(SAMLMetrics.UNKNOWN, userDetails.getBinding());
+        assertEquals(3, metrics.getLatencies(null).size());
+    }
+
+    @Test
+    public void testIdPsPastTheCapAreCountedTogether() {
+        // given
+        SAMLMetrics metrics = new SAMLMetrics(2);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            metrics.record(SAMLStage.DECODE, SAMLConstants.SAML2_POST_BINDING_URI, "http://idp" + i, 1000);
+            metrics.record(SAMLStage.ENCODE, SAMLConstants.SAML2_POST_BINDING_URI, "http://idp" + i, 1000);
+        }
+
+        // then
+        assertEquals(1, metrics.getLatencies("http://idp1").get(0).getCount());
+        assertEquals(0, metrics.getLatencies("http://idp2").size());
+        List<SAMLMetrics.StageLatency> others = metrics.getLatencies(SAMLMetrics.OTHER_IDPS);
+        assertEquals(2, others.size());
+        assertEquals(3, others.get(0).getCount());
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLException;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Audience;
+import org.opensaml.saml2.core.AudienceRestriction;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.KeyInfoConfirmationDataType;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.security.x509.X509KeyInfoGeneratorFactory;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.Signer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.context.SAMLContextProvider;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.security.saml.metadata.MetadataGeneratorFilter;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.security.saml.metadata.MetadataMemoryProvider;
+import org.springframework.security.saml.websso.WebSSOProfileConsumerHoKImpl;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.xml.namespace.QName;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Holder-of-Key responses through the application's HoK consumer, which shares
+ * the replay cache of the regular one.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+@DirtiesContext
+public class HoKReplayCheckTest {
+
+    private static final String IDP = "http://idp.example.com/metadata";
+
+    @Autowired
+    private MetadataGeneratorFilter metadataGeneratorFilter;
+
+    @Autowired
+    private MetadataManager metadata;
+
+    @Autowired
+    private KeyManager keyManager;
+
+    @Autowired
+    private SAMLContextProvider contextProvider;
+
+    @Autowired
+    private WebSSOProfileConsumerHoKImpl hokWebSSOprofileConsumer;
+
+    private X509Credential idpCredential;
+
+    @Before
+    public void setUp() throws Exception {
+        metadataGeneratorFilter.doFilter(new MockHttpServletRequest("GET", "/landing"),
+                new MockHttpServletResponse(), new MockFilterChain());
+
+        idpCredential = (X509Credential) keyManager.getDefaultCredential();
+        MetadataMemoryProvider provider = new MetadataMemoryProvider(idpMetadata());
+        provider.initialize();
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, new ExtendedMetadata());
+        delegate.setMetadataTrustCheck(false);
+        metadata.addMetadataProvider(delegate);
+        metadata.refreshMetadata();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplayedAssertionIsRejected() throws Exception {
+        // given
+        String assertionId = "_" + UUID.randomUUID();
+        SAMLMessageContext first = context();
+        first.setInboundSAMLMessage(response(assertionId, first.getLocalEntityId()));
+        SAMLMessageContext replayed = context();
+        replayed.setInboundSAMLMessage(response(assertionId, replayed.getLocalEntityId()));
+
+        // when
+        assertNotNull(hokWebSSOprofileConsumer.processAuthenticationResponse(first));
+        try {
+            hokWebSSOprofileConsumer.processAuthenticationResponse(replayed);
+            fail("Replayed assertion accepted");
+        } catch (SAMLException e) {
+            // then
+            assertEquals("Assertion " + assertionId + " was already processed", e.getCause().getMessage());
+        }
+    }
+
+    /*
+     * Context of a response posted to the HoK endpoint by a user agent holding the IdP's key.
+     */
+    private SAMLMessageContext context() throws Exception {
+        SAMLMessageContext context = contextProvider.getLocalEntity(
+                new MockHttpServletRequest("POST", "/saml/SSOHoK"), new MockHttpServletResponse());
+        context.setPeerEntityId(IDP);
+        context.setPeerEntityRole(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        context.setPeerEntityMetadata(metadata.getEntityDescriptor(IDP));
+        context.setPeerEntityRoleMetadata(metadata.getRole(IDP, IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAMLConstants.SAML20P_NS));
+        context.setPeerExtendedMetadata(metadata.getExtendedMetadata(IDP));
+        context.setPeerSSLCredential(idpCredential);
+        return context;
+    }
+
+    private EntityDescriptor idpMetadata() throws Exception {
+        EntityDescriptor descriptor = build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        descriptor.setEntityID(IDP);
+        IDPSSODescriptor idp = build(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        KeyDescriptor keyDescriptor = build(KeyDescriptor.DEFAULT_ELEMENT_NAME);
+        keyDescriptor.setUse(UsageType.SIGNING);
+        keyDescriptor.setKeyInfo(keyInfo());
+        idp.getKeyDescriptors().add(keyDescriptor);
+        SingleSignOnService singleSignOnService = build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        singleSignOnService.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        singleSignOnService.setLocation("http://idp.example.com/sso");
+        idp.getSingleSignOnServices().add(singleSignOnService);
+        descriptor.getRoleDescriptors().add(idp);
+        return descriptor;
+    }
+
+    private KeyInfo keyInfo() throws Exception {
+        X509KeyInfoGeneratorFactory keyInfoGeneratorFactory = new X509KeyInfoGeneratorFactory();
+        keyInfoGeneratorFactory.setEmitEntityCertificate(true);
+        return keyInfoGeneratorFactory.newInstance().generate(idpCredential);
+    }
+
+    /*
+     * Unsolicited response with an assertion signed by the IdP, confirmed by the key of the user agent.
+     */
+    private Response response(String assertionId, String audienceURI) throws Exception {
+        DateTime now = new DateTime();
+
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(assertionId);
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(now);
+        assertion.setIssuer(issuer());
+
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setFormat(NameID.EMAIL);
+        nameID.setValue("john.doe@example.com");
+        KeyInfoConfirmationDataType confirmationData = (KeyInfoConfirmationDataType) Configuration
+                .getBuilderFactory().getBuilder(KeyInfoConfirmationDataType.TYPE_NAME)
+                .buildObject(SubjectConfirmationData.DEFAULT_ELEMENT_NAME, KeyInfoConfirmationDataType.TYPE_NAME);
+        confirmationData.getKeyInfos().add(keyInfo());
+        confirmationData.setNotOnOrAfter(now.plusMinutes(5));
+        SubjectConfirmation confirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.setMethod(SubjectConfirmation.METHOD_HOLDER_OF_KEY);
+        confirmation.setSubjectConfirmationData(confirmationData);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(nameID);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        Audience audience = build(Audience.DEFAULT_ELEMENT_NAME);
+        audience.setAudienceURI(audienceURI);
+        AudienceRestriction audienceRestriction = build(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        audienceRestriction.getAudiences().add(audience);
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now.minusMinutes(1));
+        conditions.setNotOnOrAfter(now.plusMinutes(5));
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        assertion.setConditions(conditions);
+
+        AuthnContextClassRef classRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setAuthnContextClassRef(AuthnContext.X509_AUTHN_CTX);
+        AuthnContext authnContext = build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        authnContext.setAuthnContextClassRef(classRef);
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(now);
+        authnStatement.setSessionIndex("_s" + UUID.randomUUID());
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(idpCredential);
+        SecurityHelper.prepareSignatureParams(signature, idpCredential, null, null);
+        assertion.setSignature(signature);
+
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS_URI);
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        status.setStatusCode(statusCode);
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID("_" + UUID.randomUUID());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(now);
+        response.setIssuer(issuer());
+        response.setStatus(status);
+        response.getAssertions().add(assertion);
+
+        Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+        Signer.signObject(signature);
+        return response;
+    }
+
+    private static Issuer issuer() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(IDP);
+        return issuer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
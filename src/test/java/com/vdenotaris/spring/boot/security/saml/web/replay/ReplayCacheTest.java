@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.replay;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayCacheTest {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayIsDetected() {
+        // given
+        InMemoryReplayCache cache = new InMemoryReplayCache(3060);
+        long expiresAt = System.currentTimeMillis() + 60000;
+
+        // when
+        boolean first = cache.isReplay(IDP, "_id1", expiresAt);
+        boolean second = cache.isReplay(IDP, "_id1", expiresAt);
+        boolean otherIssuer = cache.isReplay("http://other.example.com", "_id1", expiresAt);
+
+        // then
+        assertFalse(first);
+        assertTrue(second);
+        assertFalse(otherIssuer);
+        assertEquals(1, cache.getReplayCount());
+    }
+
+    @Test
+    public void testNoFalsePositives() {
+        // given
+        InMemoryReplayCache cache = new InMemoryReplayCache(3060, 30, 4, 1000, 100000);
+        long expiresAt = System.currentTimeMillis() + 60000;
+
+        // when
+        for (int i = 0; i < 20000; i++) {
+            assertFalse(cache.isReplay(IDP, "_id" + i, expiresAt));
+        }
+
+        // then
+        assertEquals(20000, cache.size());
+        assertTrue(cache.isReplay(IDP, "_id19999", expiresAt));
+    }
+
+    @Test
+    public void testExpiredIdentifierIsForgotten() {
+        // given
+        InMemoryReplayCache cache = new InMemoryReplayCache(3060);
+        cache.isReplay(IDP, "_id1", System.currentTimeMillis() - 1);
+
+        // when
+        boolean replay = cache.isReplay(IDP, "_id1", System.currentTimeMillis() + 60000);
+
+        // then
+        assertFalse(replay);
+    }
+
+    @Test
+    public void testConcurrentSubmissionsAcceptedOnce() throws Exception {
+        // given
+        InMemoryReplayCache cache = new InMemoryReplayCache(3060, 30, 4, 1000, 1000000);
+        long expiresAt = System.currentTimeMillis() + 60000;
+        int threads = 8;
+        int ids = 100000;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> submissions = new ArrayList<Future<?>>();
+
+        // when
+        try {
+            for (int t = 0; t < threads; t++) {
+                submissions.add(executor.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < ids; i++) {
+                        if (!cache.isReplay(IDP, "_id" + i, expiresAt)) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> submission : submissions) {
+                submission.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertEquals(ids, accepted.get());
+        assertEquals(ids, cache.size());
+    }
+
+    @Test
+    public void testReplayAcrossNodes() throws Exception {
+        // given
+        File file = folder.newFile("replay.log");
+        long expiresAt = System.currentTimeMillis() + 60000;
+
+        try (SharedFileReplayCache node1 = new SharedFileReplayCache(file, 3060);
+             SharedFileReplayCache node2 = new SharedFileReplayCache(file, 3060)) {
+            // when
+            boolean first = node1.isReplay(IDP, "_id1", expiresAt);
+            boolean replayed = node2.isReplay(IDP, "_id1", expiresAt);
+            boolean other = node2.isReplay(IDP, "_id2", expiresAt);
+            boolean otherReplayed = node1.isReplay(IDP, "_id2", expiresAt);
+
+            // then
+            assertFalse(first);
+            assertTrue(replayed);
+            assertFalse(other);
+            assertTrue(otherReplayed);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.URI;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLProcessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+public class BackChannelLogoutSenderTest {
+
+    private final BackChannelLogoutSender sender =
+            new BackChannelLogoutSender(new HttpClient(), mock(SAMLProcessor.class), 1, 1);
+
+    @After
+    public void tearDown() {
+        sender.close();
+    }
+
+    @Test
+    public void testProtocolIsSharedByLogoutsToTheSameIdP() throws Exception {
+        // given
+        URI uri = new URI("https://idp.example.com/slo/soap", true, "UTF-8");
+
+        // when
+        HostConfiguration first = sender.getHostConfiguration(uri, context("sp", "idp"));
+        HostConfiguration second = sender.getHostConfiguration(uri, context("sp", "idp"));
+
+        // then
+        assertSame(first.getProtocol(), second.getProtocol());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testProtocolIsBuiltForEachSP() throws Exception {
+        // given
+        URI uri = new URI("https://idp.example.com/slo/soap", true, "UTF-8");
+
+        // when
+        HostConfiguration first = sender.getHostConfiguration(uri, context("sp", "idp"));
+        HostConfiguration second = sender.getHostConfiguration(uri, context("tenant", "idp"));
+
+        // then
+        assertNotEquals(first.getProtocol(), second.getProtocol());
+    }
+
+    private static SAMLMessageContext context(String localEntityId, String peerEntityId) {
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setLocalEntityId(localEntityId);
+        context.setPeerEntityId(peerEntityId);
+        return context;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAuthenticationCodec;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.web.authentication.session.SessionAuthenticationException;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.Cookie;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class CookieSecurityContextRepositoryTest extends CommonTestSupport {
+
+    private static final String KEY = "MDEyMzQ1Njc4OWFiY2RlZg==";
+
+    private CookieSecurityContextRepository repository;
+
+    private Authentication authentication;
+
+    @Before
+    public void setUp() {
+        repository = new CookieSecurityContextRepository(new SAMLAuthenticationCodec(), KEY,
+                new RevokedSAMLSessions(1800));
+
+        NameID nameID = mock(NameID.class);
+        when(nameID.getValue()).thenReturn(USER_NAME);
+        AuthnStatement statement = mock(AuthnStatement.class);
+        when(statement.getSessionIndex()).thenReturn("s2abc");
+        Assertion assertion = mock(Assertion.class);
+        when(assertion.getAuthnStatements()).thenReturn(Collections.singletonList(statement));
+        SAMLCredential credential = mock(SAMLCredential.class);
+        when(credential.getNameID()).thenReturn(nameID);
+        when(credential.getAuthenticationAssertion()).thenReturn(assertion);
+        when(credential.getRemoteEntityID()).thenReturn("http://idp.ssocircle.com");
+        authentication = new ExpiringUsernameAuthenticationToken(null, USER_DETAILS, credential, AUTHORITIES);
+    }
+
+    @Test
+    public void testAuthenticationRoundTrip() {
+        // given
+        Cookie cookie = save(authentication);
+
+        // when
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(cookie);
+        SecurityContext context = repository.loadContext(
+                new HttpRequestResponseHolder(request, new MockHttpServletResponse()));
+
+        // then
+        assertTrue(cookie.isHttpOnly());
+        assertTrue(repository.containsContext(request));
+        assertNotNull(context.getAuthentication());
+        assertEquals(USER_NAME, context.getAuthentication().getName());
+        assertEquals(AUTHORITIES.get(0), context.getAuthentication().getAuthorities().iterator().next());
+    }
+
+    @Test
+    public void testTamperedCookieIsIgnored() {
+        // given
+        Cookie cookie = save(authentication);
+        char[] value = cookie.getValue().toCharArray();
+        value[value.length / 2] = value[value.length / 2] == 'A' ? 'B' : 'A';
+
+        // when
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(cookie.getName(), new String(value)));
+
+        // then
+        assertFalse(repository.containsContext(request));
+    }
+
+    @Test
+    public void testLogoutRevokesCookie() {
+        // given
+        Cookie cookie = save(authentication);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(cookie);
+        SecurityContext context = repository.loadContext(
+                new HttpRequestResponseHolder(request, new MockHttpServletResponse()));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        repository.logout(request, response, context.getAuthentication());
+
+        // then
+        assertEquals(0, response.getCookie(CookieSecurityContextRepository.DEFAULT_COOKIE_NAME).getMaxAge());
+        MockHttpServletRequest replay = new MockHttpServletRequest();
+        replay.setCookies(cookie);
+        assertFalse(repository.containsContext(replay));
+    }
+
+    @Test
+    public void testOversizeAuthenticationIsRejected() {
+        // given
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+        for (int i = 0; i < 500; i++) {
+            authorities.add(new SimpleGrantedAuthority("ROLE_GROUP_" + UUID.randomUUID()));
+        }
+        Authentication large = new ExpiringUsernameAuthenticationToken(null, USER_DETAILS,
+                authentication.getCredentials(), authorities);
+
+        // when
+        repository.onAuthentication(authentication, new MockHttpServletRequest(), new MockHttpServletResponse());
+        try {
+            repository.onAuthentication(large, new MockHttpServletRequest(), new MockHttpServletResponse());
+            fail("Authentication too large for the cookie was accepted");
+        } catch (SessionAuthenticationException e) {
+            // then
+            assertTrue(e.getMessage().contains(USER_NAME));
+        }
+    }
+
+    private Cookie save(Authentication authentication) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, new MockHttpServletResponse());
+        SecurityContext context = repository.loadContext(holder);
+        assertNull(context.getAuthentication());
+
+        SecurityContext authenticated = new SecurityContextImpl();
+        authenticated.setAuthentication(authentication);
+        repository.saveContext(authenticated, request, holder.getResponse());
+        MockHttpServletResponse response =
+                (MockHttpServletResponse) ((ServletResponseWrapper) holder.getResponse()).getResponse();
+        Cookie cookie = response.getCookie(CookieSecurityContextRepository.DEFAULT_COOKIE_NAME);
+        assertNotNull(cookie);
+        return cookie;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.xml.namespace.QName;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class RegistrySingleLogoutProfileTest {
+
+    private static final String IDP_SLO = "https://idp.example.com/slo/soap";
+
+    @Test
+    public void testBrowserIsRedirectedAfterBackChannelLogout() throws Exception {
+        // given
+        BackChannelLogoutSender sender = mock(BackChannelLogoutSender.class);
+        RegistrySingleLogoutProfile profile = new RegistrySingleLogoutProfile(
+                new SAMLSessionRegistry(new LocalSessionInvalidationBus(), null));
+        profile.setBackChannelSender(sender);
+
+        SingleLogoutService logoutService = build(SingleLogoutService.DEFAULT_ELEMENT_NAME);
+        logoutService.setBinding(SAMLConstants.SAML2_SOAP11_BINDING_URI);
+        logoutService.setLocation(IDP_SLO);
+        IDPSSODescriptor idp = build(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.getSingleLogoutServices().add(logoutService);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/saml/logout");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        SAMLMessageContext context = new SAMLMessageContext();
+        context.setLocalEntityId("com:example:spring:sp");
+        context.setPeerEntityRoleMetadata(idp);
+        context.setPeerExtendedMetadata(new ExtendedMetadata());
+        context.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        context.setOutboundMessageTransport(new HttpServletResponseAdapter(response, false));
+
+        // when
+        profile.sendLogoutRequest(context, credential());
+
+        // then
+        verify(sender).send(context, true);
+        assertTrue(context.getOutboundSAMLMessage() instanceof LogoutRequest);
+        assertEquals(IDP_SLO, context.getPeerEntityEndpoint().getLocation());
+        assertEquals("/", response.getRedirectedUrl());
+    }
+
+    private static SAMLCredential credential() {
+        NameID nameID = mock(NameID.class);
+        when(nameID.getValue()).thenReturn("alice");
+        AuthnStatement statement = mock(AuthnStatement.class);
+        when(statement.getSessionIndex()).thenReturn("s1");
+        Assertion assertion = mock(Assertion.class);
+        when(assertion.getAuthnStatements()).thenReturn(Collections.singletonList(statement));
+        SAMLCredential credential = mock(SAMLCredential.class);
+        when(credential.getNameID()).thenReturn(nameID);
+        when(credential.getAuthenticationAssertion()).thenReturn(assertion);
+        return credential;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
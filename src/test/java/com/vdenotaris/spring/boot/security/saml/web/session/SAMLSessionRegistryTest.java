@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.saml.SAMLCredential;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SAMLSessionRegistryTest {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    private RevokedSAMLSessions revokedSessions;
+
+    private SAMLSessionRegistry node1;
+
+    private SAMLSessionRegistry node2;
+
+    @Before
+    public void setUp() {
+        SessionInvalidationBus bus = new LocalSessionInvalidationBus();
+        revokedSessions = new RevokedSAMLSessions(1800);
+        node1 = new SAMLSessionRegistry(bus, revokedSessions);
+        node2 = new SAMLSessionRegistry(bus, null);
+    }
+
+    @Test
+    public void testLogoutBySessionIndexAcrossNodes() {
+        // given
+        MockHttpSession first = new MockHttpSession();
+        MockHttpSession second = new MockHttpSession();
+        MockHttpSession other = new MockHttpSession();
+        node1.register(first, credential(IDP, "alice", "s1"));
+        node2.register(second, credential(IDP, "alice", "s2"));
+        node2.register(other, credential(IDP, "bob", "s3"));
+
+        // when
+        int local = node1.logout(IDP, "alice", Collections.singletonList("s2"));
+
+        // then
+        assertEquals(0, local);
+        assertFalse(first.isInvalid());
+        assertTrue(second.isInvalid());
+        assertFalse(other.isInvalid());
+        assertEquals(Collections.singletonList(first.getId()), node1.getSessionIds(IDP, "alice"));
+        assertTrue(node2.getSessionIds(IDP, "alice").isEmpty());
+        assertEquals(1, node2.size());
+        assertTrue(revokedSessions.isRevoked(IDP, "alice", "s2", System.currentTimeMillis() - 1000));
+        assertFalse(revokedSessions.isRevoked(IDP, "alice", "s1", System.currentTimeMillis() - 1000));
+    }
+
+    @Test
+    public void testLogoutOfUserAndIssuer() {
+        // given
+        MockHttpSession first = new MockHttpSession();
+        MockHttpSession second = new MockHttpSession();
+        MockHttpSession other = new MockHttpSession();
+        MockHttpSession otherIdP = new MockHttpSession();
+        node1.register(first, credential(IDP, "alice", "s1"));
+        node1.register(second, credential(IDP, "alice", "s2"));
+        node2.register(other, credential(IDP, "bob", "s3"));
+        node2.register(otherIdP, credential("http://idp.example.com", "bob", "s4"));
+
+        // when
+        int user = node2.logout(IDP, "alice", null);
+        int issuer = node1.logout(IDP, null, null);
+
+        // then
+        assertEquals(0, user);
+        assertEquals(0, issuer);
+        assertTrue(first.isInvalid());
+        assertTrue(second.isInvalid());
+        assertTrue(other.isInvalid());
+        assertFalse(otherIdP.isInvalid());
+        assertEquals(0, node1.size());
+        assertEquals(1, node2.size());
+        assertEquals(3, node1.getInvalidatedCount() + node2.getInvalidatedCount());
+        assertTrue(revokedSessions.isRevoked(IDP, "carol", null, System.currentTimeMillis() - 1000));
+    }
+
+    @Test
+    public void testDestroyedSessionIsUnregistered() {
+        // given
+        MockHttpSession first = new MockHttpSession();
+        MockHttpSession second = new MockHttpSession();
+        node1.register(first, credential(IDP, "alice", "s1"));
+        node1.register(second, credential(IDP, "alice", "s2"));
+
+        // when
+        node1.unregister(first.getId());
+        int count = node1.logout(IDP, "alice", Arrays.asList("s1", "s2"));
+
+        // then
+        assertEquals(1, count);
+        assertFalse(first.isInvalid());
+        assertTrue(second.isInvalid());
+        assertEquals(0, node1.getSubjectCount());
+        assertEquals(0, node1.getIssuerCount());
+    }
+
+    @Test
+    public void testIssuerIndexForgetsUsersWithoutSessions() {
+        // given
+        MockHttpSession alice = new MockHttpSession();
+        MockHttpSession bob = new MockHttpSession();
+        MockHttpSession otherIdP = new MockHttpSession();
+        node1.register(alice, credential(IDP, "alice", "s1"));
+        node1.register(bob, credential(IDP, "bob", "s2"));
+        node1.register(otherIdP, credential("http://idp.example.com", "bob", "s3"));
+
+        // when
+        node1.unregister(otherIdP.getId());
+        node1.logout(IDP, "alice", null);
+
+        // then
+        assertEquals(1, node1.getIssuerCount());
+        assertEquals(1, node1.getSubjectCount());
+
+        // when
+        node1.logout(IDP, "bob", Collections.singletonList("s2"));
+
+        // then
+        assertEquals(0, node1.getIssuerCount());
+        assertEquals(0, node1.getSubjectCount());
+    }
+
+    @Test
+    public void testConcurrentLogoutsArePublishedInBatches() throws Exception {
+        // given
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> batchSizes = new CopyOnWriteArrayList<Integer>();
+        SessionInvalidationBus bus = new LocalSessionInvalidationBus() {
+            @Override
+            public void publishAll(List<SessionInvalidation> invalidations) {
+                batchSizes.add(invalidations.size());
+                publishing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.publishAll(invalidations);
+            }
+        };
+        SAMLSessionRegistry registry = new SAMLSessionRegistry(bus, null);
+        MockHttpSession[] sessions = new MockHttpSession[5];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new MockHttpSession();
+            registry.register(sessions[i], credential(IDP, "user" + i, "s" + i));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(sessions.length);
+
+        // when
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        results.add(executor.submit(() -> registry.logout(IDP, "user0", null)));
+        publishing.await();
+        for (int i = 1; i < sessions.length; i++) {
+            String nameID = "user" + i;
+            results.add(executor.submit(() -> registry.logout(IDP, nameID, null)));
+        }
+        while (registry.getPendingCount() < sessions.length - 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        // then
+        for (Future<Integer> result : results) {
+            assertEquals(1, result.get(5, TimeUnit.SECONDS).intValue());
+        }
+        executor.shutdown();
+        assertEquals(Arrays.asList(1, sessions.length - 1), batchSizes);
+        assertEquals(2, registry.getBatchCount());
+    }
+
+    private static SAMLCredential credential(String issuer, String nameIDValue, String sessionIndex) {
+        NameID nameID = mock(NameID.class);
+        when(nameID.getValue()).thenReturn(nameIDValue);
+        AuthnStatement statement = mock(AuthnStatement.class);
+        when(statement.getSessionIndex()).thenReturn(sessionIndex);
+        Assertion assertion = mock(Assertion.class);
+        when(assertion.getAuthnStatements()).thenReturn(Collections.singletonList(statement));
+        SAMLCredential credential = mock(SAMLCredential.class);
+        when(credential.getNameID()).thenReturn(nameID);
+        when(credential.getAuthenticationAssertion()).thenReturn(assertion);
+        when(credential.getRemoteEntityID()).thenReturn(issuer);
+        return credential;
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.session;
+
+import com.vdenotaris.spring.boot.security.saml.web.CommonTestSupport;
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import com.vdenotaris.spring.boot.security.saml.web.authentication.SAMLAuthenticationCodec;
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionMemoryEstimator.Component;
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionMemoryEstimator.ComponentMemory;
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionMemoryEstimator.Estimate;
+import com.vdenotaris.spring.boot.security.saml.web.session.SessionMemoryEstimator.SessionMemory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.saml2.core.AttributeValue;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.schema.XSString;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.providers.ExpiringUsernameAuthenticationToken;
+import org.springframework.security.saml.SAMLCredential;
+import org.springframework.security.saml.storage.HttpSessionStorage;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.xml.namespace.QName;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class SessionMemoryEstimatorTest extends CommonTestSupport {
+
+    private static final String IDP = "http://idp.ssocircle.com";
+
+    private static final String OTHER_IDP = "http://idp.example.com";
+
+    private static final String SP = "com:example:spring:sp";
+
+    private SAMLSessionRegistry registry;
+
+    private SessionMemoryEstimator estimator;
+
+    private SAMLAuthenticationCodec codec;
+
+    @Before
+    public void setUp() {
+        registry = new SAMLSessionRegistry(new LocalSessionInvalidationBus(), null);
+        estimator = new SessionMemoryEstimator(registry, 100);
+        codec = new SAMLAuthenticationCodec();
+    }
+
+    @Test
+    public void testComponentsOfFullAndCompactSessions() throws Exception {
+        // given
+        MockHttpSession full = session(token(credential(IDP, "alice", 20)));
+        MockHttpSession compact = session(codec.compact(token(credential(IDP, "bob", 20))));
+        new HttpSessionStorage(compact).storeMessage("a1", authnRequest("a1"));
+        compact.setAttribute("landing", "/home");
+
+        // when
+        SessionMemory fullMemory = estimator.estimate(full, IDP, "alice");
+        SessionMemory compactMemory = estimator.estimate(compact, IDP, "bob");
+
+        // then
+        assertTrue(fullMemory.getBytes(Component.ASSERTION) > 10000);
+        assertTrue(fullMemory.getBytes(Component.CREDENTIAL) > 0);
+        assertTrue(fullMemory.getBytes(Component.TOKEN) > 0);
+        assertEquals(0, fullMemory.getBytes(Component.MESSAGES));
+        assertEquals(0, fullMemory.getBytes(Component.OTHER));
+
+        assertEquals(0, compactMemory.getBytes(Component.ASSERTION));
+        assertTrue(compactMemory.getBytes(Component.CREDENTIAL) * 5 < fullMemory.getBytes(Component.ASSERTION));
+        assertTrue(compactMemory.getBytes(Component.MESSAGES) > 0);
+        assertEquals(56, compactMemory.getBytes(Component.OTHER));
+        assertEquals(compactMemory.getTotalBytes(),
+                compactMemory.getComponents().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    public void testInvalidatedSessionIsSkipped() throws Exception {
+        // given
+        MockHttpSession session = session(token(credential(IDP, "alice", 1)));
+        session.invalidate();
+
+        // when
+        SessionMemory memory = estimator.estimate(session, IDP, "alice");
+
+        // then
+        assertNull(memory);
+    }
+
+    @Test
+    public void testEstimateByIdPWithHeaviestSessions() throws Exception {
+        // given
+        register(IDP, "alice", 1);
+        register(IDP, "bob", 40);
+        register(IDP, "carol", 10);
+        register(OTHER_IDP, "dave", 5);
+
+        // when
+        Estimate all = estimator.estimate(null, 2);
+        Estimate other = estimator.estimate(OTHER_IDP, 10);
+
+        // then
+        assertEquals(4, all.getSessions());
+        assertEquals(4, all.getMeasuredSessions());
+        assertEquals(2, all.getHeaviest().size());
+        assertEquals("bob", all.getHeaviest().get(0).getNameID());
+        assertEquals("carol", all.getHeaviest().get(1).getNameID());
+        assertEquals(IDP, all.getIdps().get(0).getIdp());
+        assertEquals(3, all.getIdps().get(0).getSessions());
+        assertEquals(all.getHeaviest().get(0).getTotalBytes(), all.getIdps().get(0).getMaxBytes());
+
+        ComponentMemory total = all.getComponents().get(all.getComponents().size() - 1);
+        assertEquals("total", total.getComponent());
+        assertEquals(all.getHeaviest().get(0).getTotalBytes(), total.getMax());
+        assertEquals(all.getHeaviest().get(0).getTotalBytes(), total.getP99());
+        assertTrue(total.getP50() < total.getP90());
+        assertEquals(all.getIdps().get(0).getTotalBytes() + all.getIdps().get(1).getTotalBytes(),
+                total.getTotalBytes());
+
+        assertEquals(1, other.getMeasuredSessions());
+        assertEquals("dave", other.getHeaviest().get(0).getNameID());
+    }
+
+    private void register(String idp, String nameID, int attributeCount) throws Exception {
+        SAMLCredential credential = credential(idp, nameID, attributeCount);
+        registry.register(session(token(credential)), credential);
+    }
+
+    private MockHttpSession session(ExpiringUsernameAuthenticationToken token) {
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(token);
+        MockHttpSession session = new MockHttpSession();
+        session.setAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY, context);
+        return session;
+    }
+
+    private ExpiringUsernameAuthenticationToken token(SAMLCredential credential) {
+        return new ExpiringUsernameAuthenticationToken(new Date(60000L), USER_DETAILS, credential, AUTHORITIES);
+    }
+
+    /*
+     * Credential of an assertion marshalled to DOM, as after the validation of a response.
+     */
+    private SAMLCredential credential(String idp, String nameIdValue, int attributeCount) throws Exception {
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue(nameIdValue);
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID("_" + nameIdValue);
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(idp);
+        assertion.setIssuer(issuer);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        NameID subjectNameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        subjectNameID.setValue(nameIdValue);
+        subject.setNameID(subjectNameID);
+        assertion.setSubject(subject);
+        AuthnStatement statement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        statement.setSessionIndex("s" + nameIdValue);
+        assertion.getAuthnStatements().add(statement);
+        AttributeStatement attributes = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        for (int i = 0; i < attributeCount; i++) {
+            Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+            attribute.setName("attribute" + i);
+            XSString value = build(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            value.setValue("value of attribute " + i);
+            attribute.getAttributeValues().add(value);
+            attributes.getAttributes().add(attribute);
+        }
+        assertion.getAttributeStatements().add(attributes);
+        Configuration.getMarshallerFactory().getMarshaller(assertion).marshall(assertion);
+        return new SAMLCredential(nameID, assertion, idp, null, Collections.<Attribute>emptyList(), SP);
+    }
+
+    private AuthnRequest authnRequest(String id) {
+        AuthnRequest request = build(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID(id);
+        return request;
+    }
+
+    private static <T extends XMLObject> T build(QName elementName) {
+        return build(elementName, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName elementName, QName typeName) {
+        XMLObjectBuilder<T> builder = (XMLObjectBuilder<T>) Configuration.getBuilderFactory()
+                .getBuilder(typeName != null ? typeName : elementName);
+        return typeName != null ? builder.buildObject(elementName, typeName) : builder.buildObject(elementName);
+    }
+
+}
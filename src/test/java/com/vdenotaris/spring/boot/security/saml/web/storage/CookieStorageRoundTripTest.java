@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.storage;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Audience;
+import org.opensaml.saml2.core.AudienceRestriction;
+import org.opensaml.saml2.core.AuthnContext;
+import org.opensaml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.core.Subject;
+import org.opensaml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.security.x509.X509KeyInfoGeneratorFactory;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.saml.SAMLEntryPoint;
+import org.springframework.security.saml.SAMLProcessingFilter;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.security.saml.metadata.MetadataGeneratorFilter;
+import org.springframework.security.saml.metadata.MetadataManager;
+import org.springframework.security.saml.metadata.MetadataMemoryProvider;
+import org.springframework.security.saml.storage.SAMLMessageStorageFactory;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.servlet.http.Cookie;
+import javax.xml.namespace.QName;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Login through the application's entry point and SSO processing filter, with
+ * the AuthnRequest kept in a cookie between the two.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+@DirtiesContext
+public class CookieStorageRoundTripTest {
+
+    private static final String IDP = "http://idp.example.com/metadata";
+
+    private static final String USER_NAME = "john.doe@example.com";
+
+    @Autowired
+    private SAMLMessageStorageFactory storageFactory;
+
+    @Autowired
+    private MetadataGeneratorFilter metadataGeneratorFilter;
+
+    @Autowired
+    private MetadataManager metadata;
+
+    @Autowired
+    private KeyManager keyManager;
+
+    @Autowired
+    private SAMLEntryPoint samlEntryPoint;
+
+    @Autowired
+    private SAMLProcessingFilter samlWebSSOProcessingFilter;
+
+    private X509Credential idpCredential;
+
+    @Before
+    public void setUp() throws Exception {
+        metadataGeneratorFilter.doFilter(new MockHttpServletRequest("GET", "/landing"),
+                new MockHttpServletResponse(), new MockFilterChain());
+
+        idpCredential = (X509Credential) keyManager.getDefaultCredential();
+        MetadataMemoryProvider provider = new MetadataMemoryProvider(idpMetadata());
+        provider.initialize();
+        ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(provider, new ExtendedMetadata());
+        delegate.setMetadataTrustCheck(false);
+        metadata.addMetadataProvider(delegate);
+        metadata.refreshMetadata();
+    }
+
+    @Test
+    public void testEntryPointToConsumerRoundTrip() throws Exception {
+        // given
+        assertTrue(storageFactory instanceof CookieMessageStorageFactory);
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest("GET", "/saml/login");
+        loginRequest.setParameter(SAMLEntryPoint.IDP_PARAMETER, IDP);
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        // when
+        samlEntryPoint.commence(loginRequest, loginResponse, null);
+
+        // then
+        assertNull(loginRequest.getSession(false));
+        assertTrue(loginResponse.getRedirectedUrl().startsWith("http://idp.example.com/sso?SAMLRequest="));
+        Cookie requestCookie = cookie(loginResponse);
+        assertTrue(requestCookie.getName().startsWith(CookieMessageStorageFactory.COOKIE_PREFIX));
+        String requestId = requestCookie.getName().substring(CookieMessageStorageFactory.COOKIE_PREFIX.length());
+
+        // given
+        String acs = assertionConsumerService();
+        MockHttpServletRequest ssoRequest = new MockHttpServletRequest("POST", "/saml/SSO");
+        ssoRequest.setCookies(requestCookie);
+        ssoRequest.setParameter("SAMLResponse", Base64.getEncoder().encodeToString(
+                response(requestId, acs).getBytes(StandardCharsets.UTF_8)));
+        MockHttpServletResponse ssoResponse = new MockHttpServletResponse();
+
+        // when
+        Authentication authentication = samlWebSSOProcessingFilter.attemptAuthentication(ssoRequest, ssoResponse);
+
+        // then
+        assertNotNull(authentication);
+        assertEquals(USER_NAME, authentication.getName());
+        assertNull(ssoRequest.getSession(false));
+        assertTrue(ssoResponse.getHeader("Set-Cookie").startsWith(requestCookie.getName() + "=; "));
+        assertTrue(ssoResponse.getHeader("Set-Cookie").contains("Max-Age=0"));
+    }
+
+    private static Cookie cookie(MockHttpServletResponse response) {
+        String header = response.getHeader("Set-Cookie");
+        int equals = header.indexOf('=');
+        return new Cookie(header.substring(0, equals), header.substring(equals + 1, header.indexOf(';')));
+    }
+
+    private EntityDescriptor idpMetadata() throws Exception {
+        EntityDescriptor descriptor = build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        descriptor.setEntityID(IDP);
+        IDPSSODescriptor idp = build(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        X509KeyInfoGeneratorFactory keyInfoGeneratorFactory = new X509KeyInfoGeneratorFactory();
+        keyInfoGeneratorFactory.setEmitEntityCertificate(true);
+        KeyDescriptor keyDescriptor = build(KeyDescriptor.DEFAULT_ELEMENT_NAME);
+        keyDescriptor.setUse(UsageType.SIGNING);
+        keyDescriptor.setKeyInfo(keyInfoGeneratorFactory.newInstance().generate(idpCredential));
+        idp.getKeyDescriptors().add(keyDescriptor);
+        SingleSignOnService singleSignOnService = build(SingleSignOnService.DEFAULT_ELEMENT_NAME);
+        singleSignOnService.setBinding(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        singleSignOnService.setLocation("http://idp.example.com/sso");
+        idp.getSingleSignOnServices().add(singleSignOnService);
+        descriptor.getRoleDescriptors().add(idp);
+        return descriptor;
+    }
+
+    private String assertionConsumerService() throws Exception {
+        SPSSODescriptor sp = (SPSSODescriptor) metadata.getRole(metadata.getHostedSPName(),
+                SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS);
+        for (AssertionConsumerService service : sp.getAssertionConsumerServices()) {
+            if (SAMLConstants.SAML2_POST_BINDING_URI.equals(service.getBinding())) {
+                return service.getLocation();
+            }
+        }
+        throw new IllegalStateException("No HTTP-POST assertion consumer service");
+    }
+
+    /*
+     * Response of the IdP to the AuthnRequest, with an assertion it signed.
+     */
+    private String response(String inResponseTo, String acs) throws Exception {
+        DateTime now = new DateTime();
+
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID("_" + UUID.randomUUID());
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssueInstant(now);
+        assertion.setIssuer(issuer());
+
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setFormat(NameID.EMAIL);
+        nameID.setValue(USER_NAME);
+        SubjectConfirmationData confirmationData = build(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        confirmationData.setInResponseTo(inResponseTo);
+        confirmationData.setRecipient(acs);
+        confirmationData.setNotOnOrAfter(now.plusMinutes(5));
+        SubjectConfirmation confirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        confirmation.setSubjectConfirmationData(confirmationData);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(nameID);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        Audience audience = build(Audience.DEFAULT_ELEMENT_NAME);
+        audience.setAudienceURI(metadata.getHostedSPName());
+        AudienceRestriction audienceRestriction = build(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        audienceRestriction.getAudiences().add(audience);
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now.minusMinutes(1));
+        conditions.setNotOnOrAfter(now.plusMinutes(5));
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        assertion.setConditions(conditions);
+
+        AuthnContextClassRef classRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setAuthnContextClassRef(AuthnContext.PPT_AUTHN_CTX);
+        AuthnContext authnContext = build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        authnContext.setAuthnContextClassRef(classRef);
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(now);
+        authnStatement.setSessionIndex("_s" + UUID.randomUUID());
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(idpCredential);
+        SecurityHelper.prepareSignatureParams(signature, idpCredential, null, null);
+        assertion.setSignature(signature);
+
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS_URI);
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        status.setStatusCode(statusCode);
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID("_" + UUID.randomUUID());
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setIssueInstant(now);
+        response.setInResponseTo(inResponseTo);
+        response.setDestination(acs);
+        response.setIssuer(issuer());
+        response.setStatus(status);
+        response.getAssertions().add(assertion);
+
+        Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+        Signer.signObject(signature);
+        return XMLHelper.nodeToString(response.getDOM());
+    }
+
+    private static Issuer issuer() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(IDP);
+        return issuer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T build(QName name) {
+        return (T) Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package com.vdenotaris.spring.boot.security.saml.web.storage;
+
+import com.vdenotaris.spring.boot.security.saml.web.TestConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.saml.context.SAMLMessageContext;
+import org.springframework.security.saml.processor.SAMLProcessor;
+import org.springframework.security.saml.storage.SAMLMessageStorage;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.servlet.http.Cookie;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = TestConfig.class)
+public class MessageStorageTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    private static final String ACS = "https://localhost:8443/saml/SSO";
+
+    @Test
+    public void testCookieRoundTripWithoutSession() {
+        // given
+        CookieMessageStorageFactory factory = new CookieMessageStorageFactory(KEY);
+        MockHttpServletRequest loginRequest = new MockHttpServletRequest("GET", "/saml/login");
+        loginRequest.setSecure(true);
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+
+        // when
+        factory.getMessageStorage(loginRequest, loginResponse).storeMessage("a1b2c3", authnRequest("a1b2c3"));
+        MockHttpServletRequest ssoRequest = new MockHttpServletRequest("POST", "/saml/SSO");
+        ssoRequest.setCookies(cookie(loginResponse));
+        MockHttpServletResponse ssoResponse = new MockHttpServletResponse();
+        AuthnRequest retrieved = (AuthnRequest) factory.getMessageStorage(ssoRequest, ssoResponse)
+                .retrieveMessage("a1b2c3");
+
+        // then
+        assertNull(loginRequest.getSession(false));
+        assertTrue(loginResponse.getHeader("Set-Cookie").contains("; Path=/saml; Max-Age=900; HttpOnly; Secure; SameSite=None"));
+        assertNotNull(retrieved);
+        assertEquals("a1b2c3", retrieved.getID());
+        assertEquals(ACS, retrieved.getAssertionConsumerServiceURL());
+        assertTrue(ssoResponse.getHeader("Set-Cookie").startsWith(CookieMessageStorageFactory.COOKIE_PREFIX + "a1b2c3=; "));
+        assertTrue(ssoResponse.getHeader("Set-Cookie").contains("Max-Age=0"));
+    }
+
+    @Test
+    public void testTamperedOrForeignCookieIsRejected() {
+        // given
+        CookieMessageStorageFactory factory = new CookieMessageStorageFactory(KEY);
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+        factory.getMessageStorage(new MockHttpServletRequest(), loginResponse)
+                .storeMessage("a1b2c3", authnRequest("a1b2c3"));
+        Cookie cookie = cookie(loginResponse);
+        char[] value = cookie.getValue().toCharArray();
+        value[value.length / 2] = value[value.length / 2] == 'A' ? 'B' : 'A';
+
+        // when
+        MockHttpServletRequest tampered = new MockHttpServletRequest();
+        tampered.setCookies(new Cookie(cookie.getName(), new String(value)));
+        MockHttpServletRequest otherKey = new MockHttpServletRequest();
+        otherKey.setCookies(cookie);
+        MockHttpServletRequest otherId = new MockHttpServletRequest();
+        otherId.setCookies(new Cookie(CookieMessageStorageFactory.COOKIE_PREFIX + "d4e5f6", cookie.getValue()));
+
+        // then
+        assertNull(factory.getMessageStorage(tampered).retrieveMessage("a1b2c3"));
+        assertNull(new CookieMessageStorageFactory("").getMessageStorage(otherKey).retrieveMessage("a1b2c3"));
+        assertNull(factory.getMessageStorage(otherId).retrieveMessage("d4e5f6"));
+        assertNull(factory.getMessageStorage(new MockHttpServletRequest()).retrieveMessage("a1b2c3"));
+    }
+
+    @Test
+    public void testInMemoryRingIsBoundedAndSingleUse() {
+        // given
+        InMemoryMessageStorageFactory factory = new InMemoryMessageStorageFactory(2, 900);
+        SAMLMessageStorage storage = factory.getMessageStorage(new MockHttpServletRequest());
+
+        // when
+        storage.storeMessage("id1", authnRequest("id1"));
+        storage.storeMessage("id2", authnRequest("id2"));
+        storage.storeMessage("id3", authnRequest("id3"));
+
+        // then
+        assertEquals(2, factory.size());
+        assertEquals(1, factory.getOverwrittenCount());
+        assertNull(storage.retrieveMessage("id1"));
+        assertEquals("id3", ((AuthnRequest) storage.retrieveMessage("id3")).getID());
+        assertNull(storage.retrieveMessage("id3"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAuthnRequestIsStoredBeforeItIsSent() throws Exception {
+        // given
+        SAMLProcessor processor = mock(SAMLProcessor.class);
+        SAMLMessageStorage storage = mock(SAMLMessageStorage.class);
+        StoreFirstWebSSOProfile profile = new StoreFirstWebSSOProfile();
+        profile.setProcessor(processor);
+        SAMLMessageContext context = new SAMLMessageContext();
+        AuthnRequest request = authnRequest("a1b2c3");
+        context.setOutboundSAMLMessage(request);
+        context.setMessageStorage(storage);
+
+        // when
+        profile.sendMessage(context, false);
+
+        // then
+        InOrder order = inOrder(storage, processor);
+        order.verify(storage).storeMessage("a1b2c3", request);
+        order.verify(processor).sendMessage(context, false);
+        assertNull(context.getMessageStorage());
+    }
+
+    private static Cookie cookie(MockHttpServletResponse response) {
+        String header = response.getHeader("Set-Cookie");
+        int equals = header.indexOf('=');
+        return new Cookie(header.substring(0, equals), header.substring(equals + 1, header.indexOf(';')));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AuthnRequest authnRequest(String id) {
+        XMLObjectBuilder<AuthnRequest> builder = (XMLObjectBuilder<AuthnRequest>) Configuration.getBuilderFactory()
+                .getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        AuthnRequest request = builder.buildObject(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        request.setID(id);
+        request.setAssertionConsumerServiceURL(ACS);
+        return request;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Vincenzo De Notaris
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.vdenotaris.spring.boot.security.saml.web.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ObjectSizeEstimatorTest {
+
+    @Test
+    public void testSizesOfStringsAndArrays() {
+        // given
+        ObjectSizeEstimator estimator = new ObjectSizeEstimator();
+
+        // when
+        long string = estimator.sizeOf("abcd");
+        long bytes = estimator.sizeOf(new byte[10]);
+        long strings = estimator.sizeOf(new String[] {"abcd", "abcd"});
+
+        // then
+        assertEquals(24 + 24, string);
+        assertEquals(32, bytes);
+        assertEquals(24 + string, strings);
+        assertEquals(0, estimator.sizeOf(null));
+    }
+
+    @Test
+    public void testSharedObjectsAreCountedOnce() {
+        // given
+        ObjectSizeEstimator estimator = new ObjectSizeEstimator()
+                .stopAt(Number.class)
+                .ignoreField(Holder.class, "ignored");
+        String shared = "abcd";
+        Holder first = new Holder(shared, 1L, "ignored", TimeUnit.SECONDS);
+        Holder second = new Holder(shared, 2L, "ignored", TimeUnit.SECONDS);
+
+        // when
+        ObjectSizeEstimator.Walk walk = estimator.newWalk();
+        long firstSize = walk.add(first);
+        long secondSize = walk.add(second);
+        long again = walk.add(first);
+
+        // then
+        assertEquals(estimator.shallowSizeOf(Holder.class), secondSize);
+        assertEquals(secondSize + 48, firstSize);
+        assertEquals(0, again);
+        assertEquals(32, estimator.shallowSizeOf(Holder.class));
+    }
+
+    private static final class Holder {
+
+        private final String value;
+
+        private final Long number;
+
+        private final String ignored;
+
+        private final TimeUnit unit;
+
+        private final int count = 1;
+
+        Holder(String value, Long number, String ignored, TimeUnit unit) {
+            this.value = value;
+            this.number = number;
+            this.ignored = ignored;
+            this.unit = unit;
+        }
+    }
+
+}